@@ -32,6 +32,18 @@ public enum Error {
     ERR_023(23, "Error occurred while updating destination account"),
     ERR_024(24, "Error occurred while updating source account"),
     ERR_025(25, "Unexpected server error"),
+    ERR_026(26, "Server is busy, try again later"),
+    ERR_027(27, "Account was changed concurrently, try again"),
+    ERR_028(28, "Number of balance stripes must be from 0 to 64"),
+    ERR_029(29, "Transfer batch must be a JSON array of transfers"),
+    ERR_030(30, "Atomic transfer batch is too large"),
+    ERR_031(31, "Atomic transfer batch is not supported with SINGLE_WRITER modes"),
+    ERR_032(32, "Bulk request must be an array of at most 10000 rows"),
+    ERR_033(33, "Idempotency key is already used by other request"),
+    ERR_034(34, "Idempotency key must be at most 255 characters"),
+    ERR_035(35, "Continuation token is not valid for this listing"),
+    ERR_036(36, "Page size must be from 1 to 1000"),
+    ERR_037(37, "asOf must be date and time like 2024-01-31T23:59:59"),
     ;
 
     private int code;
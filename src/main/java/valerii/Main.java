@@ -8,6 +8,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import valerii.db.DbProvider;
 import valerii.db.H2Provider;
+import valerii.db.IDbProvider;
+import valerii.db.MemoryProvider;
+import valerii.domain.Account;
+import valerii.resources.AccountsResource;
+import valerii.resources.ResourceExecutor;
+import valerii.resources.TransfersResource;
 
 import java.sql.SQLException;
 
@@ -24,7 +30,11 @@ public class Main {
 
         Server server = initServer(8080);
 
-        DbProvider.setProvider(new H2Provider());
+        initExecutor();
+
+        DbProvider.setProvider(initDbProvider());
+
+        initAccountModes();
 
         try {
             DbProvider.createDBTables();
@@ -33,6 +43,8 @@ public class Main {
             System.exit(2);
         }
 
+        initLedgerCheckpoints();
+
         try {
             server.start();
             server.join();
@@ -44,7 +56,126 @@ public class Main {
         }
     }
 
-    static Server initServer(int port) {
+    /**
+     * Creates DB provider selected by db.provider system property: h2 (default) or memory
+     */
+    static IDbProvider initDbProvider() {
+        String provider = System.getProperty("db.provider", "h2");
+
+        switch (provider) {
+            case "h2":
+                return new H2Provider(
+                        Integer.getInteger("db.pool.minSize", H2Provider.DEFAULT_POOL_MIN_SIZE),
+                        Integer.getInteger("db.pool.maxSize", H2Provider.DEFAULT_POOL_MAX_SIZE),
+                        Long.getLong("db.pool.acquireTimeoutMillis", H2Provider.DEFAULT_ACQUIRE_TIMEOUT_MILLIS),
+                        Long.getLong("db.pool.leakDetectionThresholdMillis", H2Provider.DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS),
+                        Integer.getInteger("db.pool.statementCacheSize", H2Provider.DEFAULT_STATEMENT_CACHE_SIZE),
+                        Integer.getInteger("db.readPool.maxSize", H2Provider.DEFAULT_READ_POOL_MAX_SIZE));
+            case "memory":
+                return new MemoryProvider(
+                        Long.getLong("db.memory.lockTimeoutMillis", MemoryProvider.DEFAULT_LOCK_TIMEOUT_MILLIS),
+                        MemoryProvider.StorageType.valueOf(System.getProperty("db.memory.accountStorage", MemoryProvider.StorageType.HEAP.name())));
+            default:
+                throw new IllegalArgumentException("Unknown DB provider: " + provider);
+        }
+    }
+
+    /**
+     * Sets up request executor selected by executor.mode system property: PLATFORM (default) or VIRTUAL,
+     * retries of conflicting operations, partitions of account changes if executor.partitions is set
+     * group commit of transfers if transfer.batchSize is set and coalescing of debit/withdraw requests
+     * if debitWithdraw.batchSize is set
+     */
+    static void initExecutor() {
+        ResourceExecutor.Mode mode = ResourceExecutor.Mode.valueOf(System.getProperty("executor.mode", ResourceExecutor.Mode.PLATFORM.name()));
+        int retryAfterSeconds = Integer.getInteger("executor.retryAfterSeconds", ResourceExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+
+        switch (mode) {
+            case PLATFORM:
+                ResourceExecutor.init(
+                        Integer.getInteger("executor.threads", ResourceExecutor.DEFAULT_THREADS),
+                        Integer.getInteger("executor.queueCapacity", ResourceExecutor.DEFAULT_QUEUE_CAPACITY),
+                        retryAfterSeconds);
+                break;
+            case VIRTUAL:
+                ResourceExecutor.initVirtual(
+                        Integer.getInteger("executor.maxVirtualRequests", ResourceExecutor.DEFAULT_MAX_VIRTUAL_REQUESTS),
+                        retryAfterSeconds);
+                break;
+        }
+
+        ResourceExecutor.initPartitions(
+                Integer.getInteger("executor.partitions", 0),
+                Integer.getInteger("executor.partitionQueueCapacity", ResourceExecutor.DEFAULT_PARTITION_QUEUE_CAPACITY));
+
+        ResourceExecutor.initRetries(
+                Integer.getInteger("worker.maxRetries", ResourceExecutor.DEFAULT_MAX_RETRIES),
+                Long.getLong("worker.retryBackoffMicros", ResourceExecutor.DEFAULT_RETRY_BACKOFF_MICROS));
+
+        int transferBatchSize = Integer.getInteger("transfer.batchSize", 0);
+        if (transferBatchSize > 0 && ResourceExecutor.isPartitioned()) {
+            // pipeline transfers would not wait for account partitions
+            throw new IllegalArgumentException("transfer.batchSize cannot be used with executor.partitions");
+        }
+        ResourceExecutor.initTransferPipeline(
+                transferBatchSize,
+                Long.getLong("transfer.batchMaxDelayMicros", ResourceExecutor.DEFAULT_PIPELINE_MAX_DELAY_MICROS),
+                Integer.getInteger("transfer.pipelineBufferSize", ResourceExecutor.DEFAULT_PIPELINE_BUFFER_SIZE));
+        ResourceExecutor.initDebitWithdrawCoalescing(
+                Integer.getInteger("debitWithdraw.batchSize", 0),
+                Long.getLong("debitWithdraw.batchMaxDelayMicros", ResourceExecutor.DEFAULT_COALESCE_MAX_DELAY_MICROS));
+        ResourceExecutor.initIdempotency(
+                Integer.getInteger("idempotency.maxKeys", ResourceExecutor.DEFAULT_IDEMPOTENCY_MAX_KEYS),
+                Long.getLong("idempotency.ttlSeconds", ResourceExecutor.DEFAULT_IDEMPOTENCY_TTL_SECONDS));
+        TransfersResource.initBatch(
+                Integer.getInteger("transfer.batchWindow", TransfersResource.DEFAULT_BATCH_WINDOW),
+                Integer.getInteger("transfer.atomicBatchMaxSize", TransfersResource.DEFAULT_ATOMIC_BATCH_MAX_SIZE));
+        AccountsResource.initExport(Integer.getInteger("export.fetchSize", AccountsResource.DEFAULT_EXPORT_FETCH_SIZE));
+    }
+
+    /**
+     * Starts background job that creates balance checkpoints from the ledger, must be called after DB tables are created
+     */
+    static void initLedgerCheckpoints() {
+        ResourceExecutor.initLedgerCheckpoints(
+                Long.getLong("ledger.checkpointPeriodMillis", ResourceExecutor.DEFAULT_CHECKPOINT_PERIOD_MILLIS),
+                Integer.getInteger("ledger.checkpointInterval", ResourceExecutor.DEFAULT_CHECKPOINT_INTERVAL),
+                Long.getLong("ledger.checkpointSettleMillis", ResourceExecutor.DEFAULT_CHECKPOINT_SETTLE_MILLIS),
+                Long.getLong("ledger.checkpointWatchMillis", ResourceExecutor.DEFAULT_CHECKPOINT_WATCH_MILLIS));
+    }
+
+    /**
+     * Sets how account balance is changed and whether accounts are locked in-process. Account changes running
+     * on single writer partitions need no row locks, so SINGLE_WRITER modes are used by default when partitions are enabled.
+     * SINGLE_WRITER modes read and write balances without locks, so they are allowed with partitions only.
+     * OPTIMISTIC modes must be used together: only they change the record version. They need no in-process locks,
+     * so the locks are disabled by default then
+     */
+    static void initAccountModes() {
+        boolean partitioned = ResourceExecutor.isPartitioned();
+        Account.UpdateMode defaultUpdateMode = partitioned ? Account.UpdateMode.SINGLE_WRITER : Account.UpdateMode.GUARDED;
+        Account.TransferMode defaultTransferMode = partitioned ? Account.TransferMode.SINGLE_WRITER : Account.TransferMode.SETTLE;
+
+        Account.UpdateMode updateMode = Account.UpdateMode.valueOf(System.getProperty("account.updateMode", defaultUpdateMode.name()));
+        Account.TransferMode transferMode = Account.TransferMode.valueOf(System.getProperty("account.transferMode", defaultTransferMode.name()));
+        if (!partitioned && (updateMode == Account.UpdateMode.SINGLE_WRITER || transferMode == Account.TransferMode.SINGLE_WRITER)) {
+            // nothing else keeps concurrent changes of the same account apart
+            throw new IllegalArgumentException("SINGLE_WRITER account modes can be used with executor.partitions only");
+        }
+        boolean optimistic = updateMode == Account.UpdateMode.OPTIMISTIC;
+        if (optimistic != (transferMode == Account.TransferMode.OPTIMISTIC)) {
+            throw new IllegalArgumentException("account.updateMode and account.transferMode must be both OPTIMISTIC or both not");
+        }
+
+        Account.setUpdateMode(updateMode);
+        Account.setTransferMode(transferMode);
+
+        ResourceExecutor.initAccountLocks(
+                Integer.getInteger("account.lockStripes", optimistic ? 0 : ResourceExecutor.DEFAULT_ACCOUNT_LOCK_STRIPES),
+                Long.getLong("account.lockTimeoutMillis", ResourceExecutor.DEFAULT_ACCOUNT_LOCK_TIMEOUT_MILLIS));
+    }
+
+    public static Server initServer(int port) {
         Server server = new Server(port);
 
         ServletContextHandler servletContextHandler = new ServletContextHandler(NO_SESSIONS);
@@ -0,0 +1,92 @@
+package valerii.db;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Orders commits of MemoryProvider transactions. Commit stamps all row versions it made with the next commit version
+ * and then publishes the version, so a statement that reads at the published version sees all changes
+ * of a commit or none of them. Versions replaced by a commit are dropped when no running statement reads
+ * at an older version
+ *
+ * @author vliutyi
+ */
+class CommitClock {
+
+    // read version of the statement that is not registered yet, it may read at any published version
+    static final long REGISTERING = -1;
+
+    private volatile long published;
+    // transactions running a statement
+    private final Set<MemoryTransaction> readers = ConcurrentHashMap.newKeySet();
+    // cleanups in the order of commit versions, guarded by this
+    private final ArrayDeque<Cleanup> cleanups = new ArrayDeque<>();
+
+    long getPublished() {
+        return published;
+    }
+
+    /**
+     * Registers the statement of the transaction
+     * @return commit version the statement reads at
+     */
+    long beginRead(MemoryTransaction reader) {
+        // reader is registered before the version is read, so versions it can read are not dropped
+        reader.readVersion = REGISTERING;
+        readers.add(reader);
+        long version = published;
+        reader.readVersion = version;
+        return version;
+    }
+
+    void endRead(MemoryTransaction reader) {
+        readers.remove(reader);
+    }
+
+    /**
+     * Commits the changes and runs cleanups of versions no statement reads any more
+     */
+    synchronized void publish(List<MemoryTransaction.CommitAction> actions) {
+        long version = published + 1;
+        for (MemoryTransaction.CommitAction action : actions) {
+            action.commit(version);
+        }
+        published = version;
+
+        for (MemoryTransaction.CommitAction action : actions) {
+            if (action.cleanup != null) {
+                cleanups.add(new Cleanup(version, action.cleanup));
+            }
+        }
+        if (cleanups.isEmpty()) {
+            return;
+        }
+
+        long oldest = version;
+        for (MemoryTransaction reader : readers) {
+            long readVersion = reader.readVersion;
+            if (readVersion == REGISTERING) {
+                // cleanups are left for the next commit
+                return;
+            }
+            oldest = Math.min(oldest, readVersion);
+        }
+        while (!cleanups.isEmpty() && cleanups.peek().version <= oldest) {
+            cleanups.poll().action.run();
+        }
+    }
+
+    private static class Cleanup {
+
+        // version that made the cleaned up versions obsolete
+        private final long version;
+        private final Runnable action;
+
+        Cleanup(long version, Runnable action) {
+            this.version = version;
+            this.action = action;
+        }
+    }
+}
@@ -0,0 +1,349 @@
+package valerii.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.exception.ConnectionPoolTimeoutException;
+import valerii.metrics.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of JDBC connections. Borrowed connections are returned to the pool when closed.
+ * Connection is validated before it is handed out, uncommitted work is rolled back when it is returned.
+ * Connections held longer than leak detection threshold are reported to the log with the current stack
+ * of the borrowing thread, borrowing itself records only the thread and the time.
+ * Each pooled connection keeps its own cache of prepared statements.
+ *
+ * @author vliutyi
+ */
+public class ConnectionPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 1;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final long acquireTimeoutMillis;
+    private final long leakDetectionThresholdMillis;
+    private final int statementCacheSize;
+
+    // limits the number of connections that are in use or idle
+    private final Semaphore permits;
+    // most recently returned connections are at the head
+    private final BlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Set<Lease> leased = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger waiters = new AtomicInteger();
+    private final ScheduledExecutorService leakDetector;
+
+    /**
+     * Creates the pool and opens minSize connections
+     * @param name name of the pool used as a prefix of the pool gauges
+     * @param url JDBC url
+     * @param user DB user
+     * @param password DB password
+     * @param minSize number of connections opened on pool start
+     * @param maxSize max number of connections opened at the same time
+     * @param acquireTimeoutMillis max time to wait for free connection
+     * @param leakDetectionThresholdMillis time after borrowed connection is reported as leaked, 0 to disable leak detection
+     * @param statementCacheSize max number of prepared statements cached per connection, 0 to disable caching
+     * @throws SQLException in case of errors while opening initial connections
+     */
+    public ConnectionPool(String name, String url, String user, String password, int minSize, int maxSize,
+                          long acquireTimeoutMillis, long leakDetectionThresholdMillis, int statementCacheSize) throws SQLException {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Wrong pool size: min " + minSize + ", max " + maxSize);
+        }
+
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.leakDetectionThresholdMillis = leakDetectionThresholdMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.permits = new Semaphore(maxSize, true);
+
+        for (int i = 0; i < minSize; i++) {
+            idle.offerLast(newPooledConnection());
+        }
+
+        if (leakDetectionThresholdMillis > 0) {
+            leakDetector = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, name + "-leak-detector");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(leakDetectionThresholdMillis / 2, 1);
+            leakDetector.scheduleAtFixedRate(this::detectLeaks, period, period, TimeUnit.MILLISECONDS);
+        } else {
+            leakDetector = null;
+        }
+
+        Metrics.gauge(name + ".active", this::getActive);
+        Metrics.gauge(name + ".idle", this::getIdle);
+        Metrics.gauge(name + ".waiters", this::getWaiters);
+    }
+
+    /**
+     * Borrows connection from the pool. Waits for free connection if all connections are in use
+     * @return connection that must be closed to return it to the pool
+     * @throws ConnectionPoolTimeoutException if no connection became free within acquire timeout
+     * @throws SQLException in case of errors while opening new connection
+     */
+    public Connection getConnection() throws SQLException {
+        waiters.incrementAndGet();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new ConnectionPoolTimeoutException("No free DB connection within " + acquireTimeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for DB connection", e);
+        } finally {
+            waiters.decrementAndGet();
+        }
+
+        try {
+            PooledConnection pooledConnection = pollValidConnection();
+            if (pooledConnection == null) {
+                pooledConnection = newPooledConnection();
+            }
+            return lease(pooledConnection);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Number of connections that are currently borrowed
+     */
+    public int getActive() {
+        return leased.size();
+    }
+
+    /**
+     * Number of opened connections that wait in the pool to be borrowed
+     */
+    public int getIdle() {
+        return idle.size();
+    }
+
+    /**
+     * Number of threads waiting for free connection
+     */
+    public int getWaiters() {
+        return waiters.get();
+    }
+
+    /**
+     * Closes all idle connections and stops leak detection. Borrowed connections are closed when returned
+     */
+    public void close() {
+        if (leakDetector != null) {
+            leakDetector.shutdownNow();
+        }
+
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idle.pollFirst()) != null) {
+            pooledConnection.closePhysical();
+        }
+    }
+
+    /**
+     * Returns statement cache of the pooled connection
+     * @param connection connection borrowed from any pool
+     * @return statement cache or null if connection is not pooled or statement caching is disabled
+     */
+    static StatementCache getStatementCache(Connection connection) {
+        if (connection == null || !Proxy.isProxyClass(connection.getClass())) {
+            return null;
+        }
+
+        InvocationHandler handler = Proxy.getInvocationHandler(connection);
+        if (handler instanceof Lease) {
+            return ((Lease) handler).pooledConnection.getStatementCache();
+        }
+
+        return null;
+    }
+
+    private PooledConnection newPooledConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, user, password);
+        StatementCache statementCache = statementCacheSize > 0 ? new StatementCache(connection, statementCacheSize) : null;
+        return new PooledConnection(connection, statementCache);
+    }
+
+    private PooledConnection pollValidConnection() {
+        PooledConnection pooledConnection;
+        while ((pooledConnection = idle.pollFirst()) != null) {
+            if (pooledConnection.isValid()) {
+                return pooledConnection;
+            }
+            LOGGER.warn("Closing invalid DB connection");
+            pooledConnection.closePhysical();
+        }
+        return null;
+    }
+
+    private Connection lease(PooledConnection pooledConnection) {
+        Lease lease = new Lease(pooledConnection, Thread.currentThread());
+        leased.add(lease);
+        return lease.proxy;
+    }
+
+    private void release(Lease lease) {
+        leased.remove(lease);
+
+        PooledConnection pooledConnection = lease.pooledConnection;
+        if (pooledConnection.reset()) {
+            idle.offerFirst(pooledConnection);
+        } else {
+            pooledConnection.closePhysical();
+        }
+
+        permits.release();
+    }
+
+    private void detectLeaks() {
+        long now = System.nanoTime();
+        for (Lease lease : leased) {
+            if (!lease.leakReported && now - lease.leasedAt > TimeUnit.MILLISECONDS.toNanos(leakDetectionThresholdMillis)) {
+                lease.leakReported = true;
+                // stack is taken when the leak is found, so borrowing does not pay for it
+                Throwable stack = new Throwable("Stack of thread " + lease.borrower.getName() + " that borrowed the connection");
+                stack.setStackTrace(lease.borrower.getStackTrace());
+                LOGGER.warn("DB connection is held longer than " + leakDetectionThresholdMillis + " ms, possible leak", stack);
+            }
+        }
+    }
+
+    /**
+     * Physical connection owned by the pool
+     */
+    static class PooledConnection {
+
+        private final Connection connection;
+        private final StatementCache statementCache;
+
+        PooledConnection(Connection connection, StatementCache statementCache) {
+            this.connection = connection;
+            this.statementCache = statementCache;
+        }
+
+        Connection getConnection() {
+            return connection;
+        }
+
+        StatementCache getStatementCache() {
+            return statementCache;
+        }
+
+        boolean isValid() {
+            try {
+                return connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+            } catch (SQLException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Discards uncommitted work and restores default connection state
+         * @return true if connection can be reused
+         */
+        boolean reset() {
+            try {
+                if (!connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+                if (connection.isReadOnly()) {
+                    connection.setReadOnly(false);
+                }
+                return true;
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot reset DB connection: " + e.getMessage());
+                return false;
+            }
+        }
+
+        void closePhysical() {
+            if (statementCache != null) {
+                statementCache.clear();
+            }
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Error occurred while closing DB connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Single borrowing of the pooled connection. Handles calls to the connection proxy given to the caller:
+     * close() returns connection to the pool, any call after close() fails
+     */
+    private class Lease implements InvocationHandler {
+
+        private final PooledConnection pooledConnection;
+        private final Connection proxy;
+        private final long leasedAt = System.nanoTime();
+        private final Thread borrower;
+        private volatile boolean closed;
+        private volatile boolean leakReported;
+
+        Lease(PooledConnection pooledConnection, Thread borrower) {
+            this.pooledConnection = pooledConnection;
+            this.borrower = borrower;
+            this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!closed) {
+                        closed = true;
+                        release(this);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed || pooledConnection.getConnection().isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooledConnection.getConnection();
+                default:
+                    break;
+            }
+
+            if (closed) {
+                throw new SQLException("Connection is closed");
+            }
+
+            try {
+                return method.invoke(pooledConnection.getConnection(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -2,6 +2,7 @@ package valerii.db;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -13,8 +14,9 @@ public class DbProvider {
 
     // actual DB provider
     private static IDbProvider provider;
-    // stores thread specific db connection
-    private static ThreadLocal<Connection> threadConnection = new ThreadLocal<>();
+    // stores thread specific db connection binding. Binding lives for one operation only: it is set and removed
+    // by the thread that runs the operation, so it works the same for pooled platform threads and virtual threads
+    private static ThreadLocal<ConnectionBinding> threadConnection = new ThreadLocal<>();
 
     /**
      * Set DB provider to use
@@ -25,11 +27,29 @@ public class DbProvider {
     }
 
     /**
-     * Returns db connection specific to current thread
-     * @return thread specific Connection object
+     * Returns db connection specific to current thread. If lazy connection is bound to the thread
+     * and not obtained yet, new connection is obtained by this call
+     * @return thread specific Connection object or null if no connection is bound to current thread
+     * @throws SQLException in case lazy connection cannot be obtained
      */
-    public static Connection getConnection() {
-        return threadConnection.get();
+    public static Connection getConnection() throws SQLException {
+        ConnectionBinding binding = threadConnection.get();
+
+        if (binding == null) {
+            return null;
+        }
+
+        if (binding.connection == null) {
+            if (binding.readOnly) {
+                binding.connection = newReadOnlyDBConnection();
+            } else {
+                Connection connection = newDBConnection();
+                connection.setAutoCommit(false);
+                binding.connection = connection;
+            }
+        }
+
+        return binding.connection;
     }
 
     /**
@@ -37,17 +57,60 @@ public class DbProvider {
      * @param connection the db connection instance
      */
     public static void setThreadConnection(Connection connection) {
-        threadConnection.set(connection);
+        if (connection == null) {
+            threadConnection.remove();
+        } else {
+            threadConnection.set(new ConnectionBinding(connection, false));
+        }
+    }
+
+    /**
+     * Binds lazy connection to current thread. Connection is obtained on the first DB operation done by the thread,
+     * write connection is switched to manual commit mode
+     * @param readOnly true if only read-only operations will be done by the thread
+     */
+    public static void bindLazyConnection(boolean readOnly) {
+        threadConnection.set(new ConnectionBinding(null, readOnly));
+    }
+
+    /**
+     * Returns connection bound to current thread without obtaining lazy connection
+     * @return connection or null if no connection bound or lazy connection was not obtained yet
+     */
+    public static Connection getBoundConnection() {
+        ConnectionBinding binding = threadConnection.get();
+        return binding != null ? binding.connection : null;
+    }
+
+    /**
+     * Removes connection binding from current thread
+     * @return connection that was bound to the thread or null if lazy connection was never obtained
+     */
+    public static Connection unbindConnection() {
+        Connection connection = getBoundConnection();
+        threadConnection.remove();
+        return connection;
     }
 
     /**
      * Gets new connection from DB connection pool
      * @return new connection object
+     * @throws SQLException in case connection cannot be obtained
      */
-    public static Connection newDBConnection() {
+    public static Connection newDBConnection() throws SQLException {
         return provider.newDBConnection();
     }
 
+    /**
+     * Gets new connection for read-only operations. The connection is in auto-commit mode
+     * and may come from a separate pool of read-only connections
+     * @return new read-only connection object
+     * @throws SQLException in case connection cannot be obtained
+     */
+    public static Connection newReadOnlyDBConnection() throws SQLException {
+        return provider.newReadOnlyDBConnection();
+    }
+
     /**
      * Executes scripts that create all needed table in DB
      * @throws SQLException in case of DB script errors
@@ -75,6 +138,18 @@ public class DbProvider {
         return provider.insert(getConnection(), table, values);
     }
 
+    /**
+     * Inserts many rows into DB table by one batch. All rows must have the same field names.
+     * Row that violates a constraint, e.g. unique or foreign key, is not inserted, other rows of the batch are
+     * @param table table name to insert data
+     * @param rows maps with field names and values to insert
+     * @return the id of each inserted record in the order of the rows, -1 for the row that violates a constraint
+     * @throws SQLException in case of other DB errors while inserting
+     */
+    public static int[] insertBatch(String table, List<Map<String, DbValue>> rows) throws SQLException {
+        return provider.insertBatch(getConnection(), table, rows);
+    }
+
     /**
      * Selects data from DB table. Select criteria are stored in a map that contains field name as a key and DbValue as a type and value
      * @param table queried table name
@@ -97,6 +172,130 @@ public class DbProvider {
         return provider.selectForUpdate(getConnection(), table, values);
     }
 
+    /**
+     * Selects given columns of a single record found by key column value and maps it straight into the business object
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn column to search by
+     * @param key value of the key column
+     * @param mapper maps selected row into the business object
+     * @return mapped object or null if record is not found
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> T selectRow(String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException {
+        return provider.selectRow(getConnection(), table, columns, keyColumn, key, mapper);
+    }
+
+    /**
+     * Selects given columns of a single record found by key column value and locks the record for further update.
+     * Selected row is mapped straight into the business object
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn column to search by
+     * @param key value of the key column
+     * @param mapper maps selected row into the business object
+     * @return mapped object or null if record is not found
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> T selectRowForUpdate(String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException {
+        return provider.selectRowForUpdate(getConnection(), table, columns, keyColumn, key, mapper);
+    }
+
+    /**
+     * Selects given columns of all records that have given value of the key column, without lock.
+     * Records are read by a single statement
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn column to search by
+     * @param key value of the key column
+     * @param mapper maps selected row into the business object
+     * @return mapped objects of found records in ascending order of their id, empty list if nothing is found
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> List<T> selectRows(String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException {
+        return provider.selectRows(getConnection(), table, columns, keyColumn, key, mapper);
+    }
+
+    /**
+     * Selects given columns of the records found by key column values and locks the records for further update.
+     * Records are locked in ascending order of the key, so concurrent calls with overlapping keys cannot deadlock
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn integer column to search by
+     * @param keys values of the key column
+     * @param mapper maps selected row into the business object
+     * @return mapped objects of found records in ascending order of the key
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> List<T> selectRowsForUpdate(String table, String[] columns, String keyColumn, int[] keys, RowMapper<T> mapper) throws SQLException {
+        return provider.selectRowsForUpdate(getConnection(), table, columns, keyColumn, keys, mapper);
+    }
+
+    /**
+     * Selects given columns of the records following the given id, in the order of their ids.
+     * Records are found by seek on the id, so the cost of the call does not depend on how many records precede afterId
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn column to filter records by, null to select records regardless of it
+     * @param key value of the key column
+     * @param afterId id the selected records follow, 0 to select from the first record
+     * @param limit max number of selected records
+     * @param mapper maps selected row into the business object
+     * @return mapped objects of found records in ascending order of id
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> List<T> selectRange(String table, String[] columns, String keyColumn, DbValue key, int afterId, int limit,
+                                          RowMapper<T> mapper) throws SQLException {
+        return provider.selectRange(getConnection(), table, columns, keyColumn, key, afterId, limit, mapper);
+    }
+
+    /**
+     * Selects given columns of the record of the key with the greatest value of the order column, optionally
+     * not exceeding the bound. Record is found by seek on descending (key, order column, id) index
+     * @param table queried table name
+     * @param columns columns to select. Mapper reads them by 1-based index in the same order
+     * @param keyColumn column to filter records by
+     * @param key value of the key column
+     * @param orderColumn column the records are ordered by, greater id wins among equal values
+     * @param bound max value of the order column, null to select the last record of the key
+     * @param mapper maps selected row into the business object
+     * @return mapped object of found record, null if no record found
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> T selectLast(String table, String[] columns, String keyColumn, DbValue key, String orderColumn, DbValue bound,
+                                   RowMapper<T> mapper) throws SQLException {
+        return provider.selectLast(getConnection(), table, columns, keyColumn, key, orderColumn, bound, mapper);
+    }
+
+    /**
+     * Sums column of the records of each given key by one statement, records are not locked
+     * @param table queried table name
+     * @param sumColumn integer column to sum
+     * @param keyColumn integer column to group records by
+     * @param keys values of the key column
+     * @param mapper maps row of the key (column 1) and its sum (column 2) into the business object
+     * @return mapped objects of the keys that have records
+     * @throws SQLException in case of DB errors
+     */
+    public static <T> List<T> selectSums(String table, String sumColumn, String keyColumn, int[] keys, RowMapper<T> mapper) throws SQLException {
+        return provider.selectSums(getConnection(), table, sumColumn, keyColumn, keys, mapper);
+    }
+
+    /**
+     * Reads rows one by one in the order of their ids without keeping them in memory
+     * @param table table name
+     * @param columns columns passed to the handler, in the order of their indexes
+     * @param keyColumn column to filter rows by, null to read all rows
+     * @param key value of the key column
+     * @param fetchSize number of rows fetched from DB at once
+     * @param handler called for each row while the query is read
+     * @return number of read rows
+     * @throws SQLException in case of DB errors or error thrown by the handler
+     */
+    public static int scan(String table, String[] columns, String keyColumn, DbValue key, int fetchSize, RowHandler handler) throws SQLException {
+        return provider.scan(getConnection(), table, columns, keyColumn, key, fetchSize, handler);
+    }
+
     /**
      * Updates single record in DB specified by its id. New values for update are stored in a map that contains field name as a key and DbValue as a type and value
      * @param table table name to be updated
@@ -107,4 +306,72 @@ public class DbProvider {
     public static int update(String table, int id, Map<String, DbValue> update) throws SQLException {
         return provider.update(getConnection(), table, id, update);
     }
+
+    /**
+     * Updates single record in DB specified by its id only if its version column still has given value.
+     * The version column is incremented by the same update
+     * @param table table name to be updated
+     * @param id id of the record
+     * @param versionColumn integer column that holds version of the record
+     * @param version version of the record read before the update
+     * @param update map of field name and values to update
+     * @return number of updated records, 0 if there is no record with such id or its version was changed
+     * @throws SQLException in case of DB errors
+     */
+    public static int updateIfVersion(String table, int id, String versionColumn, int version, Map<String, DbValue> update) throws SQLException {
+        return provider.updateIfVersion(getConnection(), table, id, versionColumn, version, update);
+    }
+
+    /**
+     * Deletes single record in DB specified by its id
+     * @param table table name to delete from
+     * @param id id of the record to delete
+     * @return number of deleted records, 1 or 0 if there is no record with such id
+     * @throws SQLException in case of DB errors, e.g. when the record is referenced by other records
+     */
+    public static int delete(String table, int id) throws SQLException {
+        return provider.delete(getConnection(), table, id);
+    }
+
+    /**
+     * Atomically adds diff to the integer column of single record specified by its id. Update is done only if
+     * the new value is not less than minValue. Check, update and read of the new value are done in a single DB call
+     * @param table table name to be updated
+     * @param id id of the record
+     * @param column integer column to update
+     * @param diff value to add to the column
+     * @param minValue min allowed new value of the column
+     * @return new value of the column or null if the record is not found or the new value would be less than minValue
+     * @throws SQLException in case of DB errors
+     */
+    public static Integer addToColumn(String table, int id, String column, int diff, int minValue) throws SQLException {
+        return provider.addToColumn(getConnection(), table, id, column, diff, minValue);
+    }
+
+    /**
+     * Adds individual diff to the integer column of each record specified by id. All records are updated in a single DB call
+     * @param table table name to be updated
+     * @param column integer column to update
+     * @param ids ids of the records
+     * @param diffs values to add to the column, diffs[i] is added to the record with ids[i]
+     * @return number of updated records
+     * @throws SQLException in case of DB errors
+     */
+    public static int addToColumn(String table, String column, int[] ids, int[] diffs) throws SQLException {
+        return provider.addToColumn(getConnection(), table, column, ids, diffs);
+    }
+
+    /**
+     * Connection bound to a thread. Connection is null until lazy connection is obtained
+     */
+    private static class ConnectionBinding {
+
+        private final boolean readOnly;
+        private Connection connection;
+
+        ConnectionBinding(Connection connection, boolean readOnly) {
+            this.connection = connection;
+            this.readOnly = readOnly;
+        }
+    }
 }
@@ -0,0 +1,17 @@
+package valerii.db;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+/**
+ * Read access to the current row of a query result. Columns are addressed by 1-based index
+ * in the order they were requested
+ */
+public interface DbRow {
+
+    int getInt(int column) throws SQLException;
+
+    String getString(int column) throws SQLException;
+
+    Timestamp getTimestamp(int column) throws SQLException;
+}
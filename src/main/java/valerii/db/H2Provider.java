@@ -6,8 +6,11 @@ import org.slf4j.LoggerFactory;
 import java.sql.*;
 import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -25,11 +28,74 @@ public class H2Provider implements IDbProvider {
     private static final String DB_USER = "me";
     private static final String DB_PASSWORD = "none";
 
+    public static final int DEFAULT_POOL_MIN_SIZE = 4;
+    public static final int DEFAULT_POOL_MAX_SIZE = 32;
+    public static final long DEFAULT_ACQUIRE_TIMEOUT_MILLIS = 5000;
+    public static final long DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS = 60000;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+    public static final int DEFAULT_READ_POOL_MAX_SIZE = 0;
+
+    private static final String OP_INSERT = "insert";
+    private static final String OP_SELECT = "select";
+    private static final String OP_SELECT_FOR_UPDATE = "selectForUpdate";
+    private static final String OP_UPDATE = "update";
+    private static final String OP_DELETE = "delete";
+    private static final String OP_SELECT_ROW = "selectRow";
+    private static final String OP_SELECT_ROW_FOR_UPDATE = "selectRowForUpdate";
+    private static final String OP_ADD_TO_COLUMN = "addToColumn";
+    private static final String OP_SELECT_ROWS = "selectRows";
+    private static final String OP_SELECT_ROWS_FOR_UPDATE = "selectRowsForUpdate";
+    private static final String OP_ADD_TO_COLUMN_MULTI = "addToColumnMulti";
+    private static final String OP_UPDATE_IF_VERSION = "updateIfVersion";
+    private static final String OP_SELECT_RANGE = "selectRange";
+    private static final String OP_SELECT_LAST = "selectLast";
+    private static final String OP_SELECT_SUMS = "selectSums";
+
+    private static final String[] ALL_COLUMNS = {"*"};
+    private static final String[] ID_COLUMN = {"id"};
+
+    private final ConnectionPool pool;
+    // separate pool for read-only operations, null if read-only operations use the main pool
+    private final ConnectionPool readPool;
+
+    /**
+     * Creates provider with default connection pool settings
+     */
+    public H2Provider() {
+        this(DEFAULT_POOL_MIN_SIZE, DEFAULT_POOL_MAX_SIZE, DEFAULT_ACQUIRE_TIMEOUT_MILLIS, DEFAULT_LEAK_DETECTION_THRESHOLD_MILLIS,
+                DEFAULT_STATEMENT_CACHE_SIZE, DEFAULT_READ_POOL_MAX_SIZE);
+    }
+
+    /**
+     * Creates provider with given connection pool settings
+     * @param minPoolSize number of connections opened on start
+     * @param maxPoolSize max number of connections opened at the same time
+     * @param acquireTimeoutMillis max time to wait for free connection
+     * @param leakDetectionThresholdMillis time after borrowed connection is reported as leaked, 0 to disable
+     * @param statementCacheSize max number of prepared statements cached per connection, 0 to disable
+     * @param readPoolMaxSize max size of separate pool for read-only operations, 0 to use the main pool for them
+     */
+    public H2Provider(int minPoolSize, int maxPoolSize, long acquireTimeoutMillis, long leakDetectionThresholdMillis,
+                      int statementCacheSize, int readPoolMaxSize) {
+        try {
+            Class.forName(DB_DRIVER);
+            pool = new ConnectionPool("db.pool", DB_CONNECTION, DB_USER, DB_PASSWORD,
+                    minPoolSize, maxPoolSize, acquireTimeoutMillis, leakDetectionThresholdMillis, statementCacheSize);
+            readPool = readPoolMaxSize > 0
+                    ? new ConnectionPool("db.readPool", DB_CONNECTION, DB_USER, DB_PASSWORD,
+                        Math.min(minPoolSize, readPoolMaxSize), readPoolMaxSize, acquireTimeoutMillis, leakDetectionThresholdMillis, statementCacheSize)
+                    : null;
+        } catch (ClassNotFoundException | SQLException e) {
+            LOGGER.error(e.getMessage());
+            throw new IllegalStateException("Cannot initialize DB connection pool", e);
+        }
+    }
+
     @Override
     public void createDBTables() throws SQLException {
         try (Connection connection = newDBConnection()) {
 
-            String createClientQuery = "CREATE TABLE client(id int auto_increment primary key, name varchar(255) NOT NULL, UNIQUE KEY unique_name (name))";
+            String createClientQuery = "CREATE TABLE client(id int auto_increment primary key, name varchar(255) NOT NULL, CONSTRAINT unique_name UNIQUE (name))";
             PreparedStatement clientStmt = connection.prepareStatement(createClientQuery);
             clientStmt.executeUpdate();
             clientStmt.close();
@@ -39,13 +105,62 @@ public class H2Provider implements IDbProvider {
                     "currency varchar(3) NOT NULL, " +
                     "amount int NOT NULL DEFAULT 0, " +
                     "created_date TIMESTAMP DEFAULT NOW() NOT NULL, " +
+                    "version int NOT NULL DEFAULT 0, " +
+                    "stripes int NOT NULL DEFAULT 0, " +
                     "FOREIGN KEY (client_id) references client(id), " +
                     // TODO remove if client can have many accounts
-                    "UNIQUE KEY unique_client (client_id) )";
+                    "CONSTRAINT unique_client UNIQUE (client_id) )";
             PreparedStatement accountStmt = connection.prepareStatement(createAccountQuery);
             accountStmt.executeUpdate();
             accountStmt.close();
 
+            // pages of accounts of one currency are found by seek, as pages of all accounts by primary key
+            PreparedStatement accountCurrencyStmt = connection.prepareStatement("CREATE INDEX account_currency ON account(currency, id)");
+            accountCurrencyStmt.executeUpdate();
+            accountCurrencyStmt.close();
+
+            String createAccountStripeQuery = "CREATE TABLE account_stripe(id int auto_increment primary key, " +
+                    "account_id int NOT NULL, " +
+                    "stripe int NOT NULL, " +
+                    "amount int NOT NULL DEFAULT 0, " +
+                    "FOREIGN KEY (account_id) references account(id), " +
+                    "CONSTRAINT unique_account_stripe UNIQUE (account_id, stripe) )";
+            PreparedStatement accountStripeStmt = connection.prepareStatement(createAccountStripeQuery);
+            accountStripeStmt.executeUpdate();
+            accountStripeStmt.close();
+
+            // append-only: entries are only inserted, history of an account is read by (account_id, id) index
+            String createLedgerQuery = "CREATE TABLE ledger(id int auto_increment primary key, " +
+                    "account_id int NOT NULL, " +
+                    "amount int NOT NULL, " +
+                    "counterparty_id int NOT NULL DEFAULT 0, " +
+                    "created_date TIMESTAMP DEFAULT NOW() NOT NULL, " +
+                    "FOREIGN KEY (account_id) references account(id) )";
+            PreparedStatement ledgerStmt = connection.prepareStatement(createLedgerQuery);
+            ledgerStmt.executeUpdate();
+            ledgerStmt.close();
+
+            PreparedStatement ledgerAccountStmt = connection.prepareStatement("CREATE INDEX ledger_account ON ledger(account_id, id)");
+            ledgerAccountStmt.executeUpdate();
+            ledgerAccountStmt.close();
+
+            // balance of the account after its ledger entry ledger_id, entry_date is the latest time of entries up to it
+            String createLedgerCheckpointQuery = "CREATE TABLE ledger_checkpoint(id int auto_increment primary key, " +
+                    "account_id int NOT NULL, " +
+                    "ledger_id int NOT NULL, " +
+                    "balance int NOT NULL, " +
+                    "entry_date TIMESTAMP NOT NULL, " +
+                    "FOREIGN KEY (account_id) references account(id) )";
+            PreparedStatement ledgerCheckpointStmt = connection.prepareStatement(createLedgerCheckpointQuery);
+            ledgerCheckpointStmt.executeUpdate();
+            ledgerCheckpointStmt.close();
+
+            // the nearest checkpoint before a time is found by seek on descending index, H2 reads ascending index backward row by row
+            PreparedStatement ledgerCheckpointAccountStmt = connection.prepareStatement(
+                    "CREATE INDEX ledger_checkpoint_account ON ledger_checkpoint(account_id DESC, entry_date DESC, id DESC)");
+            ledgerCheckpointAccountStmt.executeUpdate();
+            ledgerCheckpointAccountStmt.close();
+
 //            String createClientAccountQuery = "CREATE TABLE client_account(" +
 //                    "client_id int NOT NULL, " +
 //                    "account_id int NOT NULL, " +
@@ -61,7 +176,16 @@ public class H2Provider implements IDbProvider {
     @Override
     public void dropDBTables() throws SQLException {
         try (Connection connection = newDBConnection()) {
-            PreparedStatement statement = connection.prepareStatement("DROP TABLE account");
+            PreparedStatement statement = connection.prepareStatement("DROP TABLE ledger_checkpoint");
+            statement.executeUpdate();
+            statement.close();
+            statement = connection.prepareStatement("DROP TABLE ledger");
+            statement.executeUpdate();
+            statement.close();
+            statement = connection.prepareStatement("DROP TABLE account_stripe");
+            statement.executeUpdate();
+            statement.close();
+            statement = connection.prepareStatement("DROP TABLE account");
             statement.executeUpdate();
             statement.close();
             statement = connection.prepareStatement("DROP TABLE client");
@@ -72,28 +196,77 @@ public class H2Provider implements IDbProvider {
 
     @Override
     public int insert(Connection connection, String table, Map<String, DbValue> values) throws SQLException {
+        StatementKey key = new StatementKey(OP_INSERT, table, columnNames(values));
 
-        String fieldNames = String.join(",", values.keySet());
-        String valuePlaceHolders = Stream.generate(() -> "?")
-                .limit(values.size())
-                .collect(Collectors.joining(","));
-
-        String insertQuery = "INSERT INTO " + table + " (" + fieldNames + ") values" + "(" + valuePlaceHolders + ")";
-        int id;
-
-        try (PreparedStatement insertStmt = connection.prepareStatement(insertQuery, Statement.RETURN_GENERATED_KEYS)) {
-
+        return execute(connection, key, () -> makeInsertQuery(table, values), Statement.RETURN_GENERATED_KEYS, insertStmt -> {
             setPlaceHolders(insertStmt, values);
             insertStmt.executeUpdate();
-            ResultSet resultSet = insertStmt.getGeneratedKeys();
 
-            if (!resultSet.next()) {
-                return -1;
+            try (ResultSet resultSet = insertStmt.getGeneratedKeys()) {
+                if (!resultSet.next()) {
+                    return -1;
+                }
+                return resultSet.getInt(1);
             }
-            id = resultSet.getInt(1);
+        });
+    }
+
+    /**
+     * Inserts the rows by one JDBC batch of the cached insert statement. H2 runs each row of the batch as its own
+     * statement and goes on after the failed one, so the row that violates a constraint is reported by its update count
+     * instead of a select before the insert
+     */
+    @Override
+    public int[] insertBatch(Connection connection, String table, List<Map<String, DbValue>> rows) throws SQLException {
+        int[] ids = new int[rows.size()];
+        if (rows.isEmpty()) {
+            return ids;
         }
+        String[] columns = columnNames(rows.get(0));
+        StatementKey key = new StatementKey(OP_INSERT, table, columns);
+
+        return execute(connection, key, () -> makeInsertQuery(table, rows.get(0)), Statement.RETURN_GENERATED_KEYS, insertStmt -> {
+            int[] updateCounts;
+            try {
+                for (Map<String, DbValue> row : rows) {
+                    setPlaceHolders(insertStmt, columns, row);
+                    insertStmt.addBatch();
+                }
+                updateCounts = insertStmt.executeBatch();
+            } catch (BatchUpdateException e) {
+                if (!isConstraintViolation(e)) {
+                    throw e;
+                }
+                updateCounts = e.getUpdateCounts();
+            } finally {
+                insertStmt.clearBatch();
+            }
 
-        return id;
+            // generated keys are returned for inserted rows only
+            try (ResultSet resultSet = insertStmt.getGeneratedKeys()) {
+                for (int i = 0; i < ids.length; i++) {
+                    boolean inserted = i < updateCounts.length && updateCounts[i] != Statement.EXECUTE_FAILED;
+                    ids[i] = inserted && resultSet.next() ? resultSet.getInt(1) : -1;
+                }
+            }
+            return ids;
+        });
+    }
+
+    /**
+     * @return true if all rows of the batch failed on constraint violations
+     */
+    private boolean isConstraintViolation(BatchUpdateException e) {
+        SQLException rowException = e.getNextException();
+        if (rowException == null) {
+            return false;
+        }
+        for (; rowException != null; rowException = rowException.getNextException()) {
+            if (!(rowException instanceof SQLIntegrityConstraintViolationException)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
@@ -107,65 +280,400 @@ public class H2Provider implements IDbProvider {
     }
 
     private Map<String, DbValue> select(Connection connection, String table, Map<String, DbValue> values, boolean forUpdate) throws SQLException {
-        Map<String, DbValue> returnData;
+        StatementKey key = new StatementKey(forUpdate ? OP_SELECT_FOR_UPDATE : OP_SELECT, table, ALL_COLUMNS, columnNames(values));
 
-        String selectQuery = "SELECT * FROM " + table + " WHERE " + makeKeyValueList(values);
+        return execute(connection, key, () -> makeSelectQuery(table, values, forUpdate), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            setPlaceHolders(selectStatement, values);
 
-        if (forUpdate) {
-            selectQuery = selectQuery.concat(" FOR UPDATE");
-        }
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return Collections.emptyMap();
+                }
 
-        try (PreparedStatement selectStatement = connection.prepareStatement(selectQuery)) {
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int columnCount = metaData.getColumnCount();
+                Map<String, DbValue> returnData = new HashMap<>(columnCount);
 
-            setPlaceHolders(selectStatement, values);
-            ResultSet resultSet = selectStatement.executeQuery();
+                for (int i = 1; i <= columnCount; i++) {
+                    String name = metaData.getColumnName(i).toLowerCase();
+                    DbFieldType type = mapToDbFieldType(metaData.getColumnType(i));
+                    Object value = getColumnValue(resultSet, i, type);
 
-            if (!resultSet.next()) {
-                return Collections.emptyMap();
+                    returnData.put(name, new DbValue(type, value));
+                }
+
+                return returnData;
             }
+        });
+    }
 
-            int columnCount = resultSet.getMetaData().getColumnCount();
-            returnData = new HashMap<>(columnCount);
+    @Override
+    public <T> T selectRow(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                           RowMapper<T> mapper) throws SQLException {
+        return selectRow(connection, table, columns, keyColumn, key, mapper, false);
+    }
 
-            for (int i = 1; i <= columnCount; i++) {
-                String name = resultSet.getMetaData().getColumnName(i).toLowerCase();
-                DbFieldType type = mapToDbFieldType(resultSet.getMetaData().getColumnType(i));
-                Object value = getColumnValue(resultSet, i, type);
+    @Override
+    public <T> T selectRowForUpdate(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                                    RowMapper<T> mapper) throws SQLException {
+        return selectRow(connection, table, columns, keyColumn, key, mapper, true);
+    }
+
+    private <T> T selectRow(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                            RowMapper<T> mapper, boolean forUpdate) throws SQLException {
+        StatementKey statementKey = new StatementKey(forUpdate ? OP_SELECT_ROW_FOR_UPDATE : OP_SELECT_ROW, table, columns, keyColumn);
+
+        return execute(connection, statementKey, () -> makeSelectRowQuery(table, columns, keyColumn, forUpdate), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            setPlaceHolder(selectStatement, 1, key);
+
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return mapper.map(new ResultSetRow(resultSet));
+            }
+        });
+    }
+
+    @Override
+    public <T> List<T> selectRows(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                                  RowMapper<T> mapper) throws SQLException {
+        StatementKey statementKey = new StatementKey(OP_SELECT_ROWS, table, columns, keyColumn);
+
+        return execute(connection, statementKey, () -> makeSelectRowsQuery(table, columns, keyColumn), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            setPlaceHolder(selectStatement, 1, key);
+
+            List<T> rows = new ArrayList<>();
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                DbRow row = new ResultSetRow(resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.map(row));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @Override
+    public <T> List<T> selectRowsForUpdate(Connection connection, String table, String[] columns, String keyColumn, int[] keys,
+                                           RowMapper<T> mapper) throws SQLException {
+        StatementKey statementKey = new StatementKey(OP_SELECT_ROWS_FOR_UPDATE + keys.length, table, columns, keyColumn);
+
+        return execute(connection, statementKey, () -> makeSelectRowsForUpdateQuery(table, columns, keyColumn, keys.length), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            for (int i = 0; i < keys.length; i++) {
+                selectStatement.setInt(i + 1, keys[i]);
+            }
+
+            List<T> rows = new ArrayList<>(keys.length);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                DbRow row = new ResultSetRow(resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.map(row));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @Override
+    public <T> List<T> selectRange(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                                   int afterId, int limit, RowMapper<T> mapper) throws SQLException {
+        StatementKey statementKey = new StatementKey(OP_SELECT_RANGE, table, columns, keyColumn);
+
+        return execute(connection, statementKey, () -> makeSelectRangeQuery(table, columns, keyColumn), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            int index = 1;
+            if (keyColumn != null) {
+                setPlaceHolder(selectStatement, index++, key);
+            }
+            selectStatement.setInt(index++, afterId);
+            selectStatement.setInt(index, limit);
+
+            List<T> rows = new ArrayList<>();
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                DbRow row = new ResultSetRow(resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.map(row));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @Override
+    public <T> T selectLast(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                            String orderColumn, DbValue bound, RowMapper<T> mapper) throws SQLException {
+        boolean bounded = bound != null;
+        StatementKey statementKey = new StatementKey(OP_SELECT_LAST, table, columns, keyColumn, orderColumn, String.valueOf(bounded));
+
+        return execute(connection, statementKey, () -> makeSelectLastQuery(table, columns, keyColumn, orderColumn, bounded), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            setPlaceHolder(selectStatement, 1, key);
+            if (bounded) {
+                setPlaceHolder(selectStatement, 2, bound);
+            }
+
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return mapper.map(new ResultSetRow(resultSet));
+            }
+        });
+    }
+
+    @Override
+    public <T> List<T> selectSums(Connection connection, String table, String sumColumn, String keyColumn, int[] keys,
+                                  RowMapper<T> mapper) throws SQLException {
+        StatementKey statementKey = new StatementKey(OP_SELECT_SUMS + keys.length, table, new String[]{sumColumn}, keyColumn);
+
+        return execute(connection, statementKey, () -> makeSelectSumsQuery(table, sumColumn, keyColumn, keys.length), Statement.NO_GENERATED_KEYS, selectStatement -> {
+            for (int i = 0; i < keys.length; i++) {
+                selectStatement.setInt(i + 1, keys[i]);
+            }
 
-                returnData.put(name, new DbValue(type, value));
+            List<T> rows = new ArrayList<>(keys.length);
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                DbRow row = new ResultSetRow(resultSet);
+                while (resultSet.next()) {
+                    rows.add(mapper.map(row));
+                }
             }
+            return rows;
+        });
+    }
+
+    /**
+     * Reads rows by forward-only cursor. Query of the scan runs lazily, so H2 reads the table as the cursor moves
+     * instead of building the whole result first. The statement is not cached: it is prepared once per scan
+     */
+    @Override
+    public int scan(Connection connection, String table, String[] columns, String keyColumn, DbValue key, int fetchSize,
+                    RowHandler handler) throws SQLException {
+        setLazyQueryExecution(connection, true);
+        try (PreparedStatement selectStatement = connection.prepareStatement(makeScanQuery(table, columns, keyColumn),
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+            selectStatement.setFetchSize(fetchSize);
+            if (keyColumn != null) {
+                setPlaceHolder(selectStatement, 1, key);
+            }
+
+            int count = 0;
+            try (ResultSet resultSet = selectStatement.executeQuery()) {
+                DbRow row = new ResultSetRow(resultSet);
+                while (resultSet.next()) {
+                    handler.handle(row);
+                    count++;
+                }
+            }
+            return count;
+        } finally {
+            // pooled connection is reused by other operations, they read whole results
+            setLazyQueryExecution(connection, false);
         }
+    }
 
-        return returnData;
+    private void setLazyQueryExecution(Connection connection, boolean lazy) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("SET LAZY_QUERY_EXECUTION " + lazy);
+        }
     }
 
     @Override
     public int update(Connection connection, String tableName, int id, Map<String, DbValue> update) throws SQLException {
+        StatementKey key = new StatementKey(OP_UPDATE, tableName, columnNames(update), ID_COLUMN);
+
+        return execute(connection, key, () -> makeUpdateQuery(tableName, update), Statement.NO_GENERATED_KEYS, updateStatement -> {
+            setPlaceHolders(updateStatement, update);
+            updateStatement.setInt(update.size() + 1, id);
 
-        String updateQuery = "UPDATE " + tableName + " SET " + makeKeyValueList(update) + " WHERE id = ?";
-        int rowsUpdated;
+            return updateStatement.executeUpdate();
+        });
+    }
 
-        try (PreparedStatement updateStatement = connection.prepareStatement(updateQuery)) {
-            update.put("id", new DbValue(DbFieldType.INTEGER, id));
+    @Override
+    public int updateIfVersion(Connection connection, String tableName, int id, String versionColumn, int version,
+                               Map<String, DbValue> update) throws SQLException {
+        StatementKey key = new StatementKey(OP_UPDATE_IF_VERSION, tableName, columnNames(update), new String[]{"id", versionColumn});
 
+        return execute(connection, key, () -> makeUpdateIfVersionQuery(tableName, versionColumn, update), Statement.NO_GENERATED_KEYS, updateStatement -> {
             setPlaceHolders(updateStatement, update);
-            rowsUpdated = updateStatement.executeUpdate();
+            updateStatement.setInt(update.size() + 1, id);
+            updateStatement.setInt(update.size() + 2, version);
+
+            return updateStatement.executeUpdate();
+        });
+    }
+
+    @Override
+    public int delete(Connection connection, String tableName, int id) throws SQLException {
+        StatementKey key = new StatementKey(OP_DELETE, tableName, ID_COLUMN);
+
+        return execute(connection, key, () -> "DELETE FROM " + tableName + " WHERE id = ?", Statement.NO_GENERATED_KEYS, deleteStatement -> {
+            deleteStatement.setInt(1, id);
+
+            return deleteStatement.executeUpdate();
+        });
+    }
+
+    @Override
+    public Integer addToColumn(Connection connection, String tableName, int id, String column, int diff, int minValue) throws SQLException {
+        StatementKey key = new StatementKey(OP_ADD_TO_COLUMN, tableName, new String[]{column}, ID_COLUMN);
+
+        return execute(connection, key, () -> makeAddToColumnQuery(tableName, column), Statement.NO_GENERATED_KEYS, updateStatement -> {
+            updateStatement.setInt(1, diff);
+            updateStatement.setInt(2, id);
+            updateStatement.setInt(3, diff);
+            updateStatement.setInt(4, minValue);
+
+            try (ResultSet resultSet = updateStatement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                return resultSet.getInt(1);
+            }
+        });
+    }
+
+    @Override
+    public int addToColumn(Connection connection, String tableName, String column, int[] ids, int[] diffs) throws SQLException {
+        StatementKey key = new StatementKey(OP_ADD_TO_COLUMN_MULTI + ids.length, tableName, new String[]{column}, ID_COLUMN);
+
+        return execute(connection, key, () -> makeAddToColumnMultiQuery(tableName, column, ids.length), Statement.NO_GENERATED_KEYS, updateStatement -> {
+            int i = 1;
+            for (int k = 0; k < ids.length; k++) {
+                updateStatement.setInt(i++, ids[k]);
+                updateStatement.setInt(i++, diffs[k]);
+            }
+            for (int id : ids) {
+                updateStatement.setInt(i++, id);
+            }
+
+            return updateStatement.executeUpdate();
+        });
+    }
+
+    /**
+     * Executes statement of given shape. Statement is taken from the statement cache of pooled connection,
+     * so SQL text is built and parsed only once per connection. Not pooled connections prepare statement on each call
+     */
+    private <T> T execute(Connection connection, StatementKey key, Supplier<String> sql, int autoGeneratedKeys,
+                          StatementCallback<T> callback) throws SQLException {
+        StatementCache cache = ConnectionPool.getStatementCache(connection);
+
+        if (cache == null) {
+            try (PreparedStatement statement = connection.prepareStatement(sql.get(), autoGeneratedKeys)) {
+                return callback.execute(statement);
+            }
         }
 
-        return rowsUpdated;
+        return callback.execute(cache.prepare(key, sql, autoGeneratedKeys));
     }
 
-    private String makeKeyValueList(Map<String, DbValue> values) {
-        String where;
+    private String[] columnNames(Map<String, DbValue> values) {
+        return values.keySet().toArray(new String[0]);
+    }
 
-        if (values.size() == 1) {
-            where = values.keySet().iterator().next() + "= ?";
-        } else {
-            where = String.join("= ?, ", values.keySet());
-            where = where.substring(0, where.length() - 2); // remove last comma and whitespace
+    private String makeInsertQuery(String table, Map<String, DbValue> values) {
+        String fieldNames = String.join(",", values.keySet());
+        String valuePlaceHolders = makePlaceHolders(values.size());
+
+        return "INSERT INTO " + table + " (" + fieldNames + ") values" + "(" + valuePlaceHolders + ")";
+    }
+
+    private String makeSelectQuery(String table, Map<String, DbValue> values, boolean forUpdate) {
+        String selectQuery = "SELECT * FROM " + table + " WHERE " + makeKeyValueList(values, " AND ");
+
+        if (forUpdate) {
+            selectQuery = selectQuery.concat(" FOR UPDATE");
         }
 
-        return where;
+        return selectQuery;
+    }
+
+    private String makeSelectRowQuery(String table, String[] columns, String keyColumn, boolean forUpdate) {
+        String selectQuery = "SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE " + keyColumn + " = ?";
+
+        if (forUpdate) {
+            selectQuery = selectQuery.concat(" FOR UPDATE");
+        }
+
+        return selectQuery;
+    }
+
+    private String makeSelectRowsQuery(String table, String[] columns, String keyColumn) {
+        return "SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE " + keyColumn + " = ? ORDER BY id";
+    }
+
+    // keyset page: seek to the first id after the previous page instead of skipping rows by offset
+    private String makeSelectRangeQuery(String table, String[] columns, String keyColumn) {
+        return "SELECT " + String.join(", ", columns) + " FROM " + table
+                + " WHERE " + (keyColumn != null ? keyColumn + " = ? AND " : "") + "id > ? ORDER BY " + makeIdOrder(keyColumn) + " LIMIT ?";
+    }
+
+    // ordering by all columns of descending (key, order, id) index lets H2 seek to the bound and read the first row only
+    private String makeSelectLastQuery(String table, String[] columns, String keyColumn, String orderColumn, boolean bounded) {
+        return "SELECT " + String.join(", ", columns) + " FROM " + table + " WHERE " + keyColumn + " = ?"
+                + (bounded ? " AND " + orderColumn + " <= ?" : "")
+                + " ORDER BY " + keyColumn + " DESC, " + orderColumn + " DESC, id DESC LIMIT 1";
+    }
+
+    private String makeSelectSumsQuery(String table, String sumColumn, String keyColumn, int keyCount) {
+        return "SELECT " + keyColumn + ", SUM(" + sumColumn + ") FROM " + table
+                + " WHERE " + keyColumn + " IN (" + makePlaceHolders(keyCount) + ") GROUP BY " + keyColumn;
+    }
+
+    private String makeScanQuery(String table, String[] columns, String keyColumn) {
+        return "SELECT " + String.join(", ", columns) + " FROM " + table
+                + (keyColumn != null ? " WHERE " + keyColumn + " = ?" : "") + " ORDER BY " + makeIdOrder(keyColumn);
+    }
+
+    // key column has one value in the result, ordering by it too lets H2 read rows in the order of (key, id) index
+    // instead of sorting all found rows before the first one is returned
+    private String makeIdOrder(String keyColumn) {
+        return keyColumn != null ? keyColumn + ", id" : "id";
+    }
+
+    // rows are locked in the ascending order of the key to prevent deadlocks
+    private String makeSelectRowsForUpdateQuery(String table, String[] columns, String keyColumn, int keyCount) {
+        return "SELECT " + String.join(", ", columns) + " FROM " + table
+                + " WHERE " + keyColumn + " IN (" + makePlaceHolders(keyCount) + ")"
+                + " ORDER BY " + keyColumn + " FOR UPDATE";
+    }
+
+    private String makeUpdateQuery(String table, Map<String, DbValue> update) {
+        return "UPDATE " + table + " SET " + makeKeyValueList(update, ", ") + " WHERE id = ?";
+    }
+
+    // row locked by other transaction is re-checked after the lock is released, so changed version updates nothing
+    private String makeUpdateIfVersionQuery(String table, String versionColumn, Map<String, DbValue> update) {
+        return "UPDATE " + table + " SET " + makeKeyValueList(update, ", ") + ", " + versionColumn + " = " + versionColumn + " + 1"
+                + " WHERE id = ? AND " + versionColumn + " = ?";
+    }
+
+    // update and read of the new value are done by single statement using H2 data change delta table
+    private String makeAddToColumnQuery(String table, String column) {
+        return "SELECT " + column + " FROM FINAL TABLE (UPDATE " + table + " SET " + column + " = " + column + " + ?"
+                + " WHERE id = ? AND " + column + " + ? >= ?)";
+    }
+
+    private String makeAddToColumnMultiQuery(String table, String column, int idCount) {
+        String cases = Stream.generate(() -> " WHEN ? THEN ?")
+                .limit(idCount)
+                .collect(Collectors.joining());
+
+        return "UPDATE " + table + " SET " + column + " = " + column + " + CASE id" + cases + " END"
+                + " WHERE id IN (" + makePlaceHolders(idCount) + ")";
+    }
+
+    private String makePlaceHolders(int count) {
+        return Stream.generate(() -> "?")
+                .limit(count)
+                .collect(Collectors.joining(","));
+    }
+
+    private String makeKeyValueList(Map<String, DbValue> values, String delimiter) {
+        return values.keySet().stream()
+                .map(name -> name + " = ?")
+                .collect(Collectors.joining(delimiter));
     }
 
     private Object getColumnValue(ResultSet resultSet, int i, DbFieldType type) throws SQLException {
@@ -194,6 +702,12 @@ public class H2Provider implements IDbProvider {
         }
     }
 
+    private void setPlaceHolders(PreparedStatement stmt, String[] columns, Map<String, DbValue> values) throws SQLException {
+        for (int i = 0; i < columns.length; i++) {
+            setPlaceHolder(stmt, i + 1, values.get(columns[i]));
+        }
+    }
+
     private void setPlaceHolders(PreparedStatement stmt, Map<String, DbValue> values) throws SQLException {
         int i = 1;
         for (Map.Entry<String, DbValue> entry : values.entrySet()) {
@@ -218,19 +732,46 @@ public class H2Provider implements IDbProvider {
     }
 
     @Override
-    public Connection newDBConnection() {
-        Connection dbConnection = null;
-        try {
-            Class.forName(DB_DRIVER);
-        } catch (ClassNotFoundException e) {
-            LOGGER.error(e.getMessage());
+    public Connection newDBConnection() throws SQLException {
+        return pool.getConnection();
+    }
+
+    @Override
+    public Connection newReadOnlyDBConnection() throws SQLException {
+        Connection connection = readPool != null ? readPool.getConnection() : pool.getConnection();
+        connection.setReadOnly(true);
+        return connection;
+    }
+
+    /**
+     * Exposes current row of the result set by column index without copying the data
+     */
+    private static class ResultSetRow implements DbRow {
+
+        private final ResultSet resultSet;
+
+        ResultSetRow(ResultSet resultSet) {
+            this.resultSet = resultSet;
         }
-        try {
-            dbConnection = DriverManager.getConnection(DB_CONNECTION, DB_USER, DB_PASSWORD);
-        } catch (SQLException e) {
-            LOGGER.error(e.getMessage());
+
+        @Override
+        public int getInt(int column) throws SQLException {
+            return resultSet.getInt(column);
         }
 
-        return dbConnection;
+        @Override
+        public String getString(int column) throws SQLException {
+            return resultSet.getString(column);
+        }
+
+        @Override
+        public Timestamp getTimestamp(int column) throws SQLException {
+            return resultSet.getTimestamp(column);
+        }
+    }
+
+    @FunctionalInterface
+    private interface StatementCallback<T> {
+        T execute(PreparedStatement statement) throws SQLException;
     }
 }
@@ -0,0 +1,110 @@
+package valerii.db;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Row store that keeps each row as a chain of versions on the heap. Rows are stored in chunked array
+ * addressed by row id, so no boxing and hashing is done on primary key access
+ *
+ * @author vliutyi
+ */
+class HeapRowStore implements RowStore {
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int MAX_CHUNKS = 1 << 16;
+
+    // the latest version of each row
+    private final AtomicReferenceArray<AtomicReferenceArray<RowVersion>> chunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+
+    @Override
+    public Object[] read(int id, MemoryTransaction reader, long readVersion) {
+        RowVersion version = RowVersion.visible(getRow(id), reader, readVersion);
+        return version != null ? version.values : null;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return getRow(id) != null;
+    }
+
+    @Override
+    public void insert(MemoryTransaction transaction, int id, Object[] values) throws SQLException {
+        if ((id >>> CHUNK_BITS) >= MAX_CHUNKS) {
+            throw new SQLException("Row store is full, cannot insert row " + id);
+        }
+        RowVersion version = new RowVersion(values, transaction, null);
+        transaction.addVersion(version, () -> settle(id, version));
+        putRow(id, version);
+        transaction.addUndo(() -> removeRow(id, version));
+    }
+
+    @Override
+    public void update(MemoryTransaction transaction, int id, Object[] values) {
+        change(transaction, id, values);
+    }
+
+    @Override
+    public void delete(MemoryTransaction transaction, int id) {
+        change(transaction, id, null);
+    }
+
+    /**
+     * Replaces row values by the version of the transaction, replaced version is kept for other statements until
+     * no one reads at older commit version
+     */
+    private void change(MemoryTransaction transaction, int id, Object[] newValues) {
+        RowVersion head = getRow(id);
+        if (head.isWrittenBy(transaction)) {
+            Object[] oldValues = head.values;
+            head.values = newValues;
+            transaction.addUndo(() -> head.values = oldValues);
+            return;
+        }
+
+        RowVersion version = new RowVersion(newValues, transaction, head);
+        transaction.addVersion(version, () -> settle(id, version));
+        putRow(id, version);
+        transaction.addUndo(() -> replaceRow(id, version, head));
+    }
+
+    /**
+     * Drops versions replaced by the committed version, row deleted by the version is removed
+     */
+    private void settle(int id, RowVersion version) {
+        version.previous = null;
+        if (version.values == null) {
+            removeRow(id, version);
+        }
+    }
+
+    private RowVersion getRow(int id) {
+        if (id <= 0 || (id >>> CHUNK_BITS) >= MAX_CHUNKS) {
+            return null;
+        }
+        AtomicReferenceArray<RowVersion> chunk = chunks.get(id >>> CHUNK_BITS);
+        return chunk != null ? chunk.get(id & (CHUNK_SIZE - 1)) : null;
+    }
+
+    private void putRow(int id, RowVersion row) {
+        int chunkIndex = id >>> CHUNK_BITS;
+        AtomicReferenceArray<RowVersion> chunk = chunks.get(chunkIndex);
+        if (chunk == null) {
+            chunks.compareAndSet(chunkIndex, null, new AtomicReferenceArray<>(CHUNK_SIZE));
+            chunk = chunks.get(chunkIndex);
+        }
+        chunk.set(id & (CHUNK_SIZE - 1), row);
+    }
+
+    private void removeRow(int id, RowVersion row) {
+        replaceRow(id, row, null);
+    }
+
+    private void replaceRow(int id, RowVersion row, RowVersion newRow) {
+        AtomicReferenceArray<RowVersion> chunk = chunks.get(id >>> CHUNK_BITS);
+        if (chunk != null) {
+            chunk.compareAndSet(id & (CHUNK_SIZE - 1), row, newRow);
+        }
+    }
+}
@@ -2,6 +2,7 @@ package valerii.db;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -14,13 +15,30 @@ public interface IDbProvider {
     void createDBTables() throws SQLException;
     void dropDBTables() throws SQLException;
 
-    Connection newDBConnection();
+    Connection newDBConnection() throws SQLException;
+    Connection newReadOnlyDBConnection() throws SQLException;
 
     int insert(Connection connection, String table, Map<String, DbValue> values) throws SQLException;
+    int[] insertBatch(Connection connection, String table, List<Map<String, DbValue>> rows) throws SQLException;
 
     Map<String, DbValue> select(Connection connection, String table, Map<String, DbValue> values) throws SQLException;
     Map<String, DbValue> selectForUpdate(Connection connection, String table, Map<String, DbValue> values) throws SQLException;
 
+    <T> T selectRow(Connection connection, String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException;
+    <T> T selectRowForUpdate(Connection connection, String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException;
+    <T> List<T> selectRows(Connection connection, String table, String[] columns, String keyColumn, DbValue key, RowMapper<T> mapper) throws SQLException;
+    <T> List<T> selectRowsForUpdate(Connection connection, String table, String[] columns, String keyColumn, int[] keys, RowMapper<T> mapper) throws SQLException;
+    <T> List<T> selectRange(Connection connection, String table, String[] columns, String keyColumn, DbValue key, int afterId, int limit, RowMapper<T> mapper) throws SQLException;
+    <T> T selectLast(Connection connection, String table, String[] columns, String keyColumn, DbValue key, String orderColumn, DbValue bound, RowMapper<T> mapper) throws SQLException;
+    <T> List<T> selectSums(Connection connection, String table, String sumColumn, String keyColumn, int[] keys, RowMapper<T> mapper) throws SQLException;
+    int scan(Connection connection, String table, String[] columns, String keyColumn, DbValue key, int fetchSize, RowHandler handler) throws SQLException;
+
     int update(Connection connection, String tableName, int id, Map<String, DbValue> update) throws SQLException;
+    int updateIfVersion(Connection connection, String tableName, int id, String versionColumn, int version, Map<String, DbValue> update) throws SQLException;
+
+    int delete(Connection connection, String tableName, int id) throws SQLException;
+
+    Integer addToColumn(Connection connection, String tableName, int id, String column, int diff, int minValue) throws SQLException;
+    int addToColumn(Connection connection, String tableName, String column, int[] ids, int[] diffs) throws SQLException;
 
 }
@@ -0,0 +1,810 @@
+package valerii.db;
+
+import valerii.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pure in-memory provider implements IDbProvider interface without SQL and JDBC driver.
+ * Rows are kept in primitive id keyed tables, on the heap or in off-heap slots, each row has its own lock.
+ * Changes are done in place and undone by the transaction undo log on rollback. Commit makes all changes of the transaction
+ * visible at once: statement reads rows at the last commit published before it started.
+ * Data is not durable and lives as long as the provider instance.
+ *
+ * @author vliutyi
+ */
+public class MemoryProvider implements IDbProvider {
+
+    /**
+     * Defines where table rows are kept
+     */
+    public enum StorageType {
+        // rows are arrays of values on the heap
+        HEAP,
+        // rows are fixed-width slots of direct byte buffers
+        OFF_HEAP
+    }
+
+    public static final long DEFAULT_LOCK_TIMEOUT_MILLIS = 1000;
+
+    private static final LongAdder LOCK_TIMEOUTS = Metrics.counter("db.memory.lockTimeouts");
+
+    private final CommitClock clock = new CommitClock();
+    private final long lockTimeoutMillis;
+    private final StorageType accountStorage;
+    private final Map<String, MemoryTable> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Creates provider with default locking settings
+     */
+    public MemoryProvider() {
+        this(DEFAULT_LOCK_TIMEOUT_MILLIS, StorageType.HEAP);
+    }
+
+    /**
+     * Creates provider with given locking settings
+     * @param lockTimeoutMillis max time to wait for row lock
+     * @param accountStorage where rows of account table are kept
+     */
+    public MemoryProvider(long lockTimeoutMillis, StorageType accountStorage) {
+        this.lockTimeoutMillis = lockTimeoutMillis;
+        this.accountStorage = accountStorage;
+    }
+
+    @Override
+    public void createDBTables() throws SQLException {
+        MemoryTable client = new MemoryTable(Table.CLIENT.getTableName(), StorageType.HEAP,
+                new MemoryTable.Column("name", DbFieldType.STRING, 255, true, true, null, null));
+
+        MemoryTable account = new MemoryTable(Table.ACCOUNT.getTableName(), accountStorage,
+                // TODO remove unique if client can have many accounts
+                new MemoryTable.Column("client_id", DbFieldType.INTEGER, 0, true, true, null, client),
+                new MemoryTable.Column("currency", DbFieldType.STRING, 3, true, false, null, null),
+                new MemoryTable.Column("amount", DbFieldType.INTEGER, 0, true, false, () -> 0, null),
+                new MemoryTable.Column("created_date", DbFieldType.DATE_TIME, 0, true, false, () -> new Timestamp(System.currentTimeMillis()), null),
+                new MemoryTable.Column("version", DbFieldType.INTEGER, 0, true, false, () -> 0, null),
+                new MemoryTable.Column("stripes", DbFieldType.INTEGER, 0, true, false, () -> 0, null));
+        account.addKeyIndex("currency");
+
+        MemoryTable accountStripe = new MemoryTable(Table.ACCOUNT_STRIPE.getTableName(), StorageType.HEAP,
+                new MemoryTable.Column("account_id", DbFieldType.INTEGER, 0, true, false, null, account),
+                new MemoryTable.Column("stripe", DbFieldType.INTEGER, 0, true, false, null, null),
+                new MemoryTable.Column("amount", DbFieldType.INTEGER, 0, true, false, () -> 0, null));
+        accountStripe.addKeyIndex("account_id");
+
+        // counterparty 0 means the change is not a transfer
+        MemoryTable ledger = new MemoryTable(Table.LEDGER.getTableName(), StorageType.HEAP,
+                new MemoryTable.Column("account_id", DbFieldType.INTEGER, 0, true, false, null, account),
+                new MemoryTable.Column("amount", DbFieldType.INTEGER, 0, true, false, null, null),
+                new MemoryTable.Column("counterparty_id", DbFieldType.INTEGER, 0, true, false, () -> 0, null),
+                new MemoryTable.Column("created_date", DbFieldType.DATE_TIME, 0, true, false, () -> new Timestamp(System.currentTimeMillis()), null));
+        ledger.addKeyIndex("account_id");
+
+        // balance of the account after its ledger entry ledger_id, entry_date is the latest time of entries up to it
+        MemoryTable ledgerCheckpoint = new MemoryTable(Table.LEDGER_CHECKPOINT.getTableName(), StorageType.HEAP,
+                new MemoryTable.Column("account_id", DbFieldType.INTEGER, 0, true, false, null, account),
+                new MemoryTable.Column("ledger_id", DbFieldType.INTEGER, 0, true, false, null, null),
+                new MemoryTable.Column("balance", DbFieldType.INTEGER, 0, true, false, null, null),
+                new MemoryTable.Column("entry_date", DbFieldType.DATE_TIME, 0, true, false, null, null));
+        ledgerCheckpoint.addKeyIndex("account_id", "entry_date");
+
+        createTable(client);
+        createTable(account);
+        createTable(accountStripe);
+        createTable(ledger);
+        createTable(ledgerCheckpoint);
+    }
+
+    private void createTable(MemoryTable table) throws SQLException {
+        if (tables.putIfAbsent(table.getName(), table) != null) {
+            throw new SQLSyntaxErrorException("Table " + table.getName() + " already exists");
+        }
+    }
+
+    @Override
+    public void dropDBTables() throws SQLException {
+        tables.remove(Table.LEDGER_CHECKPOINT.getTableName());
+        tables.remove(Table.LEDGER.getTableName());
+        tables.remove(Table.ACCOUNT_STRIPE.getTableName());
+        tables.remove(Table.ACCOUNT.getTableName());
+        tables.remove(Table.CLIENT.getTableName());
+    }
+
+    @Override
+    public Connection newDBConnection() throws SQLException {
+        return new MemoryTransaction(clock).getConnection();
+    }
+
+    @Override
+    public Connection newReadOnlyDBConnection() throws SQLException {
+        Connection connection = newDBConnection();
+        connection.setReadOnly(true);
+        return connection;
+    }
+
+    @Override
+    public int insert(Connection connection, String tableName, Map<String, DbValue> values) throws SQLException {
+        MemoryTable table = getTable(tableName);
+
+        return executeUpdate(connection, transaction -> insertRow(transaction, table, values));
+    }
+
+    /**
+     * Inserts all rows by one statement, row that violates a constraint is undone alone
+     */
+    @Override
+    public int[] insertBatch(Connection connection, String tableName, List<Map<String, DbValue>> rows) throws SQLException {
+        MemoryTable table = getTable(tableName);
+
+        return executeUpdate(connection, transaction -> {
+            int[] ids = new int[rows.size()];
+            for (int i = 0; i < ids.length; i++) {
+                int mark = transaction.mark();
+                try {
+                    ids[i] = insertRow(transaction, table, rows.get(i));
+                } catch (SQLIntegrityConstraintViolationException e) {
+                    transaction.rollbackTo(mark);
+                    ids[i] = -1;
+                }
+            }
+            return ids;
+        });
+    }
+
+    private int insertRow(MemoryTransaction transaction, MemoryTable table, Map<String, DbValue> values) throws SQLException {
+        Object[] row = new Object[table.getColumnCount()];
+        boolean[] isSet = new boolean[row.length];
+        for (Map.Entry<String, DbValue> entry : values.entrySet()) {
+            int column = table.columnIndex(entry.getKey());
+            row[column] = table.toStoredValue(column, entry.getValue());
+            isSet[column] = true;
+        }
+
+        for (int column = 1; column < row.length; column++) {
+            MemoryTable.Column definition = table.getColumn(column);
+            if (!isSet[column] && definition.defaultValue != null) {
+                row[column] = definition.defaultValue.get();
+            }
+            checkConstraints(transaction, table, column, row[column]);
+        }
+
+        // not committed row is not visible to other transactions, so nobody else changes it and it is not locked
+        int id = table.nextId();
+        row[0] = id;
+        table.insert(transaction, id, row);
+
+        for (int column = 1; column < row.length; column++) {
+            if (table.isUnique(column) && row[column] != null) {
+                Object value = row[column];
+                table.indexValue(column, value, id);
+                int indexedColumn = column;
+                transaction.addUndo(() -> table.unindexValue(indexedColumn, value, id));
+            }
+        }
+
+        return id;
+    }
+
+    @Override
+    public Map<String, DbValue> select(Connection connection, String table, Map<String, DbValue> values) throws SQLException {
+        return select(connection, table, values, false);
+    }
+
+    @Override
+    public Map<String, DbValue> selectForUpdate(Connection connection, String table, Map<String, DbValue> values) throws SQLException {
+        return select(connection, table, values, true);
+    }
+
+    private Map<String, DbValue> select(Connection connection, String tableName, Map<String, DbValue> values, boolean forUpdate) throws SQLException {
+        MemoryTable table = getTable(tableName);
+
+        int[] columns = new int[values.size()];
+        Object[] criteria = new Object[values.size()];
+        int i = 0;
+        for (Map.Entry<String, DbValue> entry : values.entrySet()) {
+            columns[i] = table.columnIndex(entry.getKey());
+            criteria[i] = table.toStoredValue(columns[i], entry.getValue());
+            i++;
+        }
+
+        return execute(connection, forUpdate, transaction -> {
+            Object[] row = findRow(transaction, table, columns, criteria, forUpdate);
+            if (row == null) {
+                return Collections.emptyMap();
+            }
+
+            Map<String, DbValue> returnData = new HashMap<>(row.length);
+            for (int column = 0; column < row.length; column++) {
+                MemoryTable.Column definition = table.getColumn(column);
+                returnData.put(definition.name, new DbValue(definition.type, row[column]));
+            }
+            return returnData;
+        });
+    }
+
+    @Override
+    public <T> T selectRow(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                           RowMapper<T> mapper) throws SQLException {
+        return selectRow(connection, table, columns, keyColumn, key, mapper, false);
+    }
+
+    @Override
+    public <T> T selectRowForUpdate(Connection connection, String table, String[] columns, String keyColumn, DbValue key,
+                                    RowMapper<T> mapper) throws SQLException {
+        return selectRow(connection, table, columns, keyColumn, key, mapper, true);
+    }
+
+    private <T> T selectRow(Connection connection, String tableName, String[] columns, String keyColumn, DbValue key,
+                            RowMapper<T> mapper, boolean forUpdate) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int keyIndex = table.columnIndex(keyColumn);
+        Object keyValue = table.toStoredValue(keyIndex, key);
+
+        return execute(connection, forUpdate, transaction -> {
+            Object[] row = findRow(transaction, table, new int[]{keyIndex}, new Object[]{keyValue}, forUpdate);
+            return row != null ? mapper.map(new ArrayRow(row, columnIndexes)) : null;
+        });
+    }
+
+    @Override
+    public <T> List<T> selectRows(Connection connection, String tableName, String[] columns, String keyColumn, DbValue key,
+                                  RowMapper<T> mapper) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int keyIndex = table.columnIndex(keyColumn);
+        Object keyValue = table.toStoredValue(keyIndex, key);
+
+        return execute(connection, false, transaction -> {
+            List<T> rows = new ArrayList<>();
+            if (table.isUnique(keyIndex)) {
+                Object[] row = findRow(transaction, table, new int[]{keyIndex}, new Object[]{keyValue}, false);
+                if (row != null) {
+                    rows.add(mapper.map(new ArrayRow(row, columnIndexes)));
+                }
+                return rows;
+            }
+
+            int[] keyIndexes = {keyIndex};
+            Object[] keyValues = {keyValue};
+            PrimitiveIterator.OfInt ids = candidateIds(table, keyIndexes, keyValues, 0);
+            while (ids.hasNext()) {
+                Object[] row = matchRow(transaction, table, ids.nextInt(), keyIndexes, keyValues, false);
+                if (row != null) {
+                    rows.add(mapper.map(new ArrayRow(row, columnIndexes)));
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Reads rows starting from the id following afterId, rows are stored by id and key index is ordered by id,
+     * so no preceding row is visited
+     */
+    @Override
+    public <T> List<T> selectRange(Connection connection, String tableName, String[] columns, String keyColumn, DbValue key,
+                                   int afterId, int limit, RowMapper<T> mapper) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int[] keyIndexes = keyColumn != null ? new int[]{table.columnIndex(keyColumn)} : new int[0];
+        Object[] keyValues = keyColumn != null ? new Object[]{table.toStoredValue(keyIndexes[0], key)} : new Object[0];
+
+        return execute(connection, false, transaction -> {
+            List<T> rows = new ArrayList<>();
+            PrimitiveIterator.OfInt ids = candidateIds(table, keyIndexes, keyValues, afterId);
+            while (ids.hasNext() && rows.size() < limit) {
+                Object[] row = matchRow(transaction, table, ids.nextInt(), keyIndexes, keyValues, false);
+                if (row != null) {
+                    rows.add(mapper.map(new ArrayRow(row, columnIndexes)));
+                }
+            }
+            return rows;
+        });
+    }
+
+    /**
+     * Seeks the bound by the key index ordered by the order column, the first visible row is the last one.
+     * Reads all rows of the table if there is no such index
+     */
+    @Override
+    public <T> T selectLast(Connection connection, String tableName, String[] columns, String keyColumn, DbValue key,
+                            String orderColumn, DbValue bound, RowMapper<T> mapper) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int[] keyIndexes = {table.columnIndex(keyColumn)};
+        Object[] keyValues = {table.toStoredValue(keyIndexes[0], key)};
+        int orderIndex = table.columnIndex(orderColumn);
+        Object boundValue = bound != null ? table.toStoredValue(orderIndex, bound) : null;
+
+        return execute(connection, false, transaction -> {
+            PrimitiveIterator.OfInt ids = table.findLastIds(keyIndexes[0], keyValues[0], orderIndex, boundValue);
+            if (ids != null) {
+                while (ids.hasNext()) {
+                    Object[] row = matchRow(transaction, table, ids.nextInt(), keyIndexes, keyValues, false);
+                    if (row != null) {
+                        return mapper.map(new ArrayRow(row, columnIndexes));
+                    }
+                }
+                return null;
+            }
+
+            Object[] last = null;
+            // rows are read backward, so the row of the greatest id wins among rows of the same order value
+            for (int id = table.getLastId(); id > 0; id--) {
+                Object[] row = matchRow(transaction, table, id, keyIndexes, keyValues, false);
+                if (row != null && (boundValue == null || compare(row[orderIndex], boundValue) <= 0)
+                        && (last == null || compare(row[orderIndex], last[orderIndex]) > 0)) {
+                    last = row;
+                }
+            }
+            return last != null ? mapper.map(new ArrayRow(last, columnIndexes)) : null;
+        });
+    }
+
+    /**
+     * Sums rows of each key found by its key index or by full scan
+     */
+    @Override
+    public <T> List<T> selectSums(Connection connection, String tableName, String sumColumn, String keyColumn, int[] keys,
+                                  RowMapper<T> mapper) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int sumIndex = table.columnIndex(sumColumn);
+        int[] keyIndexes = {table.columnIndex(keyColumn)};
+        int[] columnIndexes = {0, 1};
+
+        return execute(connection, false, transaction -> {
+            List<T> rows = new ArrayList<>(keys.length);
+            for (int key : keys) {
+                Object[] keyValues = {key};
+                Integer sum = null;
+                PrimitiveIterator.OfInt ids = candidateIds(table, keyIndexes, keyValues, 0);
+                while (ids.hasNext()) {
+                    Object[] row = matchRow(transaction, table, ids.nextInt(), keyIndexes, keyValues, false);
+                    if (row != null) {
+                        sum = (sum != null ? sum : 0) + (Integer) row[sumIndex];
+                    }
+                }
+                if (sum != null) {
+                    rows.add(mapper.map(new ArrayRow(new Object[]{key, sum}, columnIndexes)));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compare(Object value, Object bound) {
+        return ((Comparable<Object>) value).compareTo(bound);
+    }
+
+    /**
+     * Reads rows by their ids, each row is read when the previous one is handled. Fetch size is not used,
+     * rows are not copied out of the store
+     */
+    @Override
+    public int scan(Connection connection, String tableName, String[] columns, String keyColumn, DbValue key, int fetchSize,
+                    RowHandler handler) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int[] keyIndexes = keyColumn != null ? new int[]{table.columnIndex(keyColumn)} : new int[0];
+        Object[] keyValues = keyColumn != null ? new Object[]{table.toStoredValue(keyIndexes[0], key)} : new Object[0];
+
+        return execute(connection, false, transaction -> {
+            int count = 0;
+            PrimitiveIterator.OfInt ids = candidateIds(table, keyIndexes, keyValues, 0);
+            while (ids.hasNext()) {
+                Object[] row = matchRow(transaction, table, ids.nextInt(), keyIndexes, keyValues, false);
+                if (row != null) {
+                    handler.handle(new ArrayRow(row, columnIndexes));
+                    count++;
+                }
+            }
+            return count;
+        });
+    }
+
+    @Override
+    public <T> List<T> selectRowsForUpdate(Connection connection, String tableName, String[] columns, String keyColumn, int[] keys,
+                                           RowMapper<T> mapper) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int[] columnIndexes = table.columnIndexes(columns);
+        int keyIndex = table.columnIndex(keyColumn);
+        int[] sortedKeys = keys.clone();
+        // rows are returned in the ascending order of the key
+        Arrays.sort(sortedKeys);
+
+        return execute(connection, true, transaction -> {
+            if (keyIndex == 0) {
+                lockRows(transaction, table, sortedKeys);
+            }
+            List<T> rows = new ArrayList<>(sortedKeys.length);
+            for (int key : sortedKeys) {
+                Object[] row = findRow(transaction, table, new int[]{keyIndex}, new Object[]{key}, true);
+                if (row != null) {
+                    rows.add(mapper.map(new ArrayRow(row, columnIndexes)));
+                }
+            }
+            return rows;
+        });
+    }
+
+    @Override
+    public int update(Connection connection, String tableName, int id, Map<String, DbValue> update) throws SQLException {
+        MemoryTable table = getTable(tableName);
+
+        return executeUpdate(connection, transaction -> {
+            Object[] oldValues = lockVisibleRow(transaction, table, id);
+            if (oldValues == null) {
+                return 0;
+            }
+            updateRow(transaction, table, id, oldValues, update);
+            return 1;
+        });
+    }
+
+    @Override
+    public int updateIfVersion(Connection connection, String tableName, int id, String versionColumn, int version,
+                               Map<String, DbValue> update) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int column = table.columnIndex(versionColumn);
+
+        return executeUpdate(connection, transaction -> {
+            // lock is taken before the version is checked, so version cannot be changed between the check and the update
+            Object[] oldValues = lockVisibleRow(transaction, table, id);
+            if (oldValues == null || (Integer) oldValues[column] != version) {
+                return 0;
+            }
+
+            Map<String, DbValue> versionedUpdate = new HashMap<>(update);
+            versionedUpdate.put(versionColumn, new DbValue(DbFieldType.INTEGER, version + 1));
+            updateRow(transaction, table, id, oldValues, versionedUpdate);
+            return 1;
+        });
+    }
+
+    /**
+     * Applies update to the locked row
+     */
+    private void updateRow(MemoryTransaction transaction, MemoryTable table, int id, Object[] oldValues,
+                           Map<String, DbValue> update) throws SQLException {
+        Object[] newValues = oldValues.clone();
+        for (Map.Entry<String, DbValue> entry : update.entrySet()) {
+            int column = table.columnIndex(entry.getKey());
+            if (column == 0) {
+                throw new SQLSyntaxErrorException("Column " + MemoryTable.ID + " cannot be updated");
+            }
+            newValues[column] = table.toStoredValue(column, entry.getValue());
+            if (table.isKeyIndexed(column) && !Objects.equals(newValues[column], oldValues[column])) {
+                throw new SQLSyntaxErrorException("Indexed column " + table.getName() + "." + table.getColumn(column).name + " cannot be updated");
+            }
+            checkConstraints(transaction, table, column, newValues[column]);
+
+            if (table.isUnique(column) && !Objects.equals(newValues[column], oldValues[column])) {
+                // old value stays reserved until commit, so it cannot be taken by other transaction before rollback
+                int indexedColumn = column;
+                Object value = newValues[column];
+                Object oldValue = oldValues[column];
+                if (oldValue != null) {
+                    transaction.addCommitAction(() -> table.unindexValue(indexedColumn, oldValue, id));
+                }
+                if (value != null) {
+                    table.indexValue(column, value, id);
+                    transaction.addUndo(() -> table.unindexValue(indexedColumn, value, id));
+                }
+            }
+        }
+
+        table.update(transaction, id, newValues);
+    }
+
+    @Override
+    public int delete(Connection connection, String tableName, int id) throws SQLException {
+        MemoryTable table = getTable(tableName);
+
+        return executeUpdate(connection, transaction -> {
+            Object[] values = lockVisibleRow(transaction, table, id);
+            if (values == null) {
+                return 0;
+            }
+            checkNotReferenced(transaction, table, id);
+
+            // unique values stay reserved until commit, so they cannot be taken by other transaction before rollback
+            for (int column = 1; column < values.length; column++) {
+                if (table.isUnique(column) && values[column] != null) {
+                    int indexedColumn = column;
+                    Object value = values[column];
+                    transaction.addCommitAction(() -> table.unindexValue(indexedColumn, value, id));
+                }
+            }
+
+            table.delete(transaction, id);
+            return 1;
+        });
+    }
+
+    @Override
+    public Integer addToColumn(Connection connection, String tableName, int id, String columnName, int diff, int minValue) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int column = table.columnIndex(columnName);
+
+        return executeUpdate(connection, transaction -> {
+            Object[] values = lockVisibleRow(transaction, table, id);
+            if (values == null) {
+                return null;
+            }
+
+            int newValue = (Integer) values[column] + diff;
+            if (newValue < minValue) {
+                return null;
+            }
+
+            Object[] newValues = values.clone();
+            newValues[column] = newValue;
+            table.update(transaction, id, newValues);
+            return newValue;
+        });
+    }
+
+    @Override
+    public int addToColumn(Connection connection, String tableName, String columnName, int[] ids, int[] diffs) throws SQLException {
+        MemoryTable table = getTable(tableName);
+        int column = table.columnIndex(columnName);
+
+        return executeUpdate(connection, transaction -> {
+            lockRows(transaction, table, ids);
+            int rowsUpdated = 0;
+            for (int i = 0; i < ids.length; i++) {
+                Object[] values = lockVisibleRow(transaction, table, ids[i]);
+                if (values != null) {
+                    Object[] newValues = values.clone();
+                    newValues[column] = (Integer) newValues[column] + diffs[i];
+                    table.update(transaction, ids[i], newValues);
+                    rowsUpdated++;
+                }
+            }
+            return rowsUpdated;
+        });
+    }
+
+    private MemoryTable getTable(String tableName) throws SQLException {
+        MemoryTable table = tables.get(tableName);
+        if (table == null) {
+            throw new SQLSyntaxErrorException("Table \"" + tableName + "\" not found");
+        }
+        return table;
+    }
+
+    private MemoryTransaction transaction(Connection connection) throws SQLException {
+        if (connection == null) {
+            throw new SQLNonTransientConnectionException("No connection");
+        }
+        MemoryTransaction transaction = connection.unwrap(MemoryTransaction.class);
+        transaction.checkOpen();
+        return transaction;
+    }
+
+    /**
+     * Executes the statement that changes data
+     */
+    private <T> T executeUpdate(Connection connection, StatementBody<T> body) throws SQLException {
+        return execute(connection, true, body);
+    }
+
+    /**
+     * Executes the statement as a single unit of work: changes of the failed statement are undone.
+     * In auto-commit mode the statement is committed or rolled back right away
+     */
+    private <T> T execute(Connection connection, boolean locking, StatementBody<T> body) throws SQLException {
+        MemoryTransaction transaction = transaction(connection);
+        if (locking && transaction.isReadOnly()) {
+            throw new SQLException("Connection is read-only");
+        }
+
+        int mark = transaction.mark();
+        T result;
+        transaction.beginStatement();
+        try {
+            result = body.execute(transaction);
+        } catch (SQLException | RuntimeException e) {
+            if (transaction.isAutoCommit()) {
+                transaction.rollback();
+            } else {
+                transaction.rollbackTo(mark);
+            }
+            throw e;
+        } finally {
+            transaction.endStatement();
+        }
+
+        if (transaction.isAutoCommit()) {
+            transaction.commit();
+        }
+        return result;
+    }
+
+    private void checkConstraints(MemoryTransaction transaction, MemoryTable table, int column, Object value) throws SQLException {
+        MemoryTable.Column definition = table.getColumn(column);
+        if (value == null) {
+            if (definition.notNull) {
+                throw new SQLIntegrityConstraintViolationException("NULL not allowed for column " + table.getName() + "." + definition.name);
+            }
+            return;
+        }
+        if (definition.references != null && visibleValues(transaction, definition.references, (Integer) value) == null) {
+            throw new SQLIntegrityConstraintViolationException("Referential integrity violation: " + table.getName() + "." + definition.name
+                    + " = " + value + " is not found in " + definition.references.getName());
+        }
+    }
+
+    private void checkNotReferenced(MemoryTransaction transaction, MemoryTable table, int id) throws SQLException {
+        for (MemoryTable referencing : tables.values()) {
+            for (int column = 1; column < referencing.getColumnCount(); column++) {
+                if (referencing.getColumn(column).references == table
+                        && findRow(transaction, referencing, new int[]{column}, new Object[]{id}, false) != null) {
+                    throw new SQLIntegrityConstraintViolationException("Referential integrity violation: " + table.getName() + " row " + id
+                            + " is referenced by " + referencing.getName() + "." + referencing.getColumn(column).name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the row that matches all criteria. Row is found by unique column directly, by key index or by full scan otherwise
+     * @return values of the row or null if no visible row matches
+     */
+    private Object[] findRow(MemoryTransaction transaction, MemoryTable table, int[] columns, Object[] criteria,
+                             boolean forUpdate) throws SQLException {
+        for (int i = 0; i < columns.length; i++) {
+            if (table.isUnique(columns[i])) {
+                if (criteria[i] == null) {
+                    return null;
+                }
+                return matchRow(transaction, table, table.findId(columns[i], criteria[i]), columns, criteria, forUpdate);
+            }
+        }
+
+        return findByScan(transaction, table, columns, criteria, forUpdate);
+    }
+
+    private Object[] findByScan(MemoryTransaction transaction, MemoryTable table, int[] columns, Object[] criteria,
+                                boolean forUpdate) throws SQLException {
+        PrimitiveIterator.OfInt ids = candidateIds(table, columns, criteria, 0);
+        while (ids.hasNext()) {
+            Object[] row = matchRow(transaction, table, ids.nextInt(), columns, criteria, forUpdate);
+            if (row != null) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Ids of rows that may match the criteria in ascending order. Ids are taken from key index of a criteria column,
+     * all ids of the table are returned if no criteria column is indexed
+     */
+    private static PrimitiveIterator.OfInt candidateIds(MemoryTable table, int[] columns, Object[] criteria, int afterId) {
+        for (int i = 0; i < columns.length; i++) {
+            PrimitiveIterator.OfInt ids = table.findIds(columns[i], criteria[i], afterId);
+            if (ids != null) {
+                return ids;
+            }
+        }
+        return table.ids(afterId);
+    }
+
+    private Object[] matchRow(MemoryTransaction transaction, MemoryTable table, int id, int[] columns, Object[] criteria,
+                              boolean forUpdate) throws SQLException {
+        Object[] row = visibleValues(transaction, table, id);
+        if (row == null || !matches(row, columns, criteria)) {
+            return null;
+        }
+        if (!forUpdate) {
+            return row;
+        }
+
+        // row could be changed while the lock is acquired, so it is checked again
+        Object[] locked = lockVisibleRow(transaction, table, id);
+        return locked != null && matches(locked, columns, criteria) ? locked : null;
+    }
+
+    private boolean matches(Object[] row, int[] columns, Object[] criteria) {
+        for (int i = 0; i < columns.length; i++) {
+            if (criteria[i] == null || !criteria[i].equals(row[columns[i]])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object[] visibleValues(MemoryTransaction transaction, MemoryTable table, int id) {
+        return table.read(id, transaction, transaction.getReadVersion());
+    }
+
+    /**
+     * Locks the row and returns its values if it exists and visible to the transaction
+     */
+    private Object[] lockVisibleRow(MemoryTransaction transaction, MemoryTable table, int id) throws SQLException {
+        if (!table.contains(id)) {
+            return null;
+        }
+        lockRow(transaction, table, id);
+        // row is locked, so it is not changed by other transactions and its latest committed version is read
+        return table.read(id, transaction, RowVersion.LATEST);
+    }
+
+    /**
+     * Locks rows in the ascending order of their ids
+     */
+    private void lockRows(MemoryTransaction transaction, MemoryTable table, int[] ids) throws SQLException {
+        int[] sortedIds = ids.clone();
+        Arrays.sort(sortedIds);
+        for (int id : sortedIds) {
+            if (table.contains(id)) {
+                lockRow(transaction, table, id);
+            }
+        }
+    }
+
+    private void lockRow(MemoryTransaction transaction, MemoryTable table, int id) throws SQLException {
+        try {
+            if (!transaction.lock(table, id, lockTimeoutMillis)) {
+                LOCK_TIMEOUTS.increment();
+                throw new SQLTimeoutException("Timeout trying to lock row " + id + " of table " + table.getName());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while locking row " + id + " of table " + table.getName(), e);
+        }
+    }
+
+    /**
+     * Exposes row values by column index in the order of requested columns
+     */
+    private static class ArrayRow implements DbRow {
+
+        private final Object[] values;
+        private final int[] columns;
+
+        ArrayRow(Object[] values, int[] columns) {
+            this.values = values;
+            this.columns = columns;
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (Integer) values[columns[column - 1]];
+        }
+
+        @Override
+        public String getString(int column) {
+            return (String) values[columns[column - 1]];
+        }
+
+        @Override
+        public Timestamp getTimestamp(int column) {
+            return (Timestamp) values[columns[column - 1]];
+        }
+    }
+
+    @FunctionalInterface
+    private interface StatementBody<T> {
+        T execute(MemoryTransaction transaction) throws SQLException;
+    }
+}
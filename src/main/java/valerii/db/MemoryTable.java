@@ -0,0 +1,582 @@
+package valerii.db;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+/**
+ * Table of MemoryProvider. Rows are addressed by auto-increment int id and kept by the row store
+ * of the table. Unique columns have their own value to id index, other columns may have key index of the ids
+ * of rows with the same value. Each row has its own lock, locks are kept only while they are held or waited for.
+ * Column "id" is always the first column of the table.
+ *
+ * @author vliutyi
+ */
+class MemoryTable {
+
+    static final String ID = "id";
+
+    private final String name;
+    private final Column[] columns;
+    private final Map<String, Integer> columnIndexes = new HashMap<>();
+    // unique index per column, null for not unique columns
+    private final UniqueIndex[] uniqueIndexes;
+    // indexes of not unique columns, added before the table is used
+    private final List<KeyIndex> keyIndexes = new ArrayList<>();
+    private final List<OrderedIndex> orderedIndexes = new ArrayList<>();
+    // all indexes of not unique columns, kept by insert and delete
+    private final List<RowIndex> rowIndexes = new ArrayList<>();
+
+    private final RowStore store;
+    private final AtomicInteger lastId = new AtomicInteger();
+    private final ConcurrentHashMap<Integer, MemoryTransaction.RowLock> locks = new ConcurrentHashMap<>();
+
+    /**
+     * Creates table with given columns, "id" column is added as the first one
+     * @param name table name
+     * @param storage where rows of the table are kept
+     * @param columns table columns
+     */
+    MemoryTable(String name, MemoryProvider.StorageType storage, Column... columns) {
+        this.name = name;
+        this.columns = new Column[columns.length + 1];
+        this.columns[0] = new Column(ID, DbFieldType.INTEGER, 0, true, true, null, null);
+        System.arraycopy(columns, 0, this.columns, 1, columns.length);
+        this.uniqueIndexes = new UniqueIndex[this.columns.length];
+
+        for (int i = 0; i < this.columns.length; i++) {
+            columnIndexes.put(this.columns[i].name, i);
+            if (this.columns[i].unique && i > 0) {
+                // off-heap table keeps int index off-heap too, otherwise boxed index entries take more heap than the rows
+                uniqueIndexes[i] = storage == MemoryProvider.StorageType.OFF_HEAP && this.columns[i].type == DbFieldType.INTEGER
+                        ? new OffHeapIntIndex()
+                        : new HashUniqueIndex();
+            }
+        }
+
+        this.store = storage == MemoryProvider.StorageType.OFF_HEAP
+                ? new OffHeapRowStore("db.memory." + name, this.columns)
+                : new HeapRowStore();
+    }
+
+    String getName() {
+        return name;
+    }
+
+    int getColumnCount() {
+        return columns.length;
+    }
+
+    Column getColumn(int index) {
+        return columns[index];
+    }
+
+    int getLastId() {
+        return lastId.get();
+    }
+
+    int columnIndex(String column) throws SQLException {
+        Integer index = columnIndexes.get(column);
+        if (index == null) {
+            throw new SQLSyntaxErrorException("Column \"" + column + "\" not found in table " + name);
+        }
+        return index;
+    }
+
+    int[] columnIndexes(String[] columns) throws SQLException {
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = columnIndex(columns[i]);
+        }
+        return indexes;
+    }
+
+    boolean isUnique(int column) {
+        return column == 0 || uniqueIndexes[column] != null;
+    }
+
+    /**
+     * Finds id of the row by value of unique column
+     * @return row id or 0 if there is no row with such value
+     */
+    int findId(int column, Object value) {
+        if (column == 0) {
+            return (Integer) value;
+        }
+        return uniqueIndexes[column].get(value);
+    }
+
+    /**
+     * Adds index of not unique column, must be called before the table is used. Indexed columns cannot be changed
+     * by update, so rows have the same index entry while they exist
+     * @param column indexed column
+     * @throws SQLException if column is not found
+     */
+    void addKeyIndex(String column) throws SQLException {
+        KeyIndex index = new KeyIndex(columnIndex(column));
+        keyIndexes.add(index);
+        rowIndexes.add(index);
+    }
+
+    /**
+     * Adds index of not unique column that orders rows of the same value by the order column and id,
+     * must be called before the table is used. Neither column can be changed by update
+     * @param column indexed column
+     * @param orderColumn column ordering rows of the same value
+     * @throws SQLException if column is not found
+     */
+    void addKeyIndex(String column, String orderColumn) throws SQLException {
+        OrderedIndex index = new OrderedIndex(columnIndex(column), columnIndex(orderColumn));
+        orderedIndexes.add(index);
+        rowIndexes.add(index);
+    }
+
+    /**
+     * @return true if the column is indexed or orders rows of key index
+     */
+    boolean isKeyIndexed(int column) {
+        for (RowIndex index : rowIndexes) {
+            if (index.covers(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds ids of rows by key index. Index has ids of not committed and deleted rows too, so rows of the ids must be checked
+     * @param afterId only ids greater than this one are returned
+     * @return ids in ascending order or null if the column has no key index
+     */
+    PrimitiveIterator.OfInt findIds(int column, Object value, int afterId) {
+        for (KeyIndex index : keyIndexes) {
+            if (index.column == column) {
+                return index.find(value, afterId);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds ids of rows by key index ordered by the order column, from the last row not following the bound.
+     * Index has ids of not committed and deleted rows too, so rows of the ids must be checked
+     * @param bound greatest value of the order column, null for no bound
+     * @return ids in descending order of the order column and id or null if there is no such index
+     */
+    PrimitiveIterator.OfInt findLastIds(int column, Object value, int orderColumn, Object bound) {
+        for (OrderedIndex index : orderedIndexes) {
+            if (index.column == column && index.orderColumn == orderColumn) {
+                return index.findLast(value, bound);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return ids of all rows following afterId in ascending order, some of them may be not used or deleted
+     */
+    PrimitiveIterator.OfInt ids(int afterId) {
+        return IntStream.rangeClosed(Math.max(afterId, 0) + 1, lastId.get()).iterator();
+    }
+
+    int nextId() {
+        return lastId.incrementAndGet();
+    }
+
+    /**
+     * @see RowStore#read(int, MemoryTransaction, long)
+     */
+    Object[] read(int id, MemoryTransaction reader, long readVersion) {
+        return store.read(id, reader, readVersion);
+    }
+
+    boolean contains(int id) {
+        return store.contains(id);
+    }
+
+    void insert(MemoryTransaction transaction, int id, Object[] values) throws SQLException {
+        store.insert(transaction, id, values);
+        for (RowIndex index : rowIndexes) {
+            index.add(values);
+            transaction.addUndo(() -> index.remove(values));
+        }
+    }
+
+    void update(MemoryTransaction transaction, int id, Object[] values) throws SQLException {
+        store.update(transaction, id, values);
+    }
+
+    void delete(MemoryTransaction transaction, int id) {
+        if (!rowIndexes.isEmpty()) {
+            Object[] values = store.read(id, transaction, RowVersion.LATEST);
+            // statements reading at older versions still find the row by the index
+            transaction.addCleanup(() -> {
+                for (RowIndex index : rowIndexes) {
+                    index.remove(values);
+                }
+            });
+        }
+        store.delete(transaction, id);
+    }
+
+    /**
+     * @return lock of the row or null if nobody holds or waits for it
+     */
+    MemoryTransaction.RowLock getLock(int id) {
+        return locks.get(id);
+    }
+
+    /**
+     * Returns lock of the row to the transaction that is going to wait for it, the lock is kept till it is released
+     * by all such transactions
+     */
+    MemoryTransaction.RowLock useLock(int id) {
+        return locks.compute(id, (key, lock) -> {
+            if (lock == null) {
+                lock = new MemoryTransaction.RowLock(this, id);
+            }
+            lock.users++;
+            return lock;
+        });
+    }
+
+    void releaseLock(MemoryTransaction.RowLock lock) {
+        locks.computeIfPresent(lock.id, (key, used) -> --used.users == 0 ? null : used);
+    }
+
+    /**
+     * Reserves unique column value for the row
+     * @throws SQLIntegrityConstraintViolationException if other row already has the same value
+     */
+    void indexValue(int column, Object value, int id) throws SQLException {
+        int existingId = uniqueIndexes[column].putIfAbsent(value, id);
+        if (existingId != 0 && existingId != id) {
+            throw new SQLIntegrityConstraintViolationException("Unique index violation: " + name + "." + columns[column].name + " = " + value);
+        }
+    }
+
+    void unindexValue(int column, Object value, int id) {
+        uniqueIndexes[column].remove(value, id);
+    }
+
+    /**
+     * Converts value given by DbValue to the value stored in the table
+     */
+    Object toStoredValue(int column, DbValue value) throws SQLException {
+        if (value == null || value.getValue() == null) {
+            return null;
+        }
+        if (value.getType() != columns[column].type) {
+            throw new SQLSyntaxErrorException("Wrong value type " + value.getType() + " for column " + name + "." + columns[column].name);
+        }
+        if (value.getValue() instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value.getValue());
+        }
+        return value.getValue();
+    }
+
+    /**
+     * Column definition
+     */
+    static class Column {
+
+        final String name;
+        final DbFieldType type;
+        // max length of STRING value
+        final int length;
+        final boolean notNull;
+        final boolean unique;
+        // supplies default value for not inserted column, null if column has no default value
+        final Supplier<Object> defaultValue;
+        // table referenced by the column value, null if column is not a foreign key
+        final MemoryTable references;
+
+        Column(String name, DbFieldType type, int length, boolean notNull, boolean unique, Supplier<Object> defaultValue,
+               MemoryTable references) {
+            this.name = name;
+            this.type = type;
+            this.length = length;
+            this.notNull = notNull;
+            this.unique = unique;
+            this.defaultValue = defaultValue;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Index of unique column values. Row ids are positive, 0 means no row
+     */
+    interface UniqueIndex {
+
+        /**
+         * @return id of the row with given value or 0 if there is no such row
+         */
+        int get(Object value);
+
+        /**
+         * Adds value of the row if there is no row with the same value
+         * @return 0 if value is added, otherwise id of the row that has the same value
+         */
+        int putIfAbsent(Object value, int id);
+
+        /**
+         * Removes value if it belongs to the row with given id
+         */
+        void remove(Object value, int id);
+    }
+
+    /**
+     * Index of not unique column rows, row with null indexed value is not indexed
+     */
+    private interface RowIndex {
+
+        void add(Object[] values);
+
+        void remove(Object[] values);
+
+        /**
+         * @return true if the index depends on the column
+         */
+        boolean covers(int column);
+    }
+
+    /**
+     * Index of not unique column, keeps ids of rows with the same value in ascending order.
+     * Ids list of the value is kept when its last row is removed, so rows are added without locking the value
+     */
+    private static class KeyIndex implements RowIndex {
+
+        private final int column;
+        private final ConcurrentHashMap<Object, IdList> lists = new ConcurrentHashMap<>();
+
+        KeyIndex(int column) {
+            this.column = column;
+        }
+
+        PrimitiveIterator.OfInt find(Object value, int afterId) {
+            IdList ids = value != null ? lists.get(value) : null;
+            return ids != null ? ids.after(afterId) : IntStream.empty().iterator();
+        }
+
+        @Override
+        public void add(Object[] values) {
+            if (values[column] == null) {
+                return;
+            }
+            IdList ids = lists.get(values[column]);
+            if (ids == null) {
+                ids = lists.computeIfAbsent(values[column], key -> new IdList());
+            }
+            ids.add((Integer) values[0]);
+        }
+
+        @Override
+        public void remove(Object[] values) {
+            IdList ids = values[column] != null ? lists.get(values[column]) : null;
+            if (ids != null) {
+                ids.remove((Integer) values[0]);
+            }
+        }
+
+        @Override
+        public boolean covers(int column) {
+            return this.column == column;
+        }
+    }
+
+    /**
+     * Index of not unique column, rows of the same value are ordered by the order column and id.
+     * It is meant for tables with few rows per value, each row adds a skip list node
+     */
+    private static class OrderedIndex implements RowIndex {
+
+        private final int column;
+        private final int orderColumn;
+        private final ConcurrentHashMap<Object, NavigableSet<Entry>> entries = new ConcurrentHashMap<>();
+
+        OrderedIndex(int column, int orderColumn) {
+            this.column = column;
+            this.orderColumn = orderColumn;
+        }
+
+        PrimitiveIterator.OfInt findLast(Object value, Object bound) {
+            NavigableSet<Entry> rows = value != null ? entries.get(value) : null;
+            if (rows == null) {
+                return IntStream.empty().iterator();
+            }
+            if (bound != null) {
+                rows = rows.headSet(new Entry(bound, Integer.MAX_VALUE), true);
+            }
+            return new EntryIds(rows.descendingIterator());
+        }
+
+        @Override
+        public void add(Object[] values) {
+            if (values[column] == null || values[orderColumn] == null) {
+                return;
+            }
+            Entry entry = new Entry(values[orderColumn], (Integer) values[0]);
+            entries.computeIfAbsent(values[column], key -> new ConcurrentSkipListSet<>()).add(entry);
+        }
+
+        @Override
+        public void remove(Object[] values) {
+            NavigableSet<Entry> rows = values[column] != null ? entries.get(values[column]) : null;
+            if (rows != null && values[orderColumn] != null) {
+                rows.remove(new Entry(values[orderColumn], (Integer) values[0]));
+            }
+        }
+
+        @Override
+        public boolean covers(int column) {
+            return this.column == column || orderColumn == column;
+        }
+    }
+
+    private static class Entry implements Comparable<Entry> {
+
+        private final Object order;
+        private final int id;
+
+        Entry(Object order, int id) {
+            this.order = order;
+            this.id = id;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public int compareTo(Entry other) {
+            int result = ((Comparable<Object>) order).compareTo(other.order);
+            return result != 0 ? result : Integer.compare(id, other.id);
+        }
+    }
+
+    /**
+     * Iterates ids of index entries
+     */
+    private static class EntryIds implements PrimitiveIterator.OfInt {
+
+        private final Iterator<Entry> entries;
+
+        EntryIds(Iterator<Entry> entries) {
+            this.entries = entries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return entries.hasNext();
+        }
+
+        @Override
+        public int nextInt() {
+            return entries.next().id;
+        }
+    }
+
+    /**
+     * Sorted ids of key index value. New ids are mostly the greatest ones and are appended in place,
+     * other changes replace the whole array. Readers iterate the ids read at once without locking
+     */
+    private static class IdList {
+
+        private volatile Ids current = new Ids(new int[4], 0);
+
+        synchronized void add(int id) {
+            Ids ids = current;
+            int size = ids.size;
+            if (size > 0 && ids.values[size - 1] >= id) {
+                // id taken before the last added one is inserted into the copy, so readers do not see the shift
+                int position = Arrays.binarySearch(ids.values, 0, size, id);
+                if (position < 0) {
+                    position = -position - 1;
+                    int[] values = new int[Math.max(ids.values.length, size + 1)];
+                    System.arraycopy(ids.values, 0, values, 0, position);
+                    values[position] = id;
+                    System.arraycopy(ids.values, position, values, position + 1, size - position);
+                    current = new Ids(values, size + 1);
+                }
+                return;
+            }
+            if (size == ids.values.length) {
+                ids = new Ids(Arrays.copyOf(ids.values, size * 2), size);
+                current = ids;
+            }
+            ids.values[size] = id;
+            // size is written after the id, so reader never sees not written id
+            ids.size = size + 1;
+        }
+
+        synchronized void remove(int id) {
+            Ids ids = current;
+            int position = Arrays.binarySearch(ids.values, 0, ids.size, id);
+            if (position >= 0) {
+                int[] values = new int[ids.values.length];
+                System.arraycopy(ids.values, 0, values, 0, position);
+                System.arraycopy(ids.values, position + 1, values, position, ids.size - position - 1);
+                current = new Ids(values, ids.size - 1);
+            }
+        }
+
+        /**
+         * @return ids greater than afterId in ascending order
+         */
+        PrimitiveIterator.OfInt after(int afterId) {
+            Ids ids = current;
+            int size = ids.size;
+            int position = Arrays.binarySearch(ids.values, 0, size, afterId);
+            int from = position >= 0 ? position + 1 : -position - 1;
+            return Arrays.stream(ids.values, from, size).iterator();
+        }
+    }
+
+    /**
+     * Array of ids and number of its used elements. Array is only appended after the size while it is current
+     */
+    private static class Ids {
+
+        private final int[] values;
+        private volatile int size;
+
+        Ids(int[] values, int size) {
+            this.values = values;
+            this.size = size;
+        }
+    }
+
+    private static class HashUniqueIndex implements UniqueIndex {
+
+        private final ConcurrentHashMap<Object, Integer> ids = new ConcurrentHashMap<>();
+
+        @Override
+        public int get(Object value) {
+            Integer id = ids.get(value);
+            return id != null ? id : 0;
+        }
+
+        @Override
+        public int putIfAbsent(Object value, int id) {
+            Integer existingId = ids.putIfAbsent(value, id);
+            return existingId != null ? existingId : 0;
+        }
+
+        @Override
+        public void remove(Object value, int id) {
+            ids.remove(value, id);
+        }
+    }
+}
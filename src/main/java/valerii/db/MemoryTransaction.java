@@ -0,0 +1,329 @@
+package valerii.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Savepoint;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transaction of MemoryProvider exposed to the caller as a JDBC connection proxy.
+ * Changes are applied to the table rows in place as new row versions, the transaction keeps an undo log to restore
+ * the rows on rollback and commit actions that make the changes visible to other transactions at once.
+ * Each statement reads rows at the commit version published before the statement started.
+ * Row locks are owned by the transaction and held until commit or rollback.
+ * Transaction is not thread safe, it must not be used by several threads at the same time.
+ *
+ * @author vliutyi
+ */
+class MemoryTransaction implements InvocationHandler {
+
+    private final Connection proxy;
+    private final CommitClock clock;
+    // undo actions in the order changes were done
+    private final List<Runnable> undoLog = new ArrayList<>();
+    private final List<RowLock> heldLocks = new ArrayList<>();
+    // actions done on commit only, e.g. publishing of changed rows to other transactions
+    private final List<CommitAction> commitActions = new ArrayList<>();
+
+    private boolean autoCommit = true;
+    private boolean readOnly;
+    private boolean closed;
+    private int savepointCount;
+    // number of running statements, statement may run another one, e.g. by row handler
+    private int statements;
+    // commit version the running statement reads at, read by CommitClock
+    volatile long readVersion;
+
+    MemoryTransaction(CommitClock clock) {
+        this.clock = clock;
+        this.proxy = (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, this);
+    }
+
+    Connection getConnection() {
+        return proxy;
+    }
+
+    boolean isReadOnly() {
+        return readOnly;
+    }
+
+    boolean isAutoCommit() {
+        return autoCommit;
+    }
+
+    void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+    }
+
+    /**
+     * Starts the statement, rows are read at the commit version published before the first running statement started
+     */
+    void beginStatement() {
+        if (statements++ == 0) {
+            clock.beginRead(this);
+        }
+    }
+
+    void endStatement() {
+        if (--statements == 0) {
+            clock.endRead(this);
+        }
+    }
+
+    /**
+     * @return commit version the running statement reads at
+     */
+    long getReadVersion() {
+        return readVersion;
+    }
+
+    /**
+     * Acquires the lock of the table row for the transaction, the lock is released on commit or rollback
+     * @return false if the lock is not acquired in given time
+     */
+    boolean lock(MemoryTable table, int id, long timeoutMillis) throws InterruptedException {
+        RowLock held = table.getLock(id);
+        if (held != null && held.owner == this) {
+            return true;
+        }
+
+        RowLock lock = table.useLock(id);
+        boolean acquired = false;
+        try {
+            acquired = lock.permit.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+        } finally {
+            if (!acquired) {
+                table.releaseLock(lock);
+            }
+        }
+        if (!acquired) {
+            return false;
+        }
+        lock.owner = this;
+        heldLocks.add(lock);
+        return true;
+    }
+
+    /**
+     * Registers action that undoes the change on rollback
+     */
+    void addUndo(Runnable undo) {
+        undoLog.add(undo);
+    }
+
+    /**
+     * Registers action done on commit only. Commit action must be registered before the undo action of the same change,
+     * so the action is dropped when the change is rolled back to a savepoint or by failed statement
+     */
+    void addCommitAction(Runnable action) {
+        commitActions.add(new CommitAction(undoLog.size(), null, action, null));
+    }
+
+    /**
+     * Registers action run when no statement reads at a version older than the commit version of the transaction.
+     * Must be registered before the undo action of the same change
+     */
+    void addCleanup(Runnable cleanup) {
+        commitActions.add(new CommitAction(undoLog.size(), null, null, cleanup));
+    }
+
+    /**
+     * Registers row version made by the transaction, it is committed with the commit version of the transaction.
+     * Must be registered before the undo action of the same change
+     * @param cleanup action run when no statement reads at a version older than the commit version,
+     *                e.g. dropping of the versions replaced by the change, null if nothing is cleaned up
+     */
+    void addVersion(RowVersion version, Runnable cleanup) {
+        commitActions.add(new CommitAction(undoLog.size(), version, null, cleanup));
+    }
+
+    /**
+     * @return position in undo log to roll back to, used for statement level atomicity and savepoints
+     */
+    int mark() {
+        return undoLog.size();
+    }
+
+    void rollbackTo(int mark) {
+        for (int i = undoLog.size() - 1; i >= mark; i--) {
+            undoLog.remove(i).run();
+        }
+        for (int i = commitActions.size() - 1; i >= 0 && commitActions.get(i).position >= mark; i--) {
+            commitActions.remove(i);
+        }
+    }
+
+    void commit() {
+        if (!commitActions.isEmpty()) {
+            clock.publish(commitActions);
+        }
+        end();
+    }
+
+    void rollback() {
+        rollbackTo(0);
+        end();
+    }
+
+    private void end() {
+        undoLog.clear();
+        commitActions.clear();
+        for (int i = heldLocks.size() - 1; i >= 0; i--) {
+            RowLock lock = heldLocks.get(i);
+            lock.owner = null;
+            lock.permit.release();
+            lock.table.releaseLock(lock);
+        }
+        heldLocks.clear();
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        switch (method.getName()) {
+            case "close":
+                if (!closed) {
+                    rollback();
+                    closed = true;
+                }
+                return null;
+            case "isClosed":
+                return closed;
+            case "isValid":
+                return !closed;
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "MemoryTransaction@" + Integer.toHexString(System.identityHashCode(proxy));
+            case "unwrap":
+                if (args[0] == MemoryTransaction.class) {
+                    return this;
+                }
+                throw new SQLException("Cannot unwrap to " + args[0]);
+            case "isWrapperFor":
+                return args[0] == MemoryTransaction.class;
+            default:
+                break;
+        }
+
+        checkOpen();
+
+        switch (method.getName()) {
+            case "commit":
+                commit();
+                return null;
+            case "rollback":
+                if (args == null) {
+                    rollback();
+                } else {
+                    rollbackTo(((MemorySavepoint) args[0]).mark);
+                }
+                return null;
+            case "setAutoCommit":
+                boolean newAutoCommit = (Boolean) args[0];
+                if (newAutoCommit && !autoCommit) {
+                    commit();
+                }
+                autoCommit = newAutoCommit;
+                return null;
+            case "getAutoCommit":
+                return autoCommit;
+            case "setReadOnly":
+                readOnly = (Boolean) args[0];
+                return null;
+            case "isReadOnly":
+                return readOnly;
+            case "getTransactionIsolation":
+                return Connection.TRANSACTION_READ_COMMITTED;
+            case "setSavepoint":
+                return new MemorySavepoint(++savepointCount, args != null ? (String) args[0] : null, mark());
+            case "releaseSavepoint":
+                return null;
+            default:
+                throw new SQLFeatureNotSupportedException("Not supported by in-memory DB: " + method.getName());
+        }
+    }
+
+    /**
+     * Exclusive lock of a table row owned by a transaction rather than a thread, so it can be released by any thread
+     * that completes the transaction. Lock is kept by the table while it is held or waited for
+     */
+    static class RowLock {
+
+        final MemoryTable table;
+        final int id;
+        // number of transactions that hold or wait for the lock, guarded by the lock map of the table
+        int users;
+        private final Semaphore permit = new Semaphore(1);
+        private volatile MemoryTransaction owner;
+
+        RowLock(MemoryTable table, int id) {
+            this.table = table;
+            this.id = id;
+        }
+    }
+
+    static class CommitAction {
+
+        // size of undo log when the action was registered
+        private final int position;
+        private final RowVersion version;
+        private final Runnable action;
+        final Runnable cleanup;
+
+        CommitAction(int position, RowVersion version, Runnable action, Runnable cleanup) {
+            this.position = position;
+            this.version = version;
+            this.action = action;
+            this.cleanup = cleanup;
+        }
+
+        void commit(long commitVersion) {
+            if (version != null) {
+                version.commit(commitVersion);
+            }
+            if (action != null) {
+                action.run();
+            }
+        }
+    }
+
+    private static class MemorySavepoint implements Savepoint {
+
+        private final int id;
+        private final String name;
+        private final int mark;
+
+        MemorySavepoint(int id, String name, int mark) {
+            this.id = id;
+            this.name = name;
+            this.mark = mark;
+        }
+
+        @Override
+        public int getSavepointId() throws SQLException {
+            if (name != null) {
+                throw new SQLException("Savepoint is named");
+            }
+            return id;
+        }
+
+        @Override
+        public String getSavepointName() throws SQLException {
+            if (name == null) {
+                throw new SQLException("Savepoint is not named");
+            }
+            return name;
+        }
+    }
+}
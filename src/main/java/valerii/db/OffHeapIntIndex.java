@@ -0,0 +1,165 @@
+package valerii.db;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Unique index of INTEGER column kept in direct memory: open addressing hash table of int value and row id pairs
+ * with linear probing. Changes are done under the write lock, lookups use optimistic reads
+ *
+ * @author vliutyi
+ */
+class OffHeapIntIndex implements MemoryTable.UniqueIndex {
+
+    private static final int ENTRY_SIZE = 2 * Integer.BYTES;
+    private static final int EMPTY = 0;
+    // id of removed entry, lookup goes on probing after it
+    private static final int REMOVED = -1;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private final StampedLock lock = new StampedLock();
+
+    private volatile ByteBuffer entries = allocate(INITIAL_CAPACITY);
+    // guarded by lock
+    private int capacity = INITIAL_CAPACITY;
+    // number of not empty entries including removed ones
+    private int used;
+    // number of live entries
+    private int size;
+
+    @Override
+    public int get(Object value) {
+        int key = (Integer) value;
+
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            int id = find(entries, key);
+            if (lock.validate(stamp)) {
+                return id;
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return find(entries, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public int putIfAbsent(Object value, int id) {
+        int key = (Integer) value;
+
+        long stamp = lock.writeLock();
+        try {
+            int mask = capacity - 1;
+            int removedIndex = -1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int entryId = entries.getInt(i * ENTRY_SIZE + Integer.BYTES);
+                if (entryId == EMPTY) {
+                    if (removedIndex < 0) {
+                        used++;
+                        removedIndex = i;
+                    }
+                    entries.putInt(removedIndex * ENTRY_SIZE, key);
+                    entries.putInt(removedIndex * ENTRY_SIZE + Integer.BYTES, id);
+                    size++;
+                    break;
+                }
+                if (entryId == REMOVED) {
+                    if (removedIndex < 0) {
+                        removedIndex = i;
+                    }
+                } else if (entries.getInt(i * ENTRY_SIZE) == key) {
+                    return entryId;
+                }
+            }
+
+            if (used > capacity / 2) {
+                resize();
+            }
+            return 0;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void remove(Object value, int id) {
+        int key = (Integer) value;
+
+        long stamp = lock.writeLock();
+        try {
+            int mask = capacity - 1;
+            for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+                int entryId = entries.getInt(i * ENTRY_SIZE + Integer.BYTES);
+                if (entryId == EMPTY) {
+                    return;
+                }
+                if (entryId == id && entries.getInt(i * ENTRY_SIZE) == key) {
+                    entries.putInt(i * ENTRY_SIZE + Integer.BYTES, REMOVED);
+                    size--;
+                    return;
+                }
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private int find(ByteBuffer entries, int key) {
+        int mask = entries.capacity() / ENTRY_SIZE - 1;
+        for (int i = hash(key) & mask, probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+            int entryId = entries.getInt(i * ENTRY_SIZE + Integer.BYTES);
+            if (entryId == EMPTY) {
+                return 0;
+            }
+            if (entryId != REMOVED && entries.getInt(i * ENTRY_SIZE) == key) {
+                return entryId;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Rehashes live entries, removed entries are dropped. Capacity is doubled unless most of the entries are removed ones
+     */
+    private void resize() {
+        ByteBuffer oldEntries = entries;
+        int oldCapacity = capacity;
+        int newCapacity = size > oldCapacity / 4 ? oldCapacity * 2 : oldCapacity;
+        ByteBuffer newEntries = allocate(newCapacity);
+        int mask = newCapacity - 1;
+        int newUsed = 0;
+
+        for (int k = 0; k < oldCapacity; k++) {
+            int id = oldEntries.getInt(k * ENTRY_SIZE + Integer.BYTES);
+            if (id == EMPTY || id == REMOVED) {
+                continue;
+            }
+            int key = oldEntries.getInt(k * ENTRY_SIZE);
+            int i = hash(key) & mask;
+            while (newEntries.getInt(i * ENTRY_SIZE + Integer.BYTES) != EMPTY) {
+                i = (i + 1) & mask;
+            }
+            newEntries.putInt(i * ENTRY_SIZE, key);
+            newEntries.putInt(i * ENTRY_SIZE + Integer.BYTES, id);
+            newUsed++;
+        }
+
+        capacity = newCapacity;
+        used = newUsed;
+        entries = newEntries;
+    }
+
+    private static int hash(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * ENTRY_SIZE).order(ByteOrder.nativeOrder());
+    }
+}
@@ -0,0 +1,462 @@
+package valerii.db;
+
+import valerii.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Row store that keeps rows in fixed-width slots of direct byte buffers, so stored rows put no load on GC.
+ * Row id is mapped to the slot by off-heap id table, slots of deleted rows are reused by new rows.
+ * Slot layout: state byte, null flags, then column values: INTEGER - 4 bytes, DATE_TIME - 12 bytes (millis and nanos),
+ * STRING - length byte and up to column length bytes of UTF-8 text.
+ * Slot is written under the write lock of its stamp stripe, readers use optimistic reads and do not block writers.
+ * Slot holds the latest values of the row. Versions of the changed row are kept on the heap with the values the change
+ * replaced, until no statement reads at a commit version older than the change.
+ *
+ * @author vliutyi
+ */
+class OffHeapRowStore implements RowStore {
+
+    private static final byte FREE = 0;
+    private static final byte LIVE = 1;
+    // inserted by not committed transaction
+    private static final byte INSERTED = 2;
+    // deleted by not committed transaction
+    private static final byte DELETED = 3;
+
+    private static final int STATE_OFFSET = 0;
+    private static final int NULLS_OFFSET = 4;
+    private static final int VALUES_OFFSET = 8;
+
+    private static final int SLOT_CHUNK_BITS = 16;
+    private static final int ID_CHUNK_BITS = 16;
+    private static final int MAX_CHUNKS = 1 << 15;
+    private static final int STAMP_STRIPES = 1024;
+
+    // values of the version kept in the slot
+    private static final Object[] IN_SLOT = new Object[0];
+
+    private final MemoryTable.Column[] columns;
+    private final int[] offsets;
+    private final int slotSize;
+
+    private final AtomicReferenceArray<ByteBuffer> slotChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    // id to slot number + 1, 0 if id has no slot
+    private final AtomicReferenceArray<ByteBuffer> idChunks = new AtomicReferenceArray<>(MAX_CHUNKS);
+    private final StampedLock[] stamps = new StampedLock[STAMP_STRIPES];
+    // the latest version of the row changed by a transaction, there is no version if the slot is visible to all statements
+    private final Map<Integer, RowVersion> versions = new ConcurrentHashMap<>();
+
+    // guarded by this
+    private int usedSlots;
+    private int[] freeSlots = new int[64];
+    private int freeSlotCount;
+
+    /**
+     * Creates store for rows of given columns. STRING columns must have length
+     * @param name name of the store used as a prefix of the store gauges
+     * @param columns table columns
+     */
+    OffHeapRowStore(String name, MemoryTable.Column[] columns) {
+        if (columns.length > Integer.SIZE) {
+            throw new IllegalArgumentException("Too many columns for off-heap store: " + columns.length);
+        }
+
+        this.columns = columns;
+        this.offsets = new int[columns.length];
+        int offset = VALUES_OFFSET;
+        for (int i = 0; i < columns.length; i++) {
+            offsets[i] = offset;
+            offset += width(columns[i]);
+        }
+        // keep slots 4 bytes aligned
+        this.slotSize = (offset + 3) & ~3;
+
+        for (int i = 0; i < STAMP_STRIPES; i++) {
+            stamps[i] = new StampedLock();
+        }
+
+        Metrics.gauge(name + ".slots", this::getUsedSlots);
+        Metrics.gauge(name + ".freeSlots", this::getFreeSlotCount);
+        Metrics.gauge(name + ".offHeapBytes", this::getOffHeapBytes);
+    }
+
+    private static int width(MemoryTable.Column column) {
+        switch (column.type) {
+            case INTEGER:
+                return Integer.BYTES;
+            case DATE_TIME:
+                return Long.BYTES + Integer.BYTES;
+            case STRING:
+                if (column.length <= 0 || column.length > 255) {
+                    throw new IllegalArgumentException("Wrong length of off-heap column " + column.name + ": " + column.length);
+                }
+                return 1 + column.length;
+            default:
+                throw new IllegalArgumentException("Unsupported column type " + column.type);
+        }
+    }
+
+    int getSlotSize() {
+        return slotSize;
+    }
+
+    synchronized int getUsedSlots() {
+        return usedSlots;
+    }
+
+    synchronized int getFreeSlotCount() {
+        return freeSlotCount;
+    }
+
+    long getOffHeapBytes() {
+        long bytes = 0;
+        for (int i = 0; i < MAX_CHUNKS; i++) {
+            ByteBuffer slotChunk = slotChunks.get(i);
+            ByteBuffer idChunk = idChunks.get(i);
+            if (slotChunk == null && idChunk == null) {
+                break;
+            }
+            bytes += (slotChunk != null ? slotChunk.capacity() : 0) + (idChunk != null ? idChunk.capacity() : 0);
+        }
+        return bytes;
+    }
+
+    @Override
+    public Object[] read(int id, MemoryTransaction reader, long readVersion) {
+        // slot is read before the version: writer adds the version before it changes the slot
+        Object[] values = readSlot(id);
+        RowVersion head = versions.get(id);
+        if (head == null) {
+            return values;
+        }
+        RowVersion version = RowVersion.visible(head, reader, readVersion);
+        if (version == null) {
+            return null;
+        }
+        return version.values == IN_SLOT ? values : version.values;
+    }
+
+    @Override
+    public boolean contains(int id) {
+        return slotOf(id) >= 0;
+    }
+
+    @Override
+    public void insert(MemoryTransaction transaction, int id, Object[] values) throws SQLException {
+        checkValues(values);
+        if ((id >>> ID_CHUNK_BITS) >= MAX_CHUNKS) {
+            throw new SQLException("Row store is full, cannot insert row " + id);
+        }
+        int slot = allocateSlot();
+
+        RowVersion version = new RowVersion(IN_SLOT, transaction, null);
+        transaction.addVersion(version, () -> settle(id, version));
+        versions.put(id, version);
+        long stamp = stamp(id).writeLock();
+        try {
+            writeValues(slot, values, null);
+            slotChunk(slot).put(slotOffset(slot) + STATE_OFFSET, INSERTED);
+            mapSlot(id, slot + 1);
+        } finally {
+            stamp(id).unlockWrite(stamp);
+        }
+
+        transaction.addCommitAction(() -> setState(id, slot, INSERTED, LIVE));
+        transaction.addUndo(() -> {
+            free(id, slot);
+            versions.remove(id, version);
+        });
+    }
+
+    @Override
+    public void update(MemoryTransaction transaction, int id, Object[] values) throws SQLException {
+        checkValues(values);
+        int slot = slotOf(id);
+        Object[] oldValues = readSlot(id);
+
+        addVersion(transaction, id, oldValues, IN_SLOT);
+        write(id, slot, values, oldValues);
+        transaction.addUndo(() -> write(id, slot, oldValues, values));
+    }
+
+    @Override
+    public void delete(MemoryTransaction transaction, int id) {
+        int slot = slotOf(id);
+        Object[] oldValues = readSlot(id);
+        byte oldState = slotChunk(slot).get(slotOffset(slot) + STATE_OFFSET);
+
+        addVersion(transaction, id, oldValues, null);
+        setState(id, slot, oldState, DELETED);
+        transaction.addUndo(() -> setState(id, slot, DELETED, oldState));
+    }
+
+    /**
+     * Makes the version of the transaction the latest version of the row. Replaced values are copied to the heap
+     * on the first change of the row by the transaction, since the slot is going to be overwritten
+     * @param oldValues values in the slot
+     * @param values values of the version, IN_SLOT or null for deleted row
+     */
+    private void addVersion(MemoryTransaction transaction, int id, Object[] oldValues, Object[] values) {
+        RowVersion head = versions.get(id);
+        if (head != null && head.isWrittenBy(transaction)) {
+            Object[] headValues = head.values;
+            head.values = values;
+            transaction.addUndo(() -> head.values = headValues);
+            return;
+        }
+
+        RowVersion replaced = head != null
+                ? new RowVersion(head.values == IN_SLOT ? oldValues : head.values, head.getCommitVersion(), head.previous)
+                // slot of the row without version is visible to all statements
+                : new RowVersion(oldValues, 0, null);
+        RowVersion version = new RowVersion(values, transaction, replaced);
+        transaction.addVersion(version, () -> settle(id, version));
+        versions.put(id, version);
+        transaction.addUndo(() -> {
+            if (head != null) {
+                versions.replace(id, version, head);
+            } else {
+                versions.remove(id, version);
+            }
+        });
+    }
+
+    /**
+     * Drops the committed version when no statement reads at older commit version, slot of the deleted row is freed
+     */
+    private void settle(int id, RowVersion version) {
+        version.previous = null;
+        if (version.values == null) {
+            int slot = slotOf(id);
+            if (slot >= 0) {
+                free(id, slot);
+            }
+        }
+        versions.remove(id, version);
+    }
+
+    private void checkValues(Object[] values) throws SQLException {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].type == DbFieldType.STRING && values[i] != null
+                    && ((String) values[i]).getBytes(StandardCharsets.UTF_8).length > columns[i].length) {
+                throw new SQLDataException("Value too long for column " + columns[i].name + ": " + values[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads slot of the row by optimistic read, values of inserted and not committed row are read too. Read is repeated under the read lock if the slot was changed while read
+     */
+    private Object[] readSlot(int id) {
+        StampedLock lock = stamp(id);
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                Object[] values = decode(id);
+                if (lock.validate(stamp)) {
+                    return values;
+                }
+            } catch (RuntimeException e) {
+                // slot was changed while read, values are not consistent
+            }
+        }
+
+        stamp = lock.readLock();
+        try {
+            return decode(id);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private Object[] decode(int id) {
+        int slot = slotOf(id);
+        if (slot < 0) {
+            return null;
+        }
+
+        ByteBuffer chunk = slotChunk(slot);
+        int base = slotOffset(slot);
+        byte state = chunk.get(base + STATE_OFFSET);
+        if (!(state == LIVE || state == INSERTED) || chunk.getInt(base + offsets[0]) != id) {
+            return null;
+        }
+
+        int nulls = chunk.getInt(base + NULLS_OFFSET);
+        Object[] values = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if ((nulls & (1 << i)) == 0) {
+                values[i] = readValue(chunk, base + offsets[i], columns[i]);
+            }
+        }
+        return values;
+    }
+
+    private Object readValue(ByteBuffer chunk, int offset, MemoryTable.Column column) {
+        switch (column.type) {
+            case INTEGER:
+                return chunk.getInt(offset);
+            case DATE_TIME:
+                Timestamp timestamp = new Timestamp(chunk.getLong(offset));
+                timestamp.setNanos(chunk.getInt(offset + Long.BYTES));
+                return timestamp;
+            case STRING:
+                byte[] bytes = new byte[chunk.get(offset) & 0xFF];
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = chunk.get(offset + 1 + i);
+                }
+                return new String(bytes, StandardCharsets.UTF_8);
+            default:
+                throw new IllegalArgumentException("Unsupported column type " + column.type);
+        }
+    }
+
+    private void write(int id, int slot, Object[] values, Object[] oldValues) {
+        long stamp = stamp(id).writeLock();
+        try {
+            writeValues(slot, values, oldValues);
+        } finally {
+            stamp(id).unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Writes values that differ from old values, e.g. balance change writes 4 bytes of the amount only
+     * @param oldValues values stored in the slot or null to write all values
+     */
+    private void writeValues(int slot, Object[] values, Object[] oldValues) {
+        ByteBuffer chunk = slotChunk(slot);
+        int base = slotOffset(slot);
+        int nulls = 0;
+
+        for (int i = 0; i < columns.length; i++) {
+            if (values[i] == null) {
+                nulls |= 1 << i;
+            } else if (oldValues == null || !values[i].equals(oldValues[i])) {
+                writeValue(chunk, base + offsets[i], columns[i], values[i]);
+            }
+        }
+
+        chunk.putInt(base + NULLS_OFFSET, nulls);
+    }
+
+    private void writeValue(ByteBuffer chunk, int offset, MemoryTable.Column column, Object value) {
+        switch (column.type) {
+            case INTEGER:
+                chunk.putInt(offset, (Integer) value);
+                break;
+            case DATE_TIME:
+                Timestamp timestamp = (Timestamp) value;
+                chunk.putLong(offset, timestamp.getTime());
+                chunk.putInt(offset + Long.BYTES, timestamp.getNanos());
+                break;
+            case STRING:
+                byte[] bytes = ((String) value).getBytes(StandardCharsets.UTF_8);
+                chunk.put(offset, (byte) bytes.length);
+                for (int i = 0; i < bytes.length; i++) {
+                    chunk.put(offset + 1 + i, bytes[i]);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported column type " + column.type);
+        }
+    }
+
+    private void setState(int id, int slot, byte expectedState, byte newState) {
+        long stamp = stamp(id).writeLock();
+        try {
+            int offset = slotOffset(slot) + STATE_OFFSET;
+            if (slotChunk(slot).get(offset) == expectedState) {
+                slotChunk(slot).put(offset, newState);
+            }
+        } finally {
+            stamp(id).unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Removes the row from its slot and returns the slot to the free list
+     */
+    private void free(int id, int slot) {
+        long stamp = stamp(id).writeLock();
+        try {
+            slotChunk(slot).put(slotOffset(slot) + STATE_OFFSET, FREE);
+            mapSlot(id, 0);
+        } finally {
+            stamp(id).unlockWrite(stamp);
+        }
+
+        synchronized (this) {
+            if (freeSlotCount == freeSlots.length) {
+                freeSlots = Arrays.copyOf(freeSlots, freeSlots.length * 2);
+            }
+            freeSlots[freeSlotCount++] = slot;
+        }
+    }
+
+    private synchronized int allocateSlot() throws SQLException {
+        if (freeSlotCount > 0) {
+            return freeSlots[--freeSlotCount];
+        }
+
+        int slot = usedSlots;
+        int chunkIndex = slot >>> SLOT_CHUNK_BITS;
+        if (chunkIndex >= MAX_CHUNKS) {
+            throw new SQLException("Row store is full");
+        }
+        if (slotChunks.get(chunkIndex) == null) {
+            slotChunks.set(chunkIndex, ByteBuffer.allocateDirect(slotSize << SLOT_CHUNK_BITS).order(ByteOrder.nativeOrder()));
+        }
+        usedSlots++;
+        return slot;
+    }
+
+    private ByteBuffer slotChunk(int slot) {
+        return slotChunks.get(slot >>> SLOT_CHUNK_BITS);
+    }
+
+    private int slotOffset(int slot) {
+        return (slot & ((1 << SLOT_CHUNK_BITS) - 1)) * slotSize;
+    }
+
+    /**
+     * @return slot of the row or -1 if id has no slot
+     */
+    private int slotOf(int id) {
+        if (id <= 0 || (id >>> ID_CHUNK_BITS) >= MAX_CHUNKS) {
+            return -1;
+        }
+        ByteBuffer chunk = idChunks.get(id >>> ID_CHUNK_BITS);
+        return chunk != null ? chunk.getInt((id & ((1 << ID_CHUNK_BITS) - 1)) * Integer.BYTES) - 1 : -1;
+    }
+
+    private void mapSlot(int id, int value) {
+        int chunkIndex = id >>> ID_CHUNK_BITS;
+        ByteBuffer chunk = idChunks.get(chunkIndex);
+        if (chunk == null) {
+            synchronized (idChunks) {
+                chunk = idChunks.get(chunkIndex);
+                if (chunk == null) {
+                    chunk = ByteBuffer.allocateDirect(Integer.BYTES << ID_CHUNK_BITS).order(ByteOrder.nativeOrder());
+                    idChunks.set(chunkIndex, chunk);
+                }
+            }
+        }
+        chunk.putInt((id & ((1 << ID_CHUNK_BITS) - 1)) * Integer.BYTES, value);
+    }
+
+    private StampedLock stamp(int id) {
+        return stamps[id & (STAMP_STRIPES - 1)];
+    }
+}
@@ -0,0 +1,12 @@
+package valerii.db;
+
+import java.sql.SQLException;
+
+/**
+ * Handles the current row of a query result while the query is read, the row is not kept after the call
+ */
+@FunctionalInterface
+public interface RowHandler {
+
+    void handle(DbRow row) throws SQLException;
+}
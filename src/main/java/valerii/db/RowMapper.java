@@ -0,0 +1,14 @@
+package valerii.db;
+
+import java.sql.SQLException;
+
+/**
+ * Maps the current row of a query result straight into the business object
+ *
+ * @param <T> type of the business object
+ */
+@FunctionalInterface
+public interface RowMapper<T> {
+
+    T map(DbRow row) throws SQLException;
+}
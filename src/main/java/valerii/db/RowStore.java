@@ -0,0 +1,33 @@
+package valerii.db;
+
+import java.sql.SQLException;
+
+/**
+ * Storage of MemoryTable rows addressed by row id. Changes are done in place: store registers undo actions and
+ * row versions in the transaction and keeps values replaced by the changes for statements that read at older commit versions.
+ * Caller must hold the row lock to change the row.
+ *
+ * @author vliutyi
+ */
+interface RowStore {
+
+    /**
+     * Reads row values
+     * @param id row id
+     * @param reader transaction that reads the row, it sees its own not committed changes
+     * @param readVersion commit version the statement reads at
+     * @return row values or null if there is no row visible to the statement
+     */
+    Object[] read(int id, MemoryTransaction reader, long readVersion);
+
+    /**
+     * @return true if row with given id is stored, even if it is not visible to all transactions
+     */
+    boolean contains(int id);
+
+    void insert(MemoryTransaction transaction, int id, Object[] values) throws SQLException;
+
+    void update(MemoryTransaction transaction, int id, Object[] values) throws SQLException;
+
+    void delete(MemoryTransaction transaction, int id);
+}
@@ -0,0 +1,74 @@
+package valerii.db;
+
+/**
+ * Version of MemoryTable row. Version made by a transaction is visible to the transaction only till commit,
+ * then to statements that read at its commit version or later. Version keeps the version it replaced
+ * while there are statements that read at older commit versions
+ *
+ * @author vliutyi
+ */
+class RowVersion {
+
+    static final long UNCOMMITTED = Long.MAX_VALUE;
+    // read version of the statement that reads locked rows, all committed versions are visible to it
+    static final long LATEST = Long.MAX_VALUE - 1;
+
+    // null if the version deletes the row
+    volatile Object[] values;
+    volatile RowVersion previous;
+    private volatile long commitVersion;
+    // null after commit
+    private volatile MemoryTransaction writer;
+
+    /**
+     * Creates version of not committed change
+     */
+    RowVersion(Object[] values, MemoryTransaction writer, RowVersion previous) {
+        this.values = values;
+        this.writer = writer;
+        this.previous = previous;
+        this.commitVersion = UNCOMMITTED;
+    }
+
+    /**
+     * Creates committed version
+     */
+    RowVersion(Object[] values, long commitVersion, RowVersion previous) {
+        this.values = values;
+        this.previous = previous;
+        this.commitVersion = commitVersion;
+    }
+
+    long getCommitVersion() {
+        return commitVersion;
+    }
+
+    /**
+     * @return true if the version is made by not committed change of the transaction
+     */
+    boolean isWrittenBy(MemoryTransaction transaction) {
+        return commitVersion == UNCOMMITTED && writer == transaction;
+    }
+
+    void commit(long version) {
+        // version is set before the writer is cleared, so reader never sees the version neither written nor committed
+        commitVersion = version;
+        writer = null;
+    }
+
+    /**
+     * Finds the version seen by the statement
+     * @param head the latest version of the row
+     * @param reader transaction of the statement
+     * @param readVersion commit version the statement reads at
+     * @return the latest version visible to the statement or null if the row did not exist for it
+     */
+    static RowVersion visible(RowVersion head, MemoryTransaction reader, long readVersion) {
+        for (RowVersion version = head; version != null; version = version.previous) {
+            if (version.commitVersion <= readVersion || version.isWrittenBy(reader)) {
+                return version;
+            }
+        }
+        return null;
+    }
+}
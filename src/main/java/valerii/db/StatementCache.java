@@ -0,0 +1,86 @@
+package valerii.db;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.metrics.Metrics;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * LRU cache of prepared statements of a single physical connection. Statements returned from the cache
+ * are owned by the cache and must not be closed by the caller.
+ * Not thread safe: the connection and its cache are used by one thread at a time
+ */
+class StatementCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+    private static final LongAdder hits = Metrics.counter("db.statementCache.hits");
+    private static final LongAdder misses = Metrics.counter("db.statementCache.misses");
+    private static final LongAdder evictions = Metrics.counter("db.statementCache.evictions");
+
+    private final Connection connection;
+    private final Map<StatementKey, PreparedStatement> statements;
+
+    StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<StatementKey, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<StatementKey, PreparedStatement> eldest) {
+                if (size() > maxSize) {
+                    evictions.increment();
+                    close(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns cached statement for given key or prepares new one
+     * @param key shape of the statement
+     * @param sql builds SQL text, called only when statement is not cached
+     * @param autoGeneratedKeys Statement.RETURN_GENERATED_KEYS or Statement.NO_GENERATED_KEYS
+     * @return prepared statement owned by the cache
+     * @throws SQLException in case of DB errors while preparing statement
+     */
+    PreparedStatement prepare(StatementKey key, Supplier<String> sql, int autoGeneratedKeys) throws SQLException {
+        PreparedStatement statement = statements.get(key);
+
+        if (statement != null) {
+            hits.increment();
+            return statement;
+        }
+
+        misses.increment();
+        statement = connection.prepareStatement(sql.get(), autoGeneratedKeys);
+        statements.put(key, statement);
+
+        return statement;
+    }
+
+    /**
+     * Closes all cached statements
+     */
+    void clear() {
+        for (PreparedStatement statement : statements.values()) {
+            close(statement);
+        }
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            LOGGER.warn("Error occurred while closing cached statement: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package valerii.db;
+
+import java.util.Arrays;
+
+/**
+ * Identifies the shape of SQL statement: operation, table, ordered list of columns used in it and
+ * ordered list of columns used in criteria. Statements of the same shape share the same SQL text
+ */
+public class StatementKey {
+
+    private final String operation;
+    private final String table;
+    private final String[] columns;
+    private final String[] criteria;
+    private final int hash;
+
+    public StatementKey(String operation, String table, String[] columns, String... criteria) {
+        this.operation = operation;
+        this.table = table;
+        this.columns = columns;
+        this.criteria = criteria;
+        this.hash = 31 * (31 * (31 * operation.hashCode() + table.hashCode()) + Arrays.hashCode(columns)) + Arrays.hashCode(criteria);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StatementKey other = (StatementKey) o;
+        return hash == other.hash
+                && operation.equals(other.operation)
+                && table.equals(other.table)
+                && Arrays.equals(columns, other.columns)
+                && Arrays.equals(criteria, other.criteria);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return operation + " " + table + " " + Arrays.toString(columns) + " " + Arrays.toString(criteria);
+    }
+}
@@ -5,7 +5,10 @@ package valerii.db;
  */
 public enum Table {
     CLIENT("client"),
-    ACCOUNT("account");
+    ACCOUNT("account"),
+    ACCOUNT_STRIPE("account_stripe"),
+    LEDGER("ledger"),
+    LEDGER_CHECKPOINT("ledger_checkpoint");
     //CLIENT_ACCOUNT("client_account");
 
     private String tableName;
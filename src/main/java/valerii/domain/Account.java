@@ -7,15 +7,26 @@ import valerii.Error;
 import valerii.db.DbFieldType;
 import valerii.db.DbProvider;
 import valerii.db.DbValue;
+import valerii.db.RowMapper;
 import valerii.db.Table;
 import valerii.exception.BusinessException;
+import valerii.exception.ConcurrentUpdateException;
 import valerii.exception.TransferException;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
 
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
 
 /**
  * Business object that holds logic to operate on client account
@@ -24,20 +35,107 @@ import java.util.Map;
  */
 public class Account {
 
+    /**
+     * Defines how account balance is changed by updateAmount()
+     */
+    public enum UpdateMode {
+        // lock the record by SELECT ... FOR UPDATE, calculate new amount and update the record
+        PESSIMISTIC,
+        // single guarded update that checks the balance, changes it and returns the new value
+        GUARDED,
+        // update the record by the amount read without lock. Caller guarantees that no one else changes the account
+        // at the same time, e.g. all changes of the account run on the same partition thread
+        SINGLE_WRITER,
+        // read the record with its version without lock, update it only if the version is not changed meanwhile.
+        // Conflict raises ConcurrentUpdateException, the operation is retried by the worker
+        OPTIMISTIC
+    }
+
+    /**
+     * Defines how transferTo() settles both accounts
+     */
+    public enum TransferMode {
+        // lock each account by its own SELECT ... FOR UPDATE, then update each account by its own UPDATE
+        LOCK_EACH,
+        // lock both accounts by one SELECT ... FOR UPDATE, then update both accounts by one UPDATE
+        SETTLE,
+        // read destination account without lock, then update both accounts by one UPDATE. Caller guarantees that
+        // no one else changes both accounts at the same time, e.g. both partitions of the accounts are held
+        SINGLE_WRITER,
+        // read both accounts with their versions without lock, update each account only if its version
+        // is not changed meanwhile. Conflict raises ConcurrentUpdateException, the operation is retried by the worker
+        OPTIMISTIC
+    }
+
+    /**
+     * Max number of balance stripes of the account
+     */
+    public static final int MAX_STRIPES = 64;
+
+    // max number of accounts locked by one statement of lockAll()
+    private static final int LOCK_ALL_CHUNK = 64;
+
     private static final Logger LOGGER = LoggerFactory.getLogger(Account.class);
 
+    private static final Timer TRANSFER_LOCK_WAIT = Metrics.timer("transfer.lockWait");
+    private static final Timer TRANSFER_APPLY = Metrics.timer("transfer.apply");
+    private static final LongAdder OPTIMISTIC_UPDATES = Metrics.counter("account.optimistic.updates");
+    private static final LongAdder OPTIMISTIC_CONFLICTS = Metrics.counter("account.optimistic.conflicts");
+    private static final LongAdder STRIPE_CREDITS = Metrics.counter("account.stripes.credits");
+    private static final LongAdder STRIPE_DEBITS = Metrics.counter("account.stripes.debits");
+
+    // ids of accounts last read with balance stripes. Only a hint for in-process locking, it is never used to change balance
+    private static final Set<Integer> STRIPED_ACCOUNTS = ConcurrentHashMap.newKeySet();
+
+    static {
+        Metrics.gauge("account.optimistic.conflictPercent", () -> {
+            long updates = OPTIMISTIC_UPDATES.sum();
+            return updates == 0 ? 0.0 : OPTIMISTIC_CONFLICTS.sum() * 100.0 / updates;
+        });
+    }
+
+    private static volatile UpdateMode updateMode = UpdateMode.GUARDED;
+    private static volatile TransferMode transferMode = TransferMode.SETTLE;
+
+    // columns read by MAPPER, in the order of their indexes
+    private static final String[] COLUMNS = {"id", "client_id", "currency", "amount", "created_date", "stripes"};
+    private static final RowMapper<Account> MAPPER = row -> new Account(
+            row.getInt(1),
+            row.getInt(2),
+            Currency.valueOf(row.getString(3)),
+            row.getInt(4),
+            row.getTimestamp(5).toLocalDateTime(),
+            row.getInt(6));
+    // columns read by VERSIONED_MAPPER: the same columns followed by the record version
+    private static final String[] VERSIONED_COLUMNS = {"id", "client_id", "currency", "amount", "created_date", "stripes", "version"};
+    private static final RowMapper<Account> VERSIONED_MAPPER = row -> {
+        Account account = MAPPER.map(row);
+        account.version = row.getInt(7);
+        return account;
+    };
+    // columns of balance stripe read by STRIPE_MAPPER into array of stripe id and amount
+    private static final String[] STRIPE_COLUMNS = {"id", "amount"};
+    private static final RowMapper<int[]> STRIPE_MAPPER = row -> new int[]{row.getInt(1), row.getInt(2)};
+    // only id is read by lockAll()
+    private static final String[] ID_COLUMNS = {"id"};
+
     private int id;
     private int clientId;
     private Currency currency;
     private int amount;
     private LocalDateTime createdDate;
+    // number of balance stripes, 0 if the whole balance is kept in the account record
+    private int stripes;
+    // version of the record, read by optimistic operations only
+    private int version;
 
-    private Account(int id, int clientId, Currency currency, int amount, LocalDateTime createdDate) {
+    private Account(int id, int clientId, Currency currency, int amount, LocalDateTime createdDate, int stripes) {
         this.id = id;
         this.clientId = clientId;
         this.currency = currency;
         this.amount = amount;
         this.createdDate = createdDate;
+        this.stripes = stripes;
     }
 
     public int getId() {
@@ -64,6 +162,54 @@ public class Account {
         return createdDate;
     }
 
+    public int getStripes() {
+        return stripes;
+    }
+
+    /**
+     * Striped account keeps its balance in several stripe records instead of the account record.
+     * Credits of the account change one random stripe, so concurrent credits of the same account
+     * mostly lock different records. Debits lock all stripes of the account
+     * @return true if balance of the account is kept in stripes
+     */
+    public boolean isStriped() {
+        return stripes > 0;
+    }
+
+    /**
+     * Tells if the account was last read as striped by this process. May be stale, so it is only used to skip
+     * in-process lock of transfer destination: credit of striped account does not change the account record
+     * @param accountId account id to check
+     * @return true if the account was read as striped
+     */
+    public static boolean isKnownStriped(int accountId) {
+        return STRIPED_ACCOUNTS.contains(accountId);
+    }
+
+    /**
+     * Set the way account balance is changed
+     * @param updateMode update mode to use
+     */
+    public static void setUpdateMode(UpdateMode updateMode) {
+        Account.updateMode = updateMode;
+    }
+
+    public static UpdateMode getUpdateMode() {
+        return updateMode;
+    }
+
+    /**
+     * Set the way transferTo() settles both accounts
+     * @param transferMode transfer mode to use
+     */
+    public static void setTransferMode(TransferMode transferMode) {
+        Account.transferMode = transferMode;
+    }
+
+    public static TransferMode getTransferMode() {
+        return transferMode;
+    }
+
     /**
      * Search account by its id
      *
@@ -72,7 +218,7 @@ public class Account {
      * @throws SQLException in case of DB errors
      */
     public static Account getById(int accountId) throws SQLException {
-        return getById(accountId, false);
+        return withStripedAmount(getById(accountId, false));
     }
 
     /**
@@ -87,51 +233,149 @@ public class Account {
         return getById(accountId, true);
     }
 
+    /**
+     * Locks DB records of many accounts for the rest of the transaction. Records are locked in ascending id order
+     * by statements of up to LOCK_ALL_CHUNK accounts, so transactions locking the same accounts do not deadlock
+     *
+     * @param accountIds ids of the accounts, in ascending order without duplicates
+     * @throws SQLException in case of DB errors
+     */
+    public static void lockAll(int[] accountIds) throws SQLException {
+        for (int from = 0; from < accountIds.length; from += LOCK_ALL_CHUNK) {
+            int[] chunk = Arrays.copyOfRange(accountIds, from, Math.min(from + LOCK_ALL_CHUNK, accountIds.length));
+            DbProvider.selectRowsForUpdate(Table.ACCOUNT.getTableName(), ID_COLUMNS, "id", chunk, row -> row.getInt(1));
+        }
+    }
+
     /**
      * private version of getById() method with needLock flag to decide if locking of the record for further updates is needed or not
      */
     private static Account getById(int accountId, boolean needLock) throws SQLException {
-        Map<String, DbValue> values = new HashMap<>();
-        values.put("id", new DbValue(DbFieldType.INTEGER, accountId));
-
-        Map<String, DbValue> resultSet;
+        DbValue key = new DbValue(DbFieldType.INTEGER, accountId);
 
         if (needLock) {
-            resultSet = DbProvider.selectForUpdate(Table.ACCOUNT.getTableName(), values);
-        } else {
-            resultSet = DbProvider.select(Table.ACCOUNT.getTableName(), values);
+            return DbProvider.selectRowForUpdate(Table.ACCOUNT.getTableName(), COLUMNS, "id", key, MAPPER);
         }
 
-        if (resultSet.isEmpty()) {
-            return null;
-        }
-
-        int id = (int) resultSet.get("id").getValue();
-        int clientId = (int) resultSet.get("client_id").getValue();
-        int amount = (int) resultSet.get("amount").getValue();
-        Currency currency = Currency.valueOf((String) resultSet.get("currency").getValue());
-        Timestamp date = (Timestamp) resultSet.get("created_date").getValue();
+        return DbProvider.selectRow(Table.ACCOUNT.getTableName(), COLUMNS, "id", key, MAPPER);
+    }
 
-        return new Account(id, clientId, currency, amount, date.toLocalDateTime());
+    /**
+     * Search account with the version of its record without lock
+     */
+    private static Account getVersionedById(int accountId) throws SQLException {
+        return DbProvider.selectRow(Table.ACCOUNT.getTableName(), VERSIONED_COLUMNS, "id",
+                new DbValue(DbFieldType.INTEGER, accountId), VERSIONED_MAPPER);
     }
 
     // for simplicity let client can have only one account
     public static Account getByClient(int clientId) throws SQLException {
-        Map<String, DbValue> values = new HashMap<>();
-        values.put("client_id", new DbValue(DbFieldType.INTEGER, clientId));
+        DbValue key = new DbValue(DbFieldType.INTEGER, clientId);
+
+        return withStripedAmount(DbProvider.selectRow(Table.ACCOUNT.getTableName(), COLUMNS, "client_id", key, MAPPER));
+    }
+
+    /**
+     * Reads page of accounts in the order of their ids
+     * @param currency currency of read accounts, null to read accounts of all currencies
+     * @param afterId id of the last account of the previous page, 0 for the first page
+     * @param limit max number of accounts in the page
+     * @return accounts following afterId
+     * @throws SQLException in case of DB errors
+     */
+    public static List<Account> getPage(Currency currency, int afterId, int limit) throws SQLException {
+        DbValue key = currency != null ? new DbValue(DbFieldType.STRING, currency.toString()) : null;
+
+        List<Account> accounts = DbProvider.selectRange(Table.ACCOUNT.getTableName(), COLUMNS, key != null ? "currency" : null,
+                key, afterId, limit, MAPPER);
+        withStripedAmounts(accounts);
+        return accounts;
+    }
+
+    /**
+     * Reads accounts in the order of their ids, up to fetchSize read accounts are kept in memory.
+     * Stripes of the kept accounts are summed by one statement before they are passed to the consumer
+     * @param currency currency of read accounts, null to read accounts of all currencies
+     * @param fetchSize number of accounts fetched from DB at once
+     * @param consumer called for each account while the accounts are read
+     * @return number of read accounts
+     * @throws SQLException in case of DB errors
+     */
+    public static int forEach(Currency currency, int fetchSize, Consumer<Account> consumer) throws SQLException {
+        DbValue key = currency != null ? new DbValue(DbFieldType.STRING, currency.toString()) : null;
+        int chunkSize = Math.max(fetchSize, 1);
+        List<Account> chunk = new ArrayList<>(chunkSize);
 
-        Map<String, DbValue> resultSet = DbProvider.select(Table.ACCOUNT.getTableName(), values);
+        int count = DbProvider.scan(Table.ACCOUNT.getTableName(), COLUMNS, key != null ? "currency" : null, key, fetchSize, row -> {
+            chunk.add(MAPPER.map(row));
+            if (chunk.size() == chunkSize) {
+                accept(chunk, consumer);
+            }
+        });
+        accept(chunk, consumer);
+        return count;
+    }
+
+    private static void accept(List<Account> chunk, Consumer<Account> consumer) throws SQLException {
+        withStripedAmounts(chunk);
+        chunk.forEach(consumer);
+        chunk.clear();
+    }
 
-        if (resultSet.isEmpty()) {
+    /**
+     * Sets amount of striped account to the sum of its stripes. Stripes are read by a single statement that sees
+     * one committed state of the DB, so the sum does not mix stripes of different commits
+     */
+    private static Account withStripedAmount(Account account) throws SQLException {
+        if (account == null) {
             return null;
         }
+        if (!account.isStriped()) {
+            STRIPED_ACCOUNTS.remove(account.getId());
+            return account;
+        }
 
-        int id = (int) resultSet.get("id").getValue();
-        int amount = (int) resultSet.get("amount").getValue();
-        Currency currency = Currency.valueOf((String) resultSet.get("currency").getValue());
-        Timestamp date = (Timestamp) resultSet.get("created_date").getValue();
+        STRIPED_ACCOUNTS.add(account.getId());
+        int amount = 0;
+        for (int[] stripe : selectStripes(account.getId())) {
+            amount += stripe[1];
+        }
+        account.setAmount(amount);
+        return account;
+    }
 
-        return new Account(id, clientId, currency, amount, date.toLocalDateTime());
+    /**
+     * Sets amount of striped accounts to the sums of their stripes read by one statement
+     */
+    private static void withStripedAmounts(List<Account> accounts) throws SQLException {
+        Map<Integer, Account> striped = new HashMap<>();
+        for (Account account : accounts) {
+            if (account.isStriped()) {
+                STRIPED_ACCOUNTS.add(account.getId());
+                // account without stripes has no row in the sums
+                account.setAmount(0);
+                striped.put(account.getId(), account);
+            } else {
+                STRIPED_ACCOUNTS.remove(account.getId());
+            }
+        }
+        if (striped.isEmpty()) {
+            return;
+        }
+
+        int[] ids = striped.keySet().stream().mapToInt(Integer::intValue).toArray();
+        for (int[] sum : DbProvider.selectSums(Table.ACCOUNT_STRIPE.getTableName(), "amount", "account_id", ids,
+                row -> new int[]{row.getInt(1), row.getInt(2)})) {
+            striped.get(sum[0]).setAmount(sum[1]);
+        }
+    }
+
+    /**
+     * Reads id and amount of all stripes of the account without lock
+     */
+    private static List<int[]> selectStripes(int accountId) throws SQLException {
+        return DbProvider.selectRows(Table.ACCOUNT_STRIPE.getTableName(), STRIPE_COLUMNS, "account_id",
+                new DbValue(DbFieldType.INTEGER, accountId), STRIPE_MAPPER);
     }
 
     /**
@@ -143,6 +387,24 @@ public class Account {
      * @throws SQLException in case of DB errors
      */
     public static Account create(int clientId, Currency currency) throws SQLException, BusinessException {
+        return create(clientId, currency, 0);
+    }
+
+    /**
+     * Create new account for client with balance split into given number of stripes
+     *
+     * @param clientId client id of the account owner
+     * @param currency currency of the the account
+     * @param stripes number of balance stripes from 0 to MAX_STRIPES, 0 to keep balance in the account record
+     * @return instance of the Account or null if account cannot be created
+     * @throws SQLException in case of DB errors
+     */
+    public static Account create(int clientId, Currency currency, int stripes) throws SQLException, BusinessException {
+
+        if (stripes < 0 || stripes > MAX_STRIPES) {
+            LOGGER.error(Error.ERR_028.getMsg());
+            throw new BusinessException(Error.ERR_028);
+        }
 
         if (Client.getById(clientId) == null) {
             LOGGER.error(Error.ERR_001.getMsg());
@@ -161,6 +423,9 @@ public class Account {
         values.put("amount", new DbValue(DbFieldType.INTEGER, 0));
         LocalDateTime createdDate = LocalDateTime.now();
         values.put("created_date", new DbValue(DbFieldType.DATE_TIME, createdDate));
+        if (stripes > 0) {
+            values.put("stripes", new DbValue(DbFieldType.INTEGER, stripes));
+        }
 
         int id = DbProvider.insert(Table.ACCOUNT.getTableName(), values);
 
@@ -168,11 +433,80 @@ public class Account {
             return null;
         }
 
-        return new Account(id, clientId, currency, 0, createdDate);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            Map<String, DbValue> stripeValues = new HashMap<>();
+            stripeValues.put("account_id", new DbValue(DbFieldType.INTEGER, id));
+            stripeValues.put("stripe", new DbValue(DbFieldType.INTEGER, stripe));
+            stripeValues.put("amount", new DbValue(DbFieldType.INTEGER, 0));
+            if (DbProvider.insert(Table.ACCOUNT_STRIPE.getTableName(), stripeValues) < 0) {
+                // account without all its stripes must not be committed
+                throw new SQLException("Stripe " + stripe + " of account " + id + " cannot be created");
+            }
+        }
+
+        return new Account(id, clientId, currency, 0, createdDate, stripes);
+    }
+
+    /**
+     * Create new accounts by one batch insert, stripes of all striped accounts are inserted by another batch.
+     * Owner and one-account-per-client rules are checked by the constraints of the insert, not by selects before it
+     *
+     * @param clientIds client id of each account owner
+     * @param currencies currency of each account
+     * @param stripes number of balance stripes of each account from 0 to MAX_STRIPES
+     * @return instance of the Account in the order of the arguments, null if client is not found or already has an account
+     * @throws SQLException in case of DB errors
+     */
+    public static Account[] createAll(int[] clientIds, Currency[] currencies, int[] stripes) throws SQLException, BusinessException {
+        for (int accountStripes : stripes) {
+            if (accountStripes < 0 || accountStripes > MAX_STRIPES) {
+                LOGGER.error(Error.ERR_028.getMsg());
+                throw new BusinessException(Error.ERR_028);
+            }
+        }
+
+        LocalDateTime createdDate = LocalDateTime.now();
+        List<Map<String, DbValue>> rows = new ArrayList<>(clientIds.length);
+        for (int i = 0; i < clientIds.length; i++) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("client_id", new DbValue(DbFieldType.INTEGER, clientIds[i]));
+            values.put("currency", new DbValue(DbFieldType.STRING, currencies[i].toString()));
+            values.put("amount", new DbValue(DbFieldType.INTEGER, 0));
+            values.put("created_date", new DbValue(DbFieldType.DATE_TIME, createdDate));
+            values.put("stripes", new DbValue(DbFieldType.INTEGER, stripes[i]));
+            rows.add(values);
+        }
+
+        int[] ids = DbProvider.insertBatch(Table.ACCOUNT.getTableName(), rows);
+
+        Account[] accounts = new Account[ids.length];
+        List<Map<String, DbValue>> stripeRows = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] < 0) {
+                continue;
+            }
+            accounts[i] = new Account(ids[i], clientIds[i], currencies[i], 0, createdDate, stripes[i]);
+            for (int stripe = 0; stripe < stripes[i]; stripe++) {
+                Map<String, DbValue> stripeValues = new HashMap<>();
+                stripeValues.put("account_id", new DbValue(DbFieldType.INTEGER, ids[i]));
+                stripeValues.put("stripe", new DbValue(DbFieldType.INTEGER, stripe));
+                stripeValues.put("amount", new DbValue(DbFieldType.INTEGER, 0));
+                stripeRows.add(stripeValues);
+            }
+        }
+
+        for (int stripeId : DbProvider.insertBatch(Table.ACCOUNT_STRIPE.getTableName(), stripeRows)) {
+            if (stripeId < 0) {
+                // account without all its stripes must not be committed
+                throw new SQLException("Stripes of new accounts cannot be created");
+            }
+        }
+
+        return accounts;
     }
 
     /**
-     * Change current amount in account by provided amountDiff
+     * Change current amount in account by provided amountDiff and append the change to the ledger
      *
      * @param amountDiff amount to add (positive number) or withdraw (negative value)
      * @return returns true if update was successful, false otherwise
@@ -180,7 +514,260 @@ public class Account {
      * @throws TransferException in case of business logic errors
      */
     public boolean updateAmount(int amountDiff) throws SQLException, TransferException {
-        return updateAmount(amountDiff, true);
+        if (!changeAmount(amountDiff)) {
+            return false;
+        }
+        LedgerEntry.append(getId(), amountDiff);
+        return true;
+    }
+
+    /**
+     * Changes amount without ledger entry, the caller appends entry of the change
+     */
+    private boolean changeAmount(int amountDiff) throws SQLException, TransferException {
+        if (isStriped()) {
+            return updateAmountStriped(amountDiff);
+        }
+        if (updateMode == UpdateMode.GUARDED) {
+            return updateAmountGuarded(amountDiff);
+        }
+        if (updateMode == UpdateMode.OPTIMISTIC) {
+            return updateAmountOptimistic(amountDiff);
+        }
+        // single writer has read the actual amount, there is nothing to lock
+        return updateAmount(amountDiff, updateMode != UpdateMode.SINGLE_WRITER);
+    }
+
+    /**
+     * Applies several amount changes in given order by one update of the account. Change that would make
+     * the balance negative is skipped, the following changes are applied to the balance without it.
+     * The account is locked once for all changes, single writer reads it without lock, optimistic mode updates it
+     * only if its version is not changed. Striped account is changed by changeAmount() for each change.
+     * Ledger entries of all applied changes are appended by one batch
+     *
+     * @param amountDiffs amounts to add (positive number) or withdraw (negative value)
+     * @return balance after each change or -1 if the change is skipped
+     * @throws SQLException      in case of DB errors
+     * @throws TransferException in case the account is not found or cannot be updated
+     */
+    public int[] updateAmounts(int[] amountDiffs) throws SQLException, TransferException {
+        int[] balances = new int[amountDiffs.length];
+
+        if (isStriped()) {
+            for (int i = 0; i < amountDiffs.length; i++) {
+                try {
+                    if (!changeAmount(amountDiffs[i])) {
+                        throw new TransferException(Error.ERR_013);
+                    }
+                    balances[i] = getAmount();
+                } catch (TransferException e) {
+                    if (e.getError() != Error.ERR_014) {
+                        throw e;
+                    }
+                    balances[i] = -1;
+                }
+            }
+            appendApplied(amountDiffs, balances);
+            return balances;
+        }
+
+        Account account;
+        if (updateMode == UpdateMode.OPTIMISTIC) {
+            account = getVersionedById(getId());
+        } else if (updateMode == UpdateMode.SINGLE_WRITER) {
+            account = this;
+        } else {
+            account = lockById(getId());
+        }
+
+        if (account == null) {
+            LOGGER.error(Error.ERR_002.getMsg());
+            throw new TransferException(Error.ERR_002);
+        }
+
+        int newAmount = account.getAmount();
+        for (int i = 0; i < amountDiffs.length; i++) {
+            if (newAmount + amountDiffs[i] < 0) {
+                balances[i] = -1;
+            } else {
+                newAmount += amountDiffs[i];
+                balances[i] = newAmount;
+            }
+        }
+
+        if (newAmount != account.getAmount()) {
+            if (updateMode == UpdateMode.OPTIMISTIC) {
+                updateIfVersion(account, newAmount);
+            } else {
+                Map<String, DbValue> update = new HashMap<>();
+                update.put("amount", new DbValue(DbFieldType.INTEGER, newAmount));
+                int rowsUpdated = DbProvider.update(Table.ACCOUNT.getTableName(), getId(), update);
+                if (rowsUpdated != 1) {
+                    LOGGER.error("Error occurred while updating an account " + getId() + ". Updated rows is " + rowsUpdated);
+                    throw new TransferException(Error.ERR_013);
+                }
+            }
+        }
+
+        appendApplied(amountDiffs, balances);
+
+        setAmount(newAmount);
+        LOGGER.info(LocalDateTime.now() + ": " + getId() + " updated by " + amountDiffs.length + " changes to " + amount);
+
+        return balances;
+    }
+
+    /**
+     * Appends ledger entries of the changes that are not skipped
+     */
+    private void appendApplied(int[] amountDiffs, int[] balances) throws SQLException {
+        int applied = 0;
+        int[] amounts = new int[amountDiffs.length];
+        for (int i = 0; i < amountDiffs.length; i++) {
+            if (balances[i] >= 0) {
+                amounts[applied++] = amountDiffs[i];
+            }
+        }
+        if (applied == 0) {
+            return;
+        }
+
+        int[] accountIds = new int[applied];
+        Arrays.fill(accountIds, getId());
+        int[] counterpartyIds = new int[applied];
+        Arrays.fill(counterpartyIds, LedgerEntry.NO_COUNTERPARTY);
+        LedgerEntry.append(accountIds, Arrays.copyOf(amounts, applied), counterpartyIds);
+    }
+
+    /**
+     * Changes amount by single guarded update: the record is updated only if the new amount is not negative.
+     * Record lock is held only by the update itself, no separate lock and read are needed
+     */
+    private boolean updateAmountGuarded(int amountDiff) throws SQLException, TransferException {
+        Integer newAmount = DbProvider.addToColumn(Table.ACCOUNT.getTableName(), getId(), "amount", amountDiff, 0);
+
+        if (newAmount == null) {
+            // nothing updated, find out why
+            if (getById(getId()) == null) {
+                LOGGER.error(Error.ERR_002.getMsg());
+                throw new TransferException(Error.ERR_002);
+            }
+            throw new TransferException(Error.ERR_014);
+        }
+
+        //sync amount in current instance with actual quantity
+        setAmount(newAmount);
+        LOGGER.info(LocalDateTime.now() + ": " + getId() + " updated by " + amountDiff + " to " + amount);
+
+        return true;
+    }
+
+    /**
+     * Changes balance kept in stripes. Credit is added to one random stripe without locking the others,
+     * then the stripes are read again, so the sum includes credits committed to other stripes meanwhile.
+     * Debit locks all stripes, checks their sum and takes the amount from the fullest stripes first,
+     * so no stripe becomes negative. Amount of the instance is set to the sum of the stripes after the change
+     */
+    private boolean updateAmountStriped(int amountDiff) throws SQLException, TransferException {
+        List<int[]> stripes = selectStripes(getId());
+
+        if (stripes.isEmpty()) {
+            LOGGER.error(Error.ERR_002.getMsg());
+            throw new TransferException(Error.ERR_002);
+        }
+
+        int newAmount;
+        if (amountDiff >= 0) {
+            int[] stripe = stripes.get(ThreadLocalRandom.current().nextInt(stripes.size()));
+            if (DbProvider.addToColumn(Table.ACCOUNT_STRIPE.getTableName(), stripe[0], "amount", amountDiff, 0) == null) {
+                LOGGER.error("Error occurred while updating stripe " + stripe[0] + " of account " + getId());
+                return false;
+            }
+            STRIPE_CREDITS.increment();
+            newAmount = 0;
+            for (int[] read : selectStripes(getId())) {
+                newAmount += read[1];
+            }
+        } else {
+            int[] ids = new int[stripes.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = stripes.get(i)[0];
+            }
+            List<int[]> lockedStripes = DbProvider.selectRowsForUpdate(Table.ACCOUNT_STRIPE.getTableName(), STRIPE_COLUMNS, "id", ids, STRIPE_MAPPER);
+
+            int lockedAmount = 0;
+            for (int[] stripe : lockedStripes) {
+                lockedAmount += stripe[1];
+            }
+            if (lockedAmount + amountDiff < 0) {
+                throw new TransferException(Error.ERR_014);
+            }
+
+            lockedStripes.sort((a, b) -> Integer.compare(b[1], a[1]));
+            int[] changedIds = new int[lockedStripes.size()];
+            int[] diffs = new int[lockedStripes.size()];
+            int changed = 0;
+            for (int left = -amountDiff; left > 0; changed++) {
+                int[] stripe = lockedStripes.get(changed);
+                changedIds[changed] = stripe[0];
+                diffs[changed] = -Math.min(left, stripe[1]);
+                left += diffs[changed];
+            }
+
+            int rowsUpdated = DbProvider.addToColumn(Table.ACCOUNT_STRIPE.getTableName(), "amount",
+                    Arrays.copyOf(changedIds, changed), Arrays.copyOf(diffs, changed));
+            if (rowsUpdated != changed) {
+                LOGGER.error("Error occurred while updating stripes of account " + getId() + ". Updated rows is " + rowsUpdated);
+                return false;
+            }
+            STRIPE_DEBITS.increment();
+            newAmount = lockedAmount + amountDiff;
+        }
+
+        setAmount(newAmount);
+        LOGGER.info(LocalDateTime.now() + ": " + getId() + " updated by " + amountDiff + " to " + amount);
+
+        return true;
+    }
+
+    /**
+     * Changes amount read with the record version by update that succeeds only if the version is not changed
+     */
+    private boolean updateAmountOptimistic(int amountDiff) throws SQLException, TransferException {
+        Account account = getVersionedById(getId());
+
+        if (account == null) {
+            LOGGER.error(Error.ERR_002.getMsg());
+            throw new TransferException(Error.ERR_002);
+        }
+
+        int newAmount = account.getAmount() + amountDiff;
+        if (newAmount < 0) {
+            throw new TransferException(Error.ERR_014);
+        }
+
+        updateIfVersion(account, newAmount);
+
+        setAmount(newAmount);
+        LOGGER.info(LocalDateTime.now() + ": " + getId() + " updated by " + amountDiff + " to " + amount);
+
+        return true;
+    }
+
+    /**
+     * Sets new amount of the account read with its version
+     * @throws ConcurrentUpdateException if the account was changed after it was read
+     */
+    private static void updateIfVersion(Account account, int newAmount) throws SQLException, ConcurrentUpdateException {
+        Map<String, DbValue> update = new HashMap<>();
+        update.put("amount", new DbValue(DbFieldType.INTEGER, newAmount));
+
+        OPTIMISTIC_UPDATES.increment();
+        if (DbProvider.updateIfVersion(Table.ACCOUNT.getTableName(), account.getId(), "version", account.version, update) != 1) {
+            OPTIMISTIC_CONFLICTS.increment();
+            LOGGER.warn("Account " + account.getId() + " was changed concurrently");
+            throw new ConcurrentUpdateException();
+        }
     }
 
     private boolean updateAmount(int amountDiff, boolean needLock) throws SQLException, TransferException {
@@ -217,14 +804,210 @@ public class Account {
     }
 
     /**
-     * Transfer given amount from this account to another
+     * Transfer given amount from this account to the account read before. If any of the accounts is striped,
+     * each account is changed by its own update, otherwise the transfer is settled according to transfer mode
+     *
+     * @param dstAccount destination account
+     * @param amount     amount to transfer
+     * @throws SQLException      in case of DB errors
+     * @throws TransferException in case of business logic errors
+     */
+    public void transferTo(Account dstAccount, int amount) throws SQLException, TransferException {
+        if (isStriped() || dstAccount.isStriped()) {
+            stripedTransferTo(dstAccount, amount);
+        } else {
+            transferTo(dstAccount.getId(), amount);
+        }
+    }
+
+    /**
+     * Transfer given amount from this account to another. Neither account may be striped, so other classes
+     * transfer by transferTo(Account, int) that checks it. Package-private for tests.
+     * Time spent on locking and updating the accounts is recorded to transfer.lockWait and transfer.apply timers.
+     * Both sides of the transfer are appended to the ledger by one batch
      *
      * @param dstAccountId destination account id
      * @param amount       amount to transfer
      * @throws SQLException      in case of DB errors
      * @throws TransferException in case of business logic errors
      */
-    public void transferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+    void transferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+        switch (transferMode) {
+            case SETTLE:
+                settleTransferTo(dstAccountId, amount);
+                break;
+            case SINGLE_WRITER:
+                singleWriterTransferTo(dstAccountId, amount);
+                break;
+            case OPTIMISTIC:
+                optimisticTransferTo(dstAccountId, amount);
+                break;
+            default:
+                lockEachTransferTo(dstAccountId, amount);
+                break;
+        }
+        appendTransfer(dstAccountId, amount);
+    }
+
+    private void appendTransfer(int dstAccountId, int amount) throws SQLException {
+        LedgerEntry.append(new int[]{getId(), dstAccountId}, new int[]{-amount, amount}, new int[]{dstAccountId, getId()});
+    }
+
+    /**
+     * Locks both accounts by a single statement in ascending id order, checks the balance
+     * and updates both accounts by a single statement
+     */
+    private void settleTransferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+        int[] ids = getId() < dstAccountId ? new int[]{getId(), dstAccountId} : new int[]{dstAccountId, getId()};
+
+        long lockStart = System.nanoTime();
+        List<Account> lockedAccounts = DbProvider.selectRowsForUpdate(Table.ACCOUNT.getTableName(), COLUMNS, "id", ids, MAPPER);
+        TRANSFER_LOCK_WAIT.recordSince(lockStart);
+
+        Account srcAccount = null;
+        Account dstAccount = null;
+        for (Account account : lockedAccounts) {
+            if (account.getId() == getId()) {
+                srcAccount = account;
+            } else if (account.getId() == dstAccountId) {
+                dstAccount = account;
+            }
+        }
+
+        if (srcAccount == null) {
+            LOGGER.error(Error.ERR_018.getMsg());
+            throw new TransferException(Error.ERR_018);
+        }
+        if (dstAccount == null) {
+            LOGGER.error(Error.ERR_019.getMsg());
+            throw new TransferException(Error.ERR_019);
+        }
+        if (srcAccount.getAmount() < amount) {
+            throw new TransferException(Error.ERR_014);
+        }
+
+        long applyStart = System.nanoTime();
+        int rowsUpdated = DbProvider.addToColumn(Table.ACCOUNT.getTableName(), "amount",
+                new int[]{getId(), dstAccountId}, new int[]{-amount, amount});
+        TRANSFER_APPLY.recordSince(applyStart);
+
+        if (rowsUpdated != 2) {
+            // nothing to compensate: the aborted transaction rolls back the partial update
+            LOGGER.error(Error.ERR_024.getMsg() + ". Updated rows is " + rowsUpdated);
+            throw new TransferException(Error.ERR_024);
+        }
+
+        // sync amount with current instance
+        setAmount(srcAccount.getAmount() - amount);
+        LOGGER.info("Transferred " + amount + " from " + getId() + " to " + dstAccountId);
+        LOGGER.info(getId() + ": " + getAmount() + ". " + dstAccountId + ": " + (dstAccount.getAmount() + amount));
+    }
+
+    /**
+     * Checks the balance read without lock and updates both accounts by a single statement.
+     * Amount of this account must be actual: it is read by the single writer of the account
+     */
+    private void singleWriterTransferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+        Account dstAccount = getById(dstAccountId);
+
+        if (dstAccount == null) {
+            LOGGER.error(Error.ERR_019.getMsg());
+            throw new TransferException(Error.ERR_019);
+        }
+        if (getAmount() < amount) {
+            throw new TransferException(Error.ERR_014);
+        }
+
+        long applyStart = System.nanoTime();
+        int rowsUpdated = DbProvider.addToColumn(Table.ACCOUNT.getTableName(), "amount",
+                new int[]{getId(), dstAccountId}, new int[]{-amount, amount});
+        TRANSFER_APPLY.recordSince(applyStart);
+
+        if (rowsUpdated != 2) {
+            LOGGER.error(Error.ERR_024.getMsg() + ". Updated rows is " + rowsUpdated);
+            throw new TransferException(Error.ERR_024);
+        }
+
+        setAmount(getAmount() - amount);
+        LOGGER.info("Transferred " + amount + " from " + getId() + " to " + dstAccountId);
+        LOGGER.info(getId() + ": " + getAmount() + ". " + dstAccountId + ": " + (dstAccount.getAmount() + amount));
+    }
+
+    /**
+     * Reads both accounts with their versions without lock, checks the balance and updates each account
+     * only if its version is not changed. Accounts are updated in ascending id order, so row locks taken
+     * by the updates of concurrent transfers cannot deadlock
+     */
+    private void optimisticTransferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+        Account srcAccount = getVersionedById(getId());
+
+        if (srcAccount == null) {
+            LOGGER.error(Error.ERR_018.getMsg());
+            throw new TransferException(Error.ERR_018);
+        }
+
+        Account dstAccount = getVersionedById(dstAccountId);
+
+        if (dstAccount == null) {
+            LOGGER.error(Error.ERR_019.getMsg());
+            throw new TransferException(Error.ERR_019);
+        }
+        if (srcAccount.getAmount() < amount) {
+            throw new TransferException(Error.ERR_014);
+        }
+
+        long applyStart = System.nanoTime();
+        if (getId() < dstAccountId) {
+            updateIfVersion(srcAccount, srcAccount.getAmount() - amount);
+            updateIfVersion(dstAccount, dstAccount.getAmount() + amount);
+        } else {
+            updateIfVersion(dstAccount, dstAccount.getAmount() + amount);
+            updateIfVersion(srcAccount, srcAccount.getAmount() - amount);
+        }
+        TRANSFER_APPLY.recordSince(applyStart);
+
+        setAmount(srcAccount.getAmount() - amount);
+        LOGGER.info("Transferred " + amount + " from " + getId() + " to " + dstAccountId);
+        LOGGER.info(getId() + ": " + getAmount() + ". " + dstAccountId + ": " + (dstAccount.getAmount() + amount));
+    }
+
+    /**
+     * Debits this account and credits destination account by changeAmount() of each account: striped account
+     * changes its stripes, other account is changed according to update mode. Accounts are changed in ascending
+     * id order, so concurrent transfers lock records of the same accounts in the same order
+     */
+    private void stripedTransferTo(Account dstAccount, int amount) throws SQLException, TransferException {
+        long applyStart = System.nanoTime();
+        if (getId() < dstAccount.getId()) {
+            debitForTransfer(amount);
+            creditForTransfer(dstAccount, amount);
+        } else {
+            creditForTransfer(dstAccount, amount);
+            debitForTransfer(amount);
+        }
+        TRANSFER_APPLY.recordSince(applyStart);
+        appendTransfer(dstAccount.getId(), amount);
+
+        LOGGER.info("Transferred " + amount + " from " + getId() + " to " + dstAccount.getId());
+        LOGGER.info(getId() + ": " + getAmount() + ". " + dstAccount.getId() + ": " + dstAccount.getAmount());
+    }
+
+    private void debitForTransfer(int amount) throws SQLException, TransferException {
+        if (!changeAmount(-amount)) {
+            LOGGER.error(Error.ERR_024.getMsg());
+            throw new TransferException(Error.ERR_024);
+        }
+    }
+
+    private static void creditForTransfer(Account dstAccount, int amount) throws SQLException, TransferException {
+        if (!dstAccount.changeAmount(amount)) {
+            LOGGER.error(Error.ERR_023.getMsg());
+            throw new TransferException(Error.ERR_023);
+        }
+    }
+
+    private void lockEachTransferTo(int dstAccountId, int amount) throws SQLException, TransferException {
+        long lockStart = System.nanoTime();
         // to prevent deadlocks always lock min id first, then max id
         Account srcAccount;
         Account dstAccount;
@@ -235,7 +1018,9 @@ public class Account {
             srcAccount = lockById(getId());
             dstAccount = lockById(dstAccountId);
         }
+        TRANSFER_LOCK_WAIT.recordSince(lockStart);
 
+        long applyStart = System.nanoTime();
         // update accounts
         if (srcAccount.updateAmount(-amount, false)) {
             if (!dstAccount.updateAmount(amount, false)) {
@@ -246,6 +1031,7 @@ public class Account {
                 LOGGER.error(Error.ERR_023.getMsg());
                 throw new TransferException(Error.ERR_023);
             }
+            TRANSFER_APPLY.recordSince(applyStart);
             // sync amount with current instance
             setAmount(srcAccount.getAmount());
             LOGGER.info("Transferred " + amount + " from " + getId() + " to " + dstAccountId);
@@ -0,0 +1,102 @@
+package valerii.domain;
+
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Business object holds balance of an account at a point in time
+ *
+ * @author vliutyi
+ */
+public class Balance {
+
+    // entries read from DB at once while they are replayed
+    private static final int REPLAY_PAGE_SIZE = 100;
+
+    private static final Timer QUERY = Metrics.timer("balance.query");
+    private static final LongAdder CHECKPOINT_HITS = Metrics.counter("balance.checkpointHits");
+    private static final LongAdder REPLAYED_ENTRIES = Metrics.counter("balance.replayedEntries");
+
+    private int accountId;
+    private LocalDateTime asOf;
+    private int amount;
+    private int replayedEntries;
+
+    private Balance(int accountId, LocalDateTime asOf, int amount, int replayedEntries) {
+        this.accountId = accountId;
+        this.asOf = asOf;
+        this.amount = amount;
+        this.replayedEntries = replayedEntries;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    public LocalDateTime getAsOf() {
+        return asOf;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return number of ledger entries replayed after the nearest checkpoint
+     */
+    public int getReplayedEntries() {
+        return replayedEntries;
+    }
+
+    /**
+     * Finds balance of the account after its ledger entries appended at or before the given time. Balance is taken
+     * from the nearest checkpoint before the time, then entries following the checkpoint and dated at or before
+     * the time are replayed in the order they were appended. Entry is dated by the start of its transaction,
+     * so entries dated after the time may come before the ones dated at or before it; they are skipped till
+     * more than lookAhead of them are read
+     * @param accountId account id
+     * @param asOf point in time
+     * @param lookAhead number of entries dated after the time the replay skips before it stops
+     * @return balance at the time, 0 if the account had no entries by then
+     * @throws SQLException in case of DB errors
+     */
+    public static Balance at(int accountId, LocalDateTime asOf, int lookAhead) throws SQLException {
+        long start = System.nanoTime();
+        LedgerCheckpoint checkpoint = LedgerCheckpoint.getAtOrBefore(accountId, asOf);
+        int afterId = 0;
+        int amount = 0;
+        if (checkpoint != null) {
+            CHECKPOINT_HITS.increment();
+            afterId = checkpoint.getLedgerId();
+            amount = checkpoint.getBalance();
+        }
+
+        int replayed = 0;
+        int skipped = 0;
+        List<LedgerEntry> entries;
+        replay:
+        do {
+            entries = LedgerEntry.getPage(accountId, afterId, REPLAY_PAGE_SIZE);
+            for (LedgerEntry entry : entries) {
+                afterId = entry.getId();
+                if (entry.getCreatedDate().isAfter(asOf)) {
+                    if (++skipped > lookAhead) {
+                        break replay;
+                    }
+                    continue;
+                }
+                amount += entry.getAmount();
+                replayed++;
+            }
+        } while (entries.size() == REPLAY_PAGE_SIZE);
+
+        REPLAYED_ENTRIES.add(replayed);
+        QUERY.recordSince(start);
+        return new Balance(accountId, asOf, amount, replayed);
+    }
+}
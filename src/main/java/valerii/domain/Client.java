@@ -6,11 +6,14 @@ import valerii.Error;
 import valerii.db.DbFieldType;
 import valerii.db.DbProvider;
 import valerii.db.DbValue;
+import valerii.db.RowMapper;
 import valerii.db.Table;
 import valerii.exception.BusinessException;
 
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -22,6 +25,10 @@ public class Client {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(Account.class);
 
+    // columns read by MAPPER, in the order of their indexes
+    private static final String[] COLUMNS = {"id", "name"};
+    private static final RowMapper<Client> MAPPER = row -> new Client(row.getInt(1), row.getString(2));
+
     private int id;
     private String name;
 
@@ -46,19 +53,9 @@ public class Client {
      * @throws SQLException in case of DB errors
      */
     public static Client getById(int clientId) throws SQLException {
-        Map<String, DbValue> select = new HashMap<>(1);
-        select.put("id", new DbValue(DbFieldType.INTEGER, clientId));
-
-        Map<String, DbValue> resultSet = DbProvider.select(Table.CLIENT.getTableName(), select);
-
-        if (resultSet.isEmpty()) {
-            return null;
-        }
-
-        int id = (int)resultSet.get("id").getValue();
-        String name = (String)resultSet.get("name").getValue();
+        DbValue key = new DbValue(DbFieldType.INTEGER, clientId);
 
-        return new Client(id, name);
+        return DbProvider.selectRow(Table.CLIENT.getTableName(), COLUMNS, "id", key, MAPPER);
     }
 
     /**
@@ -68,19 +65,20 @@ public class Client {
      * @throws SQLException in case of DB errors
      */
     public static Client getByName(String clientName) throws SQLException {
-        Map<String, DbValue> select = new HashMap<>(1);
-        select.put("name", new DbValue(DbFieldType.STRING, clientName));
+        DbValue key = new DbValue(DbFieldType.STRING, clientName);
 
-        Map<String, DbValue> resultSet = DbProvider.select(Table.CLIENT.getTableName(), select);
-
-        if (resultSet.isEmpty()) {
-            return null;
-        }
-
-        int id = (int)resultSet.get("id").getValue();
-        String name = (String)resultSet.get("name").getValue();
+        return DbProvider.selectRow(Table.CLIENT.getTableName(), COLUMNS, "name", key, MAPPER);
+    }
 
-        return new Client(id, name);
+    /**
+     * Reads page of clients in the order of their ids
+     * @param afterId id of the last client of the previous page, 0 for the first page
+     * @param limit max number of clients in the page
+     * @return clients following afterId
+     * @throws SQLException in case of DB errors
+     */
+    public static List<Client> getPage(int afterId, int limit) throws SQLException {
+        return DbProvider.selectRange(Table.CLIENT.getTableName(), COLUMNS, null, null, afterId, limit, MAPPER);
     }
 
     /**
@@ -109,4 +107,30 @@ public class Client {
 
         return new Client(id, clientName);
     }
+
+    /**
+     * Create new clients by one batch insert. Name uniqueness is checked by the insert itself, not by a select before it
+     *
+     * @param clientNames names of the clients to create
+     * @return Client instance for each name in the same order, null if client with the name already exists
+     * @throws SQLException in case of DB errors
+     */
+    public static Client[] createAll(List<String> clientNames) throws SQLException {
+        List<Map<String, DbValue>> rows = new ArrayList<>(clientNames.size());
+        for (String clientName : clientNames) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("name", new DbValue(DbFieldType.STRING, clientName));
+            rows.add(values);
+        }
+
+        int[] ids = DbProvider.insertBatch(Table.CLIENT.getTableName(), rows);
+
+        Client[] clients = new Client[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] >= 0) {
+                clients[i] = new Client(ids[i], clientNames.get(i));
+            }
+        }
+        return clients;
+    }
 }
@@ -0,0 +1,222 @@
+package valerii.domain;
+
+import valerii.db.DbFieldType;
+import valerii.db.DbProvider;
+import valerii.db.DbValue;
+import valerii.db.RowMapper;
+import valerii.db.Table;
+import valerii.metrics.Metrics;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Business object holds balance of an account after one of its ledger entries. Checkpoints are created
+ * every given number of entries of the account, so balance at any time is found by replay of a bounded
+ * number of entries after the nearest checkpoint
+ *
+ * @author vliutyi
+ */
+public class LedgerCheckpoint {
+
+    private static final LongAdder CREATED = Metrics.counter("checkpoint.created");
+    private static final LongAdder SCANNED_ENTRIES = Metrics.counter("checkpoint.scannedEntries");
+    private static final LongAdder LATE_ENTRIES = Metrics.counter("checkpoint.lateEntries");
+
+    // columns read by MAPPER, in the order of their indexes
+    private static final String[] COLUMNS = {"id", "account_id", "ledger_id", "balance", "entry_date"};
+    private static final RowMapper<LedgerCheckpoint> MAPPER = row -> new LedgerCheckpoint(
+            row.getInt(1),
+            row.getInt(2),
+            row.getInt(3),
+            row.getInt(4),
+            row.getTimestamp(5).toLocalDateTime());
+
+    private int id;
+    private int accountId;
+    private int ledgerId;
+    private int balance;
+    private LocalDateTime entryDate;
+
+    private LedgerCheckpoint(int id, int accountId, int ledgerId, int balance, LocalDateTime entryDate) {
+        this.id = id;
+        this.accountId = accountId;
+        this.ledgerId = ledgerId;
+        this.balance = balance;
+        this.entryDate = entryDate;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return id of the last ledger entry included in the balance
+     */
+    public int getLedgerId() {
+        return ledgerId;
+    }
+
+    public int getBalance() {
+        return balance;
+    }
+
+    /**
+     * @return latest time of ledger entries included in the balance. Time of an entry is taken when its transaction
+     * starts, so an entry may be older than the entry before it; the latest time never goes back from checkpoint to checkpoint
+     */
+    public LocalDateTime getEntryDate() {
+        return entryDate;
+    }
+
+    /**
+     * @return the latest checkpoint of the account, null if the account has no checkpoints
+     * @throws SQLException in case of DB errors
+     */
+    static LedgerCheckpoint getLast(int accountId) throws SQLException {
+        return DbProvider.selectLast(Table.LEDGER_CHECKPOINT.getTableName(), COLUMNS, "account_id",
+                new DbValue(DbFieldType.INTEGER, accountId), "entry_date", null, MAPPER);
+    }
+
+    /**
+     * @return the latest checkpoint of the account whose entries were all appended at or before the given time,
+     * null if there is no such checkpoint
+     * @throws SQLException in case of DB errors
+     */
+    static LedgerCheckpoint getAtOrBefore(int accountId, LocalDateTime time) throws SQLException {
+        return DbProvider.selectLast(Table.LEDGER_CHECKPOINT.getTableName(), COLUMNS, "account_id",
+                new DbValue(DbFieldType.INTEGER, accountId), "entry_date", new DbValue(DbFieldType.DATE_TIME, time), MAPPER);
+    }
+
+    /**
+     * Creates checkpoints for one page of ledger entries. Each account changed in the page gets a checkpoint
+     * for every interval entries since its latest checkpoint. Reading stops at the first entry appended
+     * at or after the horizon, since entries of transactions that are not committed yet may still appear before it.
+     * Ids between handled entries are taken by entries that are rolled back or still not committed, the latter ones
+     * must be passed to repairLateEntry() once they are committed
+     * @param afterId id of the last entry handled by the previous call, 0 for the first call
+     * @param horizon time entries must be appended before to be handled
+     * @param interval number of entries of an account between its checkpoints
+     * @param limit max number of entries handled by the call
+     * @param skippedIds receives ids between handled entries
+     * @return id of the last handled entry, afterId if there are no entries to handle
+     * @throws SQLException in case of DB errors or if a checkpoint is not inserted
+     */
+    public static int createCheckpoints(int afterId, LocalDateTime horizon, int interval, int limit,
+                                        List<Integer> skippedIds) throws SQLException {
+        int lastId = afterId;
+        int scanned = 0;
+        // accounts are handled in id order, so checkpoints of the same entries always come in the same order
+        Set<Integer> accountIds = new TreeSet<>();
+        for (LedgerEntry entry : LedgerEntry.getPage(afterId, limit)) {
+            if (!entry.getCreatedDate().isBefore(horizon)) {
+                break;
+            }
+            for (int id = lastId + 1; id < entry.getId(); id++) {
+                skippedIds.add(id);
+            }
+            accountIds.add(entry.getAccountId());
+            lastId = entry.getId();
+            scanned++;
+        }
+        SCANNED_ENTRIES.add(scanned);
+
+        List<Map<String, DbValue>> rows = new ArrayList<>();
+        for (int accountId : accountIds) {
+            addCheckpoints(accountId, lastId, interval, rows);
+        }
+        insertCheckpoints(rows);
+        return lastId;
+    }
+
+    /**
+     * Counts entry committed after createCheckpoints() skipped its id. Checkpoints of its account made after the entry
+     * miss its amount, so they are deleted and created again by replay from the checkpoint before the entry
+     * @param ledgerId id skipped by createCheckpoints()
+     * @param upToId id of the last entry handled by createCheckpoints()
+     * @param interval number of entries of an account between its checkpoints
+     * @return true if the entry is counted, false if it is still not found: it is rolled back or not committed yet
+     * @throws SQLException in case of DB errors or if a checkpoint is not replaced
+     */
+    public static boolean repairLateEntry(int ledgerId, int upToId, int interval) throws SQLException {
+        LedgerEntry entry = LedgerEntry.getById(ledgerId);
+        if (entry == null) {
+            return false;
+        }
+
+        int accountId = entry.getAccountId();
+        for (LedgerCheckpoint last = getLast(accountId); last != null && last.getLedgerId() > ledgerId; last = getLast(accountId)) {
+            if (DbProvider.delete(Table.LEDGER_CHECKPOINT.getTableName(), last.getId()) == 0) {
+                throw new SQLException("Ledger checkpoint cannot be deleted");
+            }
+        }
+        List<Map<String, DbValue>> rows = new ArrayList<>();
+        addCheckpoints(accountId, upToId, interval, rows);
+        insertCheckpoints(rows);
+        LATE_ENTRIES.increment();
+        return true;
+    }
+
+    private static void insertCheckpoints(List<Map<String, DbValue>> rows) throws SQLException {
+        if (rows.isEmpty()) {
+            return;
+        }
+        for (int id : DbProvider.insertBatch(Table.LEDGER_CHECKPOINT.getTableName(), rows)) {
+            if (id < 0) {
+                throw new SQLException("Ledger checkpoint cannot be created");
+            }
+        }
+        CREATED.add(rows.size());
+    }
+
+    /**
+     * Replays entries of the account since its latest checkpoint up to the given entry, adds row of checkpoint
+     * for every interval entries. Replay is bounded by the interval plus entries appended since the previous call
+     */
+    private static void addCheckpoints(int accountId, int upToId, int interval, List<Map<String, DbValue>> rows) throws SQLException {
+        LedgerCheckpoint last = getLast(accountId);
+        int afterId = last != null ? last.getLedgerId() : 0;
+        int balance = last != null ? last.getBalance() : 0;
+        LocalDateTime entryDate = last != null ? last.getEntryDate() : LocalDateTime.MIN;
+        int count = 0;
+
+        List<LedgerEntry> entries;
+        do {
+            entries = LedgerEntry.getPage(accountId, afterId, interval);
+            for (LedgerEntry entry : entries) {
+                if (entry.getId() > upToId) {
+                    return;
+                }
+                balance += entry.getAmount();
+                afterId = entry.getId();
+                if (entry.getCreatedDate().isAfter(entryDate)) {
+                    entryDate = entry.getCreatedDate();
+                }
+                if (++count == interval) {
+                    rows.add(makeRow(accountId, entry.getId(), balance, entryDate));
+                    count = 0;
+                }
+            }
+        } while (entries.size() == interval);
+    }
+
+    private static Map<String, DbValue> makeRow(int accountId, int ledgerId, int balance, LocalDateTime entryDate) {
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("account_id", new DbValue(DbFieldType.INTEGER, accountId));
+        values.put("ledger_id", new DbValue(DbFieldType.INTEGER, ledgerId));
+        values.put("balance", new DbValue(DbFieldType.INTEGER, balance));
+        values.put("entry_date", new DbValue(DbFieldType.DATE_TIME, entryDate));
+        return values;
+    }
+}
@@ -0,0 +1,152 @@
+package valerii.domain;
+
+import valerii.db.DbFieldType;
+import valerii.db.DbProvider;
+import valerii.db.DbValue;
+import valerii.db.RowMapper;
+import valerii.db.Table;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Business object holds one entry of the append-only ledger. Each balance change of an account appends an entry
+ * in the same transaction as the change, entries are never updated or deleted
+ *
+ * @author vliutyi
+ */
+public class LedgerEntry {
+
+    // counterparty of the change that is not a transfer
+    static final int NO_COUNTERPARTY = 0;
+
+    private static final Timer APPEND = Metrics.timer("ledger.append");
+    private static final LongAdder ENTRIES = Metrics.counter("ledger.entries");
+
+    // columns read by MAPPER, in the order of their indexes
+    private static final String[] COLUMNS = {"id", "account_id", "amount", "counterparty_id", "created_date"};
+    private static final RowMapper<LedgerEntry> MAPPER = row -> new LedgerEntry(
+            row.getInt(1),
+            row.getInt(2),
+            row.getInt(3),
+            row.getInt(4),
+            row.getTimestamp(5).toLocalDateTime());
+
+    private int id;
+    private int accountId;
+    private int amount;
+    private int counterpartyId;
+    private LocalDateTime createdDate;
+
+    private LedgerEntry(int id, int accountId, int amount, int counterpartyId, LocalDateTime createdDate) {
+        this.id = id;
+        this.accountId = accountId;
+        this.amount = amount;
+        this.counterpartyId = counterpartyId;
+        this.createdDate = createdDate;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public int getAccountId() {
+        return accountId;
+    }
+
+    /**
+     * @return change of the balance: positive for credit, negative for debit
+     */
+    public int getAmount() {
+        return amount;
+    }
+
+    /**
+     * @return other account of the transfer, 0 if the change is not a transfer
+     */
+    public int getCounterpartyId() {
+        return counterpartyId;
+    }
+
+    public LocalDateTime getCreatedDate() {
+        return createdDate;
+    }
+
+    /**
+     * @return entry with given id, null if it is not found or not committed yet
+     * @throws SQLException in case of DB errors
+     */
+    static LedgerEntry getById(int id) throws SQLException {
+        return DbProvider.selectRow(Table.LEDGER.getTableName(), COLUMNS, "id", new DbValue(DbFieldType.INTEGER, id), MAPPER);
+    }
+
+    /**
+     * Reads page of account history in the order entries were appended
+     * @param accountId account the entries belong to
+     * @param afterId id of the last entry of the previous page, 0 for the first page
+     * @param limit max number of entries in the page
+     * @return entries following afterId
+     * @throws SQLException in case of DB errors
+     */
+    public static List<LedgerEntry> getPage(int accountId, int afterId, int limit) throws SQLException {
+        return DbProvider.selectRange(Table.LEDGER.getTableName(), COLUMNS, "account_id",
+                new DbValue(DbFieldType.INTEGER, accountId), afterId, limit, MAPPER);
+    }
+
+    /**
+     * Reads page of entries of all accounts in the order they were appended
+     * @param afterId id of the last entry of the previous page, 0 for the first page
+     * @param limit max number of entries in the page
+     * @return entries following afterId
+     * @throws SQLException in case of DB errors
+     */
+    static List<LedgerEntry> getPage(int afterId, int limit) throws SQLException {
+        return DbProvider.selectRange(Table.LEDGER.getTableName(), COLUMNS, null, null, afterId, limit, MAPPER);
+    }
+
+    /**
+     * Appends entry of single balance change
+     * @throws SQLException in case of DB errors
+     */
+    static void append(int accountId, int amount) throws SQLException {
+        append(new int[]{accountId}, new int[]{amount}, new int[]{NO_COUNTERPARTY});
+    }
+
+    /**
+     * Appends entries of balance changes done by one operation. All entries are inserted by one batch,
+     * so a transfer pays for one round trip to DB for both of its entries
+     * @param accountIds changed accounts
+     * @param amounts change of each account
+     * @param counterpartyIds other account of each transfer, 0 for change that is not a transfer
+     * @throws SQLException in case of DB errors or if an entry is not inserted
+     */
+    static void append(int[] accountIds, int[] amounts, int[] counterpartyIds) throws SQLException {
+        List<Map<String, DbValue>> rows = new ArrayList<>(accountIds.length);
+        for (int i = 0; i < accountIds.length; i++) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("account_id", new DbValue(DbFieldType.INTEGER, accountIds[i]));
+            values.put("amount", new DbValue(DbFieldType.INTEGER, amounts[i]));
+            values.put("counterparty_id", new DbValue(DbFieldType.INTEGER, counterpartyIds[i]));
+            rows.add(values);
+        }
+
+        long start = System.nanoTime();
+        int[] ids = DbProvider.insertBatch(Table.LEDGER.getTableName(), rows);
+        APPEND.recordSince(start);
+
+        for (int id : ids) {
+            if (id < 0) {
+                // balance change without its entry must not be committed
+                throw new SQLException("Ledger entry cannot be appended");
+            }
+        }
+        ENTRIES.add(ids.length);
+    }
+}
@@ -0,0 +1,14 @@
+package valerii.exception;
+
+import valerii.Error;
+
+/**
+ * Class represents conflict of optimistic update: the record was changed by other transaction after it was read.
+ * Operation that failed with this exception can be retried from the start in new transaction
+ */
+public class ConcurrentUpdateException extends TransferException {
+
+    public ConcurrentUpdateException() {
+        super(Error.ERR_027);
+    }
+}
@@ -0,0 +1,13 @@
+package valerii.exception;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Class represents the failure to get a DB connection from the pool within configured timeout
+ */
+public class ConnectionPoolTimeoutException extends SQLTransientConnectionException {
+
+    public ConnectionPoolTimeoutException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,71 @@
+package valerii.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of durations in buckets of powers of two microseconds. Bucket i holds durations below 2^i microseconds
+ * that do not fit the previous bucket, so percentiles are reported as upper bound of the bucket
+ */
+public class Histogram {
+
+    private static final int BUCKETS = 40;
+    private static final int[] PERCENTILES = {50, 90, 99};
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final Timer timer = new Timer();
+
+    /**
+     * Records single duration
+     * @param nanos duration in nanoseconds
+     */
+    public void record(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(nanos, 0));
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        timer.record(nanos);
+    }
+
+    /**
+     * Records duration of the operation started at given time
+     * @param startNanos value of System.nanoTime() taken when operation was started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return timer.getCount();
+    }
+
+    /**
+     * @param percentile percentile from 1 to 100
+     * @return upper bound of the bucket that holds given percentile of recorded durations, 0 if nothing is recorded
+     */
+    public long percentileMicros(int percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        long rank = (total * percentile + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return 1L << i;
+            }
+        }
+        return 0;
+    }
+
+    void snapshot(String name, Map<String, Number> snapshot) {
+        timer.snapshot(name, snapshot);
+        for (int percentile : PERCENTILES) {
+            snapshot.put(name + ".p" + percentile + "Micros", percentileMicros(percentile));
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package valerii.metrics;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Registry of all application metrics: counters, gauges, timers and histograms.
+ * Metrics are identified by dotted names and exposed as a flat map of values
+ */
+public class Metrics {
+
+    private static final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    /**
+     * Returns counter with given name. Counter is created on first access
+     * @param name name of the counter
+     * @return counter instance
+     */
+    public static LongAdder counter(String name) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Registers gauge which value is calculated on each snapshot. Gauge registered with the same name is replaced
+     * @param name name of the gauge
+     * @param gauge supplier of the current gauge value, null value leaves the gauge out of the snapshot
+     */
+    public static void gauge(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes gauge unless it was already replaced by other gauge with the same name
+     * @param name name of the gauge
+     * @param gauge supplier the gauge was registered with
+     */
+    public static void removeGauge(String name, Supplier<? extends Number> gauge) {
+        gauges.remove(name, gauge);
+    }
+
+    /**
+     * Returns timer with given name. Timer is created on first access
+     * @param name name of the timer
+     * @return timer instance
+     */
+    public static Timer timer(String name) {
+        return timers.computeIfAbsent(name, n -> new Timer());
+    }
+
+    /**
+     * Returns histogram with given name. Histogram is created on first access
+     * @param name name of the histogram
+     * @return histogram instance
+     */
+    public static Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Collects current values of all registered metrics
+     * @return map of metric name and its value sorted by name
+     */
+    public static SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> snapshot = new TreeMap<>();
+
+        for (Map.Entry<String, LongAdder> counter : counters.entrySet()) {
+            snapshot.put(counter.getKey(), counter.getValue().sum());
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> gauge : gauges.entrySet()) {
+            Number value = gauge.getValue().get();
+            if (value != null) {
+                snapshot.put(gauge.getKey(), value);
+            }
+        }
+        for (Map.Entry<String, Timer> timer : timers.entrySet()) {
+            timer.getValue().snapshot(timer.getKey(), snapshot);
+        }
+        for (Map.Entry<String, Histogram> histogram : histograms.entrySet()) {
+            histogram.getValue().snapshot(histogram.getKey(), snapshot);
+        }
+
+        return snapshot;
+    }
+}
@@ -0,0 +1,55 @@
+package valerii.metrics;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Accumulates number, total and max duration of timed operations
+ */
+public class Timer {
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Records single operation duration
+     * @param nanos duration of the operation in nanoseconds
+     */
+    public void record(long nanos) {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Records duration of the operation started at given time
+     * @param startNanos value of System.nanoTime() taken when operation was started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    void snapshot(String name, Map<String, Number> snapshot) {
+        long currentCount = getCount();
+        long total = getTotalNanos();
+
+        snapshot.put(name + ".count", currentCount);
+        snapshot.put(name + ".avgMicros", currentCount == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(total / currentCount));
+        snapshot.put(name + ".maxMicros", TimeUnit.NANOSECONDS.toMicros(getMaxNanos()));
+    }
+}
@@ -0,0 +1,105 @@
+package valerii.mutex;
+
+import valerii.metrics.Histogram;
+import valerii.metrics.Metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-process lock table of integer keys. Keys are hashed to a fixed number of lock stripes, so the table never grows
+ * and keys of the same stripe share the lock. Several keys are locked by taking their stripes in ascending order
+ * of stripe index, and each wait is bounded by timeout, so callers never wait for each other in a cycle.
+ * Lock wait time is recorded to name.wait histogram, timed out locks are counted by name.timeouts counter
+ *
+ * @author vliutyi
+ */
+public class StripedLockManager {
+
+    private final ReentrantLock[] stripes;
+    private final Histogram waitHistogram;
+    private final LongAdder timeouts;
+
+    /**
+     * @param stripes number of locks shared by all keys
+     * @param name prefix of the lock metrics
+     */
+    public StripedLockManager(int stripes, String name) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            // fair lock serves waiting threads in arrival order, so hot key does not starve its oldest waiter
+            this.stripes[i] = new ReentrantLock(true);
+        }
+        this.waitHistogram = Metrics.histogram(name + ".wait");
+        this.timeouts = Metrics.counter(name + ".timeouts");
+    }
+
+    public int stripeOf(int key) {
+        int hash = key * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), stripes.length);
+    }
+
+    /**
+     * Locks stripes of all given keys
+     * @param timeoutMillis max time to wait for all locks
+     * @param keys keys to lock, may repeat or share the stripe
+     * @return lease that releases the locks on close or null if the locks are not acquired in given time
+     * @throws InterruptedException if current thread is interrupted while waiting, no locks are held then
+     */
+    public Lease tryLock(long timeoutMillis, int... keys) throws InterruptedException {
+        int[] stripeIndexes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            stripeIndexes[i] = stripeOf(keys[i]);
+        }
+        Arrays.sort(stripeIndexes);
+        int count = 0;
+        for (int i = 0; i < stripeIndexes.length; i++) {
+            if (i == 0 || stripeIndexes[i] != stripeIndexes[i - 1]) {
+                stripeIndexes[count++] = stripeIndexes[i];
+            }
+        }
+
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        int locked = 0;
+        try {
+            for (; locked < count; locked++) {
+                if (!stripes[stripeIndexes[locked]].tryLock(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                    timeouts.increment();
+                    return null;
+                }
+            }
+        } finally {
+            if (locked < count) {
+                unlock(stripeIndexes, locked);
+            }
+            waitHistogram.recordSince(start);
+        }
+        return new Lease(Arrays.copyOf(stripeIndexes, count));
+    }
+
+    private void unlock(int[] stripeIndexes, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            stripes[stripeIndexes[i]].unlock();
+        }
+    }
+
+    /**
+     * Locks held by a thread. Must be closed by the thread that acquired them
+     */
+    public class Lease implements AutoCloseable {
+
+        private final int[] stripeIndexes;
+
+        private Lease(int[] stripeIndexes) {
+            this.stripeIndexes = stripeIndexes;
+        }
+
+        @Override
+        public void close() {
+            unlock(stripeIndexes, stripeIndexes.length);
+        }
+    }
+}
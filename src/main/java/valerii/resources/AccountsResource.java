@@ -0,0 +1,216 @@
+package valerii.resources;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.Error;
+import valerii.db.DbProvider;
+import valerii.domain.Account;
+import valerii.domain.Currency;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+import valerii.resources.ResourceExecutor.Worker;
+import valerii.resources.transport.TAccount;
+import valerii.resources.transport.TError;
+
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Operations over accounts of all clients
+ *
+ * @author vliutyi
+ */
+@Path(AccountsResource.RESOURCE_NAME)
+public class AccountsResource {
+
+    static final String RESOURCE_NAME = "accounts";
+    static final String NDJSON = "application/x-ndjson";
+
+    public static final int DEFAULT_EXPORT_FETCH_SIZE = 1000;
+
+    // listing name held by continuation tokens of account pages, currency filter is appended to it
+    private static final String ACCOUNTS_LISTING = "accounts";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AccountsResource.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final LongAdder EXPORTED_ACCOUNTS = Metrics.counter("export.accounts");
+    private static final Timer EXPORT_STREAM = Metrics.timer("export.stream");
+
+    // number of accounts fetched from DB at once while export is streamed
+    private static volatile int exportFetchSize = DEFAULT_EXPORT_FETCH_SIZE;
+
+    /**
+     * Sets number of accounts fetched from DB at once by export
+     */
+    public static void initExport(int fetchSize) {
+        exportFetchSize = Math.max(fetchSize, 1);
+    }
+
+    /**
+     * Lists accounts page by page in the order of their ids. Each page is found by seek after the last id
+     * of the previous page, so any page costs as much as the first one
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public void accounts(@Suspended final AsyncResponse asyncResponse, @QueryParam("currency") String currencyName,
+                         @QueryParam("limit") @DefaultValue("" + PageToken.DEFAULT_LIMIT) int limit, @QueryParam("after") String after) {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
+
+            Currency currency = currencyOf(currencyName);
+            if (currencyName != null && currency == null) {
+                TError error = new TError(Error.ERR_010);
+                LOGGER.error(error.getMsg());
+                return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+            }
+
+            // token of the filtered listing is not valid for other filter
+            String listing = currency != null ? ACCOUNTS_LISTING + ":" + currency : ACCOUNTS_LISTING;
+            int afterId = PageToken.decode(listing, after);
+            Optional<TError> validateError = PageToken.validate(limit, afterId);
+
+            if (validateError.isPresent()) {
+                TError error = validateError.get();
+                LOGGER.error(error.getMsg());
+                return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+            }
+
+            List<Account> accounts = Account.getPage(currency, afterId, limit + 1);
+            return Response.ok().entity(PageToken.page(listing, accounts, limit, Account::getId, AccountsResource::toTransport)).build();
+        }
+        ));
+    }
+
+    /**
+     * Streams accounts as newline-delimited JSON, one account per line in the order of their ids.
+     * Accounts are read by DB cursor while the response is written, so memory use does not depend on number of accounts.
+     * Response is compressed by gzip if the client accepts it
+     */
+    @GET
+    @Path("export")
+    @Produces(NDJSON)
+    public Response export(@QueryParam("currency") String currencyName,
+                           @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        Currency currency = currencyOf(currencyName);
+        if (currencyName != null && currency == null) {
+            TError error = new TError(Error.ERR_010);
+            LOGGER.error(error.getMsg());
+            return Response.status(Response.Status.BAD_REQUEST).type(MediaType.APPLICATION_JSON).entity(error).build();
+        }
+
+        boolean gzip = acceptsGzip(acceptEncoding);
+        Response.ResponseBuilder builder = Response.ok((StreamingOutput) output -> export(currency, gzip, output))
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            builder.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return builder.build();
+    }
+
+    /**
+     * Writes accounts to the response while they are read. Export runs on the HTTP thread with its own read-only
+     * DB connection held until the last account is written
+     */
+    private static void export(Currency currency, boolean gzip, OutputStream output) throws IOException {
+        OutputStream target = gzip ? new GZIPOutputStream(output, 8192) : output;
+        JsonGenerator generator = MAPPER.getFactory().createGenerator(target);
+        long start = System.nanoTime();
+
+        DbProvider.bindLazyConnection(true);
+        try {
+            int count = Account.forEach(currency, exportFetchSize, account -> writeLine(generator, account));
+            LOGGER.info("{} accounts exported", count);
+        } catch (SQLException e) {
+            // response is already started, broken stream is the only way to tell the client the export is not complete
+            LOGGER.error(e.getMessage());
+            throw new IOException(e);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            releaseConnection();
+        }
+
+        generator.flush();
+        if (gzip) {
+            ((GZIPOutputStream) target).finish();
+        }
+        EXPORT_STREAM.recordSince(start);
+    }
+
+    private static void writeLine(JsonGenerator generator, Account account) {
+        try {
+            generator.writeObject(toTransport(account));
+            generator.writeRaw('\n');
+        } catch (IOException e) {
+            // client went away, reading of accounts is stopped
+            throw new UncheckedIOException(e);
+        }
+        EXPORTED_ACCOUNTS.increment();
+    }
+
+    private static TAccount toTransport(Account account) {
+        return new TAccount(account, ClientAccountResource.makeHref(account.getClientId(), account.getId()));
+    }
+
+    /**
+     * @return currency of the given name, null if the name is null or not a supported currency
+     */
+    private static Currency currencyOf(String currencyName) {
+        if (currencyName == null) {
+            return null;
+        }
+        try {
+            return Currency.valueOf(currencyName);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void releaseConnection() {
+        Connection connection = DbProvider.unbindConnection();
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if Accept-Encoding header lists gzip without zero quality
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip")) {
+                return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+}
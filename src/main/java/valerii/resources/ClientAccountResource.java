@@ -1,17 +1,23 @@
 package valerii.resources;
 
-import org.glassfish.jersey.server.ManagedAsync;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import valerii.Error;
 import valerii.domain.Account;
+import valerii.domain.Balance;
 import valerii.domain.Client;
 import valerii.domain.Currency;
+import valerii.domain.LedgerEntry;
+import valerii.exception.TransferException;
+import valerii.resources.DebitWithdrawCoalescer.Request;
 import valerii.resources.ResourceExecutor.Worker;
 import valerii.resources.transport.TAccount;
+import valerii.resources.transport.TBalance;
 import valerii.resources.transport.TClient;
 import valerii.resources.transport.TDebitWithdraw;
 import valerii.resources.transport.TError;
+import valerii.resources.transport.TLedgerEntry;
+import valerii.resources.transport.TOnboardingResult;
 
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
@@ -19,6 +25,11 @@ import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.Response.Status;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 
 import static valerii.resources.ClientAccountResource.RESOURCE_NAME;
@@ -36,13 +47,45 @@ public class ClientAccountResource {
 
     static final String RESOURCE_NAME = "clients";
 
+    // max number of rows of bulk onboarding request, all of them are inserted in one transaction
+    static final int MAX_BULK_SIZE = 10_000;
+
+    // listing name held by continuation tokens of client pages
+    private static final String CLIENTS_LISTING = "clients";
+    // listing name held by continuation tokens of account history pages, account id is appended to it
+    private static final String TRANSACTIONS_LISTING = "transactions";
+
     private static final Logger LOGGER = LoggerFactory.getLogger(ClientAccountResource.class);
 
+    /**
+     * Lists clients page by page in the order of their ids. Each page is found by seek after the last id
+     * of the previous page, so any page costs as much as the first one
+     */
+    @GET
+    public void clients(@Suspended final AsyncResponse asyncResponse,
+                        @QueryParam("limit") @DefaultValue("" + PageToken.DEFAULT_LIMIT) int limit, @QueryParam("after") String after) {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
+
+            int afterId = PageToken.decode(CLIENTS_LISTING, after);
+            Optional<TError> validateError = PageToken.validate(limit, afterId);
+
+            if (validateError.isPresent()) {
+                TError error = validateError.get();
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.BAD_REQUEST).entity(error).build();
+            }
+
+            List<Client> clients = Client.getPage(afterId, limit + 1);
+            return Response.ok().entity(PageToken.page(CLIENTS_LISTING, clients, limit, Client::getId,
+                    client -> new TClient(client, makeHref(client.getId())))).build();
+        }
+        ));
+    }
+
     @GET
     @Path("{clientId}")
-    @ManagedAsync
     public void clientInfo(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
 
             Client client = Client.getById(clientId);
 
@@ -59,9 +102,8 @@ public class ClientAccountResource {
     }
 
     @POST
-    @ManagedAsync
     public void newClient(@Suspended final AsyncResponse asyncResponse, TClient clientData) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
 
             Optional<TError> validateError = validateClientData(clientData);
 
@@ -84,11 +126,112 @@ public class ClientAccountResource {
         ));
     }
 
+    /**
+     * Creates many clients by one batch insert. Each row is answered on its own: invalid row and row with
+     * the name of existing client fail alone
+     */
+    @POST
+    @Path("bulk")
+    public void newClients(@Suspended final AsyncResponse asyncResponse, List<TClient> clientsData) {
+        ResourceExecutor.submit(new Worker(asyncResponse, "onboarding", () -> {
+
+            Optional<TError> bulkError = validateBulkSize(clientsData);
+
+            if (bulkError.isPresent()) {
+                LOGGER.error(bulkError.get().getMsg());
+                return Response.status(Status.BAD_REQUEST).entity(bulkError.get()).build();
+            }
+
+            TOnboardingResult[] results = new TOnboardingResult[clientsData.size()];
+            List<Integer> indexes = new ArrayList<>(results.length);
+            List<String> names = new ArrayList<>(results.length);
+            for (int i = 0; i < results.length; i++) {
+                Optional<TError> validateError = validateClientData(clientsData.get(i));
+                if (validateError.isPresent()) {
+                    results[i] = new TOnboardingResult(i, Status.BAD_REQUEST.getStatusCode(), validateError.get());
+                } else {
+                    indexes.add(i);
+                    names.add(clientsData.get(i).getName());
+                }
+            }
+
+            Client[] clients = Client.createAll(names);
+
+            for (int j = 0; j < clients.length; j++) {
+                int i = indexes.get(j);
+                if (clients[j] == null) {
+                    results[i] = new TOnboardingResult(i, 422, new TError(Error.ERR_005));
+                } else {
+                    results[i] = new TOnboardingResult(i, new TClient(clients[j], makeHref(clients[j].getId())));
+                }
+            }
+            return Response.ok().entity(Arrays.asList(results)).build();
+        }
+        ));
+    }
+
+    /**
+     * Opens many accounts by one batch insert. Each row is answered on its own: invalid row, row of not existing
+     * client and row of client that already has an account fail alone
+     */
+    @POST
+    @Path("accounts/bulk")
+    public void openAccounts(@Suspended final AsyncResponse asyncResponse, List<TAccount> accountsData) {
+        ResourceExecutor.submit(new Worker(asyncResponse, "onboarding", () -> {
+
+            Optional<TError> bulkError = validateBulkSize(accountsData);
+
+            if (bulkError.isPresent()) {
+                LOGGER.error(bulkError.get().getMsg());
+                return Response.status(Status.BAD_REQUEST).entity(bulkError.get()).build();
+            }
+
+            TOnboardingResult[] results = new TOnboardingResult[accountsData.size()];
+            List<Integer> indexes = new ArrayList<>(results.length);
+            for (int i = 0; i < results.length; i++) {
+                TAccount accountData = accountsData.get(i);
+                Optional<TError> validateError = validateAccountData(accountData);
+                if (!validateError.isPresent() && accountData.getClientId() == null) {
+                    validateError = Optional.of(new TError(Error.ERR_001));
+                }
+                if (validateError.isPresent()) {
+                    results[i] = new TOnboardingResult(i, Status.BAD_REQUEST.getStatusCode(), validateError.get());
+                } else {
+                    indexes.add(i);
+                }
+            }
+
+            int[] clientIds = new int[indexes.size()];
+            Currency[] currencies = new Currency[indexes.size()];
+            int[] stripes = new int[indexes.size()];
+            for (int j = 0; j < clientIds.length; j++) {
+                TAccount accountData = accountsData.get(indexes.get(j));
+                clientIds[j] = accountData.getClientId();
+                currencies[j] = Currency.valueOf(accountData.getCurrency());
+                stripes[j] = accountData.getStripes() != null ? accountData.getStripes() : 0;
+            }
+
+            Account[] accounts = Account.createAll(clientIds, currencies, stripes);
+
+            for (int j = 0; j < accounts.length; j++) {
+                int i = indexes.get(j);
+                if (accounts[j] == null) {
+                    // only failed rows are looked up to tell the reason
+                    Error error = Client.getById(clientIds[j]) == null ? Error.ERR_001 : Error.ERR_008;
+                    results[i] = new TOnboardingResult(i, 422, new TError(error));
+                } else {
+                    results[i] = new TOnboardingResult(i, new TAccount(accounts[j], makeHref(clientIds[j], accounts[j].getId())));
+                }
+            }
+            return Response.ok().entity(Arrays.asList(results)).build();
+        }
+        ));
+    }
+
     @DELETE
     @Path("{clientId}")
-    @ManagedAsync
     public void deleteClient(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
             //TODO implement
             return Response.status(Status.NOT_IMPLEMENTED).build();
         }
@@ -97,9 +240,8 @@ public class ClientAccountResource {
 
     @GET
     @Path("{clientId}/account/{accountId}")
-    @ManagedAsync
     public void accountInfo(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId, @PathParam("accountId") int accountId) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
 
             Client client = Client.getById(clientId);
 
@@ -125,9 +267,8 @@ public class ClientAccountResource {
 
     @POST
     @Path("{clientId}/account")
-    @ManagedAsync
     public void openAccount(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId, TAccount accountData) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
 
             Optional<TError> validateError = validateAccountData(accountData);
 
@@ -136,7 +277,8 @@ public class ClientAccountResource {
                 return Response.status(Status.BAD_REQUEST).entity(validateError.get()).build();
             }
 
-            Account account = Account.create(clientId, Currency.valueOf(accountData.getCurrency()));
+            int stripes = accountData.getStripes() != null ? accountData.getStripes() : 0;
+            Account account = Account.create(clientId, Currency.valueOf(accountData.getCurrency()), stripes);
 
             if (account == null) {
                 TError error = new TError(Error.ERR_009);
@@ -152,20 +294,111 @@ public class ClientAccountResource {
 
     @DELETE
     @Path("{clientId}/account/{accountId}")
-    @ManagedAsync
     public void closeAccount(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId, @PathParam("accountId") int accountId) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
             //TODO implement
             return Response.status(Status.NOT_IMPLEMENTED).build();
         }
         ));
     }
 
+    /**
+     * Lists balance changes of the account page by page in the order they were made. Each page is found by seek
+     * on (account, entry id) index after the last entry of the previous page
+     */
+    @GET
+    @Path("{clientId}/account/{accountId}/transactions")
+    public void accountTransactions(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId,
+                                    @PathParam("accountId") int accountId,
+                                    @QueryParam("limit") @DefaultValue("" + PageToken.DEFAULT_LIMIT) int limit, @QueryParam("after") String after) {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
+
+            String listing = TRANSACTIONS_LISTING + ":" + accountId;
+            int afterId = PageToken.decode(listing, after);
+            Optional<TError> validateError = PageToken.validate(limit, afterId);
+
+            if (validateError.isPresent()) {
+                TError error = validateError.get();
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.BAD_REQUEST).entity(error).build();
+            }
+
+            Account account = Account.getById(accountId);
+
+            if (account == null) {
+                TError error = new TError(Error.ERR_002);
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.NOT_FOUND).entity(error).build();
+            }
+
+            if (account.getClientId() != clientId) {
+                TError error = new TError(Error.ERR_011);
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.NOT_FOUND).entity(error).build();
+            }
+
+            List<LedgerEntry> entries = LedgerEntry.getPage(accountId, afterId, limit + 1);
+            return Response.ok().entity(PageToken.page(listing, entries, limit, LedgerEntry::getId, TLedgerEntry::new)).build();
+        }
+        ));
+    }
+
+    /**
+     * Finds balance of the account at the given time from the nearest balance checkpoint and ledger entries following it.
+     * Balance at the current time is found if the time is not given
+     */
+    @GET
+    @Path("{clientId}/account/{accountId}/balance")
+    public void accountBalance(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId,
+                               @PathParam("accountId") int accountId, @QueryParam("asOf") String asOf) {
+        ResourceExecutor.submit(Worker.readOnly(asyncResponse, () -> {
+
+            LocalDateTime time;
+            try {
+                time = asOf != null ? LocalDateTime.parse(asOf) : LocalDateTime.now();
+            } catch (DateTimeParseException e) {
+                TError error = new TError(Error.ERR_037);
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.BAD_REQUEST).entity(error).build();
+            }
+
+            Account account = Account.getById(accountId);
+
+            if (account == null) {
+                TError error = new TError(Error.ERR_002);
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.NOT_FOUND).entity(error).build();
+            }
+
+            if (account.getClientId() != clientId) {
+                TError error = new TError(Error.ERR_011);
+                LOGGER.error(error.getMsg());
+                return Response.status(Status.NOT_FOUND).entity(error).build();
+            }
+
+            return Response.ok().entity(new TBalance(Balance.at(accountId, time, ResourceExecutor.getCheckpointInterval()))).build();
+        }
+        ));
+    }
+
     @POST
     @Path("{clientId}/account/{accountId}")
-    @ManagedAsync
-    public void debitWithdrawAccount(@Suspended final AsyncResponse asyncResponse, @PathParam("clientId") int clientId, @PathParam("accountId") int accountId, TDebitWithdraw debitWithdraw) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+    public void debitWithdrawAccount(@Suspended final AsyncResponse asyncResponse, @HeaderParam(IdempotencyStore.HEADER) String idempotencyKey,
+                                     @PathParam("clientId") int clientId, @PathParam("accountId") int accountId, TDebitWithdraw debitWithdraw) {
+        // retry of the request with the same key is answered by the response of the first run
+        String fingerprint = "debitWithdraw:" + clientId + ":" + accountId + ":" + (debitWithdraw != null ? debitWithdraw.getAmountDiff() : null);
+        AsyncResponse response = ResourceExecutor.startIdempotent(asyncResponse, idempotencyKey, fingerprint);
+        if (response == null) {
+            return;
+        }
+
+        // invalid data is rejected by the worker below, valid request joins the batch of the account if coalescing is enabled
+        if (debitWithdraw != null && debitWithdraw.getAmountDiff() != null
+                && ResourceExecutor.submitDebitWithdraw(accountId, new Request(response, clientId, debitWithdraw.getAmountDiff()), this::debitWithdrawBatch)) {
+            return;
+        }
+
+        ResourceExecutor.submit(new Worker(response, () -> {
 
             Optional<TError> validateError = validateDebitWithdraw(debitWithdraw);
 
@@ -197,9 +430,54 @@ public class ClientAccountResource {
             TAccount tAccount = new TAccount(account, makeHref(clientId, account.getId()));
             return Response.ok().entity(tAccount).build();
         }
-        ));
+        ), accountId);
     }
 
+    /**
+     * Applies debit/withdraw requests of the account by one update, in the order of the requests.
+     * Request of other client and request that would make the balance negative fail alone
+     */
+    private Response debitWithdrawBatch(int accountId, List<Request> requests) throws Exception {
+        Account account = Account.getById(accountId);
+
+        if (account == null) {
+            TError error = new TError(Error.ERR_002);
+            LOGGER.error(error.getMsg());
+            for (Request request : requests) {
+                request.response = Response.status(Status.NOT_FOUND).entity(error).build();
+            }
+            return Response.ok().build();
+        }
+
+        List<Request> ownRequests = new ArrayList<>(requests.size());
+        for (Request request : requests) {
+            if (account.getClientId() != request.clientId) {
+                TError error = new TError(Error.ERR_011);
+                LOGGER.error(error.getMsg());
+                request.response = Response.status(Status.NOT_FOUND).entity(error).build();
+            } else {
+                ownRequests.add(request);
+            }
+        }
+
+        int[] amountDiffs = new int[ownRequests.size()];
+        for (int i = 0; i < amountDiffs.length; i++) {
+            amountDiffs[i] = ownRequests.get(i).amountDiff;
+        }
+        int[] balances = account.updateAmounts(amountDiffs);
+
+        for (int i = 0; i < balances.length; i++) {
+            Request request = ownRequests.get(i);
+            if (balances[i] < 0) {
+                request.response = ResourceExecutor.errorResponse(new TransferException(Error.ERR_014));
+            } else {
+                TAccount tAccount = new TAccount(account, makeHref(account.getClientId(), account.getId()));
+                tAccount.setAmount(balances[i]);
+                request.response = Response.ok().entity(tAccount).build();
+            }
+        }
+        return Response.ok().build();
+    }
 
     private Optional<TError> validateAccountData(TAccount accountData) {
         if (accountData == null) {
@@ -216,6 +494,18 @@ public class ClientAccountResource {
             return Optional.of(new TError(Error.ERR_010));
         }
 
+        if (accountData.getStripes() != null && (accountData.getStripes() < 0 || accountData.getStripes() > Account.MAX_STRIPES)) {
+            return Optional.of(new TError(Error.ERR_028));
+        }
+
+        return Optional.empty();
+    }
+
+    private Optional<TError> validateBulkSize(List<?> rows) {
+        if (rows == null || rows.size() > MAX_BULK_SIZE) {
+            return Optional.of(new TError(Error.ERR_032));
+        }
+
         return Optional.empty();
     }
 
@@ -243,7 +533,7 @@ public class ClientAccountResource {
         return makeHref(clientId, null);
     }
 
-    private String makeHref(int clientId, Integer accountId) {
+    static String makeHref(int clientId, Integer accountId) {
         String href = "/" + RESOURCE_NAME + "/" + clientId;
         if (accountId != null) {
             href = href + "/account/" + accountId;
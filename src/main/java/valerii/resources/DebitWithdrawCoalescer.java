@@ -0,0 +1,174 @@
+package valerii.resources;
+
+import valerii.metrics.Metrics;
+import valerii.resources.ResourceExecutor.Worker;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collects concurrent debit/withdraw requests of the same account into batches handled by one worker.
+ * First request of an account opens the batch, its worker is submitted after maxDelayMicros or as soon as
+ * the batch is full. Requests keep joining the batch until the worker starts, so requests that arrive while
+ * the worker waits for the executor or for the account are handled by it too.
+ * Batch that failed as a whole, e.g. was rejected or not committed, answers each of its requests with the same error
+ *
+ * @author vliutyi
+ */
+class DebitWithdrawCoalescer {
+
+    private static final LongAdder BATCHES = Metrics.counter("coalescer.batches");
+    private static final LongAdder REQUESTS = Metrics.counter("coalescer.requests");
+
+    /**
+     * Handles all requests of closed batch in one transaction
+     */
+    @FunctionalInterface
+    interface BatchHandler {
+        /**
+         * Sets response of each request
+         * @return response of the whole batch, not successful response fails all requests
+         */
+        Response handle(int accountId, List<Request> requests) throws Exception;
+    }
+
+    private final Map<Integer, Batch> openBatches = new ConcurrentHashMap<>();
+    private final int maxBatchSize;
+    private final long maxDelayMicros;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param maxBatchSize max number of requests handled by one worker
+     * @param maxDelayMicros time the first request of the batch waits for others before the worker is submitted
+     */
+    DebitWithdrawCoalescer(int maxBatchSize, long maxDelayMicros) {
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMicros = maxDelayMicros;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "debit-coalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        this.timer = executor;
+    }
+
+    /**
+     * Adds request to the open batch of the account
+     */
+    void offer(int accountId, Request request, BatchHandler handler) {
+        while (true) {
+            Batch batch = openBatches.computeIfAbsent(accountId, id -> new Batch(id, handler));
+            int size = batch.add(request);
+            if (size == 0) {
+                // batch was closed meanwhile, it is removed from open batches by the closing thread
+                openBatches.remove(accountId, batch);
+                continue;
+            }
+            REQUESTS.increment();
+            if (size == 1 && maxDelayMicros > 0 && maxBatchSize > 1) {
+                try {
+                    timer.schedule(batch::submit, maxDelayMicros, TimeUnit.MICROSECONDS);
+                } catch (RejectedExecutionException e) {
+                    // coalescer is shut down, the batch does not wait for others
+                    batch.submit();
+                }
+            } else if (size == 1 || size >= maxBatchSize) {
+                batch.submit();
+            }
+            return;
+        }
+    }
+
+    void shutdown() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Single debit/withdraw request of the batch
+     */
+    static class Request {
+
+        final AsyncResponse asyncResponse;
+        final int clientId;
+        final int amountDiff;
+        // response set by batch handler
+        Response response;
+
+        Request(AsyncResponse asyncResponse, int clientId, int amountDiff) {
+            this.asyncResponse = asyncResponse;
+            this.clientId = clientId;
+            this.amountDiff = amountDiff;
+        }
+    }
+
+    private class Batch {
+
+        private final int accountId;
+        private final List<Request> requests = new ArrayList<>();
+        private boolean closed;
+        private boolean submitted;
+        private final Worker worker;
+
+        Batch(int accountId, BatchHandler handler) {
+            this.accountId = accountId;
+            // the batch is closed on the first call, retry of the worker handles the same requests
+            this.worker = new Worker(null, "debitWithdraw", () -> handler.handle(accountId, close())) {
+                @Override
+                void resume(Response response) {
+                    List<Request> closedRequests = close();
+                    boolean success = response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+                    for (Request request : closedRequests) {
+                        request.asyncResponse.resume(success && request.response != null ? request.response : response);
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return number of requests in the batch with the added one, 0 if the batch is closed
+         */
+        synchronized int add(Request request) {
+            if (closed) {
+                return 0;
+            }
+            requests.add(request);
+            if (requests.size() >= maxBatchSize) {
+                closeBatch();
+            }
+            return requests.size();
+        }
+
+        synchronized List<Request> close() {
+            if (!closed) {
+                closeBatch();
+            }
+            return requests;
+        }
+
+        private void closeBatch() {
+            closed = true;
+            openBatches.remove(accountId, this);
+            BATCHES.increment();
+        }
+
+        void submit() {
+            synchronized (this) {
+                if (submitted) {
+                    return;
+                }
+                submitted = true;
+            }
+            ResourceExecutor.submit(worker, accountId);
+        }
+    }
+}
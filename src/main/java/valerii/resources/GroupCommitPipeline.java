@@ -0,0 +1,368 @@
+package valerii.resources;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.Error;
+import valerii.db.DbProvider;
+import valerii.exception.ConcurrentUpdateException;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+import valerii.resources.ResourceExecutor.Worker;
+import valerii.resources.transport.TError;
+
+import javax.ws.rs.core.Response;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Pipeline that runs write operations in groups sharing one DB transaction, so many operations pay for one commit.
+ * Operations pass three stages:
+ * 1. request thread claims a slot of preallocated ring buffer and publishes the worker into it,
+ * 2. batch thread takes up to batchSize published workers, waiting at most maxDelayMicros after the first one,
+ *    and runs them one by one in single transaction. Each operation runs after its own savepoint and failed operation
+ *    is rolled back to it, so it does not affect other operations of the batch. Operation that failed on concurrent update
+ *    is rolled back to its savepoint and run again. The batch is committed once,
+ * 3. completion thread resumes the requests of committed batch and frees their slots.
+ * Operation that finds the ring buffer full is rejected at once with 503 response.
+ * Row locks taken by an operation are held until the batch is committed
+ *
+ * @author vliutyi
+ */
+class GroupCommitPipeline {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(GroupCommitPipeline.class);
+
+    private static final LongAdder BATCHES = Metrics.counter("pipeline.batches");
+    private static final LongAdder OPERATIONS = Metrics.counter("pipeline.operations");
+    private static final LongAdder FAILED_OPERATIONS = Metrics.counter("pipeline.failedOperations");
+    private static final LongAdder RETRIES = Metrics.counter("pipeline.retries");
+    private static final Timer BATCH_COMMIT = Metrics.timer("pipeline.batchCommit");
+
+    private final Slot[] slots;
+    private final int mask;
+    private final int batchSize;
+    private final long maxDelayNanos;
+
+    // last sequence claimed by request threads
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // last sequence run and committed by batch stage, its slots have response set
+    private volatile long committed = -1;
+    // last sequence resumed by completion stage, its slots can be reused
+    private volatile long completed = -1;
+
+    private final Stage batchStage;
+    private final Stage completionStage;
+
+    /**
+     * Creates pipeline and starts its stage threads
+     * @param bufferSize number of slots of the ring buffer, rounded up to power of two
+     * @param batchSize max number of operations committed by one transaction
+     * @param maxDelayMicros max time batch waits for more operations after the first one
+     */
+    GroupCommitPipeline(int bufferSize, int batchSize, long maxDelayMicros) {
+        int size = Integer.highestOneBit(Math.max(bufferSize, 2) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+        }
+        mask = size - 1;
+        this.batchSize = Math.min(batchSize, size);
+        this.maxDelayNanos = TimeUnit.MICROSECONDS.toNanos(maxDelayMicros);
+
+        batchStage = new Stage("pipeline-batch", this::runBatches);
+        completionStage = new Stage("pipeline-completion", this::runCompletions);
+        // both stages refer to each other, so threads are started once both are created
+        batchStage.thread.start();
+        completionStage.thread.start();
+
+        Metrics.gauge("pipeline.pending", () -> claimed.get() - completed);
+    }
+
+    /**
+     * Publishes worker to the ring buffer
+     * @return false if the ring buffer is full
+     */
+    boolean offer(Worker worker) {
+        if (batchStage.stopped) {
+            return false;
+        }
+        long sequence;
+        do {
+            sequence = claimed.get() + 1;
+            if (sequence - completed > slots.length) {
+                return false;
+            }
+        } while (!claimed.compareAndSet(sequence - 1, sequence));
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.worker = worker;
+        slot.published = sequence;
+        batchStage.signal();
+        return true;
+    }
+
+    /**
+     * Stops stage threads after all published operations are done
+     */
+    void shutdown() {
+        // completion stage is stopped after the last batch is committed
+        batchStage.stop();
+        completionStage.stop();
+    }
+
+    private void runBatches() {
+        long next = 0;
+        while (true) {
+            long first = next;
+            if (!batchStage.await(() -> isPublished(first))) {
+                return;
+            }
+
+            // wait for full batch or till the delay of the first operation is over
+            long deadline = System.nanoTime() + maxDelayNanos;
+            long last = first;
+            while (last - first + 1 < batchSize) {
+                long candidate = last + 1;
+                if (isPublished(candidate)) {
+                    last = candidate;
+                } else if (!batchStage.awaitUntil(() -> isPublished(candidate), deadline)) {
+                    break;
+                }
+            }
+
+            runBatch(first, last);
+            committed = last;
+            completionStage.signal();
+            next = last + 1;
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        return slots[(int) sequence & mask].published == sequence;
+    }
+
+    /**
+     * Runs operations of given sequences in one transaction and stores their responses in the slots
+     */
+    private void runBatch(long first, long last) {
+        BATCHES.increment();
+        OPERATIONS.add(last - first + 1);
+
+        Connection connection;
+        try {
+            connection = DbProvider.newDBConnection();
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            Response response = ResourceExecutor.errorResponse(e);
+            for (long sequence = first; sequence <= last; sequence++) {
+                slots[(int) sequence & mask].response = response;
+            }
+            return;
+        }
+
+        DbProvider.setThreadConnection(connection);
+        try {
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slots[(int) sequence & mask];
+                slot.response = runOperation(connection, slot.worker);
+                slot.committable = slot.response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+            }
+
+            long commitStart = System.nanoTime();
+            connection.commit();
+            BATCH_COMMIT.recordSince(commitStart);
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Batch failed", e);
+            rollback(connection, first, last);
+        } finally {
+            DbProvider.setThreadConnection(null);
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.error(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs operation after savepoint. Changes of failed operation are rolled back to the savepoint
+     */
+    private Response runOperation(Connection connection, Worker worker) {
+        Savepoint savepoint;
+        try {
+            savepoint = connection.setSavepoint();
+        } catch (SQLException e) {
+            return ResourceExecutor.errorResponse(e);
+        }
+
+        Response response;
+        try {
+            response = callWithRetries(connection, savepoint, worker);
+        } catch (Exception e) {
+            response = ResourceExecutor.errorResponse(e);
+        }
+
+        if (response.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+            FAILED_OPERATIONS.increment();
+            try {
+                connection.rollback(savepoint);
+            } catch (SQLException e) {
+                // changes of failed operation cannot be separated from the batch any more
+                LOGGER.error(e.getMessage());
+                throw new IllegalStateException("Rollback to savepoint failed", e);
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Calls operation. Operation that failed on concurrent update is rolled back to its savepoint and called again at once,
+     * since backoff would keep the whole batch waiting
+     */
+    private static Response callWithRetries(Connection connection, Savepoint savepoint, Worker worker) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return worker.method.call();
+            } catch (ConcurrentUpdateException e) {
+                if (attempt >= ResourceExecutor.getMaxRetries()) {
+                    throw e;
+                }
+                RETRIES.increment();
+                connection.rollback(savepoint);
+            }
+        }
+    }
+
+    /**
+     * Rolls back the whole batch. Operations that succeeded or did not run are answered with error, failed ones keep their own error
+     */
+    private void rollback(Connection connection, long first, long last) {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            LOGGER.error(e.getMessage());
+        }
+
+        Response response = Response.serverError().entity(new TError(Error.ERR_003)).build();
+        for (long sequence = first; sequence <= last; sequence++) {
+            Slot slot = slots[(int) sequence & mask];
+            if (slot.response == null || slot.committable) {
+                slot.response = response;
+            }
+        }
+    }
+
+    private void runCompletions() {
+        long next = 0;
+        while (true) {
+            long first = next;
+            if (!completionStage.await(() -> committed >= first)) {
+                return;
+            }
+
+            long last = committed;
+            for (long sequence = first; sequence <= last; sequence++) {
+                Slot slot = slots[(int) sequence & mask];
+                Worker worker = slot.worker;
+                Response response = slot.response;
+                slot.worker = null;
+                slot.response = null;
+                try {
+                    worker.resume(response);
+                } catch (RuntimeException e) {
+                    LOGGER.error("Response cannot be resumed", e);
+                }
+            }
+            completed = last;
+            next = last + 1;
+        }
+    }
+
+    /**
+     * Slot of the ring buffer. Published sequence is written after the worker, so stage that sees the sequence sees the worker
+     */
+    private static class Slot {
+
+        private volatile long published = -1;
+        private Worker worker;
+        private Response response;
+        private boolean committable;
+    }
+
+    /**
+     * Thread of a pipeline stage. Thread parks while there is nothing to do and is unparked by previous stage
+     */
+    private static class Stage {
+
+        private final Thread thread;
+        private volatile boolean parked;
+        private volatile boolean stopped;
+
+        Stage(String name, Runnable loop) {
+            thread = new Thread(loop, name);
+            thread.setDaemon(true);
+        }
+
+        void signal() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        /**
+         * Waits until condition is met
+         * @return false if the stage is stopped and has nothing more to do
+         */
+        boolean await(BooleanSupplier condition) {
+            while (!condition.getAsBoolean()) {
+                if (stopped) {
+                    return false;
+                }
+                parked = true;
+                if (!condition.getAsBoolean() && !stopped) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+            return true;
+        }
+
+        /**
+         * Waits until condition is met or the deadline of System.nanoTime() is over
+         * @return true if condition is met
+         */
+        boolean awaitUntil(BooleanSupplier condition, long deadline) {
+            while (!condition.getAsBoolean()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || stopped) {
+                    return false;
+                }
+                parked = true;
+                if (!condition.getAsBoolean()) {
+                    LockSupport.parkNanos(this, remaining);
+                }
+                parked = false;
+            }
+            return true;
+        }
+
+        /**
+         * Stops the thread once it has nothing more to do and waits for it
+         */
+        void stop() {
+            stopped = true;
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
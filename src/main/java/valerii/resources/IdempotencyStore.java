@@ -0,0 +1,284 @@
+package valerii.resources;
+
+import valerii.Error;
+import valerii.metrics.Metrics;
+import valerii.resources.transport.TError;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers responses of requests sent with Idempotency-Key header, so retry of the request gets the response
+ * of the first run instead of running again. Retry that comes while the first run is not answered yet waits for it.
+ * Keys are kept in the order they were added: key older than TTL is dropped, and the oldest key is dropped
+ * when the store is full. Response that may change on retry (503, 409, 5xx) is not kept, the retry runs again.
+ * Requests that waited for such response get it as is, without Idempotent-Replayed header, so they retry too
+ *
+ * @author vliutyi
+ */
+class IdempotencyStore {
+
+    static final String HEADER = "Idempotency-Key";
+    static final String REPLAYED_HEADER = "Idempotent-Replayed";
+    static final int MAX_KEY_LENGTH = 255;
+
+    // rough size of the entry with its response, key and fingerprint chars are added to it
+    private static final int ENTRY_BYTES = 256;
+
+    private static final LongAdder HITS = Metrics.counter("idempotency.hits");
+    private static final LongAdder JOINS = Metrics.counter("idempotency.joins");
+    private static final LongAdder MISSES = Metrics.counter("idempotency.misses");
+    private static final LongAdder MISMATCHES = Metrics.counter("idempotency.mismatches");
+    private static final LongAdder EVICTIONS = Metrics.counter("idempotency.evictions");
+
+    static {
+        Metrics.gauge("idempotency.hitPercent", () -> {
+            long duplicates = HITS.sum() + JOINS.sum();
+            long total = duplicates + MISSES.sum();
+            return total == 0 ? 0.0 : duplicates * 100.0 / total;
+        });
+    }
+
+    // entries in the order they were added, which is also the order they expire
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private final int maxKeys;
+    private final long ttlNanos;
+    private long estimatedBytes;
+
+    /**
+     * @param maxKeys max number of kept keys
+     * @param ttlMillis time the response is kept after the first request with its key
+     */
+    IdempotencyStore(int maxKeys, long ttlMillis) {
+        this.maxKeys = maxKeys;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Starts request with given key. New key is stored and the request runs, its response is kept when it is answered.
+     * Request with known key is answered by the kept response or waits for the running request with the same key
+     * @param fingerprint operation and data of the request, the same key with other fingerprint is rejected
+     * @return async response the request must be answered by, null if the request is already answered or waits for the first one
+     */
+    AsyncResponse begin(String key, String fingerprint, AsyncResponse asyncResponse) {
+        Entry entry;
+        synchronized (this) {
+            long now = System.nanoTime();
+            evict(now, maxKeys);
+            entry = entries.get(key);
+            if (entry == null) {
+                evict(now, maxKeys - 1);
+                entry = new Entry(key, fingerprint);
+                entries.put(key, entry);
+                estimatedBytes += entry.bytes;
+                MISSES.increment();
+                return new RecordingResponse(asyncResponse, entry);
+            }
+        }
+
+        if (!entry.fingerprint.equals(fingerprint)) {
+            MISMATCHES.increment();
+            asyncResponse.resume(Response.status(422, "Idempotency key mismatch").entity(new TError(Error.ERR_033)).build());
+            return null;
+        }
+        entry.join(asyncResponse);
+        return null;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long estimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            estimatedBytes -= entry.bytes;
+        }
+    }
+
+    /**
+     * Drops expired entries and the oldest entries over the limit. Dropped entry still answers requests waiting for it
+     * @param keepKeys max number of entries left
+     */
+    private void evict(long now, int keepKeys) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry eldest = iterator.next();
+            if (entries.size() <= keepKeys && now - eldest.createdNanos < ttlNanos) {
+                break;
+            }
+            iterator.remove();
+            estimatedBytes -= eldest.bytes;
+            EVICTIONS.increment();
+        }
+    }
+
+    /**
+     * @return true if the same request would get the same response if it ran again
+     */
+    private static boolean isFinal(Response response) {
+        int status = response.getStatus();
+        return status < 500 && status != Response.Status.CONFLICT.getStatusCode();
+    }
+
+    private class Entry {
+
+        final String key;
+        final String fingerprint;
+        final long createdNanos = System.nanoTime();
+        final int bytes;
+        // response of the first request, null while it runs
+        private Response response;
+        private List<AsyncResponse> waiting = new ArrayList<>();
+
+        Entry(String key, String fingerprint) {
+            this.key = key;
+            this.fingerprint = fingerprint;
+            this.bytes = ENTRY_BYTES + 2 * (key.length() + fingerprint.length());
+        }
+
+        void join(AsyncResponse asyncResponse) {
+            Response completed;
+            synchronized (this) {
+                if (response == null) {
+                    JOINS.increment();
+                    waiting.add(asyncResponse);
+                    return;
+                }
+                completed = response;
+            }
+            HITS.increment();
+            asyncResponse.resume(answer(completed));
+        }
+
+        void complete(Response firstResponse) {
+            List<AsyncResponse> waitingResponses;
+            synchronized (this) {
+                response = firstResponse;
+                waitingResponses = waiting;
+                waiting = null;
+            }
+            if (!isFinal(firstResponse)) {
+                remove(this);
+            }
+            for (AsyncResponse asyncResponse : waitingResponses) {
+                asyncResponse.resume(answer(firstResponse));
+            }
+        }
+
+        /**
+         * @return copy of the first response, each request is answered by its own response instance.
+         * Response that is not final is not marked as replayed and keeps its headers, e.g. Retry-After
+         */
+        private Response answer(Response firstResponse) {
+            if (!isFinal(firstResponse)) {
+                return Response.fromResponse(firstResponse).build();
+            }
+            return Response.status(firstResponse.getStatusInfo())
+                    .entity(firstResponse.getEntity())
+                    .header(REPLAYED_HEADER, true)
+                    .build();
+        }
+    }
+
+    /**
+     * Async response of the first request with the key, keeps the response it is resumed with
+     */
+    private class RecordingResponse implements AsyncResponse {
+
+        private final AsyncResponse asyncResponse;
+        private final Entry entry;
+
+        RecordingResponse(AsyncResponse asyncResponse, Entry entry) {
+            this.asyncResponse = asyncResponse;
+            this.entry = entry;
+        }
+
+        @Override
+        public boolean resume(Object response) {
+            boolean resumed = asyncResponse.resume(response);
+            entry.complete(response instanceof Response ? (Response) response : Response.ok(response).build());
+            return resumed;
+        }
+
+        @Override
+        public boolean resume(Throwable response) {
+            boolean resumed = asyncResponse.resume(response);
+            entry.complete(Response.serverError().entity(new TError(Error.ERR_025)).build());
+            return resumed;
+        }
+
+        @Override
+        public boolean cancel() {
+            return asyncResponse.cancel();
+        }
+
+        @Override
+        public boolean cancel(int retryAfter) {
+            return asyncResponse.cancel(retryAfter);
+        }
+
+        @Override
+        public boolean cancel(Date retryAfter) {
+            return asyncResponse.cancel(retryAfter);
+        }
+
+        @Override
+        public boolean isSuspended() {
+            return asyncResponse.isSuspended();
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return asyncResponse.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return asyncResponse.isDone();
+        }
+
+        @Override
+        public boolean setTimeout(long time, TimeUnit unit) {
+            return asyncResponse.setTimeout(time, unit);
+        }
+
+        @Override
+        public void setTimeoutHandler(TimeoutHandler handler) {
+            asyncResponse.setTimeoutHandler(handler);
+        }
+
+        @Override
+        public Collection<Class<?>> register(Class<?> callback) {
+            return asyncResponse.register(callback);
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback, Class<?>... callbacks) {
+            return asyncResponse.register(callback, callbacks);
+        }
+
+        @Override
+        public Collection<Class<?>> register(Object callback) {
+            return asyncResponse.register(callback);
+        }
+
+        @Override
+        public Map<Class<?>, Collection<Class<?>>> register(Object callback, Object... callbacks) {
+            return asyncResponse.register(callback, callbacks);
+        }
+    }
+}
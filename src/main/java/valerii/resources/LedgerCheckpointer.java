@@ -0,0 +1,174 @@
+package valerii.resources;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.db.DbProvider;
+import valerii.domain.LedgerCheckpoint;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background job that reads new ledger entries in the order they were appended and creates balance checkpoints
+ * of the changed accounts. Entries are read once: the job remembers the last handled entry and each run continues
+ * after it. Entries appended less than settleMillis ago are left for the next run, since ids are taken on insert
+ * and an entry of a transaction still running may be committed after entries with greater ids. Ids the job passed
+ * without an entry are checked by each run for watchMillis, entry committed meanwhile gets checkpoints of its account
+ * rebuilt
+ *
+ * @author vliutyi
+ */
+class LedgerCheckpointer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LedgerCheckpointer.class);
+
+    // max number of entries handled by one transaction
+    static final int PAGE_SIZE = 1000;
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 5;
+    // max number of watched ids, ids of rolled back entries are kept till watchMillis pass
+    static final int MAX_SKIPPED_IDS = 10000;
+
+    private static final Timer RUN = Metrics.timer("checkpoint.run");
+
+    private final int interval;
+    private final long settleMillis;
+    private final long watchMillis;
+    private final ScheduledExecutorService timer;
+    // id of the last ledger entry handled by the job
+    private volatile int lastLedgerId;
+    // ids passed by the job without an entry mapped to the time they were passed, used by the job thread only
+    private final TreeMap<Integer, Long> skippedIds = new TreeMap<>();
+    private volatile int skippedIdCount;
+
+    /**
+     * @param periodMillis delay between the end of one run and the start of the next one
+     * @param interval number of entries of an account between its checkpoints
+     * @param settleMillis age of the entry before it is handled
+     * @param watchMillis time an id passed without an entry is checked for the entry committed later
+     */
+    LedgerCheckpointer(long periodMillis, int interval, long settleMillis, long watchMillis) {
+        this.interval = interval;
+        this.settleMillis = settleMillis;
+        this.watchMillis = watchMillis;
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "ledger-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = executor;
+        timer.scheduleWithFixedDelay(this::run, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        Metrics.gauge("checkpoint.lastLedgerId", () -> lastLedgerId);
+        Metrics.gauge("checkpoint.skippedIds", () -> skippedIdCount);
+    }
+
+    /**
+     * Counts entries committed behind handled ones, then handles all entries appended before the settle time,
+     * one page per transaction. Failed page is rolled back and handled again by the next run
+     */
+    void run() {
+        long start = System.nanoTime();
+        LocalDateTime horizon = LocalDateTime.now().minusNanos(TimeUnit.MILLISECONDS.toNanos(settleMillis));
+
+        Connection connection = null;
+        try {
+            connection = DbProvider.newDBConnection();
+            connection.setAutoCommit(false);
+            DbProvider.setThreadConnection(connection);
+
+            List<Integer> done = repairLateEntries();
+            connection.commit();
+            // ids are forgotten after commit, so failed repair is done again by the next run
+            skippedIds.keySet().removeAll(done);
+            skippedIdCount = skippedIds.size();
+
+            while (true) {
+                List<Integer> skipped = new ArrayList<>();
+                int last = LedgerCheckpoint.createCheckpoints(lastLedgerId, horizon, interval, PAGE_SIZE, skipped);
+                connection.commit();
+                watch(skipped);
+                if (last == lastLedgerId) {
+                    break;
+                }
+                lastLedgerId = last;
+            }
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Ledger checkpoints failed: {}", e.getMessage());
+            rollback(connection);
+        } finally {
+            DbProvider.setThreadConnection(null);
+            close(connection);
+        }
+        RUN.recordSince(start);
+    }
+
+    /**
+     * Checks watched ids for entries committed after the job passed them
+     * @return ids not to watch any more: their entries are counted or watchMillis passed
+     */
+    private List<Integer> repairLateEntries() throws SQLException {
+        long now = System.currentTimeMillis();
+        List<Integer> done = new ArrayList<>();
+        for (Map.Entry<Integer, Long> skipped : skippedIds.entrySet()) {
+            if (LedgerCheckpoint.repairLateEntry(skipped.getKey(), lastLedgerId, interval) || now - skipped.getValue() >= watchMillis) {
+                done.add(skipped.getKey());
+            }
+        }
+        return done;
+    }
+
+    private void watch(List<Integer> skipped) {
+        long now = System.currentTimeMillis();
+        for (int id : skipped) {
+            skippedIds.put(id, now);
+        }
+        while (skippedIds.size() > MAX_SKIPPED_IDS) {
+            // entry of the oldest id will not be counted if it is committed later
+            LOGGER.warn("Ledger id {} is not watched, more than {} ids are skipped", skippedIds.pollFirstEntry().getKey(), MAX_SKIPPED_IDS);
+        }
+        skippedIdCount = skippedIds.size();
+    }
+
+    /**
+     * Stops the job, the run in progress is completed, so its transaction is not broken by interrupt
+     */
+    void shutdown() {
+        timer.shutdown();
+        try {
+            if (!timer.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                LOGGER.error("Ledger checkpoints are not stopped in {} seconds", SHUTDOWN_TIMEOUT_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void rollback(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                LOGGER.error(e.getMessage());
+            }
+        }
+    }
+
+    private static void close(Connection connection) {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.error(e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package valerii.resources;
+
+import valerii.metrics.Metrics;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import java.util.Map;
+
+/**
+ * Endpoint exposes current values of all application metrics
+ *
+ * @author vliutyi
+ */
+@Path("/metrics")
+@Produces(MediaType.APPLICATION_JSON)
+public class MetricsResource {
+
+    @GET
+    public Map<String, Number> metrics() {
+        return Metrics.snapshot();
+    }
+}
@@ -0,0 +1,77 @@
+package valerii.resources;
+
+import valerii.Error;
+import valerii.resources.transport.TError;
+import valerii.resources.transport.TPage;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+/**
+ * Continuation token of keyset pages. Token is opaque for the client, it holds the listing it was made for
+ * and id of the last row of the page, so the next page is found by seek right after that id
+ *
+ * @author vliutyi
+ */
+class PageToken {
+
+    static final int DEFAULT_LIMIT = 100;
+    static final int MAX_LIMIT = 1000;
+
+    private PageToken() {
+    }
+
+    static String encode(String listing, int lastId) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((listing + ":" + lastId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param listing listing with its filters, token of other listing is not valid
+     * @return id of the last row of the previous page, 0 for the first page, -1 if the token is not valid
+     */
+    static int decode(String listing, String token) {
+        if (token == null) {
+            return 0;
+        }
+        try {
+            String value = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int separator = value.lastIndexOf(':');
+            if (separator < 0 || !value.substring(0, separator).equals(listing)) {
+                return -1;
+            }
+            int lastId = Integer.parseInt(value.substring(separator + 1));
+            return lastId > 0 ? lastId : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    static Optional<TError> validate(int limit, int afterId) {
+        if (limit < 1 || limit > MAX_LIMIT) {
+            return Optional.of(new TError(Error.ERR_036));
+        }
+        if (afterId < 0) {
+            return Optional.of(new TError(Error.ERR_035));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * Makes page of rows read with limit + 1: the extra row only tells that the next page exists
+     */
+    static <R, T> TPage<T> page(String listing, List<R> rows, int limit, ToIntFunction<R> id, Function<R, T> transport) {
+        int size = Math.min(rows.size(), limit);
+        List<T> items = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            items.add(transport.apply(rows.get(i)));
+        }
+        String next = rows.size() > limit ? encode(listing, id.applyAsInt(rows.get(limit - 1))) : null;
+        return new TPage<>(items, next);
+    }
+}
@@ -0,0 +1,239 @@
+package valerii.resources;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import valerii.metrics.Metrics;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Executor of account changes where each account has single writer. Accounts are spread over fixed number of partitions
+ * by account id, each partition runs its tasks one by one in its own thread with bounded queue.
+ * Task that changes two accounts of different partitions runs on the partition with lower index, while the other
+ * partition is held by a hold task queued to it: the task starts when the hold starts and the hold ends when the task ends.
+ * Partition thread waits only for partition of higher index, so partitions never wait for each other in a cycle.
+ * Utilization of partitions is sampled with fixed period, so reading the gauges does not change them
+ *
+ * @author vliutyi
+ */
+class PartitionedExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PartitionedExecutor.class);
+
+    static final long UTILIZATION_PERIOD_MILLIS = 1000;
+
+    private final Partition[] partitions;
+    private final ScheduledExecutorService sampler;
+    // gauges registered by this executor, removed on shutdown unless the next executor replaced them
+    private final Map<String, Supplier<? extends Number>> gauges = new HashMap<>();
+
+    /**
+     * Creates and starts partition threads
+     * @param count number of partitions
+     * @param queueCapacity max number of tasks waiting in the queue of each partition
+     */
+    PartitionedExecutor(int count, int queueCapacity) {
+        this(count, queueCapacity, UTILIZATION_PERIOD_MILLIS);
+    }
+
+    /**
+     * @param samplePeriodMillis period of utilization samples
+     */
+    PartitionedExecutor(int count, int queueCapacity, long samplePeriodMillis) {
+        partitions = new Partition[count];
+        for (int i = 0; i < count; i++) {
+            Partition partition = new Partition(i, queueCapacity);
+            partitions[i] = partition;
+            gauge("executor.partition." + i + ".queueSize", partition.queue::size);
+            gauge("executor.partition." + i + ".utilization", () -> partition.utilization);
+        }
+
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "partition-sampler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sampler.scheduleAtFixedRate(this::sampleUtilization, samplePeriodMillis, samplePeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void gauge(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+        Metrics.gauge(name, gauge);
+    }
+
+    int partitionOf(int accountId) {
+        int hash = accountId * 0x9E3779B9;
+        return Math.floorMod(hash ^ (hash >>> 16), partitions.length);
+    }
+
+    /**
+     * Queues task that changes single account
+     * @param rejectHandler called instead of the task if partition queue is full
+     */
+    void execute(int accountId, Runnable task, Runnable rejectHandler) {
+        if (!partitions[partitionOf(accountId)].offer(task)) {
+            rejectHandler.run();
+        }
+    }
+
+    /**
+     * Queues task that changes two accounts. Task runs when no other task of both account partitions runs
+     * @param rejectHandler called instead of the task if queue of any of the partitions is full
+     */
+    void execute(int accountId1, int accountId2, Runnable task, Runnable rejectHandler) {
+        int partition1 = partitionOf(accountId1);
+        int partition2 = partitionOf(accountId2);
+        if (partition1 == partition2) {
+            execute(accountId1, task, rejectHandler);
+            return;
+        }
+
+        Partition lower = partitions[Math.min(partition1, partition2)];
+        Partition higher = partitions[Math.max(partition1, partition2)];
+        if (!lower.offer(() -> runHolding(higher, task, rejectHandler))) {
+            rejectHandler.run();
+        }
+    }
+
+    /**
+     * Runs task on current partition thread while the other partition thread is held
+     */
+    private void runHolding(Partition other, Runnable task, Runnable rejectHandler) {
+        CountDownLatch held = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(1);
+
+        if (!other.offer(() -> {
+            held.countDown();
+            awaitUninterruptibly(released);
+        })) {
+            rejectHandler.run();
+            return;
+        }
+
+        awaitUninterruptibly(held);
+        try {
+            task.run();
+        } finally {
+            released.countDown();
+        }
+    }
+
+    /**
+     * Updates utilization gauges of all partitions by the time spent on tasks since the previous sample
+     */
+    void sampleUtilization() {
+        for (Partition partition : partitions) {
+            partition.sampleUtilization();
+        }
+    }
+
+    /**
+     * Stops partition threads after all queued tasks are done and removes gauges of the partitions
+     */
+    void shutdown() {
+        sampler.shutdownNow();
+        for (Map.Entry<String, Supplier<? extends Number>> gauge : gauges.entrySet()) {
+            Metrics.removeGauge(gauge.getKey(), gauge.getValue());
+        }
+        for (Partition partition : partitions) {
+            partition.shutdown();
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Single thread with its own queue. Time spent on running tasks is accumulated to calculate utilization
+     */
+    private static class Partition implements Runnable {
+
+        // queued by shutdown() to stop the thread
+        private static final Runnable STOP = () -> { };
+
+        private final BlockingQueue<Runnable> queue;
+        private final AtomicLong busyNanos = new AtomicLong();
+        private volatile boolean stopped;
+
+        // busy time and time of previous utilization sample
+        private long sampledBusyNanos;
+        private long sampledAt = System.nanoTime();
+        // percent of time partition thread was running tasks between the last two samples
+        private volatile int utilization;
+
+        Partition(int index, int queueCapacity) {
+            queue = new ArrayBlockingQueue<>(queueCapacity);
+            Thread thread = new Thread(this, "partition-" + index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean offer(Runnable task) {
+            return !stopped && queue.offer(task);
+        }
+
+        void shutdown() {
+            stopped = true;
+            try {
+                queue.put(STOP);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Runnable task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task == STOP) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    // partition thread must survive failed task
+                    LOGGER.error("Partition task failed", e);
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                }
+            }
+        }
+
+        synchronized void sampleUtilization() {
+            long now = System.nanoTime();
+            long busy = busyNanos.get();
+            long elapsed = now - sampledAt;
+            utilization = elapsed > 0 ? (int) Math.min(100, (busy - sampledBusyNanos) * 100 / elapsed) : 0;
+            sampledBusyNanos = busy;
+            sampledAt = now;
+        }
+    }
+}
@@ -5,74 +5,601 @@ import org.slf4j.LoggerFactory;
 import valerii.Error;
 import valerii.db.DbProvider;
 import valerii.exception.BusinessException;
+import valerii.exception.ConcurrentUpdateException;
+import valerii.exception.ConnectionPoolTimeoutException;
 import valerii.exception.TransferException;
+import valerii.metrics.Metrics;
+import valerii.metrics.Timer;
+import valerii.mutex.StripedLockManager;
 import valerii.resources.transport.TError;
 
 import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.Response;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Class provides thread-pool executor and holds the logic (worker) to call operation in multi-thread environment
+ * Class provides thread-pool executor and holds the logic (worker) to call operation in multi-thread environment.
+ * Executor runs in one of two modes:
+ * PLATFORM - fixed number of platform threads and bounded queue,
+ * VIRTUAL - new virtual thread per operation, number of operations running at the same time is limited.
+ * Operation submitted to full executor is rejected at once with 503 response and Retry-After header,
+ * so the server sheds load instead of piling up threads and DB connections.
+ * Optionally, operations that change accounts run on partitioned executor, so each account has single writer thread,
+ * and transfers run on group commit pipeline, so many transfers share one commit.
+ * Otherwise operations that change accounts lock the accounts in-process before they touch DB, so concurrent changes
+ * of the same account wait in the lock manager queue instead of DB row lock
  *
  * @author vliutyi
  */
-class ResourceExecutor {
+public class ResourceExecutor {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ResourceExecutor.class);
 
-    private static final ExecutorService executor = Executors.newCachedThreadPool();
+    public enum Mode {PLATFORM, VIRTUAL}
 
-    static ExecutorService getExecutor() {
-        return executor;
+    public static final int DEFAULT_THREADS = 64;
+    public static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_MAX_VIRTUAL_REQUESTS = 10_000;
+    public static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+    public static final int DEFAULT_PARTITION_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_PIPELINE_BUFFER_SIZE = 1024;
+    public static final int DEFAULT_PIPELINE_MAX_DELAY_MICROS = 200;
+    public static final int DEFAULT_COALESCE_MAX_DELAY_MICROS = 200;
+    public static final int DEFAULT_ACCOUNT_LOCK_STRIPES = 1024;
+    public static final long DEFAULT_ACCOUNT_LOCK_TIMEOUT_MILLIS = 1000;
+    public static final int DEFAULT_IDEMPOTENCY_MAX_KEYS = 10_000;
+    public static final long DEFAULT_IDEMPOTENCY_TTL_SECONDS = 3600;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final long DEFAULT_RETRY_BACKOFF_MICROS = 1000;
+    public static final long DEFAULT_CHECKPOINT_PERIOD_MILLIS = 1000;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 100;
+    public static final long DEFAULT_CHECKPOINT_SETTLE_MILLIS = 5000;
+    public static final long DEFAULT_CHECKPOINT_WATCH_MILLIS = 600000;
+
+    private static final LongAdder REJECTED = Metrics.counter("executor.rejected");
+    private static final Timer QUEUE_WAIT = Metrics.timer("executor.queueWait");
+
+    private static volatile ExecutorService executor;
+    // limits number of operations in VIRTUAL mode, null in PLATFORM mode
+    private static volatile Semaphore virtualPermits;
+    private static volatile int retryAfterSeconds;
+    // runs operations that change accounts, null if account changes run on the executor as other operations
+    private static volatile PartitionedExecutor partitionedExecutor;
+    // runs transfers in groups committed by one transaction, null if each transfer is committed on its own
+    private static volatile GroupCommitPipeline transferPipeline;
+    // collects debit/withdraw requests of the same account into batches, null if each request is handled on its own
+    private static volatile DebitWithdrawCoalescer debitWithdrawCoalescer;
+    // responses of requests with idempotency key, null if the key is ignored
+    private static volatile IdempotencyStore idempotencyStore;
+    // creates balance checkpoints from ledger entries, null if checkpoints are not created
+    private static volatile LedgerCheckpointer ledgerCheckpointer;
+    private static volatile int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    // in-process locks of accounts changed by operations run on the executor, null if accounts are locked by DB only
+    private static volatile StripedLockManager accountLocks;
+    private static volatile long accountLockTimeoutMillis;
+    // retries of operation that failed on concurrent update
+    private static volatile int maxRetries = DEFAULT_MAX_RETRIES;
+    private static volatile long retryBackoffMicros = DEFAULT_RETRY_BACKOFF_MICROS;
+
+    static {
+        // gauges follow the current store, they are absent while keys are ignored
+        Metrics.gauge("idempotency.keys", () -> {
+            IdempotencyStore store = idempotencyStore;
+            return store != null ? store.size() : null;
+        });
+        Metrics.gauge("idempotency.estimatedBytes", () -> {
+            IdempotencyStore store = idempotencyStore;
+            return store != null ? store.estimatedBytes() : null;
+        });
+        init(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, DEFAULT_RETRY_AFTER_SECONDS);
+        initAccountLocks(DEFAULT_ACCOUNT_LOCK_STRIPES, DEFAULT_ACCOUNT_LOCK_TIMEOUT_MILLIS);
+        initIdempotency(DEFAULT_IDEMPOTENCY_MAX_KEYS, DEFAULT_IDEMPOTENCY_TTL_SECONDS);
+    }
+
+    /**
+     * Replaces executor with the new PLATFORM one of given size. Operations already submitted to the previous executor are completed by it
+     * @param threads number of worker threads
+     * @param queueCapacity max number of operations waiting for a worker thread
+     * @param retryAfter value of Retry-After header in seconds sent with rejected operation
+     */
+    public static synchronized void init(int threads, int queueCapacity, int retryAfter) {
+        ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), new ThreadPoolExecutor.AbortPolicy());
+        // idle threads are not kept when there is no load
+        newExecutor.allowCoreThreadTimeOut(true);
+
+        replace(newExecutor, null, retryAfter);
+
+        Metrics.gauge("executor.queueSize", () -> newExecutor.getQueue().size());
+        Metrics.gauge("executor.activeThreads", newExecutor::getActiveCount);
+        Metrics.gauge("executor.poolSize", newExecutor::getPoolSize);
+    }
+
+    /**
+     * Replaces executor with the new VIRTUAL one. Each operation runs in its own virtual thread, so operation blocked
+     * on JDBC call does not hold a platform thread. Operations already submitted to the previous executor are completed by it
+     * @param maxRequests max number of operations running at the same time
+     * @param retryAfter value of Retry-After header in seconds sent with rejected operation
+     */
+    public static synchronized void initVirtual(int maxRequests, int retryAfter) {
+        ExecutorService newExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("worker-", 0).factory());
+        Semaphore permits = new Semaphore(maxRequests);
+
+        replace(newExecutor, permits, retryAfter);
+
+        // virtual threads do not wait in a queue, each admitted operation gets its own thread
+        Metrics.gauge("executor.queueSize", () -> 0);
+        Metrics.gauge("executor.activeThreads", () -> maxRequests - permits.availablePermits());
+        Metrics.gauge("executor.poolSize", () -> maxRequests - permits.availablePermits());
+    }
+
+    private static void replace(ExecutorService newExecutor, Semaphore permits, int retryAfter) {
+        ExecutorService oldExecutor = executor;
+        executor = newExecutor;
+        virtualPermits = permits;
+        retryAfterSeconds = retryAfter;
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Enables or disables partitioned executor of account changes
+     * @param partitions number of partitions, 0 to run account changes on the executor as other operations
+     * @param queueCapacity max number of operations waiting in the queue of each partition
+     */
+    public static synchronized void initPartitions(int partitions, int queueCapacity) {
+        PartitionedExecutor oldExecutor = partitionedExecutor;
+        partitionedExecutor = partitions > 0 ? new PartitionedExecutor(partitions, queueCapacity) : null;
+        if (oldExecutor != null) {
+            oldExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @return true if operations that change accounts run on single writer partitions
+     */
+    public static boolean isPartitioned() {
+        return partitionedExecutor != null;
+    }
+
+    /**
+     * Enables or disables in-process locks of accounts. Operation already holding the locks releases them as usual
+     * @param stripes number of locks shared by all accounts, 0 to lock accounts by DB only
+     * @param timeoutMillis max time to wait for the locks. Operation that does not get them is answered with 503 response
+     */
+    public static synchronized void initAccountLocks(int stripes, long timeoutMillis) {
+        accountLocks = stripes > 0 ? new StripedLockManager(stripes, "accountLock") : null;
+        accountLockTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how operation that failed on concurrent update is retried. Worker waits random time up to
+     * backoffMicros * 2^attempt before each retry, so conflicting operations do not meet again at once
+     * @param retries max number of retries, 0 to answer the conflict with 409 response at once
+     * @param backoffMicros max wait before the first retry
+     */
+    public static void initRetries(int retries, long backoffMicros) {
+        maxRetries = retries;
+        retryBackoffMicros = backoffMicros;
+    }
+
+    /**
+     * @return number of entries of an account between its checkpoints
+     */
+    static int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @return max number of retries of operation that failed on concurrent update
+     */
+    static int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Enables or disables group commit pipeline of transfers
+     * @param batchSize max number of transfers committed by one transaction, 0 to commit each transfer on its own
+     * @param maxDelayMicros max time the batch waits for more transfers after the first one
+     * @param bufferSize max number of transfers in the pipeline. Transfer that does not fit is rejected
+     */
+    public static synchronized void initTransferPipeline(int batchSize, long maxDelayMicros, int bufferSize) {
+        GroupCommitPipeline oldPipeline = transferPipeline;
+        transferPipeline = batchSize > 0 ? new GroupCommitPipeline(bufferSize, batchSize, maxDelayMicros) : null;
+        if (oldPipeline != null) {
+            oldPipeline.shutdown();
+        }
+    }
+
+    /**
+     * Sets up coalescing of concurrent debit/withdraw requests of the same account: the requests are handled
+     * by one worker that changes the account once
+     * @param maxBatchSize max number of requests handled together, 0 to handle each request on its own
+     * @param maxDelayMicros time the first request waits for others before its batch is submitted
+     */
+    public static synchronized void initDebitWithdrawCoalescing(int maxBatchSize, long maxDelayMicros) {
+        DebitWithdrawCoalescer oldCoalescer = debitWithdrawCoalescer;
+        debitWithdrawCoalescer = maxBatchSize > 0 ? new DebitWithdrawCoalescer(maxBatchSize, maxDelayMicros) : null;
+        if (oldCoalescer != null) {
+            oldCoalescer.shutdown();
+        }
+    }
+
+    /**
+     * Starts or stops background job that creates balance checkpoints of accounts from their ledger entries
+     * @param periodMillis delay between runs of the job, 0 to stop creating checkpoints
+     * @param interval number of entries of an account between its checkpoints
+     * @param settleMillis age of ledger entry before it is handled by the job
+     * @param watchMillis time the job checks ids it passed without an entry for entries committed later
+     */
+    public static synchronized void initLedgerCheckpoints(long periodMillis, int interval, long settleMillis, long watchMillis) {
+        LedgerCheckpointer oldCheckpointer = ledgerCheckpointer;
+        checkpointInterval = Math.max(interval, 1);
+        ledgerCheckpointer = periodMillis > 0
+                ? new LedgerCheckpointer(periodMillis, Math.max(interval, 1), settleMillis, watchMillis) : null;
+        if (oldCheckpointer != null) {
+            oldCheckpointer.shutdown();
+        }
+    }
+
+    /**
+     * Adds debit/withdraw request to the open batch of the account
+     * @return false if coalescing is disabled and the request is not accepted
+     */
+    static boolean submitDebitWithdraw(int accountId, DebitWithdrawCoalescer.Request request, DebitWithdrawCoalescer.BatchHandler handler) {
+        DebitWithdrawCoalescer coalescer = debitWithdrawCoalescer;
+        if (coalescer == null) {
+            return false;
+        }
+        coalescer.offer(accountId, request, handler);
+        return true;
+    }
+
+    /**
+     * Sets up the store of responses of requests sent with idempotency key. Keys of the previous store are forgotten
+     * @param maxKeys max number of kept keys, the oldest key is dropped when the store is full. 0 to ignore the keys
+     * @param ttlSeconds time the response is kept after the first request with its key
+     */
+    public static synchronized void initIdempotency(int maxKeys, long ttlSeconds) {
+        idempotencyStore = maxKeys > 0 ? new IdempotencyStore(maxKeys, TimeUnit.SECONDS.toMillis(ttlSeconds)) : null;
+    }
+
+    /**
+     * Starts request sent with idempotency key. Request with the key already seen is answered by the response
+     * of the first request with this key, or waits for it if it is still running
+     * @param key value of Idempotency-Key header, null if the header is not sent
+     * @param fingerprint operation and data of the request
+     * @return async response the request must be answered by, null if the request is already answered or waits for the first one
+     */
+    static AsyncResponse startIdempotent(AsyncResponse asyncResponse, String key, String fingerprint) {
+        IdempotencyStore store = idempotencyStore;
+        if (key == null || store == null) {
+            return asyncResponse;
+        }
+        if (key.length() > IdempotencyStore.MAX_KEY_LENGTH) {
+            TError error = new TError(Error.ERR_034);
+            LOGGER.error(error.getMsg());
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(error).build());
+            return null;
+        }
+        return store.begin(key, fingerprint, asyncResponse);
+    }
+
+    /**
+     * @return true if transfers run on group commit pipeline
+     */
+    public static boolean isTransferPipelined() {
+        return transferPipeline != null;
+    }
+
+    /**
+     * Submits transfer worker. The worker runs on group commit pipeline if it is enabled
+     */
+    static void submitTransfer(Worker worker, int srcAccountId, int dstAccountId) {
+        submitTransfer(worker, srcAccountId, dstAccountId, true);
+    }
+
+    /**
+     * Submits transfer worker. The worker runs on group commit pipeline if it is enabled
+     * @param lockDestination false to skip in-process lock of destination account. In-process locks only queue
+     *                        the changes of the same account, partitions of both accounts are always held
+     */
+    static void submitTransfer(Worker worker, int srcAccountId, int dstAccountId, boolean lockDestination) {
+        GroupCommitPipeline pipeline = transferPipeline;
+        if (pipeline == null) {
+            if (lockDestination || partitionedExecutor != null) {
+                submit(worker, srcAccountId, dstAccountId);
+            } else {
+                submit(worker, srcAccountId);
+            }
+            return;
+        }
+        if (!pipeline.offer(worker)) {
+            reject(worker);
+        }
+    }
+
+    /**
+     * Submits worker of many transfers. The worker runs on group commit pipeline if it is enabled, otherwise
+     * it locks all the accounts in-process. Accounts are spread over many partitions, so partitions are not used
+     * @param accountIds ids of all accounts changed by the worker
+     */
+    static void submitTransfers(Worker worker, int[] accountIds) {
+        GroupCommitPipeline pipeline = transferPipeline;
+        if (pipeline == null) {
+            worker.lockedAccounts = accountIds;
+            submit(worker);
+            return;
+        }
+        if (!pipeline.offer(worker)) {
+            reject(worker);
+        }
+    }
+
+    /**
+     * Submits worker that changes given account. The worker runs on the partition of the account if partitions are enabled,
+     * otherwise it locks the account in-process
+     */
+    static void submit(Worker worker, int accountId) {
+        PartitionedExecutor partitions = partitionedExecutor;
+        if (partitions == null) {
+            worker.lockedAccounts = new int[]{accountId};
+            submit(worker);
+            return;
+        }
+        worker.submittedNanos = System.nanoTime();
+        worker.submitThread = Thread.currentThread();
+        partitions.execute(accountId, worker, () -> reject(worker));
+    }
+
+    /**
+     * Submits worker that changes two given accounts. The worker runs when both account partitions are free if partitions are enabled,
+     * otherwise it locks both accounts in-process
+     */
+    static void submit(Worker worker, int accountId1, int accountId2) {
+        PartitionedExecutor partitions = partitionedExecutor;
+        if (partitions == null) {
+            worker.lockedAccounts = new int[]{accountId1, accountId2};
+            submit(worker);
+            return;
+        }
+        worker.submittedNanos = System.nanoTime();
+        worker.submitThread = Thread.currentThread();
+        partitions.execute(accountId1, accountId2, worker, () -> reject(worker));
+    }
+
+    /**
+     * Submits worker to the executor. If the executor is full, request is answered with 503 response without running the worker
+     */
+    static void submit(Worker worker) {
+        worker.submittedNanos = System.nanoTime();
+        worker.submitThread = Thread.currentThread();
+
+        Semaphore permits = virtualPermits;
+        if (permits == null) {
+            try {
+                executor.execute(worker);
+            } catch (RejectedExecutionException e) {
+                reject(worker);
+            }
+            return;
+        }
+
+        if (!permits.tryAcquire()) {
+            reject(worker);
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    worker.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            reject(worker);
+        }
+    }
+
+    private static void reject(Worker worker) {
+        REJECTED.increment();
+        LOGGER.warn("Request rejected, executor is full");
+        worker.resume(busyResponse());
+    }
+
+    /**
+     * @return 503 response that asks client to retry later
+     */
+    static Response busyResponse() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds)
+                .entity(new TError(Error.ERR_026))
+                .build();
+    }
+
+    /**
+     * Maps exception raised by operation to error response
+     */
+    static Response errorResponse(Exception e) {
+        LOGGER.error(e.getMessage());
+
+        if (e instanceof ConnectionPoolTimeoutException) {
+            return busyResponse();
+        }
+        if (e instanceof SQLException) {
+            return Response.serverError().entity(new TError(Error.ERR_003)).build();
+        }
+        if (e instanceof ConcurrentUpdateException) {
+            return Response.status(Response.Status.CONFLICT).entity(new TError(Error.ERR_027)).build();
+        }
+        if (e instanceof TransferException) {
+            return Response.status(422, "Transfer failed").entity(new TError(((TransferException) e).getError())).build();
+        }
+        if (e instanceof BusinessException) {
+            return Response.status(422, "Business constraints violation").entity(new TError(((BusinessException) e).getError())).build();
+        }
+        return Response.serverError().entity(new TError(Error.ERR_025)).build();
     }
 
     /**
      * Worker that runs in specific thread and call operation logic within DB context.
      * Operation logic is called inside single db transaction. Transaction is committed after successful operation.
      * Transaction is aborted if operation raises an exception.
+     * If operation name is given, commit time is recorded to the operation.commit timer.
+     * Read-only worker runs operation on read-only connection in auto-commit mode without explicit transaction and commit.
+     * Worker that changes accounts holds their in-process locks from the start of operation till commit.
+     * Operation that failed on concurrent update is rolled back and run again in new transaction after random backoff.
      */
     public static class Worker implements Runnable {
 
+        private static final LongAdder REQUESTS = Metrics.counter("worker.requests");
+        private static final LongAdder REQUESTS_WITHOUT_CONNECTION = Metrics.counter("worker.requestsWithoutConnection");
+        private static final LongAdder THREAD_HANDOFFS = Metrics.counter("worker.threadHandoffs");
+        private static final LongAdder RETRIES = Metrics.counter("worker.retries");
+        private static final LongAdder RETRIES_EXHAUSTED = Metrics.counter("worker.retriesExhausted");
+
         AsyncResponse asyncResponse;
         Callable<Response> method;
+        Timer commitTimer;
+        boolean readOnly;
+        long submittedNanos;
+        Thread submitThread;
+        // accounts locked in-process while the operation runs, null if no locks are needed
+        int[] lockedAccounts;
 
         Worker(AsyncResponse asyncResponse, Callable<Response> method) {
+            this(asyncResponse, null, method);
+        }
+
+        Worker(AsyncResponse asyncResponse, String operation, Callable<Response> method) {
             this.asyncResponse = asyncResponse;
             this.method = method;
+            this.commitTimer = operation != null ? Metrics.timer(operation + ".commit") : null;
+        }
+
+        /**
+         * Creates worker for operation that only reads data
+         */
+        static Worker readOnly(AsyncResponse asyncResponse, Callable<Response> method) {
+            Worker worker = new Worker(asyncResponse, method);
+            worker.readOnly = true;
+            return worker;
         }
 
         @Override
         public void run() {
             Response response;
 
-            // get new DB connection and bind it to current thread that executes operation
-            try(Connection connection = DbProvider.newDBConnection()) {
-                connection.setAutoCommit(false);
-                DbProvider.setThreadConnection(connection);
-                // actual invocation of operation
-                response = method.call();
-                // commit DB state after successful operation
-                connection.commit();
-            } catch (SQLException e) {
-                LOGGER.error(e.getMessage());
-                response = Response.serverError().entity(new TError(Error.ERR_003)).build();
-            } catch (TransferException e) {
-                LOGGER.error(e.getMessage());
-                response = Response.status(422, "Transfer failed").entity(new TError(e.getError())).build();
-            } catch (BusinessException e) {
-                LOGGER.error(e.getMessage());
-                response = Response.status(422, "Business constraints violation").entity(new TError(e.getError())).build();
+            QUEUE_WAIT.recordSince(submittedNanos);
+            REQUESTS.increment();
+            // resource method submits the worker from HTTP request thread, so this is the only handoff of the request
+            if (Thread.currentThread() != submitThread) {
+                THREAD_HANDOFFS.increment();
+            }
+
+            StripedLockManager.Lease lease = null;
+            StripedLockManager locks = accountLocks;
+            if (lockedAccounts != null && locks != null) {
+                try {
+                    lease = locks.tryLock(accountLockTimeoutMillis, lockedAccounts);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (lease == null) {
+                    LOGGER.warn("Request rejected, accounts are locked for too long");
+                    resume(busyResponse());
+                    return;
+                }
+            }
+
+            // bind lazy DB connection to current thread, connection is obtained only when operation touches DB
+            DbProvider.bindLazyConnection(readOnly);
+            try {
+                response = callWithRetries();
             } catch (Exception e) {
-                LOGGER.error(e.getMessage());
-                response = Response.serverError().entity(new TError(Error.ERR_025)).build();
+                response = errorResponse(e);
+            } finally {
+                releaseConnection();
+                if (lease != null) {
+                    lease.close();
+                }
             }
 
+            resume(response);
+        }
+
+        /**
+         * Answers the request with the response of the operation
+         */
+        void resume(Response response) {
             asyncResponse.resume(response);
         }
+
+        private Response callWithRetries() throws Exception {
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    return call();
+                } catch (ConcurrentUpdateException e) {
+                    if (attempt >= maxRetries) {
+                        RETRIES_EXHAUSTED.increment();
+                        throw e;
+                    }
+                    RETRIES.increment();
+                    Connection connection = DbProvider.getBoundConnection();
+                    if (connection != null) {
+                        connection.rollback();
+                    }
+                    // full jitter: random wait up to exponentially growing limit
+                    TimeUnit.MICROSECONDS.sleep(ThreadLocalRandom.current().nextLong((retryBackoffMicros << attempt) + 1));
+                }
+            }
+        }
+
+        /**
+         * Calls operation and commits its changes
+         */
+        private Response call() throws Exception {
+            // actual invocation of operation
+            Response response = method.call();
+            Connection connection = DbProvider.getBoundConnection();
+            if (connection == null) {
+                // operation was rejected before any DB call, there is nothing to commit
+                REQUESTS_WITHOUT_CONNECTION.increment();
+            } else if (!readOnly) {
+                // commit DB state after successful operation, read-only operations have nothing to commit
+                long commitStart = System.nanoTime();
+                connection.commit();
+                if (commitTimer != null) {
+                    commitTimer.recordSince(commitStart);
+                }
+            }
+            return response;
+        }
+
+        private void releaseConnection() {
+            Connection connection = DbProvider.unbindConnection();
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOGGER.error(e.getMessage());
+                }
+            }
+        }
     }
 }
@@ -1,20 +1,47 @@
 package valerii.resources;
 
-import org.glassfish.jersey.server.ManagedAsync;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import valerii.Error;
+import valerii.db.DbProvider;
 import valerii.domain.Account;
+import valerii.exception.ConcurrentUpdateException;
+import valerii.exception.ConnectionPoolTimeoutException;
+import valerii.exception.TransferException;
+import valerii.metrics.Metrics;
 import valerii.resources.ResourceExecutor.Worker;
 import valerii.resources.transport.TError;
 import valerii.resources.transport.TTransferData;
+import valerii.resources.transport.TTransferResult;
 
 import javax.ws.rs.*;
 import javax.ws.rs.container.AsyncResponse;
 import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Endpoint for all operations related to transfer between accounts
@@ -28,45 +55,287 @@ public class TransfersResource {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(TransfersResource.class);
 
+    public static final int DEFAULT_BATCH_WINDOW = 64;
+    public static final int DEFAULT_ATOMIC_BATCH_MAX_SIZE = 10_000;
+
+    private static final LongAdder BATCH_ITEMS = Metrics.counter("transferBatch.items");
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // max number of transfers of per-item batch submitted and not answered yet
+    private static volatile int batchWindow = DEFAULT_BATCH_WINDOW;
+    // max number of transfers of atomic batch, all of them are read before the transaction starts
+    private static volatile int atomicBatchMaxSize = DEFAULT_ATOMIC_BATCH_MAX_SIZE;
+
+    /**
+     * Sets limits of transfer batches
+     * @param window max number of transfers of per-item batch running at the same time
+     * @param atomicMaxSize max number of transfers of atomic batch
+     */
+    public static void initBatch(int window, int atomicMaxSize) {
+        batchWindow = Math.max(window, 1);
+        atomicBatchMaxSize = atomicMaxSize;
+    }
+
+    @POST
+    public void transfer(@Suspended final AsyncResponse asyncResponse, @HeaderParam(IdempotencyStore.HEADER) String idempotencyKey,
+                         TTransferData transferData) {
+        // retry of the transfer with the same key is answered by the response of the first run
+        AsyncResponse response = ResourceExecutor.startIdempotent(asyncResponse, idempotencyKey, fingerprint(transferData));
+        if (response == null) {
+            return;
+        }
+
+        submit(new Worker(response, "transfer", () -> transfer(transferData)), transferData);
+    }
+
+    /**
+     * Runs JSON array of transfers. Per-item batch is read as a stream: each transfer runs as a single transfer request,
+     * up to batch window at the same time, and its result is streamed back in the order of the batch.
+     * Atomic batch runs all transfers in one transaction: the first failed transfer rolls back the whole batch
+     */
     @POST
-    @ManagedAsync
-    public void transfer(@Suspended final AsyncResponse asyncResponse, TTransferData transferData) {
-        ResourceExecutor.getExecutor().execute(new Worker(asyncResponse, () -> {
+    @Path("batch")
+    public void transferBatch(@Suspended final AsyncResponse asyncResponse, InputStream body,
+                              @QueryParam("atomic") @DefaultValue("false") boolean atomic) throws IOException {
+        JsonParser parser = MAPPER.getFactory().createParser(body);
+
+        if (!startsArray(parser)) {
+            parser.close();
+            TError error = new TError(Error.ERR_029);
+            LOGGER.error(error.getMsg());
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(error).build());
+            return;
+        }
+
+        if (atomic) {
+            try (JsonParser batchParser = parser) {
+                transferAtomicBatch(asyncResponse, batchParser);
+            }
+            return;
+        }
+
+        // the stream is read while the results are written
+        asyncResponse.resume(Response.ok((StreamingOutput) output -> transferEachOf(parser, output)).build());
+    }
+
+    private static boolean startsArray(JsonParser parser) throws IOException {
+        try {
+            return parser.nextToken() == JsonToken.START_ARRAY;
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Submits each transfer of the stream and writes the results, reading of the stream stops when the window is full
+     */
+    private void transferEachOf(JsonParser parser, OutputStream output) throws IOException {
+        try (JsonParser batchParser = parser; BatchWriter writer = new BatchWriter(output)) {
+            Deque<CompletableFuture<Response>> pending = new ArrayDeque<>();
+            TError error = null;
+
+            try {
+                for (JsonToken token = batchParser.nextToken(); token != JsonToken.END_ARRAY; token = batchParser.nextToken()) {
+                    TTransferData transferData = readTransferData(batchParser, token);
+                    BATCH_ITEMS.increment();
 
-            Optional<TError> validateError = validateTransferData(transferData);
+                    CompletableFuture<Response> result = new CompletableFuture<>();
+                    submit(new Worker(null, "transfer", () -> transfer(transferData)) {
+                        @Override
+                        void resume(Response response) {
+                            result.complete(response);
+                        }
+                    }, transferData);
+                    pending.add(result);
+
+                    if (pending.size() >= batchWindow) {
+                        writer.result(pending.poll());
+                    }
+                }
+            } catch (JsonProcessingException e) {
+                // transfers read before are still run and answered
+                LOGGER.error(Error.ERR_029.getMsg() + ": " + e.getOriginalMessage());
+                error = new TError(Error.ERR_029);
+            }
 
-            if (validateError.isPresent()) {
-                LOGGER.error(validateError.get().getMsg());
-                return Response.status(Response.Status.BAD_REQUEST).entity(validateError.get()).build();
+            while (!pending.isEmpty()) {
+                writer.result(pending.poll());
             }
+            writer.finish(true, error);
+        }
+    }
 
-            Account srcAccount = Account.getById(transferData.getSrcAccountId());
+    /**
+     * Reads the whole batch and runs it by one worker in one transaction. The worker holds in-process locks
+     * of all accounts of the batch or runs on group commit pipeline as any other transfer
+     */
+    private void transferAtomicBatch(AsyncResponse asyncResponse, JsonParser parser) {
+        if (Account.getUpdateMode() == Account.UpdateMode.SINGLE_WRITER || Account.getTransferMode() == Account.TransferMode.SINGLE_WRITER) {
+            // accounts of the batch are spread over many partitions, the batch cannot hold all of them
+            TError error = new TError(Error.ERR_031);
+            LOGGER.error(error.getMsg());
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(error).build());
+            return;
+        }
 
-            if (srcAccount == null) {
-                TError error = new TError(Error.ERR_018);
-                LOGGER.error(error.getMsg());
-                return Response.status(Response.Status.NOT_FOUND).entity(error).build();
+        List<TTransferData> transfers = new ArrayList<>();
+        Set<Integer> accountIds = new TreeSet<>();
+        try {
+            for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+                if (transfers.size() >= atomicBatchMaxSize) {
+                    TError error = new TError(Error.ERR_030);
+                    LOGGER.error(error.getMsg());
+                    asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(error).build());
+                    return;
+                }
+                TTransferData transferData = readTransferData(parser, token);
+                transfers.add(transferData);
+                if (transferData != null && transferData.getSrcAccountId() != null && transferData.getDstAccountId() != null) {
+                    accountIds.add(transferData.getSrcAccountId());
+                    accountIds.add(transferData.getDstAccountId());
+                }
             }
+        } catch (IOException e) {
+            TError error = new TError(Error.ERR_029);
+            LOGGER.error(error.getMsg() + ": " + e.getMessage());
+            asyncResponse.resume(Response.status(Response.Status.BAD_REQUEST).entity(error).build());
+            return;
+        }
+        BATCH_ITEMS.add(transfers.size());
 
-            Account dstAccount = Account.getById(transferData.getDstAccountId());
+        int[] lockedIds = accountIds.stream().mapToInt(Integer::intValue).toArray();
+        List<Response> results = new ArrayList<>(transfers.size());
+        ResourceExecutor.submitTransfers(new Worker(asyncResponse, "transferBatch", () -> transferAll(transfers, lockedIds, results)) {
+            @Override
+            void resume(Response response) {
+                super.resume(batchResponse(response, results));
+            }
+        }, lockedIds);
+    }
+
+    /**
+     * Runs transfers one by one till the first failed one, then rolls back the batch to the savepoint taken before it,
+     * so other operations sharing the transaction on group commit pipeline are kept
+     * @param accountIds ids of all accounts of the batch in ascending order
+     * @return 200 response if all transfers succeeded, 422 response if the batch was rolled back
+     */
+    private Response transferAll(List<TTransferData> transfers, int[] accountIds, List<Response> results) throws Exception {
+        // retry of the worker runs the batch again from the first transfer
+        results.clear();
+
+        Connection connection = DbProvider.getConnection();
+        Savepoint savepoint = connection.setSavepoint();
+        // all accounts are locked before the first transfer, so batches sharing accounts wait for each other instead of deadlocking
+        Account.lockAll(accountIds);
 
-            if (dstAccount == null) {
-                TError error = new TError(Error.ERR_019);
-                LOGGER.error(error.getMsg());
-                return Response.status(Response.Status.NOT_FOUND).entity(error).build();
+        for (TTransferData transferData : transfers) {
+            Response result;
+            try {
+                result = transfer(transferData);
+            } catch (ConcurrentUpdateException | ConnectionPoolTimeoutException e) {
+                // conflict is retried and busy pool is answered by the worker for the whole batch
+                throw e;
+            } catch (SQLException | TransferException e) {
+                result = ResourceExecutor.errorResponse(e);
             }
+            results.add(result);
 
-            if (srcAccount.getCurrency() != dstAccount.getCurrency()) {
-                TError error = new TError(Error.ERR_021);
-                LOGGER.error(error.getMsg());
-                return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+            if (result.getStatusInfo().getFamily() != Response.Status.Family.SUCCESSFUL) {
+                connection.rollback(savepoint);
+                return Response.status(422).build();
             }
+        }
 
-            srcAccount.transferTo(transferData.getDstAccountId(), transferData.getAmount());
+        return Response.ok().build();
+    }
+
+    /**
+     * Makes response of atomic batch from the response of its worker
+     */
+    private static Response batchResponse(Response response, List<Response> results) {
+        boolean committed = response.getStatus() == Response.Status.OK.getStatusCode();
+        if (!committed && (results.isEmpty()
+                || results.get(results.size() - 1).getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL)) {
+            // batch failed as a whole, e.g. was rejected or not committed
+            return response;
+        }
+
+        return Response.status(committed ? Response.Status.OK.getStatusCode() : 422)
+                .entity((StreamingOutput) output -> {
+                    try (BatchWriter writer = new BatchWriter(output)) {
+                        for (Response result : results) {
+                            writer.result(result);
+                        }
+                        writer.finish(committed, null);
+                    }
+                })
+                .build();
+    }
 
-            return Response.ok().build();
+    private static TTransferData readTransferData(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT && token != JsonToken.VALUE_NULL) {
+            throw new JsonParseException(parser, "Transfer expected instead of " + token);
         }
-        ));
+        // null transfer is rejected by the validation as any other invalid transfer
+        return MAPPER.readValue(parser, TTransferData.class);
+    }
+
+    /**
+     * Submits transfer worker, so it runs under the same locking rules as any other transfer
+     */
+    private void submit(Worker worker, TTransferData transferData) {
+        if (transferData != null && transferData.getSrcAccountId() != null && transferData.getDstAccountId() != null) {
+            // transfer changes both accounts, it runs either on group commit pipeline
+            // or, with partitions enabled, when both account partitions are free
+            // credit of striped account changes one of its stripes, so many transfers may credit it at the same time
+            ResourceExecutor.submitTransfer(worker, transferData.getSrcAccountId(), transferData.getDstAccountId(),
+                    !Account.isKnownStriped(transferData.getDstAccountId()));
+        } else {
+            // invalid transfer data is rejected by the worker without DB changes
+            ResourceExecutor.submit(worker);
+        }
+    }
+
+    private Response transfer(TTransferData transferData) throws SQLException, TransferException {
+        Optional<TError> validateError = validateTransferData(transferData);
+
+        if (validateError.isPresent()) {
+            LOGGER.error(validateError.get().getMsg());
+            return Response.status(Response.Status.BAD_REQUEST).entity(validateError.get()).build();
+        }
+
+        Account srcAccount = Account.getById(transferData.getSrcAccountId());
+
+        if (srcAccount == null) {
+            TError error = new TError(Error.ERR_018);
+            LOGGER.error(error.getMsg());
+            return Response.status(Response.Status.NOT_FOUND).entity(error).build();
+        }
+
+        Account dstAccount = Account.getById(transferData.getDstAccountId());
+
+        if (dstAccount == null) {
+            TError error = new TError(Error.ERR_019);
+            LOGGER.error(error.getMsg());
+            return Response.status(Response.Status.NOT_FOUND).entity(error).build();
+        }
+
+        if (srcAccount.getCurrency() != dstAccount.getCurrency()) {
+            TError error = new TError(Error.ERR_021);
+            LOGGER.error(error.getMsg());
+            return Response.status(Response.Status.BAD_REQUEST).entity(error).build();
+        }
+
+        srcAccount.transferTo(dstAccount, transferData.getAmount());
+
+        return Response.ok().build();
+    }
+
+    private static String fingerprint(TTransferData transferData) {
+        if (transferData == null) {
+            return "transfer";
+        }
+        return "transfer:" + transferData.getSrcAccountId() + ":" + transferData.getDstAccountId() + ":" + transferData.getAmount();
     }
 
     private Optional<TError> validateTransferData(TTransferData transferData) {
@@ -96,4 +365,56 @@ public class TransfersResource {
 
         return Optional.empty();
     }
+
+    /**
+     * Writes results of transfer batch as they come, output is flushed before waiting for the next result
+     */
+    private static class BatchWriter implements Closeable {
+
+        private final JsonGenerator generator;
+        private int index;
+        private int succeeded;
+        private int failed;
+
+        BatchWriter(OutputStream output) throws IOException {
+            generator = MAPPER.getFactory().createGenerator(output);
+            generator.writeStartObject();
+            generator.writeArrayFieldStart("results");
+        }
+
+        void result(CompletableFuture<Response> result) throws IOException {
+            if (!result.isDone()) {
+                generator.flush();
+            }
+            result(result.join());
+        }
+
+        void result(Response response) throws IOException {
+            boolean success = response.getStatusInfo().getFamily() == Response.Status.Family.SUCCESSFUL;
+            if (success) {
+                succeeded++;
+            } else {
+                failed++;
+            }
+            TError error = response.getEntity() instanceof TError ? (TError) response.getEntity() : null;
+            generator.writeObject(new TTransferResult(index++, response.getStatus(), error));
+        }
+
+        void finish(boolean committed, TError error) throws IOException {
+            generator.writeEndArray();
+            generator.writeNumberField("succeeded", succeeded);
+            generator.writeNumberField("failed", failed);
+            generator.writeBooleanField("committed", committed);
+            if (error != null) {
+                generator.writeObjectField("error", error);
+            }
+            generator.writeEndObject();
+            generator.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
 }
@@ -11,6 +11,7 @@ public class TAccount {
     private Integer clientId;
     private String currency;
     private Integer amount;
+    private Integer stripes;
     private String href;
 
     public TAccount() {
@@ -26,6 +27,7 @@ public class TAccount {
         this.clientId = account.getClientId();
         this.currency = account.getCurrency().toString();
         this.amount = account.getAmount();
+        this.stripes = account.getStripes();
         this.href = href;
     }
 
@@ -69,6 +71,14 @@ public class TAccount {
         this.amount = amount;
     }
 
+    public Integer getStripes() {
+        return stripes;
+    }
+
+    public void setStripes(Integer stripes) {
+        this.stripes = stripes;
+    }
+
     public String getHref() {
         return href;
     }
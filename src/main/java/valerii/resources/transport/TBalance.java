@@ -0,0 +1,59 @@
+package valerii.resources.transport;
+
+import valerii.domain.Balance;
+
+/**
+ * Transport object holds balance of an account at a point in time
+ *
+ * @author vliutyi
+ */
+public class TBalance {
+
+    private Integer accountId;
+    private String asOf;
+    private Integer amount;
+    // ledger entries replayed after the nearest checkpoint
+    private Integer replayedEntries;
+
+    public TBalance() {
+    }
+
+    public TBalance(Balance balance) {
+        this.accountId = balance.getAccountId();
+        this.asOf = balance.getAsOf().toString();
+        this.amount = balance.getAmount();
+        this.replayedEntries = balance.getReplayedEntries();
+    }
+
+    public Integer getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(Integer accountId) {
+        this.accountId = accountId;
+    }
+
+    public String getAsOf() {
+        return asOf;
+    }
+
+    public void setAsOf(String asOf) {
+        this.asOf = asOf;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public Integer getReplayedEntries() {
+        return replayedEntries;
+    }
+
+    public void setReplayedEntries(Integer replayedEntries) {
+        this.replayedEntries = replayedEntries;
+    }
+}
@@ -0,0 +1,69 @@
+package valerii.resources.transport;
+
+import valerii.domain.LedgerEntry;
+
+/**
+ * Transport object holds one balance change of an account
+ *
+ * @author vliutyi
+ */
+public class TLedgerEntry {
+
+    private Integer id;
+    private Integer accountId;
+    private Integer amount;
+    // other account of the transfer, null if the change is not a transfer
+    private Integer counterpartyId;
+    private String createdDate;
+
+    public TLedgerEntry() {
+    }
+
+    public TLedgerEntry(LedgerEntry entry) {
+        this.id = entry.getId();
+        this.accountId = entry.getAccountId();
+        this.amount = entry.getAmount();
+        this.counterpartyId = entry.getCounterpartyId() != 0 ? entry.getCounterpartyId() : null;
+        this.createdDate = entry.getCreatedDate().toString();
+    }
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public Integer getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(Integer accountId) {
+        this.accountId = accountId;
+    }
+
+    public Integer getAmount() {
+        return amount;
+    }
+
+    public void setAmount(Integer amount) {
+        this.amount = amount;
+    }
+
+    public Integer getCounterpartyId() {
+        return counterpartyId;
+    }
+
+    public void setCounterpartyId(Integer counterpartyId) {
+        this.counterpartyId = counterpartyId;
+    }
+
+    public String getCreatedDate() {
+        return createdDate;
+    }
+
+    public void setCreatedDate(String createdDate) {
+        this.createdDate = createdDate;
+    }
+}
@@ -0,0 +1,56 @@
+package valerii.resources.transport;
+
+/**
+ * Transport object holds the result of one row of bulk onboarding: created client or account, or the error
+ *
+ * @author vliutyi
+ */
+public class TOnboardingResult {
+
+    private int index;
+    private int status;
+    private TClient client;
+    private TAccount account;
+    private TError error;
+
+    public TOnboardingResult() {
+    }
+
+    public TOnboardingResult(int index, TClient client) {
+        this.index = index;
+        this.status = 201;
+        this.client = client;
+    }
+
+    public TOnboardingResult(int index, TAccount account) {
+        this.index = index;
+        this.status = 201;
+        this.account = account;
+    }
+
+    public TOnboardingResult(int index, int status, TError error) {
+        this.index = index;
+        this.status = status;
+        this.error = error;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public TClient getClient() {
+        return client;
+    }
+
+    public TAccount getAccount() {
+        return account;
+    }
+
+    public TError getError() {
+        return error;
+    }
+}
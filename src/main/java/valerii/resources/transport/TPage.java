@@ -0,0 +1,40 @@
+package valerii.resources.transport;
+
+import java.util.List;
+
+/**
+ * Transport object holds one page of a listing
+ *
+ * @param <T> transport object of listed rows
+ * @author vliutyi
+ */
+public class TPage<T> {
+
+    private List<T> items;
+    // continuation token of the next page, null if this page is the last one
+    private String next;
+
+    public TPage() {
+    }
+
+    public TPage(List<T> items, String next) {
+        this.items = items;
+        this.next = next;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public void setItems(List<T> items) {
+        this.items = items;
+    }
+
+    public String getNext() {
+        return next;
+    }
+
+    public void setNext(String next) {
+        this.next = next;
+    }
+}
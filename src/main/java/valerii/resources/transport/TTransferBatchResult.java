@@ -0,0 +1,40 @@
+package valerii.resources.transport;
+
+import java.util.List;
+
+/**
+ * Transport object holds the results of transfer batch. Server streams it field by field, results come first
+ *
+ * @author vliutyi
+ */
+public class TTransferBatchResult {
+
+    private List<TTransferResult> results;
+    private int succeeded;
+    private int failed;
+    private boolean committed;
+    private TError error;
+
+    public TTransferBatchResult() {
+    }
+
+    public List<TTransferResult> getResults() {
+        return results;
+    }
+
+    public int getSucceeded() {
+        return succeeded;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    public TError getError() {
+        return error;
+    }
+}
@@ -0,0 +1,34 @@
+package valerii.resources.transport;
+
+/**
+ * Transport object holds the result of one transfer of the batch
+ *
+ * @author vliutyi
+ */
+public class TTransferResult {
+
+    private int index;
+    private int status;
+    private TError error;
+
+    public TTransferResult() {
+    }
+
+    public TTransferResult(int index, int status, TError error) {
+        this.index = index;
+        this.status = status;
+        this.error = error;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public TError getError() {
+        return error;
+    }
+}
@@ -0,0 +1,157 @@
+package valerii;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import valerii.domain.Currency;
+import valerii.resources.transport.TAccount;
+import valerii.resources.transport.TError;
+import valerii.resources.transport.TPage;
+
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * @author vliutyi
+ */
+public class AccountsResourceIT extends ITTestBase {
+
+    private static final String ENDPOINT_ACCOUNTS = "accounts";
+    private static final String ENDPOINT_EXPORT = "accounts/export";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Test
+    public void exportStreamsAllAccountsOK() throws IOException {
+        TAccount account = createAccountForNewClient(Currency.USD.toString());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, 40).getStatus());
+        TAccount stripedAccount = createStripedAccountForNewClient(Currency.EUR.toString(), 4);
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(stripedAccount, 30).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(stripedAccount, 20).getStatus());
+
+        Response response = webTarget.get().path(ENDPOINT_EXPORT).request().get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals("application/x-ndjson", response.getMediaType().toString(), "Wrong media type");
+        assertNull(response.getHeaderString("Content-Encoding"), "Not requested compression");
+
+        Map<Integer, TAccount> exported = readAccounts(response.readEntity(InputStream.class));
+        assertEquals(40, exported.get(account.getId()).getAmount(), "Wrong amount");
+        assertEquals(account.getHref(), exported.get(account.getId()).getHref(), "Wrong href");
+        assertEquals(50, exported.get(stripedAccount.getId()).getAmount(), "Striped amount must be the sum of stripes");
+    }
+
+    @Test
+    public void exportByCurrencyOK() throws IOException {
+        TAccount rubAccount = createAccountForNewClient(Currency.RUB.toString());
+        TAccount usdAccount = createAccountForNewClient(Currency.USD.toString());
+
+        Response response = webTarget.get().path(ENDPOINT_EXPORT).queryParam("currency", "RUB").request().get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        Map<Integer, TAccount> exported = readAccounts(response.readEntity(InputStream.class));
+        assertTrue(exported.containsKey(rubAccount.getId()), "Account of the currency must be exported");
+        assertFalse(exported.containsKey(usdAccount.getId()), "Account of other currency must not be exported");
+        for (TAccount account : exported.values()) {
+            assertEquals(Currency.RUB.toString(), account.getCurrency(), "Wrong currency");
+        }
+    }
+
+    @Test
+    public void exportCompressedByGzipOK() throws IOException {
+        TAccount account = createAccountForNewClient(Currency.EUR.toString());
+
+        Response response = webTarget.get().path(ENDPOINT_EXPORT).request().header("Accept-Encoding", "gzip").get();
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals("gzip", response.getHeaderString("Content-Encoding"), "Wrong content encoding");
+        Map<Integer, TAccount> exported = readAccounts(new GZIPInputStream(response.readEntity(InputStream.class)));
+        assertTrue(exported.containsKey(account.getId()), "Account must be exported");
+    }
+
+    @Test
+    public void exportByUnknownCurrencyReturnError() {
+        Response response = webTarget.get().path(ENDPOINT_EXPORT).queryParam("currency", "XYZ").request().get();
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_010.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void listAccountsByCurrencyPageByPageOK() {
+        List<Integer> createdIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            createdIds.add(createAccountForNewClient(Currency.USD.toString()).getId());
+            createAccountForNewClient(Currency.EUR.toString());
+        }
+
+        List<Integer> listedIds = new ArrayList<>();
+        String after = null;
+        do {
+            TPage<TAccount> page = getAccountsPage("USD", 2, after);
+            assertTrue(page.getItems().size() <= 2, "Page is bigger than limit");
+            for (TAccount account : page.getItems()) {
+                assertEquals(Currency.USD.toString(), account.getCurrency(), "Wrong currency");
+                assertTrue(listedIds.isEmpty() || account.getId() > listedIds.get(listedIds.size() - 1), "Accounts must be listed in the order of ids");
+                listedIds.add(account.getId());
+            }
+            after = page.getNext();
+        } while (after != null);
+
+        assertTrue(listedIds.containsAll(createdIds), "All accounts of the currency must be listed");
+    }
+
+    @Test
+    public void listAccountsWithTokenOfOtherListingReturnsError() {
+        createAccountForNewClient(Currency.RUB.toString());
+        createAccountForNewClient(Currency.RUB.toString());
+        String next = getAccountsPage("RUB", 1, null).getNext();
+        assertNotNull(next, "First page must have next page");
+
+        Response response = webTarget.get().path(ENDPOINT_ACCOUNTS).queryParam("currency", "EUR").queryParam("after", next)
+                .request(MediaType.APPLICATION_JSON).get();
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_035.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    private TPage<TAccount> getAccountsPage(String currency, int limit, String after) {
+        WebTarget target = webTarget.get().path(ENDPOINT_ACCOUNTS).queryParam("currency", currency).queryParam("limit", limit);
+        if (after != null) {
+            target = target.queryParam("after", after);
+        }
+        Response response = target.request(MediaType.APPLICATION_JSON).get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        return response.readEntity(new GenericType<TPage<TAccount>>() {});
+    }
+
+    /**
+     * Reads exported accounts by id, checks that accounts come in the order of ids
+     */
+    private static Map<Integer, TAccount> readAccounts(InputStream body) throws IOException {
+        Map<Integer, TAccount> accounts = new LinkedHashMap<>();
+        int lastId = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(body, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                TAccount account = MAPPER.readValue(line, TAccount.class);
+                assertTrue(account.getId() > lastId, "Accounts must be exported in the order of ids");
+                lastId = account.getId();
+                accounts.put(account.getId(), account);
+            }
+        }
+        return accounts;
+    }
+}
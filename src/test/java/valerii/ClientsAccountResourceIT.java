@@ -1,19 +1,34 @@
 package valerii;
 
 import org.junit.jupiter.api.Test;
+import valerii.domain.Account;
 import valerii.domain.Currency;
 import valerii.resources.transport.TAccount;
+import valerii.resources.transport.TBalance;
 import valerii.resources.transport.TClient;
+import valerii.resources.transport.TDebitWithdraw;
 import valerii.resources.transport.TError;
+import valerii.resources.transport.TLedgerEntry;
+import valerii.resources.transport.TOnboardingResult;
+import valerii.resources.transport.TPage;
+import valerii.resources.transport.TTransferData;
 
+import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.Response;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 /**
@@ -55,6 +70,103 @@ public class ClientsAccountResourceIT extends ITTestBase {
         assertEquals(Error.ERR_010.getCode(), error.getCode(), "Wrong error code");
     }
 
+    @Test
+    public void createStripedAccountOK() {
+        TAccount account = createStripedAccountForNewClient(Currency.EUR.toString(), 4);
+
+        assertEquals(4, account.getStripes(), "Wrong stripes");
+        assertEquals(0, account.getAmount(), "Wrong amount");
+
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, 30).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, 20).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, -45).getStatus());
+        assertEquals(5, getAccountInfo(account).getAmount(), "Wrong amount");
+
+        Response response = postDebitWithdrawAccount(account, -6);
+        assertEquals(422, response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_014.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void debitRetriedWithIdempotencyKeyRunsOnce() {
+        TAccount account = createAccountForNewClient(Currency.USD.toString());
+        String key = "debit-" + account.getId();
+
+        for (int i = 0; i < 3; i++) {
+            Invocation.Builder builder = webTarget.get().path(createURLForClientAccount(account.getClientId(), account.getId()))
+                    .request(MediaType.APPLICATION_JSON)
+                    .header("Idempotency-Key", key);
+            Response response = builder.post(Entity.json(new TDebitWithdraw(100)));
+
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+            // each retry gets the balance of the first run
+            assertEquals(100, response.readEntity(TAccount.class).getAmount(), "Wrong amount in response");
+        }
+
+        assertEquals(100, getAccountInfo(account).getAmount(), "Debit must be applied once");
+    }
+
+    @Test
+    public void bulkOnboardingOK() {
+        String name1 = createUniqueName();
+        String name2 = createUniqueName();
+
+        List<TOnboardingResult> clients = postBulk("bulk",
+                Arrays.asList(new TClient(name1), new TClient(name2), new TClient(name1), new TClient(null)));
+
+        assertEquals(Arrays.asList(201, 201, 422, 400), clients.stream().map(TOnboardingResult::getStatus).toList(), "Wrong row statuses");
+        assertEquals(name1, clients.get(0).getClient().getName());
+        assertEquals(Error.ERR_005.getCode(), clients.get(2).getError().getCode(), "Wrong error code");
+        assertNull(clients.get(2).getClient());
+        assertEquals(Error.ERR_006.getCode(), clients.get(3).getError().getCode(), "Wrong error code");
+        int clientId1 = clients.get(0).getClient().getId();
+        int clientId2 = clients.get(1).getClient().getId();
+
+        TAccount stripedAccount = new TAccount(clientId2, Currency.USD.toString());
+        stripedAccount.setStripes(2);
+        List<TOnboardingResult> accounts = postBulk("accounts/bulk", Arrays.asList(
+                new TAccount(clientId1, Currency.EUR.toString()),
+                stripedAccount,
+                new TAccount(clientId1, Currency.EUR.toString()),
+                new TAccount(Integer.MAX_VALUE, Currency.EUR.toString()),
+                new TAccount(clientId2, "XXX")));
+
+        assertEquals(Arrays.asList(201, 201, 422, 422, 400), accounts.stream().map(TOnboardingResult::getStatus).toList(), "Wrong row statuses");
+        assertEquals(Error.ERR_008.getCode(), accounts.get(2).getError().getCode(), "Wrong error code");
+        assertEquals(Error.ERR_001.getCode(), accounts.get(3).getError().getCode(), "Wrong error code");
+        assertEquals(Error.ERR_010.getCode(), accounts.get(4).getError().getCode(), "Wrong error code");
+
+        // created accounts work as any other account
+        TAccount account1 = accounts.get(0).getAccount();
+        TAccount account2 = accounts.get(1).getAccount();
+        assertEquals(2, account2.getStripes(), "Wrong stripes");
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account1, 30).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account2, 40).getStatus());
+        assertEquals(30, getAccountInfo(account1).getAmount(), "Wrong amount");
+        assertEquals(40, getAccountInfo(account2).getAmount(), "Wrong amount");
+    }
+
+    @Test
+    public void bulkOnboardingTooManyRowsReturnError() {
+        TClient[] clients = new TClient[10_001];
+        Arrays.fill(clients, new TClient("Bulk"));
+        Invocation.Builder builder = webTarget.get().path(ENDPOINT_CLIENTS + "/bulk").request(MediaType.APPLICATION_JSON);
+        Response response = builder.post(Entity.json(Arrays.asList(clients)));
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_032.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void createAccountWithTooManyStripesReturnError() {
+        TClient client = createNewClient(createUniqueName());
+        Response accountResponse = postNewAccount(client.getId(), Currency.EUR.toString(), Account.MAX_STRIPES + 1);
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), accountResponse.getStatus(), "Wrong response status");
+        TError error = accountResponse.readEntity(TError.class);
+        assertEquals(Error.ERR_028.getCode(), error.getCode(), "Wrong error code");
+    }
+
     @Test
     public void createAccountForUnknownClientReturnError() {
         Response accountResponse = postNewAccount(666, Currency.EUR.toString());
@@ -195,4 +307,120 @@ public class ClientsAccountResourceIT extends ITTestBase {
 
         assertEquals(250, updatedAccount.getAmount(), account.getId(), "Wrong amount after parallel update");
     }
-}
\ No newline at end of file
+
+    @Test
+    public void accountTransactionsPageByPageOK() {
+        TAccount account = createAccountForNewClient(Currency.USD.toString());
+        TAccount dstAccount = createAccountForNewClient(Currency.USD.toString());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, 40).getStatus());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, -10).getStatus());
+        Response transferResponse = webTarget.get().path(ENDPOINT_TRANSFERS).request(MediaType.APPLICATION_JSON)
+                .post(Entity.json(new TTransferData(account.getId(), dstAccount.getId(), 5)));
+        assertEquals(Response.Status.OK.getStatusCode(), transferResponse.getStatus());
+
+        List<TLedgerEntry> entries = new ArrayList<>();
+        String after = null;
+        do {
+            TPage<TLedgerEntry> page = getTransactionsPage(account, 2, after);
+            assertTrue(page.getItems().size() <= 2, "Page is bigger than limit");
+            entries.addAll(page.getItems());
+            after = page.getNext();
+        } while (after != null);
+
+        // entries come in the order they were appended
+        assertEquals(3, entries.size(), "Wrong number of entries");
+        assertEquals(40, entries.get(0).getAmount(), "Wrong amount of debit entry");
+        assertNull(entries.get(0).getCounterpartyId(), "Debit has no counterparty");
+        assertEquals(-10, entries.get(1).getAmount(), "Wrong amount of withdraw entry");
+        assertEquals(-5, entries.get(2).getAmount(), "Wrong amount of transfer entry");
+        assertEquals(dstAccount.getId(), entries.get(2).getCounterpartyId(), "Wrong counterparty of transfer entry");
+        for (TLedgerEntry entry : entries) {
+            assertEquals(account.getId(), entry.getAccountId(), "Entry of other account");
+        }
+
+        List<TLedgerEntry> dstEntries = getTransactionsPage(dstAccount, 10, null).getItems();
+        assertEquals(1, dstEntries.size(), "Wrong number of dst entries");
+        assertEquals(5, dstEntries.get(0).getAmount(), "Wrong amount of transfer entry");
+        assertEquals(account.getId(), dstEntries.get(0).getCounterpartyId(), "Wrong counterparty of transfer entry");
+    }
+
+    @Test
+    public void accountTransactionsOfOtherClientReturnError() {
+        TAccount account = createAccountForNewClient(Currency.EUR.toString());
+        TClient otherClient = createNewClient(createUniqueName());
+
+        Response response = webTarget.get().path(createURLForClientAccount(otherClient.getId(), account.getId()) + "/transactions")
+                .request(MediaType.APPLICATION_JSON).get();
+
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_011.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void accountBalanceAsOfOK() throws InterruptedException {
+        LocalDateTime beforeCreation = LocalDateTime.now();
+        Thread.sleep(20);
+        TAccount account = createAccountForNewClient(Currency.RUB.toString());
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, 40).getStatus());
+        Thread.sleep(20);
+        LocalDateTime afterDebit = LocalDateTime.now();
+        Thread.sleep(20);
+        assertEquals(Response.Status.OK.getStatusCode(), postDebitWithdrawAccount(account, -10).getStatus());
+
+        TBalance balance = getBalance(account, afterDebit.toString());
+        assertEquals(account.getId(), balance.getAccountId(), "Wrong account");
+        assertEquals(40, balance.getAmount(), "Wrong balance after debit");
+        assertEquals(30, getBalance(account, null).getAmount(), "Current balance must match the account amount");
+        assertEquals(0, getBalance(account, beforeCreation.toString()).getAmount(), "Balance before any change must be 0");
+    }
+
+    @Test
+    public void accountBalanceWithWrongTimeReturnError() {
+        TAccount account = createAccountForNewClient(Currency.USD.toString());
+
+        Response response = webTarget.get().path(account.getHref() + "/balance").queryParam("asOf", "yesterday")
+                .request(MediaType.APPLICATION_JSON).get();
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_037.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void accountBalanceOfOtherClientReturnError() {
+        TAccount account = createAccountForNewClient(Currency.EUR.toString());
+        TClient otherClient = createNewClient(createUniqueName());
+
+        Response response = webTarget.get().path(createURLForClientAccount(otherClient.getId(), account.getId()) + "/balance")
+                .request(MediaType.APPLICATION_JSON).get();
+
+        assertEquals(Response.Status.NOT_FOUND.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_011.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    private TBalance getBalance(TAccount account, String asOf) {
+        WebTarget target = webTarget.get().path(account.getHref() + "/balance");
+        if (asOf != null) {
+            target = target.queryParam("asOf", asOf);
+        }
+        Response response = target.request(MediaType.APPLICATION_JSON).get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        return response.readEntity(TBalance.class);
+    }
+
+    private TPage<TLedgerEntry> getTransactionsPage(TAccount account, int limit, String after) {
+        WebTarget target = webTarget.get().path(account.getHref() + "/transactions").queryParam("limit", limit);
+        if (after != null) {
+            target = target.queryParam("after", after);
+        }
+        Response response = target.request(MediaType.APPLICATION_JSON).get();
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        return response.readEntity(new GenericType<TPage<TLedgerEntry>>() {});
+    }
+
+    private List<TOnboardingResult> postBulk(String path, List<?> rows) {
+        Invocation.Builder builder = webTarget.get().path(ENDPOINT_CLIENTS + "/" + path).request(MediaType.APPLICATION_JSON);
+        Response response = builder.post(Entity.json(rows));
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        return response.readEntity(new GenericType<List<TOnboardingResult>>() {});
+    }
+}
@@ -3,10 +3,15 @@ package valerii;
 import org.junit.jupiter.api.Test;
 import valerii.resources.transport.TClient;
 import valerii.resources.transport.TError;
+import valerii.resources.transport.TPage;
 
 import javax.ws.rs.client.Invocation;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -72,4 +77,44 @@ public class ClientsResourceIT extends ITTestBase {
         TError error = response.readEntity(TError.class);
         assertEquals(Error.ERR_001.getCode(), error.getCode(), "Wrong error code");
     }
+
+    @Test
+    public void listClientsPageByPageOK() {
+        List<Integer> createdIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            createdIds.add(createNewClient(createUniqueName()).getId());
+        }
+
+        List<Integer> listedIds = new ArrayList<>();
+        String after = null;
+        do {
+            WebTarget target = webTarget.get().path(ENDPOINT_CLIENTS).queryParam("limit", 2);
+            if (after != null) {
+                target = target.queryParam("after", after);
+            }
+            Response response = target.request(MediaType.APPLICATION_JSON).get();
+            assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+
+            TPage<TClient> page = response.readEntity(new GenericType<TPage<TClient>>() {});
+            assertTrue(page.getItems().size() <= 2, "Page is bigger than limit");
+            for (TClient client : page.getItems()) {
+                assertTrue(listedIds.isEmpty() || client.getId() > listedIds.get(listedIds.size() - 1), "Clients must be listed in the order of ids");
+                listedIds.add(client.getId());
+            }
+            after = page.getNext();
+        } while (after != null);
+
+        assertTrue(listedIds.containsAll(createdIds), "All clients must be listed");
+    }
+
+    @Test
+    public void listClientsWithWrongPageReturnsError() {
+        Response response = webTarget.get().path(ENDPOINT_CLIENTS).queryParam("after", "not-a-token").request(MediaType.APPLICATION_JSON).get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_035.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+
+        response = webTarget.get().path(ENDPOINT_CLIENTS).queryParam("limit", 0).request(MediaType.APPLICATION_JSON).get();
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_036.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
 }
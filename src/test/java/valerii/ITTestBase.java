@@ -4,7 +4,7 @@ import org.eclipse.jetty.server.Server;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
 import valerii.db.DbProvider;
-import valerii.db.H2Provider;
+import valerii.resources.ResourceExecutor;
 import valerii.resources.transport.TAccount;
 import valerii.resources.transport.TClient;
 import valerii.resources.transport.TDebitWithdraw;
@@ -15,7 +15,7 @@ import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
-import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
@@ -29,14 +29,19 @@ public class ITTestBase {
     static final String ENDPOINT_TRANSFERS = "transfers";
     private static final String ENDPOINT_ROOT = "http://localhost:9999/api";
 
+    private static final AtomicInteger CLIENT_NUMBER = new AtomicInteger();
+
     private static Server server;
     static ThreadLocal<WebTarget> webTarget = ThreadLocal.withInitial(() -> ClientBuilder.newClient().target(ENDPOINT_ROOT));
 
     @BeforeAll
     public static void startServer() throws Exception {
         server = Main.initServer(9999);
-        DbProvider.setProvider(new H2Provider());
+        Main.initExecutor();
+        Main.initAccountModes();
+        DbProvider.setProvider(Main.initDbProvider());
         DbProvider.createDBTables();
+        Main.initLedgerCheckpoints();
 
         server.start();
     }
@@ -44,6 +49,7 @@ public class ITTestBase {
     @AfterAll
     public static void stopServer() throws Exception {
         server.stop();
+        ResourceExecutor.initLedgerCheckpoints(0, 0, 0, 0);
         DbProvider.dropDBTables();
     }
 
@@ -59,8 +65,14 @@ public class ITTestBase {
     }
 
     Response postNewAccount(int clientId, String currency) {
+        return postNewAccount(clientId, currency, null);
+    }
+
+    Response postNewAccount(int clientId, String currency, Integer stripes) {
+        TAccount accountData = new TAccount(clientId, currency);
+        accountData.setStripes(stripes);
         Invocation.Builder builder = webTarget.get().path(ENDPOINT_CLIENTS + "/" + clientId + "/account").request(MediaType.APPLICATION_JSON);
-        return builder.post(Entity.json(new TAccount(clientId, currency)));
+        return builder.post(Entity.json(accountData));
     }
 
     Response postDebitWithdrawAccount(TAccount account, Integer amount) {
@@ -79,6 +91,13 @@ public class ITTestBase {
         return accountResponse.readEntity(TAccount.class);
     }
 
+    TAccount createStripedAccountForNewClient(String currency, int stripes) {
+        TClient client = createNewClient(createUniqueName());
+        Response accountResponse = postNewAccount(client.getId(), currency, stripes);
+        assertEquals(Response.Status.CREATED.getStatusCode(), accountResponse.getStatus());
+        return accountResponse.readEntity(TAccount.class);
+    }
+
     TAccount getAccountInfo(TAccount account) {
         Invocation.Builder builder = webTarget.get().path(account.getHref()).request(MediaType.APPLICATION_JSON);
         Response response = builder.get();
@@ -88,7 +107,7 @@ public class ITTestBase {
     }
 
     String createUniqueName() {
-        return "Client" + new Random().nextInt(1000);
+        return "Client" + CLIENT_NUMBER.incrementAndGet();
     }
 
     String createURLForClientAccount(int clientId, int accountId) {
@@ -3,19 +3,27 @@ package valerii;
 import org.junit.jupiter.api.Test;
 import valerii.domain.Currency;
 import valerii.resources.transport.TAccount;
+import valerii.domain.Account;
 import valerii.resources.transport.TError;
+import valerii.resources.transport.TTransferBatchResult;
 import valerii.resources.transport.TTransferData;
+import valerii.resources.transport.TTransferResult;
 
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 
+import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 /**
  * @author vliutyi
@@ -165,6 +173,153 @@ public class TransfersResourceIT extends ITTestBase {
         assertEquals(620, updatedAccount.getAmount(), "Wrong amount on account2 after parallel transfer");
     }
 
+    @Test
+    public void transferToStripedAccountInParallelOK() throws InterruptedException {
+        TAccount hotAccount = createStripedAccountForNewClient(Currency.USD.toString(), 4);
+        TAccount[] accounts = create2AccountsWithAmount(Currency.USD.toString(), 500, Currency.USD.toString(), 500);
+        TAccount account1 = accounts[0];
+        TAccount account2 = accounts[1];
+
+        ExecutorService service = Executors.newCachedThreadPool();
+        // 20 threads transfer 10 from each of account1 and account2 to striped account: 400 in total
+        for (int i = 0; i < 20; i++) {
+            service.execute(() -> postTransfer(account1.getId(), hotAccount.getId(), 10));
+            service.execute(() -> postTransfer(account2.getId(), hotAccount.getId(), 10));
+        }
+
+        service.shutdown();
+        service.awaitTermination(5, TimeUnit.SECONDS);
+
+        assertEquals(400, getAccountInfo(hotAccount).getAmount(), "Wrong amount on striped account after parallel transfer");
+        assertEquals(300, getAccountInfo(account1).getAmount(), "Wrong amount on account1 after parallel transfer");
+
+        // debit takes the amount from several stripes
+        assertEquals(Response.Status.OK.getStatusCode(), postTransfer(hotAccount.getId(), account1.getId(), 390).getStatus());
+        assertEquals(10, getAccountInfo(hotAccount).getAmount(), "Wrong amount on striped account after transfer");
+        assertEquals(690, getAccountInfo(account1).getAmount(), "Wrong amount on account1 after transfer");
+
+        Response response = postTransfer(hotAccount.getId(), account1.getId(), 11);
+        assertEquals(422, response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_014.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+    }
+
+    @Test
+    public void transferRetriedWithIdempotencyKeyRunsOnce() {
+        TAccount[] accounts = create2AccountsWithAmount(Currency.EUR.toString(), 100, Currency.EUR.toString(), 100);
+        TAccount srcAccount = accounts[0];
+        TAccount dstAccount = accounts[1];
+        String key = "transfer-" + srcAccount.getId();
+
+        Response response = postTransfer(key, srcAccount.getId(), dstAccount.getId(), 30);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response code");
+        assertNull(response.getHeaderString("Idempotent-Replayed"));
+
+        response = postTransfer(key, srcAccount.getId(), dstAccount.getId(), 30);
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response code");
+        assertEquals("true", response.getHeaderString("Idempotent-Replayed"));
+
+        assertEquals(70, getAccountInfo(srcAccount).getAmount(), "Transfer must be applied once");
+        assertEquals(130, getAccountInfo(dstAccount).getAmount(), "Transfer must be applied once");
+
+        // the same key with other data is rejected
+        response = postTransfer(key, srcAccount.getId(), dstAccount.getId(), 40);
+        assertEquals(422, response.getStatus(), "Wrong response code");
+        assertEquals(Error.ERR_033.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+        assertEquals(70, getAccountInfo(srcAccount).getAmount(), "Wrong amount in src account");
+    }
+
+    @Test
+    public void transferBatchRunsEachTransferOK() {
+        TAccount[] accounts = create2AccountsWithAmount(Currency.EUR.toString(), 100, Currency.EUR.toString(), 100);
+        TAccount account1 = accounts[0];
+        TAccount account2 = accounts[1];
+
+        Response response = postTransferBatch(false,
+                new TTransferData(account1.getId(), account2.getId(), 30),
+                new TTransferData(account2.getId(), account1.getId(), 500),
+                null,
+                new TTransferData(account1.getId(), account2.getId(), 20));
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        TTransferBatchResult result = response.readEntity(TTransferBatchResult.class);
+        assertEquals(Arrays.asList(200, 422, 400, 200), result.getResults().stream().map(TTransferResult::getStatus).toList(), "Wrong transfer statuses");
+        assertEquals(Error.ERR_014.getCode(), result.getResults().get(1).getError().getCode(), "Wrong error code");
+        assertEquals(Error.ERR_015.getCode(), result.getResults().get(2).getError().getCode(), "Wrong error code");
+        assertNull(result.getResults().get(3).getError());
+        assertEquals(2, result.getSucceeded());
+        assertEquals(2, result.getFailed());
+        assertTrue(result.isCommitted());
+
+        assertEquals(50, getAccountInfo(account1).getAmount(), "Wrong amount in account1");
+        assertEquals(150, getAccountInfo(account2).getAmount(), "Wrong amount in account2");
+    }
+
+    @Test
+    public void transferLargeBatchOK() {
+        TAccount[] accounts = create2AccountsWithAmount(Currency.USD.toString(), 1000, Currency.USD.toString(), 0);
+        TAccount account1 = accounts[0];
+        TAccount account2 = accounts[1];
+
+        // more transfers than the batch window, each of them runs on its own
+        TTransferData[] transfers = new TTransferData[500];
+        Arrays.fill(transfers, new TTransferData(account1.getId(), account2.getId(), 1));
+        Response response = postTransferBatch(false, transfers);
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        TTransferBatchResult result = response.readEntity(TTransferBatchResult.class);
+        assertEquals(500, result.getResults().size());
+        assertEquals(499, result.getResults().get(499).getIndex());
+        assertEquals(500, result.getSucceeded());
+
+        assertEquals(500, getAccountInfo(account1).getAmount(), "Wrong amount in account1");
+        assertEquals(500, getAccountInfo(account2).getAmount(), "Wrong amount in account2");
+    }
+
+    @Test
+    public void atomicTransferBatchIsRolledBackOnFailure() {
+        assumeTrue(Account.getTransferMode() != Account.TransferMode.SINGLE_WRITER, "Atomic batch needs row locks");
+        TAccount[] accounts = create2AccountsWithAmount(Currency.EUR.toString(), 100, Currency.EUR.toString(), 100);
+        TAccount account1 = accounts[0];
+        TAccount account2 = accounts[1];
+
+        Response response = postTransferBatch(true,
+                new TTransferData(account1.getId(), account2.getId(), 30),
+                new TTransferData(account2.getId(), account1.getId(), 500),
+                new TTransferData(account1.getId(), account2.getId(), 20));
+
+        assertEquals(422, response.getStatus(), "Wrong response status");
+        TTransferBatchResult result = response.readEntity(TTransferBatchResult.class);
+        assertFalse(result.isCommitted());
+        // batch stops at the first failed transfer
+        assertEquals(2, result.getResults().size());
+        assertEquals(Error.ERR_014.getCode(), result.getResults().get(1).getError().getCode(), "Wrong error code");
+        assertEquals(100, getAccountInfo(account1).getAmount(), "Wrong amount in account1 after rollback");
+        assertEquals(100, getAccountInfo(account2).getAmount(), "Wrong amount in account2 after rollback");
+
+        response = postTransferBatch(true,
+                new TTransferData(account1.getId(), account2.getId(), 30),
+                new TTransferData(account2.getId(), account1.getId(), 120));
+
+        assertEquals(Response.Status.OK.getStatusCode(), response.getStatus(), "Wrong response status");
+        result = response.readEntity(TTransferBatchResult.class);
+        assertTrue(result.isCommitted());
+        assertEquals(2, result.getSucceeded());
+        assertEquals(190, getAccountInfo(account1).getAmount(), "Wrong amount in account1");
+        assertEquals(10, getAccountInfo(account2).getAmount(), "Wrong amount in account2");
+    }
+
+    @Test
+    public void transferBatchNotArrayReturnError() {
+        TAccount[] accounts = create2AccountsWithAmount(Currency.EUR.toString(), 100, Currency.EUR.toString(), 100);
+
+        Invocation.Builder builder = webTarget.get().path(ENDPOINT_TRANSFERS + "/batch").request(MediaType.APPLICATION_JSON);
+        Response response = builder.post(Entity.json(new TTransferData(accounts[0].getId(), accounts[1].getId(), 10)));
+
+        assertEquals(Response.Status.BAD_REQUEST.getStatusCode(), response.getStatus(), "Wrong response status");
+        assertEquals(Error.ERR_029.getCode(), response.readEntity(TError.class).getCode(), "Wrong error code");
+        assertEquals(100, getAccountInfo(accounts[0]).getAmount(), "Wrong amount in account1");
+    }
+
     private TAccount[] create2AccountsWithAmount(String srcCurrency, Integer srcAmount, String dstCurrency, Integer dstAccount) {
         TAccount[] accounts = new TAccount[2];
         accounts[0] = createAccountForNewClient(srcCurrency);
@@ -177,7 +332,19 @@ public class TransfersResourceIT extends ITTestBase {
     }
 
     private Response postTransfer(Integer srcAccountId, Integer dstAccountId, Integer amount) {
-        Invocation.Builder builder = webTarget.get().path(ENDPOINT_TRANSFERS).request(MediaType.APPLICATION_JSON);
+        return postTransfer(null, srcAccountId, dstAccountId, amount);
+    }
+
+    private Response postTransfer(String idempotencyKey, Integer srcAccountId, Integer dstAccountId, Integer amount) {
+        Invocation.Builder builder = webTarget.get().path(ENDPOINT_TRANSFERS).request(MediaType.APPLICATION_JSON)
+                .header("Idempotency-Key", idempotencyKey);
         return builder.post(Entity.json(new TTransferData(srcAccountId, dstAccountId, amount)));
     }
+
+    private Response postTransferBatch(boolean atomic, TTransferData... transfers) {
+        Invocation.Builder builder = webTarget.get().path(ENDPOINT_TRANSFERS + "/batch")
+                .queryParam("atomic", atomic)
+                .request(MediaType.APPLICATION_JSON);
+        return builder.post(Entity.json(Arrays.asList(transfers)));
+    }
 }
@@ -0,0 +1,175 @@
+package valerii.bench;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.db.IDbProvider;
+import valerii.db.MemoryProvider;
+import valerii.domain.Account;
+import valerii.domain.Client;
+import valerii.domain.Currency;
+
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures memory taken per account and GC pauses under transfer load for H2, heap and off-heap account storage.
+ * Run each storage in its own JVM, e.g. with -Xmx4g -Dorg.slf4j.simpleLogger.defaultLogLevel=warn
+ * valerii.bench.AccountStorageBenchmark h2|heap|offheap [accounts]
+ *
+ * @author vliutyi
+ */
+public class AccountStorageBenchmark {
+
+    private static final int BATCH = 1000;
+    private static final int THREADS = 8;
+    private static final long RUN_MILLIS = 10_000;
+
+    private static final LongAdder gcCount = new LongAdder();
+    private static final LongAdder gcMillis = new LongAdder();
+    private static final AtomicLong gcMaxMillis = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        String storage = args.length > 0 ? args[0] : "offheap";
+        int accounts = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+
+        DbProvider.setProvider(createProvider(storage));
+        DbProvider.createDBTables();
+
+        int[] clientIds = new int[accounts];
+        int[] accountIds = new int[accounts];
+
+        long heapBefore = usedHeap();
+        long directBefore = usedDirect();
+        for (int i = 0; i < accounts; i += BATCH) {
+            int from = i;
+            inTransaction(() -> {
+                for (int k = from; k < Math.min(from + BATCH, accounts); k++) {
+                    clientIds[k] = Client.create("Client" + k).getId();
+                }
+            });
+        }
+        long heapClients = usedHeap();
+        long directClients = usedDirect();
+        for (int i = 0; i < accounts; i += BATCH) {
+            int from = i;
+            inTransaction(() -> {
+                for (int k = from; k < Math.min(from + BATCH, accounts); k++) {
+                    Account account = Account.create(clientIds[k], Currency.EUR);
+                    account.updateAmount(1_000_000);
+                    accountIds[k] = account.getId();
+                }
+            });
+        }
+        long heapAccounts = usedHeap();
+        long directAccounts = usedDirect();
+
+        System.out.printf("%-8s clients: %6d heap + %6d direct bytes/client, accounts: %6d heap + %6d direct bytes/account%n", storage,
+                (heapClients - heapBefore) / accounts, (directClients - directBefore) / accounts,
+                (heapAccounts - heapClients) / accounts, (directAccounts - directClients) / accounts);
+
+        listenToGc();
+        long operations = runTransfers(accountIds);
+        System.out.printf("%-8s transfers: %8d ops/s, GC: %4d collections, %6d ms total, %4d ms max pause%n", storage,
+                operations * 1000 / RUN_MILLIS, gcCount.sum(), gcMillis.sum(), gcMaxMillis.get());
+    }
+
+    private static IDbProvider createProvider(String storage) {
+        switch (storage) {
+            case "h2":
+                return new H2Provider();
+            case "heap":
+                return new MemoryProvider(MemoryProvider.DEFAULT_LOCK_TIMEOUT_MILLIS, MemoryProvider.StorageType.HEAP);
+            case "offheap":
+                return new MemoryProvider(MemoryProvider.DEFAULT_LOCK_TIMEOUT_MILLIS, MemoryProvider.StorageType.OFF_HEAP);
+            default:
+                throw new IllegalArgumentException("Unknown storage " + storage);
+        }
+    }
+
+    private static long runTransfers(int[] accountIds) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        long deadline = System.currentTimeMillis() + RUN_MILLIS;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        int src = accountIds[random.nextInt(accountIds.length)];
+                        int dst = accountIds[random.nextInt(accountIds.length)];
+                        if (src != dst) {
+                            inTransaction(() -> Account.getById(src).transferTo(Account.getById(dst), 1));
+                            operations.increment();
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return operations.sum();
+    }
+
+    private static void listenToGc() {
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) gc).addNotificationListener((notification, handback) -> {
+                if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType())) {
+                    GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+                    long duration = info.getGcInfo().getDuration();
+                    gcCount.increment();
+                    gcMillis.add(duration);
+                    gcMaxMillis.accumulateAndGet(duration, Math::max);
+                }
+            }, null, null);
+        }
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static long usedDirect() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    private static void inTransaction(Operation operation) throws Exception {
+        try (Connection connection = DbProvider.newDBConnection()) {
+            connection.setAutoCommit(false);
+            DbProvider.setThreadConnection(connection);
+            operation.call();
+            connection.commit();
+        } finally {
+            DbProvider.setThreadConnection(null);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void call() throws Exception;
+    }
+}
@@ -0,0 +1,29 @@
+package valerii.bench;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.lang.reflect.Proxy;
+import java.util.function.Consumer;
+
+/**
+ * AsyncResponse stubs for benchmarks that call resources and executor directly, without the server
+ *
+ * @author vliutyi
+ */
+public class AsyncResponses {
+
+    /**
+     * @param handler called with the response the request is resumed with
+     * @return async response that only passes the response to the handler, other methods do nothing
+     */
+    public static AsyncResponse resumedTo(Consumer<Response> handler) {
+        return (AsyncResponse) Proxy.newProxyInstance(AsyncResponse.class.getClassLoader(), new Class<?>[]{AsyncResponse.class},
+                (proxy, method, args) -> {
+                    if (method.getName().equals("resume")) {
+                        handler.accept((Response) args[0]);
+                        return true;
+                    }
+                    return method.getReturnType() == boolean.class ? false : null;
+                });
+    }
+}
@@ -0,0 +1,110 @@
+package valerii.bench;
+
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.db.IDbProvider;
+import valerii.db.MemoryProvider;
+import valerii.domain.Account;
+import valerii.domain.Balance;
+import valerii.domain.Client;
+import valerii.domain.Currency;
+import valerii.domain.LedgerCheckpoint;
+
+import java.sql.Connection;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+
+/**
+ * Compares time of point-in-time balance query replayed from the first ledger entry and from the nearest checkpoint
+ * for accounts of growing history. Balance is asked for the middle of the history.
+ * Run from IDE or with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=valerii.bench.BalanceQueryBenchmark
+ *
+ * @author vliutyi
+ */
+public class BalanceQueryBenchmark {
+
+    private static final int[] HISTORY_SIZES = {1_000, 10_000, 50_000};
+    private static final int CHANGES_PER_TRANSACTION = 10;
+    private static final int CHECKPOINT_INTERVAL = 100;
+    private static final int QUERIES = 200;
+
+    public static void main(String[] args) throws Exception {
+        for (int historySize : HISTORY_SIZES) {
+            run("h2", new H2Provider(), historySize);
+            run("memory", new MemoryProvider(), historySize);
+        }
+    }
+
+    private static void run(String name, IDbProvider provider, int historySize) throws Exception {
+        DbProvider.setProvider(provider);
+        DbProvider.createDBTables();
+
+        try {
+            int[] accountId = new int[1];
+            inTransaction(() -> accountId[0] = Account.create(Client.create("Client").getId(), Currency.EUR).getId());
+
+            LocalDateTime middle = null;
+            for (int i = 0; i < historySize; i += CHANGES_PER_TRANSACTION) {
+                inTransaction(() -> {
+                    Account account = Account.getById(accountId[0]);
+                    for (int j = 0; j < CHANGES_PER_TRANSACTION; j++) {
+                        account.updateAmount(1);
+                    }
+                });
+                if (middle == null && i >= historySize / 2) {
+                    Thread.sleep(2);
+                    middle = LocalDateTime.now();
+                    Thread.sleep(2);
+                }
+            }
+
+            long fullReplay = measure(accountId[0], middle);
+            int[] lastId = new int[1];
+            boolean[] done = new boolean[1];
+            while (!done[0]) {
+                inTransaction(() -> {
+                    int last = LedgerCheckpoint.createCheckpoints(lastId[0], LocalDateTime.now().plusSeconds(1), CHECKPOINT_INTERVAL, 1000, new ArrayList<>());
+                    done[0] = last == lastId[0];
+                    lastId[0] = last;
+                });
+            }
+            long checkpointReplay = measure(accountId[0], middle);
+
+            System.out.printf("%-8s %6d entries  full replay %8d us  from checkpoint %6d us%n",
+                    name, historySize, fullReplay, checkpointReplay);
+        } finally {
+            DbProvider.dropDBTables();
+        }
+    }
+
+    /**
+     * @return average time of the balance query in microseconds
+     */
+    private static long measure(int accountId, LocalDateTime asOf) throws Exception {
+        // warm up
+        for (int i = 0; i < QUERIES / 10; i++) {
+            inTransaction(() -> Balance.at(accountId, asOf, CHECKPOINT_INTERVAL));
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERIES; i++) {
+            inTransaction(() -> Balance.at(accountId, asOf, CHECKPOINT_INTERVAL));
+        }
+        return (System.nanoTime() - start) / QUERIES / 1000;
+    }
+
+    private static void inTransaction(Operation operation) throws Exception {
+        try (Connection connection = DbProvider.newDBConnection()) {
+            connection.setAutoCommit(false);
+            DbProvider.setThreadConnection(connection);
+            operation.call();
+            connection.commit();
+        } finally {
+            DbProvider.setThreadConnection(null);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void call() throws Exception;
+    }
+}
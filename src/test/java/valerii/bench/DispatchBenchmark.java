@@ -0,0 +1,122 @@
+package valerii.bench;
+
+import org.eclipse.jetty.server.Server;
+import valerii.Main;
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.domain.Client;
+import valerii.metrics.Metrics;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Stream;
+
+/**
+ * Measures cost of request dispatch: GET /clients/{id} requests are sent by several client threads to the server
+ * running in the same JVM. Reports throughput, OS context switches per request (Linux only, summed over live threads
+ * of the process from /proc/self/task) and thread handoffs per request counted by ResourceExecutor.Worker.
+ * Run with -Dorg.slf4j.simpleLogger.defaultLogLevel=warn valerii.bench.DispatchBenchmark [clientThreads]
+ *
+ * @author vliutyi
+ */
+public class DispatchBenchmark {
+
+    private static final int PORT = 9998;
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long RUN_MILLIS = 10_000;
+
+    public static void main(String[] args) throws Exception {
+        int clientThreads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+
+        Server server = Main.initServer(PORT);
+        DbProvider.setProvider(new H2Provider());
+        DbProvider.createDBTables();
+        server.start();
+
+        int clientId;
+        try (Connection connection = DbProvider.newDBConnection()) {
+            connection.setAutoCommit(false);
+            DbProvider.setThreadConnection(connection);
+            clientId = Client.create("Bob").getId();
+            connection.commit();
+        } finally {
+            DbProvider.setThreadConnection(null);
+        }
+
+        URI uri = URI.create("http://localhost:" + PORT + "/api/clients/" + clientId);
+        run(uri, clientThreads, WARMUP_MILLIS);
+
+        long switchesBefore = contextSwitches();
+        long handoffsBefore = Metrics.counter("worker.threadHandoffs").sum();
+        long requests = run(uri, clientThreads, RUN_MILLIS);
+        long switches = contextSwitches() - switchesBefore;
+        long handoffs = Metrics.counter("worker.threadHandoffs").sum() - handoffsBefore;
+
+        System.out.printf("%d client threads: %8d req/s, %6.2f context switches/request, %4.2f thread handoffs/request%n",
+                clientThreads, requests * 1000 / RUN_MILLIS, (double) switches / requests, (double) handoffs / requests);
+
+        server.stop();
+        System.exit(0);
+    }
+
+    private static long run(URI uri, int clientThreads, long millis) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        HttpRequest request = HttpRequest.newBuilder(uri).header("Accept", "application/json").GET().build();
+        LongAdder requests = new LongAdder();
+        long deadline = System.currentTimeMillis() + millis;
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < clientThreads; t++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        HttpResponse<Void> response = client.send(request, HttpResponse.BodyHandlers.discarding());
+                        if (response.statusCode() != 200) {
+                            throw new IllegalStateException("Unexpected status " + response.statusCode());
+                        }
+                        requests.increment();
+                    }
+                } catch (IOException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return requests.sum();
+    }
+
+    /**
+     * Sums voluntary and involuntary context switches of all live threads of the process
+     */
+    private static long contextSwitches() throws IOException {
+        long switches = 0;
+        try (Stream<Path> tasks = Files.list(Paths.get("/proc/self/task"))) {
+            for (Path task : (Iterable<Path>) tasks::iterator) {
+                try {
+                    for (String line : Files.readAllLines(task.resolve("status"))) {
+                        if (line.startsWith("voluntary_ctxt_switches:") || line.startsWith("nonvoluntary_ctxt_switches:")) {
+                            switches += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+                        }
+                    }
+                } catch (IOException e) {
+                    // thread ended while being read
+                }
+            }
+        }
+        return switches;
+    }
+}
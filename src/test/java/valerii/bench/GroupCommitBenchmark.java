@@ -0,0 +1,107 @@
+package valerii.bench;
+
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.domain.Account;
+import valerii.domain.Client;
+import valerii.domain.Currency;
+import valerii.resources.ResourceExecutor;
+import valerii.resources.TransfersResource;
+import valerii.resources.transport.TTransferData;
+
+import javax.ws.rs.core.Response;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares transfers committed one by one with transfers committed in groups by the pipeline.
+ * Transfers between random pairs of accounts are posted to TransfersResource as fast as the executor accepts them,
+ * every 10th transfer asks for more than the source balance and fails.
+ * Run with -Dorg.slf4j.simpleLogger.defaultLogLevel=off valerii.bench.GroupCommitBenchmark [batchSize] [maxDelayMicros] [transfers] [accounts]
+ *
+ * @author vliutyi
+ */
+public class GroupCommitBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int batchSize = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        long maxDelayMicros = args.length > 1 ? Long.parseLong(args[1]) : ResourceExecutor.DEFAULT_PIPELINE_MAX_DELAY_MICROS;
+        int transfers = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int accounts = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+
+        DbProvider.setProvider(new H2Provider());
+        DbProvider.createDBTables();
+        int[] accountIds = createAccounts(accounts);
+
+        ResourceExecutor.init(ResourceExecutor.DEFAULT_THREADS, transfers, ResourceExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+        ResourceExecutor.initTransferPipeline(batchSize, maxDelayMicros, transfers);
+
+        run(accountIds, Math.min(transfers, 10_000));
+        Result result = run(accountIds, transfers);
+
+        System.out.printf("batch %3d, delay %5d us: %8d transfers/s, failed %d, rejected %d%n", batchSize, maxDelayMicros,
+                transfers * 1000L / Math.max(result.elapsedMillis, 1), result.failed.sum(), result.rejected.sum());
+        System.exit(0);
+    }
+
+    private static int[] createAccounts(int accounts) throws Exception {
+        int[] accountIds = new int[accounts];
+        try (Connection connection = DbProvider.newDBConnection()) {
+            connection.setAutoCommit(false);
+            DbProvider.setThreadConnection(connection);
+            for (int i = 0; i < accounts; i++) {
+                Client client = Client.create("Client" + i);
+                Account account = Account.create(client.getId(), Currency.EUR);
+                account.updateAmount(1000);
+                accountIds[i] = account.getId();
+            }
+            connection.commit();
+        } finally {
+            DbProvider.setThreadConnection(null);
+        }
+        return accountIds;
+    }
+
+    private static Result run(int[] accountIds, int transfers) throws InterruptedException {
+        Result result = new Result(transfers);
+        TransfersResource resource = new TransfersResource();
+        long start = System.nanoTime();
+
+        for (int i = 0; i < transfers; i++) {
+            int src = accountIds[(i * 7) % accountIds.length];
+            int dst = accountIds[(i * 13 + 1) % accountIds.length];
+            if (src == dst) {
+                dst = accountIds[(i * 13 + 2) % accountIds.length];
+            }
+            resource.transfer(AsyncResponses.resumedTo(result::add), null, new TTransferData(src, dst, i % 10 == 0 ? 1_000_000 : 1));
+        }
+        result.done.await();
+
+        result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return result;
+    }
+
+    private static class Result {
+
+        final CountDownLatch done;
+        final LongAdder failed = new LongAdder();
+        final LongAdder rejected = new LongAdder();
+        long elapsedMillis;
+
+        Result(int transfers) {
+            done = new CountDownLatch(transfers);
+        }
+
+        void add(Response response) {
+            int status = response.getStatus();
+            if (status == Response.Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+                rejected.increment();
+            } else if (status != Response.Status.OK.getStatusCode()) {
+                failed.increment();
+            }
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package valerii.bench;
+
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.db.IDbProvider;
+import valerii.db.MemoryProvider;
+import valerii.domain.Account;
+import valerii.domain.Client;
+import valerii.domain.Currency;
+
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares transfer and account lookup throughput of H2 and in-memory DB providers.
+ * Each operation runs in its own transaction the same way ResourceExecutor.Worker runs it.
+ * Run from IDE or with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=valerii.bench.ProviderThroughputBenchmark
+ *
+ * @author vliutyi
+ */
+public class ProviderThroughputBenchmark {
+
+    private static final int ACCOUNTS = 1000;
+    private static final int THREADS = 8;
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long RUN_MILLIS = 5000;
+
+    public static void main(String[] args) throws Exception {
+        run("h2", new H2Provider());
+        run("memory", new MemoryProvider());
+    }
+
+    private static void run(String name, IDbProvider provider) throws Exception {
+        DbProvider.setProvider(provider);
+        DbProvider.createDBTables();
+
+        try {
+            int[] accountIds = createAccounts();
+
+            measure(name, "transfer", accountIds, WARMUP_MILLIS, false);
+            measure(name, "transfer", accountIds, RUN_MILLIS, true);
+            measure(name, "lookup", accountIds, WARMUP_MILLIS, false);
+            measure(name, "lookup", accountIds, RUN_MILLIS, true);
+        } finally {
+            DbProvider.dropDBTables();
+        }
+    }
+
+    private static int[] createAccounts() throws Exception {
+        int[] accountIds = new int[ACCOUNTS];
+        inTransaction(false, () -> {
+            for (int i = 0; i < ACCOUNTS; i++) {
+                Account account = Account.create(Client.create("Client" + i).getId(), Currency.EUR);
+                account.updateAmount(1_000_000);
+                accountIds[i] = account.getId();
+            }
+        });
+        return accountIds;
+    }
+
+    private static void measure(String provider, String operation, int[] accountIds, long millis, boolean report) throws Exception {
+        LongAdder operations = new LongAdder();
+        long deadline = System.currentTimeMillis() + millis;
+        boolean transfer = operation.equals("transfer");
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    while (System.currentTimeMillis() < deadline) {
+                        int src = accountIds[random.nextInt(accountIds.length)];
+                        int dst = accountIds[random.nextInt(accountIds.length)];
+                        if (transfer) {
+                            if (src != dst) {
+                                inTransaction(false, () -> Account.getById(src).transferTo(Account.getById(dst), 1));
+                            }
+                        } else {
+                            inTransaction(true, () -> Account.getById(src));
+                        }
+                        operations.increment();
+                    }
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        if (report) {
+            System.out.printf("%-8s %-10s %10d ops/s%n", provider, operation, operations.sum() * 1000 / millis);
+        }
+    }
+
+    private static void inTransaction(boolean readOnly, Operation operation) throws Exception {
+        try (Connection connection = readOnly ? DbProvider.newReadOnlyDBConnection() : DbProvider.newDBConnection()) {
+            if (!readOnly) {
+                connection.setAutoCommit(false);
+            }
+            DbProvider.setThreadConnection(connection);
+            operation.call();
+            if (!readOnly) {
+                connection.commit();
+            }
+        } finally {
+            DbProvider.setThreadConnection(null);
+        }
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void call() throws Exception;
+    }
+}
@@ -0,0 +1,91 @@
+package valerii.bench;
+
+import valerii.db.DbFieldType;
+import valerii.db.DbProvider;
+import valerii.db.DbValue;
+import valerii.db.H2Provider;
+import valerii.db.Table;
+import valerii.domain.Account;
+import valerii.domain.Client;
+import valerii.domain.Currency;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares heap allocation and time per account lookup for map based select and typed row mapping.
+ * Run from IDE or with: mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=valerii.bench.RowMappingBenchmark
+ *
+ * @author vliutyi
+ */
+public class RowMappingBenchmark {
+
+    private static final int WARMUP = 200_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    public static void main(String[] args) throws Exception {
+        DbProvider.setProvider(new H2Provider());
+        DbProvider.createDBTables();
+
+        try (Connection connection = DbProvider.newDBConnection()) {
+            DbProvider.setThreadConnection(connection);
+
+            Client client = Client.create("Benchmark");
+            int accountId = Account.create(client.getId(), Currency.EUR).getId();
+
+            run("map select", () -> mapSelect(accountId));
+            run("row mapper", () -> Account.getById(accountId).getAmount());
+        } finally {
+            DbProvider.setThreadConnection(null);
+            DbProvider.dropDBTables();
+        }
+    }
+
+    /**
+     * Account lookup as it was done before typed row mapping
+     */
+    private static int mapSelect(int accountId) throws Exception {
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("id", new DbValue(DbFieldType.INTEGER, accountId));
+
+        Map<String, DbValue> resultSet = DbProvider.select(Table.ACCOUNT.getTableName(), values);
+
+        int id = (int) resultSet.get("id").getValue();
+        int clientId = (int) resultSet.get("client_id").getValue();
+        int amount = (int) resultSet.get("amount").getValue();
+        Currency currency = Currency.valueOf((String) resultSet.get("currency").getValue());
+        Timestamp date = (Timestamp) resultSet.get("created_date").getValue();
+
+        return id + clientId + amount + currency.ordinal() + date.getNanos();
+    }
+
+    private static void run(String name, Lookup lookup) throws Exception {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long blackhole = 0;
+
+        for (int i = 0; i < WARMUP; i++) {
+            blackhole += lookup.call();
+        }
+
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            blackhole += lookup.call();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        System.out.printf("%-12s %8d bytes/lookup %8d ns/lookup (%d)%n", name, allocated / ITERATIONS, elapsed / ITERATIONS, blackhole & 1);
+    }
+
+    @FunctionalInterface
+    private interface Lookup {
+        int call() throws Exception;
+    }
+}
@@ -0,0 +1,112 @@
+package valerii.db;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import valerii.exception.ConnectionPoolTimeoutException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class ConnectionPoolTest {
+
+    private ConnectionPool pool;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        pool = new ConnectionPool("test.pool", "jdbc:h2:mem:pooltest;DB_CLOSE_DELAY=-1", "me", "none", 1, 2, 100, 0, 8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    void minSizeConnectionsOpenedOnStart() {
+        assertEquals(1, pool.getIdle());
+        assertEquals(0, pool.getActive());
+    }
+
+    @Test
+    void closedConnectionReturnedToPool() throws SQLException {
+        Connection connection = pool.getConnection();
+        assertEquals(1, pool.getActive());
+        assertEquals(0, pool.getIdle());
+
+        connection.close();
+
+        assertTrue(connection.isClosed());
+        assertEquals(0, pool.getActive());
+        assertEquals(1, pool.getIdle());
+        assertThrows(SQLException.class, connection::createStatement, "Closed connection must not be usable");
+    }
+
+    @Test
+    void uncommittedWorkRolledBackOnReturn() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            connection.createStatement().executeUpdate("CREATE TABLE IF NOT EXISTS t(id int)");
+        }
+
+        try (Connection connection = pool.getConnection()) {
+            connection.setAutoCommit(false);
+            connection.createStatement().executeUpdate("INSERT INTO t VALUES (1)");
+            connection.setReadOnly(true);
+        }
+
+        try (Connection connection = pool.getConnection()) {
+            assertTrue(connection.getAutoCommit(), "Auto commit must be restored");
+            assertFalse(connection.isReadOnly(), "Read-only flag must be reset");
+            assertFalse(connection.createStatement().executeQuery("SELECT * FROM t").next(), "Uncommitted insert must be rolled back");
+            connection.createStatement().executeUpdate("DROP TABLE t");
+        }
+    }
+
+    @Test
+    void statementCachedPerConnection() throws SQLException {
+        StatementKey key = new StatementKey("select", "dual", new String[]{"x"});
+
+        try (Connection connection = pool.getConnection()) {
+            StatementCache cache = ConnectionPool.getStatementCache(connection);
+            assertNotNull(cache);
+
+            PreparedStatement statement = cache.prepare(key, () -> "SELECT 1", Statement.NO_GENERATED_KEYS);
+            assertSame(statement, cache.prepare(key, () -> fail("SQL must not be built for cached statement"), Statement.NO_GENERATED_KEYS));
+            assertNotSame(statement, cache.prepare(new StatementKey("select", "dual", new String[]{"y"}), () -> "SELECT 2", Statement.NO_GENERATED_KEYS));
+        }
+    }
+
+    @Test
+    void statementCacheEvictsLeastRecentlyUsed() throws SQLException {
+        try (Connection connection = pool.getConnection()) {
+            StatementCache cache = ConnectionPool.getStatementCache(connection);
+
+            PreparedStatement first = cache.prepare(new StatementKey("select", "t", new String[]{"0"}), () -> "SELECT 0", Statement.NO_GENERATED_KEYS);
+            for (int i = 1; i <= 8; i++) {
+                String sql = "SELECT " + i;
+                cache.prepare(new StatementKey("select", "t", new String[]{String.valueOf(i)}), () -> sql, Statement.NO_GENERATED_KEYS);
+            }
+
+            assertTrue(first.isClosed(), "Evicted statement must be closed");
+        }
+    }
+
+    @Test
+    void acquireTimeoutWhenPoolExhausted() throws SQLException {
+        try (Connection first = pool.getConnection(); Connection second = pool.getConnection()) {
+            assertEquals(2, pool.getActive());
+            assertThrows(ConnectionPoolTimeoutException.class, pool::getConnection);
+        }
+
+        assertEquals(0, pool.getActive());
+        assertEquals(2, pool.getIdle());
+    }
+}
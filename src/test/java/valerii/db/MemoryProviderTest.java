@@ -0,0 +1,624 @@
+package valerii.db;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTimeoutException;
+import java.sql.Savepoint;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class MemoryProviderTest {
+
+    private static final String[] COLUMNS = {"id", "amount"};
+    private static final RowMapper<int[]> MAPPER = row -> new int[]{row.getInt(1), row.getInt(2)};
+
+    MemoryProvider provider;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        provider = createProvider();
+        provider.createDBTables();
+    }
+
+    MemoryProvider createProvider() {
+        return new MemoryProvider(100, MemoryProvider.StorageType.HEAP);
+    }
+
+    @Test
+    void committedInsertVisibleToOtherConnections() throws SQLException {
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            int clientId = insertClient(connection, "Bob");
+
+            assertNull(selectClient(other, "Bob"), "Not committed row must not be visible");
+            assertEquals(clientId, (int) selectClient(connection, "Bob"));
+
+            connection.commit();
+
+            assertEquals(clientId, (int) selectClient(other, "Bob"));
+        }
+    }
+
+    @Test
+    void rollbackUndoesChanges() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            assertEquals(150, (int) provider.addToColumn(connection, "account", accountId, "amount", 50, 0));
+            insertClient(connection, "Alice");
+            connection.rollback();
+
+            assertEquals(100, selectAmount(connection, accountId));
+            assertNull(selectClient(connection, "Alice"));
+        }
+    }
+
+    @Test
+    void notCommittedChangeInvisibleToOtherConnections() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            provider.addToColumn(connection, "account", accountId, "amount", -30, 0);
+
+            assertEquals(100, selectAmount(other, accountId));
+            connection.commit();
+            assertEquals(70, selectAmount(other, accountId));
+        }
+    }
+
+    @Test
+    void closeRollsBackNotCommittedWork() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            provider.addToColumn(connection, "account", accountId, "amount", 10, 0);
+        }
+
+        try (Connection connection = newTransaction()) {
+            assertEquals(100, selectAmount(connection, accountId));
+        }
+    }
+
+    @Test
+    void guardedAddDoesNotGoBelowMinValue() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            assertNull(provider.addToColumn(connection, "account", accountId, "amount", -101, 0));
+            assertNull(provider.addToColumn(connection, "account", accountId + 1, "amount", 1, 0));
+            assertEquals(0, (int) provider.addToColumn(connection, "account", accountId, "amount", -100, 0));
+        }
+    }
+
+    @Test
+    void uniqueViolationUndoesOnlyFailedStatement() throws SQLException {
+        try (Connection connection = newTransaction()) {
+            insertClient(connection, "Bob");
+            connection.commit();
+
+            int aliceId = insertClient(connection, "Alice");
+            assertThrows(SQLIntegrityConstraintViolationException.class, () -> insertClient(connection, "Bob"));
+            connection.commit();
+
+            assertEquals(aliceId, (int) selectClient(connection, "Alice"));
+        }
+    }
+
+    @Test
+    void insertBatchSkipsRowsViolatingConstraints() throws SQLException {
+        try (Connection connection = newTransaction()) {
+            insertClient(connection, "Bob");
+            connection.commit();
+
+            List<Map<String, DbValue>> rows = new ArrayList<>();
+            for (String name : new String[]{"Alice", "Bob", "Carol", "Alice"}) {
+                Map<String, DbValue> values = new HashMap<>();
+                values.put("name", new DbValue(DbFieldType.STRING, name));
+                rows.add(values);
+            }
+
+            int[] ids = provider.insertBatch(connection, "client", rows);
+            connection.commit();
+
+            assertEquals(-1, ids[1]);
+            assertEquals(-1, ids[3]);
+            assertEquals(ids[0], (int) selectClient(connection, "Alice"));
+            assertEquals(ids[2], (int) selectClient(connection, "Carol"));
+        }
+    }
+
+    @Test
+    void foreignKeyChecked() throws SQLException {
+        try (Connection connection = newTransaction()) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("client_id", new DbValue(DbFieldType.INTEGER, 42));
+            values.put("currency", new DbValue(DbFieldType.STRING, "EUR"));
+
+            assertThrows(SQLIntegrityConstraintViolationException.class, () -> provider.insert(connection, "account", values));
+        }
+    }
+
+    @Test
+    void rollbackToSavepoint() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            provider.addToColumn(connection, "account", accountId, "amount", 10, 0);
+            Savepoint savepoint = connection.setSavepoint();
+            provider.addToColumn(connection, "account", accountId, "amount", 20, 0);
+            connection.rollback(savepoint);
+            connection.commit();
+
+            assertEquals(110, selectAmount(connection, accountId));
+        }
+    }
+
+    @Test
+    void lockedRowWaitsForLockTimeout() throws Exception {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            provider.selectRowForUpdate(connection, "account", COLUMNS, "id", new DbValue(DbFieldType.INTEGER, accountId), MAPPER);
+
+            CompletableFuture<Void> other = CompletableFuture.runAsync(() -> {
+                try (Connection otherConnection = newTransaction()) {
+                    provider.addToColumn(otherConnection, "account", accountId, "amount", 1, 0);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            ExecutionException e = assertThrows(ExecutionException.class, other::get);
+            assertTrue(e.getCause().getCause() instanceof SQLTimeoutException, "Lock wait must time out");
+        }
+    }
+
+    @Test
+    void rowsAreLockedOneByOne() throws SQLException {
+        int[] accountIds = new int[40];
+        for (int i = 0; i < accountIds.length; i++) {
+            accountIds[i] = createAccount("Client" + i, 100);
+        }
+        int[] otherIds = Arrays.copyOfRange(accountIds, 1, accountIds.length);
+        int[] diffs = new int[otherIds.length];
+        Arrays.fill(diffs, 1);
+
+        try (Connection connection = newTransaction(); Connection other = newTransaction()) {
+            provider.selectRowForUpdate(connection, "account", COLUMNS, "id", new DbValue(DbFieldType.INTEGER, accountIds[0]), MAPPER);
+            insertStripe(accountIds[0], 0, 10);
+
+            // locks of other rows do not collide with the locked one
+            assertEquals(otherIds.length, provider.addToColumn(other, "account", "amount", otherIds, diffs));
+            other.commit();
+        }
+    }
+
+    @Test
+    void statementDoesNotSeeCommitDoneWhileItRuns() throws SQLException {
+        int bobId = createAccount("Bob", 100);
+        int aliceId = createAccount("Alice", 100);
+
+        try (Connection connection = provider.newReadOnlyDBConnection(); Connection other = newTransaction()) {
+            List<int[]> rows = new ArrayList<>();
+            provider.scan(connection, "account", COLUMNS, null, null, 1, row -> {
+                rows.add(MAPPER.map(row));
+                if (rows.size() == 1) {
+                    // transfer is committed after the first account is read
+                    provider.addToColumn(other, "account", "amount", new int[]{bobId, aliceId}, new int[]{-30, 30});
+                    provider.delete(other, "account", aliceId);
+                    other.commit();
+                }
+            });
+
+            assertEquals(2, rows.size(), "Row deleted after the statement started must be read");
+            assertEquals(200, rows.get(0)[1] + rows.get(1)[1], "Statement must not see a part of the commit");
+            assertEquals(70, selectAmount(connection, bobId), "Next statement must see the commit");
+            assertNull(selectAccount(connection, aliceId));
+        }
+    }
+
+    @Test
+    void totalOfBalancesIsKeptWhileTransfersAreCommitted() throws Exception {
+        int[] accountIds = new int[10];
+        for (int i = 0; i < accountIds.length; i++) {
+            accountIds[i] = createAccount("Client" + i, 100);
+        }
+
+        CompletableFuture<Void> transfers = CompletableFuture.runAsync(() -> {
+            try (Connection connection = newTransaction()) {
+                for (int i = 0; i < 2000; i++) {
+                    int src = accountIds[i % accountIds.length];
+                    int dst = accountIds[(i * 7 + 3) % accountIds.length];
+                    if (src != dst) {
+                        provider.addToColumn(connection, "account", "amount", new int[]{src, dst}, new int[]{-1, 1});
+                        connection.commit();
+                    }
+                }
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        try (Connection connection = provider.newReadOnlyDBConnection()) {
+            while (!transfers.isDone()) {
+                int[] total = new int[1];
+                provider.scan(connection, "account", COLUMNS, null, null, 1, row -> total[0] += MAPPER.map(row)[1]);
+                assertEquals(100 * accountIds.length, total[0], "Transfer must be seen as a whole");
+            }
+        }
+        transfers.get();
+    }
+
+    @Test
+    void multiRowAddLocksAndUpdatesAllRows() throws SQLException {
+        int bobId = createAccount("Bob", 100);
+        int aliceId = createAccount("Alice", 0);
+
+        try (Connection connection = newTransaction()) {
+            List<int[]> locked = provider.selectRowsForUpdate(connection, "account", COLUMNS, "id", new int[]{aliceId, bobId}, MAPPER);
+            assertEquals(2, locked.size());
+            assertEquals(bobId, locked.get(0)[0], "Rows must be returned in key order");
+
+            assertEquals(2, provider.addToColumn(connection, "account", "amount", new int[]{bobId, aliceId}, new int[]{-40, 40}));
+            connection.commit();
+
+            assertEquals(60, selectAmount(connection, bobId));
+            assertEquals(40, selectAmount(connection, aliceId));
+        }
+    }
+
+    @Test
+    void deletedRowInvisibleAfterCommit() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            assertEquals(1, provider.delete(connection, "account", accountId));
+
+            assertNull(selectAccount(connection, accountId));
+            assertEquals(100, selectAmount(other, accountId), "Not committed delete must not be visible");
+
+            connection.commit();
+
+            assertNull(selectAccount(other, accountId));
+            assertEquals(0, provider.delete(connection, "account", accountId));
+        }
+    }
+
+    @Test
+    void deleteRolledBack() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            provider.delete(connection, "account", accountId);
+            connection.rollback();
+
+            assertEquals(100, selectAmount(connection, accountId));
+        }
+    }
+
+    @Test
+    void referencedRowNotDeleted() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            int clientId = provider.selectRow(connection, "account", new String[]{"client_id"}, "id",
+                    new DbValue(DbFieldType.INTEGER, accountId), row -> row.getInt(1));
+
+            assertThrows(SQLIntegrityConstraintViolationException.class, () -> provider.delete(connection, "client", clientId));
+
+            provider.delete(connection, "account", accountId);
+            assertEquals(1, provider.delete(connection, "client", clientId));
+            connection.commit();
+
+            assertNull(selectClient(connection, "Bob"));
+            // unique name is released by committed delete
+            insertClient(connection, "Bob");
+        }
+    }
+
+    @Test
+    void updateIfVersionUpdatesOnlyReadVersion() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+        Map<String, DbValue> update = new HashMap<>();
+        update.put("amount", new DbValue(DbFieldType.INTEGER, 150));
+
+        try (Connection connection = newTransaction()) {
+            assertEquals(0, (int) selectVersion(connection, accountId));
+
+            assertEquals(1, provider.updateIfVersion(connection, "account", accountId, "version", 0, update));
+            assertEquals(0, provider.updateIfVersion(connection, "account", accountId, "version", 0, update), "Changed version must not be updated");
+            connection.commit();
+
+            assertEquals(150, selectAmount(connection, accountId));
+            assertEquals(1, (int) selectVersion(connection, accountId));
+        }
+    }
+
+    @Test
+    void updateIfVersionRolledBack() throws SQLException {
+        int accountId = createAccount("Bob", 100);
+        Map<String, DbValue> update = new HashMap<>();
+        update.put("amount", new DbValue(DbFieldType.INTEGER, 150));
+
+        try (Connection connection = newTransaction()) {
+            assertEquals(1, provider.updateIfVersion(connection, "account", accountId, "version", 0, update));
+            connection.rollback();
+
+            assertEquals(100, selectAmount(connection, accountId));
+            assertEquals(0, (int) selectVersion(connection, accountId));
+        }
+    }
+
+    @Test
+    void selectRowsReturnsVisibleRowsOfKey() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int stripe1 = insertStripe(bobId, 0, 10);
+        insertStripe(aliceId, 0, 20);
+        int stripe2 = insertStripe(bobId, 1, 30);
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            provider.addToColumn(connection, "account_stripe", stripe2, "amount", 5, 0);
+
+            List<int[]> rows = selectStripes(connection, bobId);
+            assertEquals(2, rows.size());
+            assertArrayEquals(new int[]{stripe1, 10}, rows.get(0));
+            assertArrayEquals(new int[]{stripe2, 35}, rows.get(1));
+            assertEquals(30, selectStripes(other, bobId).get(1)[1], "Not committed change must not be visible");
+        }
+    }
+
+    @Test
+    void keyIndexKeepsRowsUntilDeleteIsCommitted() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int stripeId = insertStripe(bobId, 0, 10);
+        Map<String, DbValue> update = new HashMap<>();
+        update.put("account_id", new DbValue(DbFieldType.INTEGER, aliceId));
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            assertThrows(SQLSyntaxErrorException.class, () -> provider.update(connection, "account_stripe", stripeId, update));
+
+            provider.delete(connection, "account_stripe", stripeId);
+            connection.rollback();
+            assertEquals(1, selectStripes(other, bobId).size());
+
+            provider.delete(connection, "account_stripe", stripeId);
+            assertEquals(1, selectStripes(other, bobId).size(), "Not committed delete must not be visible");
+            connection.commit();
+            assertTrue(selectStripes(other, bobId).isEmpty());
+        }
+    }
+
+    @Test
+    void keyIndexDropsRolledBackInserts() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int stripe1 = insertStripe(bobId, 0, 10);
+        DbValue bob = new DbValue(DbFieldType.INTEGER, bobId);
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("account_id", bob);
+        values.put("stripe", new DbValue(DbFieldType.INTEGER, 1));
+        values.put("amount", new DbValue(DbFieldType.INTEGER, 20));
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            int stripe2 = provider.insert(connection, "account_stripe", values);
+            assertEquals(2, provider.selectRange(connection, "account_stripe", COLUMNS, "account_id", bob, 0, 10, MAPPER).size());
+            assertEquals(1, provider.selectRange(other, "account_stripe", COLUMNS, "account_id", bob, 0, 10, MAPPER).size(),
+                    "Not committed insert must not be visible");
+            connection.rollback();
+
+            int stripe3 = insertStripe(bobId, 1, 30);
+            List<int[]> page = provider.selectRange(other, "account_stripe", COLUMNS, "account_id", bob, 0, 10, MAPPER);
+            assertEquals(2, page.size());
+            assertArrayEquals(new int[]{stripe1, 10}, page.get(0));
+            assertArrayEquals(new int[]{stripe3, 30}, page.get(1));
+            assertTrue(stripe3 > stripe2);
+        }
+    }
+
+    @Test
+    void scanHandlesVisibleRowsInIdOrder() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int stripe1 = insertStripe(bobId, 0, 10);
+        int stripe2 = insertStripe(aliceId, 0, 20);
+        int stripe3 = insertStripe(bobId, 1, 30);
+
+        try (Connection connection = newTransaction()) {
+            provider.delete(connection, "account_stripe", stripe2);
+
+            List<int[]> rows = new ArrayList<>();
+            assertEquals(2, provider.scan(connection, "account_stripe", COLUMNS, null, null, 1,
+                    row -> rows.add(MAPPER.map(row))));
+            assertArrayEquals(new int[]{stripe1, 10}, rows.get(0));
+            assertArrayEquals(new int[]{stripe3, 30}, rows.get(1));
+
+            rows.clear();
+            assertEquals(1, provider.scan(connection, "account_stripe", COLUMNS, "stripe",
+                    new DbValue(DbFieldType.INTEGER, 1), 1, row -> rows.add(MAPPER.map(row))));
+            assertArrayEquals(new int[]{stripe3, 30}, rows.get(0));
+        }
+    }
+
+    @Test
+    void selectSumsReturnsSumOfVisibleRowsPerKey() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int carolId = createAccount("Carol", 0);
+        insertStripe(bobId, 0, 10);
+        int stripe2 = insertStripe(aliceId, 0, 20);
+        insertStripe(bobId, 1, 30);
+        insertStripe(carolId, 0, 40);
+
+        try (Connection connection = newTransaction()) {
+            provider.delete(connection, "account_stripe", stripe2);
+
+            List<int[]> sums = provider.selectSums(connection, "account_stripe", "amount", "account_id",
+                    new int[]{bobId, aliceId}, row -> new int[]{row.getInt(1), row.getInt(2)});
+            assertEquals(1, sums.size());
+            assertArrayEquals(new int[]{bobId, 40}, sums.get(0));
+        }
+    }
+
+    @Test
+    void selectRangeReturnsRowsAfterIdUpToLimit() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int stripe1 = insertStripe(bobId, 0, 10);
+        int stripe2 = insertStripe(aliceId, 0, 20);
+        int stripe3 = insertStripe(bobId, 1, 30);
+        int stripe4 = insertStripe(bobId, 2, 40);
+
+        try (Connection connection = provider.newReadOnlyDBConnection()) {
+            List<int[]> page = provider.selectRange(connection, "account_stripe", COLUMNS, null, null, 0, 2, MAPPER);
+            assertEquals(2, page.size());
+            assertArrayEquals(new int[]{stripe1, 10}, page.get(0));
+            assertArrayEquals(new int[]{stripe2, 20}, page.get(1));
+
+            page = provider.selectRange(connection, "account_stripe", COLUMNS, "account_id",
+                    new DbValue(DbFieldType.INTEGER, bobId), stripe1, 10, MAPPER);
+            assertEquals(2, page.size());
+            assertArrayEquals(new int[]{stripe3, 30}, page.get(0));
+            assertArrayEquals(new int[]{stripe4, 40}, page.get(1));
+
+            assertTrue(provider.selectRange(connection, "account_stripe", COLUMNS, null, null, stripe4, 10, MAPPER).isEmpty());
+        }
+    }
+
+    @Test
+    void selectLastReturnsRowOfGreatestValueWithinBound() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        int stripe1 = insertStripe(bobId, 0, 10);
+        int stripe2 = insertStripe(bobId, 1, 30);
+        int stripe3 = insertStripe(bobId, 2, 20);
+        insertStripe(aliceId, 0, 25);
+        DbValue bob = new DbValue(DbFieldType.INTEGER, bobId);
+
+        try (Connection connection = provider.newReadOnlyDBConnection()) {
+            assertArrayEquals(new int[]{stripe2, 30}, provider.selectLast(connection, "account_stripe", COLUMNS, "account_id", bob,
+                    "amount", null, MAPPER));
+            assertArrayEquals(new int[]{stripe3, 20}, provider.selectLast(connection, "account_stripe", COLUMNS, "account_id", bob,
+                    "amount", new DbValue(DbFieldType.INTEGER, 25), MAPPER));
+            assertArrayEquals(new int[]{stripe1, 10}, provider.selectLast(connection, "account_stripe", COLUMNS, "account_id", bob,
+                    "amount", new DbValue(DbFieldType.INTEGER, 15), MAPPER));
+            assertNull(provider.selectLast(connection, "account_stripe", COLUMNS, "account_id", bob,
+                    "amount", new DbValue(DbFieldType.INTEGER, 5), MAPPER));
+        }
+    }
+
+    @Test
+    void selectLastSeeksOrderedKeyIndex() throws SQLException {
+        int bobId = createAccount("Bob", 0);
+        int aliceId = createAccount("Alice", 0);
+        LocalDateTime start = LocalDateTime.of(2024, 1, 1, 0, 0);
+        int checkpoint1 = insertCheckpoint(bobId, 10, start);
+        int checkpoint2 = insertCheckpoint(bobId, 20, start.plusDays(1));
+        int checkpoint3 = insertCheckpoint(bobId, 30, start.plusDays(1));
+        insertCheckpoint(aliceId, 40, start.plusDays(2));
+        DbValue bob = new DbValue(DbFieldType.INTEGER, bobId);
+        String[] columns = {"id", "balance"};
+
+        try (Connection connection = newTransaction(); Connection other = provider.newReadOnlyDBConnection()) {
+            assertArrayEquals(new int[]{checkpoint3, 30}, provider.selectLast(other, "ledger_checkpoint", columns, "account_id", bob,
+                    "entry_date", null, MAPPER));
+            assertArrayEquals(new int[]{checkpoint1, 10}, provider.selectLast(other, "ledger_checkpoint", columns, "account_id", bob,
+                    "entry_date", new DbValue(DbFieldType.DATE_TIME, start.plusHours(1)), MAPPER));
+            assertNull(provider.selectLast(other, "ledger_checkpoint", columns, "account_id", bob,
+                    "entry_date", new DbValue(DbFieldType.DATE_TIME, start.minusHours(1)), MAPPER));
+
+            provider.delete(connection, "ledger_checkpoint", checkpoint3);
+            assertArrayEquals(new int[]{checkpoint2, 20}, provider.selectLast(connection, "ledger_checkpoint", columns, "account_id", bob,
+                    "entry_date", null, MAPPER));
+            assertArrayEquals(new int[]{checkpoint3, 30}, provider.selectLast(other, "ledger_checkpoint", columns, "account_id", bob,
+                    "entry_date", null, MAPPER), "Not committed delete must not be visible");
+
+            Map<String, DbValue> update = new HashMap<>();
+            update.put("entry_date", new DbValue(DbFieldType.DATE_TIME, start.plusDays(3)));
+            assertThrows(SQLSyntaxErrorException.class, () -> provider.update(connection, "ledger_checkpoint", checkpoint1, update));
+        }
+    }
+
+    int insertCheckpoint(int accountId, int balance, LocalDateTime entryDate) throws SQLException {
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("account_id", new DbValue(DbFieldType.INTEGER, accountId));
+        values.put("ledger_id", new DbValue(DbFieldType.INTEGER, 0));
+        values.put("balance", new DbValue(DbFieldType.INTEGER, balance));
+        values.put("entry_date", new DbValue(DbFieldType.DATE_TIME, entryDate));
+        try (Connection connection = provider.newDBConnection()) {
+            return provider.insert(connection, "ledger_checkpoint", values);
+        }
+    }
+
+    List<int[]> selectStripes(Connection connection, int accountId) throws SQLException {
+        return provider.selectRows(connection, "account_stripe", COLUMNS, "account_id",
+                new DbValue(DbFieldType.INTEGER, accountId), MAPPER);
+    }
+
+    int insertStripe(int accountId, int stripe, int amount) throws SQLException {
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("account_id", new DbValue(DbFieldType.INTEGER, accountId));
+        values.put("stripe", new DbValue(DbFieldType.INTEGER, stripe));
+        values.put("amount", new DbValue(DbFieldType.INTEGER, amount));
+        try (Connection connection = provider.newDBConnection()) {
+            return provider.insert(connection, "account_stripe", values);
+        }
+    }
+
+    Integer selectVersion(Connection connection, int accountId) throws SQLException {
+        return provider.selectRow(connection, "account", new String[]{"version"}, "id",
+                new DbValue(DbFieldType.INTEGER, accountId), row -> row.getInt(1));
+    }
+
+    Connection newTransaction() throws SQLException {
+        Connection connection = provider.newDBConnection();
+        connection.setAutoCommit(false);
+        return connection;
+    }
+
+    int insertClient(Connection connection, String name) throws SQLException {
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("name", new DbValue(DbFieldType.STRING, name));
+        return provider.insert(connection, "client", values);
+    }
+
+    Integer selectClient(Connection connection, String name) throws SQLException {
+        return provider.selectRow(connection, "client", new String[]{"id"}, "name", new DbValue(DbFieldType.STRING, name), row -> row.getInt(1));
+    }
+
+    int createAccount(String clientName, int amount) throws SQLException {
+        try (Connection connection = newTransaction()) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("client_id", new DbValue(DbFieldType.INTEGER, insertClient(connection, clientName)));
+            values.put("currency", new DbValue(DbFieldType.STRING, "EUR"));
+            values.put("amount", new DbValue(DbFieldType.INTEGER, amount));
+            int accountId = provider.insert(connection, "account", values);
+            connection.commit();
+            return accountId;
+        }
+    }
+
+    int selectAmount(Connection connection, int accountId) throws SQLException {
+        return selectAccount(connection, accountId)[1];
+    }
+
+    int[] selectAccount(Connection connection, int accountId) throws SQLException {
+        return provider.selectRow(connection, "account", COLUMNS, "id", new DbValue(DbFieldType.INTEGER, accountId), MAPPER);
+    }
+}
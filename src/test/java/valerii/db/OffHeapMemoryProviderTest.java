@@ -0,0 +1,53 @@
+package valerii.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs MemoryProvider tests with accounts kept in off-heap slots
+ *
+ * @author vliutyi
+ */
+class OffHeapMemoryProviderTest extends MemoryProviderTest {
+
+    @Override
+    MemoryProvider createProvider() {
+        return new MemoryProvider(100, MemoryProvider.StorageType.OFF_HEAP);
+    }
+
+    @Test
+    void slotOfDeletedRowReused() throws SQLException {
+        int bobId = createAccount("Bob", 100);
+
+        try (Connection connection = newTransaction()) {
+            provider.delete(connection, "account", bobId);
+            connection.commit();
+        }
+
+        int aliceId = createAccount("Alice", 50);
+
+        assertNotEquals(bobId, aliceId, "Ids must not be reused");
+        try (Connection connection = newTransaction()) {
+            assertNull(selectAccount(connection, bobId));
+            assertEquals(50, selectAmount(connection, aliceId));
+        }
+    }
+
+    @Test
+    void tooLongValueRejected() throws SQLException {
+        try (Connection connection = newTransaction()) {
+            Map<String, DbValue> values = new HashMap<>();
+            values.put("client_id", new DbValue(DbFieldType.INTEGER, insertClient(connection, "Bob")));
+            values.put("currency", new DbValue(DbFieldType.STRING, "EURO"));
+
+            assertThrows(SQLDataException.class, () -> provider.insert(connection, "account", values));
+        }
+    }
+}
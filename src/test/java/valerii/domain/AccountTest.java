@@ -3,23 +3,32 @@ package valerii.domain;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import valerii.Error;
 import valerii.db.*;
 import valerii.exception.BusinessException;
+import valerii.exception.ConcurrentUpdateException;
 import valerii.exception.TransferException;
 
-import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.AdditionalMatchers.aryEq;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static valerii.domain.RowAnswer.accountRow;
+import static valerii.domain.RowAnswer.clientRow;
+import static valerii.domain.RowAnswer.row;
+import static valerii.domain.RowAnswer.stripedAccountRow;
 
 /**
  *
@@ -30,16 +39,17 @@ class AccountTest {
     private IDbProvider provider;
 
     @BeforeEach
-    void setUp() {
+    void setUp() throws SQLException {
         provider = mock(IDbProvider.class);
         DbProvider.setProvider(provider);
+        Account.setUpdateMode(Account.UpdateMode.PESSIMISTIC);
+        Account.setTransferMode(Account.TransferMode.LOCK_EACH);
+        stubLedger();
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     void getByIdOK() throws SQLException {
-        Map<String, DbValue> resultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
 
         Account account = Account.getById(1);
 
@@ -49,13 +59,10 @@ class AccountTest {
         assertEquals(100, account.getAmount());
         assertEquals(Currency.RUB, account.getCurrency());
 
-        ArgumentCaptor<Map<String, DbValue>> inputDataCaptor = ArgumentCaptor.forClass(Map.class);
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), inputDataCaptor.capture());
+        ArgumentCaptor<DbValue> keyCaptor = ArgumentCaptor.forClass(DbValue.class);
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), keyCaptor.capture(), any());
 
-        Map<String, DbValue> inputData = inputDataCaptor.getValue();
-        assertEquals(1, inputData.size(), "Wrong number of input arguments");
-        assertTrue(inputData.containsKey("id"));
-        DbValue dbValue = inputData.entrySet().iterator().next().getValue();
+        DbValue dbValue = keyCaptor.getValue();
         assertEquals(DbFieldType.INTEGER, dbValue.getType());
         assertEquals(1, dbValue.getValue());
 
@@ -64,16 +71,14 @@ class AccountTest {
 
     @Test
     void getByIdNotFound() throws SQLException {
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenReturn(null);
 
         assertNull(Account.getById(1));
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     void getByClientFound() throws SQLException {
-        Map<String, DbValue> resultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("client_id"), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
 
         Account account = Account.getByClient(1);
 
@@ -83,13 +88,10 @@ class AccountTest {
         assertEquals(100, account.getAmount());
         assertEquals(Currency.RUB, account.getCurrency());
 
-        ArgumentCaptor<Map<String, DbValue>> inputDataCaptor = ArgumentCaptor.forClass(Map.class);
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), inputDataCaptor.capture());
+        ArgumentCaptor<DbValue> keyCaptor = ArgumentCaptor.forClass(DbValue.class);
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("client_id"), keyCaptor.capture(), any());
 
-        Map<String, DbValue> inputData = inputDataCaptor.getValue();
-        assertEquals(1, inputData.size(), "Wrong number of input arguments");
-        assertTrue(inputData.containsKey("client_id"));
-        DbValue dbValue = inputData.entrySet().iterator().next().getValue();
+        DbValue dbValue = keyCaptor.getValue();
         assertEquals(DbFieldType.INTEGER, dbValue.getType());
         assertEquals(1, dbValue.getValue());
 
@@ -98,7 +100,7 @@ class AccountTest {
 
     @Test
     void getByClientNotFound() throws SQLException {
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenReturn(null);
 
         assertNull(Account.getByClient(1));
     }
@@ -106,11 +108,8 @@ class AccountTest {
     @Test
     @SuppressWarnings("unchecked")
     void createOK() throws SQLException, BusinessException {
-        Map<String, DbValue> clientResultSet = new HashMap<>();
-        clientResultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        clientResultSet.put("name", new DbValue(DbFieldType.STRING, "Bob"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(clientResultSet);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenAnswer(clientRow(1, "Bob"));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenReturn(null);
         when(provider.insert(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(10);
 
         Account account = Account.create(1, Currency.RUB);
@@ -122,8 +121,8 @@ class AccountTest {
         assertEquals(0, account.getAmount());
         assertTrue(account.getCreatedDate().isAfter(LocalDateTime.now().minusMinutes(1)));
 
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), any());
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
         ArgumentCaptor<Map<String, DbValue>> insertInputArgsCaptor = ArgumentCaptor.forClass(Map.class);
         verify(provider).insert(any(), eq(Table.ACCOUNT.getTableName()), insertInputArgsCaptor.capture());
         Map<String, DbValue> insertData = insertInputArgsCaptor.getValue();
@@ -145,7 +144,7 @@ class AccountTest {
 
     @Test
     void createWithUnknownClientFails() throws SQLException {
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenReturn(null);
 
         BusinessException exception = assertThrows(BusinessException.class, () -> Account.create(1, Currency.RUB));
         assertEquals(Error.ERR_001.getCode(), exception.getError().getCode());
@@ -153,13 +152,8 @@ class AccountTest {
 
     @Test
     void createIfClientHasAccountFails() throws SQLException, BusinessException {
-        Map<String, DbValue> clientResultSet = new HashMap<>();
-        clientResultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        clientResultSet.put("name", new DbValue(DbFieldType.STRING, "Bob"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(clientResultSet);
-
-        Map<String, DbValue> clientAccountResultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(clientAccountResultSet);
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenAnswer(clientRow(1, "Bob"));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
 
         BusinessException exception = assertThrows(BusinessException.class, () -> Account.create(1, Currency.RUB));
         assertEquals(Error.ERR_008.getCode(), exception.getError().getCode());
@@ -167,19 +161,16 @@ class AccountTest {
 
     @Test
     void createIfInsertFailed() throws SQLException, BusinessException {
-        Map<String, DbValue> clientResultSet = new HashMap<>();
-        clientResultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        clientResultSet.put("name", new DbValue(DbFieldType.STRING, "Bob"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(clientResultSet);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenAnswer(clientRow(1, "Bob"));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenReturn(null);
         when(provider.insert(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(-1);
 
         Account account = Account.create(1, Currency.RUB);
 
         assertNull(account);
 
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), any());
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
         verify(provider).insert(any(), eq(Table.ACCOUNT.getTableName()), any());
         verifyNoMoreInteractions(provider);
     }
@@ -187,9 +178,8 @@ class AccountTest {
     @Test
     @SuppressWarnings("unchecked")
     void updateAmountOK() throws SQLException, TransferException {
-        Map<String, DbValue> resultSet = createResultSetForAccount(1, 2, 100, Currency.USD);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 2, 100, Currency.USD));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 2, 100, Currency.USD));
         when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), any())).thenReturn(1);
 
         Account account = Account.getById(1);
@@ -197,8 +187,8 @@ class AccountTest {
 
         assertEquals(110, account.getAmount(), "Wrong amount in updated account");
 
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
-        verify(provider).selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider).selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
         ArgumentCaptor<Map<String, DbValue>> updateInputDataCaptor = ArgumentCaptor.forClass(Map.class);
         verify(provider).update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), updateInputDataCaptor.capture());
         Map<String, DbValue> updateInputData = updateInputDataCaptor.getValue();
@@ -206,57 +196,100 @@ class AccountTest {
         assertTrue(updateInputData.containsKey("amount"));
         assertEquals(110, updateInputData.get("amount").getValue());
 
+        verifyLedger(new int[]{1, 10, 0});
         verifyNoMoreInteractions(provider);
     }
 
     @Test
     void updateAmountInsufficientAmountFails() throws SQLException, TransferException {
-        Map<String, DbValue> resultSet = createResultSetForAccount(1, 1, 100, Currency.EUR);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.EUR));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.EUR));
 
         Account account = Account.getById(1);
         TransferException exception = assertThrows(TransferException.class, () -> account.updateAmount(-200));
 
         assertEquals(Error.ERR_014.getCode(), exception.getError().getCode());
 
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
-        verify(provider).selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider).selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
         verifyNoMoreInteractions(provider);
     }
 
     @Test
     void updateAmountUpdateFailed() throws SQLException, TransferException {
-        Map<String, DbValue> resultSet = createResultSetForAccount(2, 1, 50, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(2, 1, 50, Currency.RUB));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(2, 1, 50, Currency.RUB));
         when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), eq(2), any())).thenReturn(-1);
 
         Account account = Account.getById(2);
         assertFalse(account.updateAmount(10));
         assertEquals(50, account.getAmount(), "Wrong amount in not updated account");
 
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
-        verify(provider).selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider).selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
         verify(provider).update(any(), eq(Table.ACCOUNT.getTableName()), eq(2), any());
         verifyNoMoreInteractions(provider);
     }
 
+    @Test
+    void updateAmountGuardedOK() throws SQLException, TransferException {
+        Account.setUpdateMode(Account.UpdateMode.GUARDED);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 2, 100, Currency.USD));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("amount"), eq(-30), eq(0))).thenReturn(75);
+
+        Account account = Account.getById(1);
+        assertTrue(account.updateAmount(-30));
+
+        assertEquals(75, account.getAmount(), "Amount must be synced with the value returned by update");
+
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider).addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("amount"), eq(-30), eq(0));
+        verifyLedger(new int[]{1, -30, 0});
+        verifyNoMoreInteractions(provider);
+    }
+
+    @Test
+    void updateAmountGuardedInsufficientAmountFails() throws SQLException {
+        Account.setUpdateMode(Account.UpdateMode.GUARDED);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.EUR));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("amount"), anyInt(), eq(0))).thenReturn(null);
+
+        Account account = Account.getById(1);
+        TransferException exception = assertThrows(TransferException.class, () -> account.updateAmount(-200));
+
+        assertEquals(Error.ERR_014.getCode(), exception.getError().getCode());
+        assertEquals(100, account.getAmount());
+    }
+
+    @Test
+    void updateAmountGuardedMissingAccountFails() throws SQLException {
+        Account.setUpdateMode(Account.UpdateMode.GUARDED);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.EUR))
+                .thenReturn(null);
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("amount"), anyInt(), eq(0))).thenReturn(null);
+
+        Account account = Account.getById(1);
+        TransferException exception = assertThrows(TransferException.class, () -> account.updateAmount(10));
+
+        assertEquals(Error.ERR_002.getCode(), exception.getError().getCode());
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     void transferToExistingAccountOK() throws SQLException, TransferException {
-        Map<String, DbValue> srcAccResultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        Map<String, DbValue> dstAccResultSet = createResultSetForAccount(2, 2, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet, dstAccResultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 100, Currency.RUB));
         when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), anyInt(), any())).thenReturn(1, 1);
 
         Account srcAccount = Account.getById(1);
         srcAccount.transferTo(2, 10);
 
         assertEquals(90, srcAccount.getAmount(), "Wrong amount in src account");
-        verify(provider).select(any(), eq(Table.ACCOUNT.getTableName()), any());
-        verify(provider, times(2)).selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider, times(2)).selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
 
         // check src account was updated correctly
         ArgumentCaptor<Map<String, DbValue>> srcUpdateInputCaptor = ArgumentCaptor.forClass(Map.class);
@@ -270,16 +303,19 @@ class AccountTest {
         assertTrue(dstUpdateInputCaptor.getValue().containsKey("amount"));
         assertEquals(110, dstUpdateInputCaptor.getValue().get("amount").getValue(), "Wrong amount for dst account update");
 
+        // both legs of the transfer are appended by one batch
+        verifyLedger(new int[]{1, -10, 2}, new int[]{2, 10, 1});
         verifyNoMoreInteractions(provider);
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     public void transferWithSrcAccountUpdateError() throws SQLException {
-        Map<String, DbValue> srcAccResultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        Map<String, DbValue> dstAccResultSet = createResultSetForAccount(2, 2, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet, dstAccResultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet, dstAccResultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 100, Currency.RUB));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 100, Currency.RUB));
         when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), anyInt(), any())).thenReturn(0);
 
         Account srcAccount = Account.getById(1);
@@ -289,12 +325,13 @@ class AccountTest {
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     public void transferWithDstAccountUpdateError() throws SQLException {
-        Map<String, DbValue> srcAccResultSet = createResultSetForAccount(1, 1, 100, Currency.RUB);
-        Map<String, DbValue> dstAccResultSet = createResultSetForAccount(2, 2, 100, Currency.RUB);
-        when(provider.select(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet, dstAccResultSet);
-        when(provider.selectForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(srcAccResultSet, dstAccResultSet);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 100, Currency.RUB));
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 100, Currency.RUB));
         when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), anyInt(), any())).thenReturn(1, 0);
 
         Account srcAccount = Account.getById(1);
@@ -304,15 +341,407 @@ class AccountTest {
         assertEquals(100, srcAccount.getAmount());
     }
 
+    @Test
+    void settleTransferOK() throws SQLException, TransferException {
+        Account.setTransferMode(Account.TransferMode.SETTLE);
+        List<Account> lockedAccounts = Arrays.asList(lockedAccount(2, 2, 50), lockedAccount(5, 1, 100));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(5, 1, 100, Currency.RUB));
+        when(provider.<Account>selectRowsForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenReturn(lockedAccounts);
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq("amount"), any(int[].class), any(int[].class))).thenReturn(2);
+
+        Account srcAccount = Account.getById(5);
+        srcAccount.transferTo(2, 30);
+
+        assertEquals(70, srcAccount.getAmount(), "Wrong amount in src account");
+
+        // both accounts are locked by one call in ascending id order
+        verify(provider).selectRowsForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), aryEq(new int[]{2, 5}), any());
+        // both accounts are updated by one call
+        verify(provider).addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq("amount"), aryEq(new int[]{5, 2}), aryEq(new int[]{-30, 30}));
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verifyLedger(new int[]{5, -30, 2}, new int[]{2, 30, 5});
+        verifyNoMoreInteractions(provider);
+    }
+
+    @Test
+    void settleTransferInsufficientAmountFails() throws SQLException {
+        Account.setTransferMode(Account.TransferMode.SETTLE);
+        // balance was changed by concurrent transaction before the lock was acquired
+        List<Account> lockedAccounts = Arrays.asList(lockedAccount(1, 1, 20), lockedAccount(2, 2, 0));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
+        when(provider.<Account>selectRowsForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenReturn(lockedAccounts);
+
+        Account srcAccount = Account.getById(1);
+        TransferException exception = assertThrows(TransferException.class, () -> srcAccount.transferTo(2, 30));
+
+        assertEquals(Error.ERR_014.getCode(), exception.getError().getCode());
+        verify(provider, never()).addToColumn(any(), any(), any(), any(int[].class), any(int[].class));
+    }
+
+    @Test
+    void settleTransferToMissingAccountFails() throws SQLException {
+        Account.setTransferMode(Account.TransferMode.SETTLE);
+        List<Account> lockedAccounts = Collections.singletonList(lockedAccount(1, 1, 100));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 1, 100, Currency.RUB));
+        when(provider.<Account>selectRowsForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenReturn(lockedAccounts);
+
+        Account srcAccount = Account.getById(1);
+        TransferException exception = assertThrows(TransferException.class, () -> srcAccount.transferTo(2, 30));
+
+        assertEquals(Error.ERR_019.getCode(), exception.getError().getCode());
+        assertEquals(100, srcAccount.getAmount());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void updateAmountSingleWriterOK() throws SQLException, TransferException {
+        Account.setUpdateMode(Account.UpdateMode.SINGLE_WRITER);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 2, 100, Currency.USD));
+        when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), any())).thenReturn(1);
+
+        Account account = Account.getById(1);
+        assertTrue(account.updateAmount(10));
+
+        assertEquals(110, account.getAmount(), "Wrong amount in updated account");
+
+        // amount read by single writer is actual, the record is not locked
+        verify(provider).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        ArgumentCaptor<Map<String, DbValue>> updateInputDataCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(provider).update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), updateInputDataCaptor.capture());
+        assertEquals(110, updateInputDataCaptor.getValue().get("amount").getValue());
+        verifyLedger(new int[]{1, 10, 0});
+        verifyNoMoreInteractions(provider);
+    }
+
+    @Test
+    void singleWriterTransferOK() throws SQLException, TransferException {
+        Account.setTransferMode(Account.TransferMode.SINGLE_WRITER);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(5, 1, 100, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 50, Currency.RUB));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq("amount"), any(int[].class), any(int[].class))).thenReturn(2);
+
+        Account srcAccount = Account.getById(5);
+        srcAccount.transferTo(2, 30);
+
+        assertEquals(70, srcAccount.getAmount(), "Wrong amount in src account");
+
+        verify(provider, times(2)).selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+        verify(provider).addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq("amount"), aryEq(new int[]{5, 2}), aryEq(new int[]{-30, 30}));
+        verifyLedger(new int[]{5, -30, 2}, new int[]{2, 30, 5});
+        verifyNoMoreInteractions(provider);
+    }
+
+    @Test
+    void singleWriterTransferInsufficientAmountFails() throws SQLException {
+        Account.setTransferMode(Account.TransferMode.SINGLE_WRITER);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any()))
+                .thenAnswer(accountRow(1, 1, 20, Currency.RUB))
+                .thenAnswer(accountRow(2, 2, 0, Currency.RUB));
+
+        Account srcAccount = Account.getById(1);
+        TransferException exception = assertThrows(TransferException.class, () -> srcAccount.transferTo(2, 30));
+
+        assertEquals(Error.ERR_014.getCode(), exception.getError().getCode());
+        verify(provider, never()).addToColumn(any(), any(), any(), any(int[].class), any(int[].class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void updateAmountOptimisticOK() throws SQLException, TransferException {
+        Account.setUpdateMode(Account.UpdateMode.OPTIMISTIC);
+        Account account = lockedAccount(1, 2, 100);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(versionedAccountRow(1, 2, 120, 7));
+        when(provider.updateIfVersion(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("version"), eq(7), any())).thenReturn(1);
+
+        assertTrue(account.updateAmount(-20));
+
+        // amount is calculated from the actual record, not from the instance
+        assertEquals(100, account.getAmount(), "Wrong amount in updated account");
+        ArgumentCaptor<Map<String, DbValue>> updateInputDataCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(provider).updateIfVersion(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("version"), eq(7), updateInputDataCaptor.capture());
+        assertEquals(100, updateInputDataCaptor.getValue().get("amount").getValue());
+        verify(provider, never()).selectRowForUpdate(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void updateAmountOptimisticConflictFails() throws SQLException {
+        Account.setUpdateMode(Account.UpdateMode.OPTIMISTIC);
+        Account account = lockedAccount(1, 2, 100);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(versionedAccountRow(1, 2, 100, 7));
+        when(provider.updateIfVersion(any(), any(), anyInt(), any(), anyInt(), any())).thenReturn(0);
+
+        ConcurrentUpdateException exception = assertThrows(ConcurrentUpdateException.class, () -> account.updateAmount(10));
+
+        assertEquals(Error.ERR_027.getCode(), exception.getError().getCode());
+        assertEquals(100, account.getAmount(), "Amount must not be changed by failed update");
+    }
+
+    @Test
+    void optimisticTransferUpdatesInIdOrder() throws SQLException, TransferException {
+        Account.setTransferMode(Account.TransferMode.OPTIMISTIC);
+        Account srcAccount = lockedAccount(5, 1, 100);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any()))
+                .thenAnswer(versionedAccountRow(5, 1, 100, 3))
+                .thenAnswer(versionedAccountRow(2, 2, 50, 9));
+        when(provider.updateIfVersion(any(), any(), anyInt(), any(), anyInt(), any())).thenReturn(1);
+
+        srcAccount.transferTo(2, 30);
+
+        assertEquals(70, srcAccount.getAmount(), "Wrong amount in src account");
+        InOrder inOrder = inOrder(provider);
+        inOrder.verify(provider).updateIfVersion(any(), eq(Table.ACCOUNT.getTableName()), eq(2), eq("version"), eq(9), any());
+        inOrder.verify(provider).updateIfVersion(any(), eq(Table.ACCOUNT.getTableName()), eq(5), eq("version"), eq(3), any());
+    }
+
+    @Test
+    void optimisticTransferConflictFails() throws SQLException {
+        Account.setTransferMode(Account.TransferMode.OPTIMISTIC);
+        Account srcAccount = lockedAccount(1, 1, 100);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any()))
+                .thenAnswer(versionedAccountRow(1, 1, 100, 3))
+                .thenAnswer(versionedAccountRow(2, 2, 50, 9));
+        when(provider.updateIfVersion(any(), any(), eq(1), any(), anyInt(), any())).thenReturn(1);
+        when(provider.updateIfVersion(any(), any(), eq(2), any(), anyInt(), any())).thenReturn(0);
+
+        assertThrows(ConcurrentUpdateException.class, () -> srcAccount.transferTo(2, 30));
+        assertEquals(100, srcAccount.getAmount(), "Amount must not be changed by failed transfer");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void updateAmountsSkipsChangesMakingBalanceNegative() throws SQLException, TransferException {
+        Account account = lockedAccount(1, 2, 0);
+        when(provider.selectRowForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(1, 2, 100, Currency.USD));
+        when(provider.update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), any())).thenReturn(1);
+
+        int[] balances = account.updateAmounts(new int[]{-50, -80, 30, -70});
+
+        assertArrayEquals(new int[]{50, -1, 80, 10}, balances);
+        assertEquals(10, account.getAmount());
+        ArgumentCaptor<Map<String, DbValue>> updateCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(provider, times(1)).selectRowForUpdate(any(), any(), any(), any(), any(), any());
+        verify(provider, times(1)).update(any(), eq(Table.ACCOUNT.getTableName()), eq(1), updateCaptor.capture());
+        assertEquals(10, updateCaptor.getValue().get("amount").getValue());
+    }
+
+    @Test
+    void updateAmountsOptimisticConflictFails() throws SQLException {
+        Account.setUpdateMode(Account.UpdateMode.OPTIMISTIC);
+        Account account = lockedAccount(1, 2, 0);
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(versionedAccountRow(1, 2, 100, 4));
+        when(provider.updateIfVersion(any(), any(), anyInt(), any(), anyInt(), any())).thenReturn(0);
+
+        assertThrows(ConcurrentUpdateException.class, () -> account.updateAmounts(new int[]{10, -20}));
+        verify(provider, times(1)).updateIfVersion(any(), eq(Table.ACCOUNT.getTableName()), eq(1), eq("version"), eq(4), any());
+    }
+
+    @Test
+    void getByIdOfStripedAccountSumsStripes() throws SQLException {
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(stripedAccountRow(3, 1, 2, Currency.RUB));
+        when(provider.selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("account_id"), any(), any()))
+                .thenReturn(Arrays.asList(new int[]{11, 40}, new int[]{12, 25}));
+
+        Account account = Account.getById(3);
+
+        assertTrue(account.isStriped());
+        assertEquals(65, account.getAmount());
+        assertTrue(Account.isKnownStriped(3));
+    }
+
+    @Test
+    void forEachSumsStripesOncePerFetchedChunk() throws SQLException {
+        when(provider.scan(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), eq(2), any())).thenAnswer(invocation -> {
+            RowHandler handler = invocation.getArgument(6);
+            handler.handle(stripedAccountRow(1, 1, 2, Currency.RUB));
+            handler.handle(accountRow(2, 2, 50, Currency.RUB));
+            handler.handle(stripedAccountRow(3, 3, 2, Currency.RUB));
+            return 3;
+        });
+        when(provider.selectSums(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), eq("amount"), eq("account_id"), any(), any()))
+                .thenReturn(List.of(new int[]{1, 70}), List.of());
+
+        List<Account> accounts = new ArrayList<>();
+        assertEquals(3, Account.forEach(null, 2, accounts::add));
+
+        assertEquals(70, accounts.get(0).getAmount());
+        assertEquals(50, accounts.get(1).getAmount());
+        assertEquals(0, accounts.get(2).getAmount(), "Account without stripe rows has no sum");
+        ArgumentCaptor<int[]> idsCaptor = ArgumentCaptor.forClass(int[].class);
+        verify(provider, times(2)).selectSums(any(), any(), any(), any(), idsCaptor.capture(), any());
+        assertArrayEquals(new int[]{1}, idsCaptor.getAllValues().get(0));
+        assertArrayEquals(new int[]{3}, idsCaptor.getAllValues().get(1));
+        verify(provider, never()).selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), any(), any(), any());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void createStripedAccountInsertsStripes() throws SQLException, BusinessException {
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenAnswer(clientRow(1, "Bob"));
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenReturn(null);
+        when(provider.insert(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(10);
+        when(provider.insert(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any())).thenReturn(1, 2, 3);
+
+        Account account = Account.create(1, Currency.RUB, 3);
+
+        assertEquals(3, account.getStripes());
+        ArgumentCaptor<Map<String, DbValue>> insertCaptor = ArgumentCaptor.forClass(Map.class);
+        verify(provider).insert(any(), eq(Table.ACCOUNT.getTableName()), insertCaptor.capture());
+        assertEquals(3, insertCaptor.getValue().get("stripes").getValue());
+        verify(provider, times(3)).insert(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), insertCaptor.capture());
+        List<Map<String, DbValue>> stripes = insertCaptor.getAllValues().subList(1, 4);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(10, stripes.get(i).get("account_id").getValue());
+            assertEquals(i, stripes.get(i).get("stripe").getValue());
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void createAllInsertsStripesOfCreatedAccounts() throws SQLException, BusinessException {
+        when(provider.insertBatch(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(new int[]{7, -1, 8});
+        when(provider.insertBatch(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any())).thenReturn(new int[]{1, 2});
+
+        Account[] accounts = Account.createAll(new int[]{1, 2, 3}, new Currency[]{Currency.EUR, Currency.USD, Currency.RUB}, new int[]{2, 3, 0});
+
+        assertEquals(7, accounts[0].getId());
+        assertEquals(2, accounts[0].getStripes());
+        assertNull(accounts[1], "Account that violates a constraint must not be created");
+        assertEquals(8, accounts[2].getId());
+        assertEquals(Currency.RUB, accounts[2].getCurrency());
+
+        // stripes of the failed account are not inserted
+        ArgumentCaptor<List<Map<String, DbValue>>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(provider).insertBatch(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), rowsCaptor.capture());
+        assertEquals(2, rowsCaptor.getValue().size());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(7, rowsCaptor.getValue().get(i).get("account_id").getValue());
+            assertEquals(i, rowsCaptor.getValue().get(i).get("stripe").getValue());
+        }
+        verify(provider, never()).selectRow(any(), any(), any(), any(), any(), any());
+    }
 
-    private Map<String, DbValue> createResultSetForAccount(int id, int clientId, int amount, Currency currency) {
-        Map<String, DbValue> resultSet = new HashMap<>();
-        resultSet.put("id", new DbValue(DbFieldType.INTEGER, id));
-        resultSet.put("client_id", new DbValue(DbFieldType.INTEGER, clientId));
-        resultSet.put("amount", new DbValue(DbFieldType.INTEGER, amount));
-        resultSet.put("currency", new DbValue(DbFieldType.STRING, currency.toString()));
-        resultSet.put("created_date", new DbValue(DbFieldType.DATE_TIME, Timestamp.valueOf(LocalDateTime.now())));
+    @Test
+    void createAllFailsIfStripeIsNotInserted() throws SQLException {
+        when(provider.insertBatch(any(), eq(Table.ACCOUNT.getTableName()), any())).thenReturn(new int[]{7});
+        when(provider.insertBatch(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any())).thenReturn(new int[]{1, -1});
+
+        assertThrows(SQLException.class, () -> Account.createAll(new int[]{1}, new Currency[]{Currency.EUR}, new int[]{2}));
+    }
+
+    @Test
+    void createWithTooManyStripesFails() {
+        BusinessException exception = assertThrows(BusinessException.class, () -> Account.create(1, Currency.RUB, Account.MAX_STRIPES + 1));
+        assertEquals(Error.ERR_028.getCode(), exception.getError().getCode());
+        verifyNoInteractions(provider);
+    }
+
+    @Test
+    void stripedCreditChangesOneStripe() throws SQLException, TransferException {
+        Account account = stripedAccount(3, 1, 3);
+        // stripes are read again after the credit, another credit of 10 is committed meanwhile
+        when(provider.selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("account_id"), any(), any()))
+                .thenReturn(Arrays.asList(new int[]{11, 10}, new int[]{12, 50}, new int[]{13, 30}),
+                        Arrays.asList(new int[]{11, 35}, new int[]{12, 50}, new int[]{13, 40}));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), anyInt(), eq("amount"), eq(25), eq(0))).thenReturn(35);
+
+        assertTrue(account.updateAmount(25));
+
+        assertEquals(125, account.getAmount(), "Sum must include credits committed to other stripes");
+        verify(provider).addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), anyInt(), eq("amount"), eq(25), eq(0));
+        verify(provider, never()).selectRowsForUpdate(any(), any(), any(), any(), any(), any());
+        verify(provider, never()).selectRowForUpdate(any(), any(), any(), any(), any(), any());
+    }
+
+    @Test
+    void stripedDebitTakesFullestStripesFirst() throws SQLException, TransferException {
+        Account account = stripedAccount(3, 1, 3);
+        when(provider.selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("account_id"), any(), any()))
+                .thenReturn(Arrays.asList(new int[]{11, 0}, new int[]{12, 0}, new int[]{13, 0}));
+        // locked values differ from the values read before the lock
+        when(provider.selectRowsForUpdate(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("id"), aryEq(new int[]{11, 12, 13}), any()))
+                .thenReturn(new ArrayList<>(Arrays.asList(new int[]{11, 10}, new int[]{12, 50}, new int[]{13, 30})));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), eq("amount"), any(int[].class), any(int[].class))).thenReturn(2);
+
+        assertTrue(account.updateAmount(-70));
+
+        assertEquals(20, account.getAmount());
+        verify(provider).addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), eq("amount"), aryEq(new int[]{12, 13}), aryEq(new int[]{-50, -20}));
+    }
 
-        return resultSet;
+    @Test
+    void stripedDebitInsufficientAmountFails() throws SQLException {
+        Account account = stripedAccount(3, 1, 2);
+        when(provider.selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("account_id"), any(), any()))
+                .thenReturn(Arrays.asList(new int[]{11, 10}, new int[]{12, 50}));
+        when(provider.selectRowsForUpdate(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("id"), any(), any()))
+                .thenReturn(new ArrayList<>(Arrays.asList(new int[]{11, 10}, new int[]{12, 50})));
+
+        TransferException exception = assertThrows(TransferException.class, () -> account.updateAmount(-61));
+
+        assertEquals(Error.ERR_014.getCode(), exception.getError().getCode());
+        verify(provider, never()).addToColumn(any(), any(), any(), any(int[].class), any(int[].class));
+    }
+
+    @Test
+    void transferToStripedAccountChangesAccountsInIdOrder() throws SQLException, TransferException {
+        Account.setUpdateMode(Account.UpdateMode.GUARDED);
+        Account srcAccount = lockedAccount(5, 1, 100);
+        Account dstAccount = stripedAccount(2, 2, 2);
+        when(provider.selectRows(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), any(), eq("account_id"), any(), any()))
+                .thenReturn(Arrays.asList(new int[]{11, 10}, new int[]{12, 50}), Arrays.asList(new int[]{11, 40}, new int[]{12, 50}));
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), anyInt(), eq("amount"), eq(30), eq(0))).thenReturn(40);
+        when(provider.addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(5), eq("amount"), eq(-30), eq(0))).thenReturn(70);
+
+        srcAccount.transferTo(dstAccount, 30);
+
+        assertEquals(70, srcAccount.getAmount());
+        assertEquals(90, dstAccount.getAmount());
+        InOrder inOrder = inOrder(provider);
+        inOrder.verify(provider).addToColumn(any(), eq(Table.ACCOUNT_STRIPE.getTableName()), anyInt(), eq("amount"), eq(30), eq(0));
+        inOrder.verify(provider).addToColumn(any(), eq(Table.ACCOUNT.getTableName()), eq(5), eq("amount"), eq(-30), eq(0));
+        verify(provider, never()).selectRowsForUpdate(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any());
+    }
+
+    private static RowAnswer versionedAccountRow(int id, int clientId, int amount, int version) {
+        return row(id, clientId, Currency.RUB.toString(), amount, new Timestamp(System.currentTimeMillis()), 0, version);
+    }
+
+    // creates striped account instance without stripe amounts; must be called before stubbing of the test
+    private Account stripedAccount(int id, int clientId, int stripes) throws SQLException {
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(stripedAccountRow(id, clientId, stripes, Currency.RUB));
+        Account account = Account.getById(id);
+        reset(provider);
+        stubLedger();
+        return account;
+    }
+
+    // creates account instance as it would be returned by the provider; must be called before stubbing of the test
+    private Account lockedAccount(int id, int clientId, int amount) throws SQLException {
+        when(provider.selectRow(any(), eq(Table.ACCOUNT.getTableName()), any(), any(), any(), any())).thenAnswer(accountRow(id, clientId, amount, Currency.RUB));
+        Account account = Account.getById(id);
+        reset(provider);
+        stubLedger();
+        return account;
+    }
+
+    // ledger entry is appended with each balance change
+    private void stubLedger() throws SQLException {
+        when(provider.insertBatch(any(), eq(Table.LEDGER.getTableName()), any()))
+                .thenAnswer(invocation -> new int[invocation.<List<?>>getArgument(2).size()]);
+    }
+
+    // checks ledger entries appended by one batch, each entry is {accountId, amount, counterpartyId}
+    @SuppressWarnings("unchecked")
+    private void verifyLedger(int[]... entries) throws SQLException {
+        ArgumentCaptor<List<Map<String, DbValue>>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(provider).insertBatch(any(), eq(Table.LEDGER.getTableName()), rowsCaptor.capture());
+        List<Map<String, DbValue>> rows = rowsCaptor.getValue();
+        assertEquals(entries.length, rows.size(), "Wrong number of ledger entries");
+        for (int i = 0; i < entries.length; i++) {
+            assertEquals(entries[i][0], rows.get(i).get("account_id").getValue(), "Wrong account of ledger entry");
+            assertEquals(entries[i][1], rows.get(i).get("amount").getValue(), "Wrong amount of ledger entry");
+            assertEquals(entries[i][2], rows.get(i).get("counterparty_id").getValue(), "Wrong counterparty of ledger entry");
+        }
     }
-}
\ No newline at end of file
+}
@@ -8,14 +8,15 @@ import valerii.db.*;
 import valerii.exception.BusinessException;
 
 import java.sql.SQLException;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
+import static valerii.domain.RowAnswer.clientRow;
 
 /**
  *
@@ -32,12 +33,8 @@ class ClientTest {
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     void getByIdFound() throws SQLException {
-        Map<String, DbValue> resultSet = new HashMap<>();
-        resultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        resultSet.put("name", new DbValue(DbFieldType.STRING, "Bob"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), eq("id"), any(), any())).thenAnswer(clientRow(1, "Bob"));
 
         Client client = Client.getById(1);
 
@@ -45,13 +42,10 @@ class ClientTest {
         assertEquals(1, client.getId());
         assertEquals("Bob", client.getName());
 
-        ArgumentCaptor<Map<String, DbValue>> inputDataCaptor = ArgumentCaptor.forClass(Map.class);
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), inputDataCaptor.capture());
+        ArgumentCaptor<DbValue> keyCaptor = ArgumentCaptor.forClass(DbValue.class);
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), eq("id"), keyCaptor.capture(), any());
 
-        Map<String, DbValue> inputData = inputDataCaptor.getValue();
-        assertEquals(1, inputData.size(), "Wrong number of input arguments");
-        assertTrue(inputData.containsKey("id"));
-        DbValue dbValue = inputData.entrySet().iterator().next().getValue();
+        DbValue dbValue = keyCaptor.getValue();
         assertEquals(DbFieldType.INTEGER, dbValue.getType());
         assertEquals(1, dbValue.getValue());
 
@@ -60,18 +54,14 @@ class ClientTest {
 
     @Test
     void getByIdNotFound() throws SQLException {
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenReturn(null);
 
         assertNull(Client.getById(1));
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     void getByNameFound() throws SQLException {
-        Map<String, DbValue> resultSet = new HashMap<>();
-        resultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        resultSet.put("name", new DbValue(DbFieldType.STRING, "Bob"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), eq("name"), any(), any())).thenAnswer(clientRow(1, "Bob"));
 
         Client client = Client.getByName("Bob");
 
@@ -79,21 +69,17 @@ class ClientTest {
         assertEquals(1, client.getId());
         assertEquals("Bob", client.getName());
 
-        ArgumentCaptor<Map<String, DbValue>> inputDataCaptor = ArgumentCaptor.forClass(Map.class);
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), inputDataCaptor.capture());
+        ArgumentCaptor<DbValue> keyCaptor = ArgumentCaptor.forClass(DbValue.class);
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), eq("name"), keyCaptor.capture(), any());
 
-        Map<String, DbValue> inputData = inputDataCaptor.getValue();
-        assertEquals(1, inputData.size(), "Wrong number of input arguments");
-        assertTrue(inputData.containsKey("name"));
-        DbValue dbValue = inputData.entrySet().iterator().next().getValue();
+        DbValue dbValue = keyCaptor.getValue();
         assertEquals(DbFieldType.STRING, dbValue.getType());
         assertEquals("Bob", dbValue.getValue());
     }
 
     @Test
     void getByNameNotFound() throws SQLException {
-        Map<String, DbValue> resultSet = Collections.emptyMap();
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenReturn(null);
 
         assertNull(Client.getByName("Alice"));
     }
@@ -101,7 +87,7 @@ class ClientTest {
     @Test
     @SuppressWarnings("unchecked")
     void createWithUniqueNameOK() throws SQLException, BusinessException {
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenReturn(null);
         when(provider.insert(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(1);
 
         Client client = Client.create("Alice");
@@ -111,12 +97,9 @@ class ClientTest {
         assertEquals("Alice", client.getName());
 
         // prove that duplicate name check was performed
-        ArgumentCaptor<Map<String, DbValue>> selectInputDataCaptor = ArgumentCaptor.forClass(Map.class);
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), selectInputDataCaptor.capture());
-        Map<String, DbValue> inputData = selectInputDataCaptor.getValue();
-        assertEquals(1, inputData.size(), "Wrong number of select input arguments");
-        assertTrue(inputData.containsKey("name"));
-        DbValue dbValue = inputData.entrySet().iterator().next().getValue();
+        ArgumentCaptor<DbValue> keyCaptor = ArgumentCaptor.forClass(DbValue.class);
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), eq("name"), keyCaptor.capture(), any());
+        DbValue dbValue = keyCaptor.getValue();
         assertEquals(DbFieldType.STRING, dbValue.getType());
         assertEquals("Alice", dbValue.getValue());
 
@@ -135,29 +118,45 @@ class ClientTest {
 
     @Test
     void createWithSameNameFailed() throws SQLException, BusinessException {
-        Map<String, DbValue> resultSet = new HashMap<>();
-        resultSet.put("id", new DbValue(DbFieldType.INTEGER, 1));
-        resultSet.put("name", new DbValue(DbFieldType.STRING, "Alice"));
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(resultSet);
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenAnswer(clientRow(1, "Alice"));
 
         BusinessException exception = assertThrows(BusinessException.class, () -> Client.create("Alice"));
         assertEquals(Error.ERR_005.getCode(), exception.getError().getCode(), "Wrong error in exception");
 
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any());
         verifyNoMoreInteractions(provider);
     }
 
     @Test
     void createIfUnableToInsert() throws SQLException, BusinessException {
-        when(provider.select(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(Collections.emptyMap());
+        when(provider.selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any())).thenReturn(null);
         when(provider.insert(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(-1);
 
         Client client = Client.create("Alice");
 
         assertNull(client);
 
-        verify(provider).select(any(), eq(Table.CLIENT.getTableName()), any());
+        verify(provider).selectRow(any(), eq(Table.CLIENT.getTableName()), any(), any(), any(), any());
         verify(provider).insert(any(), eq(Table.CLIENT.getTableName()), any());
         verifyNoMoreInteractions(provider);
     }
-}
\ No newline at end of file
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void createAllInsertsAllNamesByOneBatch() throws SQLException {
+        when(provider.insertBatch(any(), eq(Table.CLIENT.getTableName()), any())).thenReturn(new int[]{5, -1, 6});
+
+        Client[] clients = Client.createAll(Arrays.asList("Alice", "Bob", "Carol"));
+
+        assertEquals(5, clients[0].getId());
+        assertEquals("Alice", clients[0].getName());
+        assertNull(clients[1], "Client with existing name must not be created");
+        assertEquals(6, clients[2].getId());
+
+        // no select before insert, uniqueness is checked by the insert
+        ArgumentCaptor<List<Map<String, DbValue>>> rowsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(provider).insertBatch(any(), eq(Table.CLIENT.getTableName()), rowsCaptor.capture());
+        assertEquals("Bob", rowsCaptor.getValue().get(1).get("name").getValue());
+        verifyNoMoreInteractions(provider);
+    }
+}
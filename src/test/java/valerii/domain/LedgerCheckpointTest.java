@@ -0,0 +1,158 @@
+package valerii.domain;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import valerii.db.DbFieldType;
+import valerii.db.DbProvider;
+import valerii.db.DbValue;
+import valerii.db.MemoryProvider;
+import valerii.db.Table;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checkpoints and balances are checked against in-memory DB, since they are built from the ledger rows
+ *
+ * @author vliutyi
+ */
+class LedgerCheckpointTest {
+
+    private Connection connection;
+    private int accountId;
+    // time after each balance change
+    private final List<LocalDateTime> changeTimes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() throws Exception {
+        DbProvider.setProvider(new MemoryProvider());
+        DbProvider.createDBTables();
+        connection = DbProvider.newDBConnection();
+        connection.setAutoCommit(false);
+        DbProvider.setThreadConnection(connection);
+
+        Account account = Account.create(Client.create("Bob").getId(), Currency.EUR);
+        accountId = account.getId();
+        // balance after each change: 10, 20, 30, 40, 50
+        for (int i = 0; i < 5; i++) {
+            change(account, 10);
+        }
+    }
+
+    @AfterEach
+    void tearDown() throws SQLException {
+        DbProvider.setThreadConnection(null);
+        connection.close();
+        DbProvider.dropDBTables();
+    }
+
+    @Test
+    void checkpointIsCreatedEveryIntervalEntries() throws SQLException {
+        int lastId = LedgerCheckpoint.createCheckpoints(0, LocalDateTime.now().plusSeconds(1), 2, 1000, new ArrayList<>());
+
+        LedgerCheckpoint checkpoint = LedgerCheckpoint.getLast(accountId);
+        assertNotNull(checkpoint, "Checkpoint must be created");
+        assertEquals(40, checkpoint.getBalance(), "Wrong balance of the last checkpoint");
+        assertTrue(checkpoint.getLedgerId() < lastId, "Last entry is not checkpointed till the interval is full");
+
+        assertEquals(lastId, LedgerCheckpoint.createCheckpoints(lastId, LocalDateTime.now().plusSeconds(1), 2, 1000, new ArrayList<>()),
+                "Handled entries must not be handled again");
+        assertEquals(checkpoint.getId(), LedgerCheckpoint.getLast(accountId).getId(), "No checkpoint without new entries");
+    }
+
+    @Test
+    void nextRunContinuesFromLastCheckpoint() throws Exception {
+        int lastId = LedgerCheckpoint.createCheckpoints(0, LocalDateTime.now().plusSeconds(1), 2, 1000, new ArrayList<>());
+        change(Account.getById(accountId), -15);
+
+        LedgerCheckpoint.createCheckpoints(lastId, LocalDateTime.now().plusSeconds(1), 2, 1000, new ArrayList<>());
+
+        // entries 5 and 6 make the interval: 40 + 10 - 15
+        assertEquals(35, LedgerCheckpoint.getLast(accountId).getBalance(), "Wrong balance of the new checkpoint");
+    }
+
+    @Test
+    void entriesAfterHorizonAreLeftForNextRun() throws SQLException {
+        assertEquals(0, LedgerCheckpoint.createCheckpoints(0, changeTimes.get(0).minusSeconds(1), 2, 1000, new ArrayList<>()),
+                "Entries appended after the horizon must not be handled");
+        assertNull(LedgerCheckpoint.getLast(accountId));
+    }
+
+    @Test
+    void entryCommittedAfterGreaterIdIsCheckpointedIsCounted() throws Exception {
+        Connection late = DbProvider.newDBConnection();
+        late.setAutoCommit(false);
+        DbProvider.setThreadConnection(late);
+        // entry takes id before the next change but is committed after the change is checkpointed
+        LedgerEntry.append(accountId, 7);
+        DbProvider.setThreadConnection(connection);
+        change(Account.getById(accountId), 10);
+
+        List<Integer> skipped = new ArrayList<>();
+        int lastId = LedgerCheckpoint.createCheckpoints(0, LocalDateTime.now().plusSeconds(1), 2, 1000, skipped);
+        connection.commit();
+        assertEquals(1, skipped.size(), "Id of not committed entry must be skipped");
+        assertEquals(60, LedgerCheckpoint.getLast(accountId).getBalance());
+        assertFalse(LedgerCheckpoint.repairLateEntry(skipped.get(0), lastId, 2), "Not committed entry must not be counted");
+
+        late.commit();
+        late.close();
+        assertTrue(LedgerCheckpoint.repairLateEntry(skipped.get(0), lastId, 2));
+        connection.commit();
+
+        LedgerCheckpoint checkpoint = LedgerCheckpoint.getLast(accountId);
+        assertEquals(skipped.get(0), checkpoint.getLedgerId(), "Checkpoint after the late entry must be created again");
+        assertEquals(57, checkpoint.getBalance());
+        assertEquals(67, Balance.at(accountId, LocalDateTime.now(), 2).getAmount(), "Late entry must be counted");
+    }
+
+    @Test
+    void balanceIsReplayedFromNearestCheckpoint() throws SQLException {
+        LedgerCheckpoint.createCheckpoints(0, LocalDateTime.now().plusSeconds(1), 2, 1000, new ArrayList<>());
+
+        Balance balance = Balance.at(accountId, changeTimes.get(2), 2);
+        assertEquals(30, balance.getAmount(), "Wrong balance after the third change");
+        assertEquals(1, balance.getReplayedEntries(), "Only the entry after the nearest checkpoint must be replayed");
+
+        balance = Balance.at(accountId, LocalDateTime.now(), 2);
+        assertEquals(50, balance.getAmount(), "Wrong current balance");
+        assertEquals(1, balance.getReplayedEntries());
+    }
+
+    @Test
+    void entriesDatedAfterTimeAreSkipped() throws SQLException {
+        // entry of a transaction started before the third change is appended after the last change
+        Map<String, DbValue> values = new HashMap<>();
+        values.put("account_id", new DbValue(DbFieldType.INTEGER, accountId));
+        values.put("amount", new DbValue(DbFieldType.INTEGER, 5));
+        values.put("created_date", new DbValue(DbFieldType.DATE_TIME, changeTimes.get(1)));
+        DbProvider.insert(Table.LEDGER.getTableName(), values);
+        connection.commit();
+
+        assertEquals(35, Balance.at(accountId, changeTimes.get(2), 2).getAmount(), "Entry dated before the time must be replayed");
+        assertEquals(30, Balance.at(accountId, changeTimes.get(2), 1).getAmount(), "Replay must stop after lookAhead later entries");
+    }
+
+    @Test
+    void balanceWithoutCheckpointsIsReplayedFromFirstEntry() throws SQLException {
+        assertEquals(20, Balance.at(accountId, changeTimes.get(1), 2).getAmount(), "Wrong balance after the second change");
+        assertEquals(0, Balance.at(accountId, changeTimes.get(0).minusSeconds(1), 2).getAmount(), "Balance before the first change must be 0");
+    }
+
+    private void change(Account account, int amountDiff) throws Exception {
+        assertTrue(account.updateAmount(amountDiff));
+        connection.commit();
+        // next entry gets later time
+        Thread.sleep(5);
+        changeTimes.add(LocalDateTime.now());
+        Thread.sleep(5);
+    }
+}
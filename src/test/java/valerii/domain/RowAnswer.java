@@ -0,0 +1,60 @@
+package valerii.domain;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import valerii.db.DbRow;
+import valerii.db.RowMapper;
+
+import java.sql.Timestamp;
+
+/**
+ * Answer for stubbed row select calls: passes given column values to the RowMapper argument of the call
+ *
+ * @author vliutyi
+ */
+class RowAnswer implements Answer<Object>, DbRow {
+
+    private final Object[] values;
+
+    private RowAnswer(Object[] values) {
+        this.values = values;
+    }
+
+    static RowAnswer row(Object... values) {
+        return new RowAnswer(values);
+    }
+
+    static RowAnswer accountRow(int id, int clientId, int amount, Currency currency) {
+        return row(id, clientId, currency.toString(), amount, new Timestamp(System.currentTimeMillis()), 0);
+    }
+
+    static RowAnswer stripedAccountRow(int id, int clientId, int stripes, Currency currency) {
+        return row(id, clientId, currency.toString(), 0, new Timestamp(System.currentTimeMillis()), stripes);
+    }
+
+    static RowAnswer clientRow(int id, String name) {
+        return row(id, name);
+    }
+
+    @Override
+    public Object answer(InvocationOnMock invocation) throws Throwable {
+        Object[] arguments = invocation.getArguments();
+        RowMapper<?> mapper = (RowMapper<?>) arguments[arguments.length - 1];
+        return mapper.map(this);
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) values[column - 1];
+    }
+
+    @Override
+    public String getString(int column) {
+        return (String) values[column - 1];
+    }
+
+    @Override
+    public Timestamp getTimestamp(int column) {
+        return (Timestamp) values[column - 1];
+    }
+}
@@ -0,0 +1,114 @@
+package valerii.mutex;
+
+import org.junit.jupiter.api.Test;
+import valerii.metrics.Metrics;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class StripedLockManagerTest {
+
+    private final StripedLockManager locks = new StripedLockManager(16, "test.lock");
+
+    @Test
+    void lockedKeyTimesOutInOtherThread() throws InterruptedException {
+        long timeouts = Metrics.counter("test.lock.timeouts").sum();
+
+        try (StripedLockManager.Lease lease = locks.tryLock(100, 1)) {
+            assertNotNull(lease);
+            assertNull(tryLockInOtherThread(50, 1));
+        }
+        assertEquals(timeouts + 1, Metrics.counter("test.lock.timeouts").sum());
+
+        StripedLockManager.Lease lease = tryLockInOtherThread(50, 1);
+        assertNotNull(lease);
+    }
+
+    @Test
+    void keysOfSameStripeAreLockedOnce() throws InterruptedException {
+        int otherKey = 2;
+        while (locks.stripeOf(otherKey) != locks.stripeOf(1)) {
+            otherKey++;
+        }
+
+        try (StripedLockManager.Lease lease = locks.tryLock(100, 1, otherKey, 1)) {
+            assertNotNull(lease);
+        }
+        assertNotNull(tryLockInOtherThread(50, otherKey));
+    }
+
+    @Test
+    void failedMultiKeyLockReleasesAcquiredLocks() throws InterruptedException {
+        int key1 = 1;
+        int key2 = otherKeyOfHigherStripe(key1);
+
+        CountDownLatch locked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try (StripedLockManager.Lease lease = locks.tryLock(100, key2)) {
+                locked.countDown();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        holder.start();
+        assertTrue(locked.await(5, TimeUnit.SECONDS));
+
+        // key1 stripe is taken first, then key2 stripe times out
+        assertNull(locks.tryLock(50, key2, key1));
+        assertNotNull(tryLockInOtherThread(50, key1));
+
+        release.countDown();
+        holder.join();
+    }
+
+    @Test
+    void waitTimeIsRecorded() throws InterruptedException {
+        long count = Metrics.histogram("test.lock.wait").getCount();
+
+        try (StripedLockManager.Lease lease = locks.tryLock(100, 5)) {
+            assertNotNull(lease);
+        }
+
+        assertEquals(count + 1, Metrics.histogram("test.lock.wait").getCount());
+        assertTrue(Metrics.snapshot().containsKey("test.lock.wait.p99Micros"));
+    }
+
+    private int otherKeyOfHigherStripe(int key) {
+        int otherKey = key + 1;
+        while (locks.stripeOf(otherKey) <= locks.stripeOf(key)) {
+            otherKey++;
+        }
+        return otherKey;
+    }
+
+    /**
+     * Locks and releases keys in other thread
+     * @return lease if the keys were locked, already released, or null
+     */
+    private StripedLockManager.Lease tryLockInOtherThread(long timeoutMillis, int... keys) throws InterruptedException {
+        AtomicReference<StripedLockManager.Lease> result = new AtomicReference<>();
+        Thread thread = new Thread(() -> {
+            try {
+                StripedLockManager.Lease lease = locks.tryLock(timeoutMillis, keys);
+                if (lease != null) {
+                    lease.close();
+                }
+                result.set(lease);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+        thread.join();
+        return result.get();
+    }
+}
@@ -0,0 +1,121 @@
+package valerii.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import valerii.Error;
+import valerii.exception.TransferException;
+import valerii.resources.DebitWithdrawCoalescer.Request;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class DebitWithdrawCoalescerTest {
+
+    private DebitWithdrawCoalescer coalescer;
+
+    @AfterEach
+    void tearDown() {
+        coalescer.shutdown();
+        ResourceExecutor.initAccountLocks(ResourceExecutor.DEFAULT_ACCOUNT_LOCK_STRIPES, ResourceExecutor.DEFAULT_ACCOUNT_LOCK_TIMEOUT_MILLIS);
+    }
+
+    @Test
+    void fullBatchIsHandledOnceWithOwnResponses() {
+        // batch is submitted by its size long before the delay is over
+        coalescer = new DebitWithdrawCoalescer(3, TimeUnit.SECONDS.toMicros(10));
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        DebitWithdrawCoalescer.BatchHandler handler = (accountId, requests) -> {
+            batchSizes.add(requests.size());
+            for (Request request : requests) {
+                request.response = Response.status(200 + request.amountDiff).build();
+            }
+            return Response.ok().build();
+        };
+
+        AsyncResponse[] asyncResponses = new AsyncResponse[3];
+        for (int i = 0; i < 3; i++) {
+            asyncResponses[i] = mock(AsyncResponse.class);
+            coalescer.offer(1, new Request(asyncResponses[i], 1, i), handler);
+        }
+
+        for (int i = 0; i < 3; i++) {
+            assertEquals(200 + i, resumedStatus(asyncResponses[i]));
+        }
+        assertEquals(List.of(3), batchSizes);
+    }
+
+    @Test
+    void batchIsSubmittedAfterDelay() {
+        coalescer = new DebitWithdrawCoalescer(8, 1000);
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+
+        coalescer.offer(1, new Request(asyncResponse, 1, 10), (accountId, requests) -> {
+            requests.get(0).response = Response.ok().build();
+            return Response.ok().build();
+        });
+
+        assertEquals(200, resumedStatus(asyncResponse));
+    }
+
+    @Test
+    void requestsJoinBatchUntilItStarts() throws InterruptedException {
+        coalescer = new DebitWithdrawCoalescer(8, 0);
+        ResourceExecutor.initAccountLocks(ResourceExecutor.DEFAULT_ACCOUNT_LOCK_STRIPES, TimeUnit.SECONDS.toMillis(10));
+        CountDownLatch running = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        DebitWithdrawCoalescer.BatchHandler handler = (accountId, requests) -> {
+            batchSizes.add(requests.size());
+            running.countDown();
+            release.await();
+            return Response.ok().build();
+        };
+
+        // first batch holds the account, so next requests wait in the second batch
+        coalescer.offer(1, new Request(mock(AsyncResponse.class), 1, 1), handler);
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        AsyncResponse second = mock(AsyncResponse.class);
+        AsyncResponse third = mock(AsyncResponse.class);
+        coalescer.offer(1, new Request(second, 1, 2), handler);
+        coalescer.offer(1, new Request(third, 1, 3), handler);
+        release.countDown();
+
+        assertEquals(200, resumedStatus(second));
+        assertEquals(200, resumedStatus(third));
+        assertEquals(List.of(1, 2), batchSizes);
+    }
+
+    @Test
+    void failedBatchFailsAllRequests() {
+        coalescer = new DebitWithdrawCoalescer(2, TimeUnit.SECONDS.toMicros(10));
+        DebitWithdrawCoalescer.BatchHandler handler = (accountId, requests) -> {
+            throw new TransferException(Error.ERR_002);
+        };
+
+        AsyncResponse first = mock(AsyncResponse.class);
+        AsyncResponse second = mock(AsyncResponse.class);
+        coalescer.offer(1, new Request(first, 1, 1), handler);
+        coalescer.offer(1, new Request(second, 1, 2), handler);
+
+        assertEquals(422, resumedStatus(first));
+        assertEquals(422, resumedStatus(second));
+    }
+
+    private static int resumedStatus(AsyncResponse asyncResponse) {
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResponse, timeout(5000)).resume(responseCaptor.capture());
+        return responseCaptor.getValue().getStatus();
+    }
+}
@@ -0,0 +1,123 @@
+package valerii.resources;
+
+import valerii.bench.AsyncResponses;
+import valerii.db.DbProvider;
+import valerii.db.H2Provider;
+import valerii.resources.ResourceExecutor.Worker;
+
+import javax.ws.rs.core.Response;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares PLATFORM and VIRTUAL executor modes on burst of concurrent requests that hold DB connection for given time.
+ * Request blocks either while holding the connection between statements (connection), the way it waits for remote DB,
+ * or inside H2 statement that sleeps (statement). Embedded H2 runs statement holding session monitor, so the latter
+ * pins virtual thread to its carrier. PLATFORM executor gets one thread per request, so both modes run all requests
+ * at the same time. Kept in resources package to submit workers by package-private ResourceExecutor.submit the same way
+ * endpoints do. Run each mode in its own JVM, e.g. with -Djdk.tracePinnedThreads=short -Dorg.slf4j.simpleLogger.defaultLogLevel=warn
+ * valerii.resources.ExecutorModeBenchmark platform|virtual [requests] [sleepMillis] [connection|statement]
+ *
+ * @author vliutyi
+ */
+public class ExecutorModeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : "virtual";
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int sleepMillis = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        boolean sleepInStatement = args.length > 3 && args[3].equals("statement");
+
+        // DB pool is not a limit here, only threads are compared. All connections are opened upfront
+        DbProvider.setProvider(new H2Provider(requests, requests, TimeUnit.MINUTES.toMillis(1), 0,
+                H2Provider.DEFAULT_STATEMENT_CACHE_SIZE, 0));
+        DbProvider.createDBTables();
+        try (Connection connection = DbProvider.newDBConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE ALIAS IF NOT EXISTS SLEEP FOR 'java.lang.Thread.sleep(long)'");
+        }
+
+        switch (mode) {
+            case "platform":
+                ResourceExecutor.init(requests, requests, ResourceExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+                break;
+            case "virtual":
+                ResourceExecutor.initVirtual(requests, ResourceExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+
+        // warm up with small burst, then measure the full one
+        runBurst(Math.min(requests, 500), sleepMillis, sleepInStatement);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        Result result = runBurst(requests, sleepMillis, sleepInStatement);
+
+        System.out.printf("%-8s %d requests x %d ms in %s: %6d ms total, %8d ops/s, latency p50 %5d ms, p99 %5d ms, max %5d ms, " +
+                        "errors %d, peak platform threads %d%n", mode, requests, sleepMillis, sleepInStatement ? "statement" : "connection",
+                result.elapsedMillis,
+                requests * 1000L / Math.max(result.elapsedMillis, 1), result.percentile(50), result.percentile(99),
+                result.percentile(100), result.errors.sum(), threads.getPeakThreadCount());
+        System.exit(0);
+    }
+
+    private static Result runBurst(int requests, int sleepMillis, boolean sleepInStatement) throws InterruptedException {
+        Result result = new Result(requests);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < requests; i++) {
+            long submitted = System.nanoTime();
+            ResourceExecutor.submit(Worker.readOnly(AsyncResponses.resumedTo(response -> result.add(response, submitted)), () -> {
+                try (Statement statement = DbProvider.getConnection().createStatement()) {
+                    if (sleepInStatement) {
+                        statement.execute("CALL SLEEP(" + sleepMillis + ")");
+                    } else {
+                        statement.execute("CALL 1");
+                        Thread.sleep(sleepMillis);
+                    }
+                }
+                return Response.ok().build();
+            }));
+        }
+        result.done.await();
+
+        result.elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        return result;
+    }
+
+    private static class Result {
+
+        final long[] latencies;
+        final AtomicInteger count = new AtomicInteger();
+        final CountDownLatch done;
+        final LongAdder errors = new LongAdder();
+        long elapsedMillis;
+
+        Result(int requests) {
+            latencies = new long[requests];
+            done = new CountDownLatch(requests);
+        }
+
+        void add(Response response, long submitted) {
+            if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+                errors.increment();
+            }
+            latencies[count.getAndIncrement()] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted);
+            done.countDown();
+        }
+
+        long percentile(int percentile) {
+            long[] sorted = latencies.clone();
+            Arrays.sort(sorted);
+            return sorted[Math.max(0, sorted.length * percentile / 100 - 1)];
+        }
+    }
+}
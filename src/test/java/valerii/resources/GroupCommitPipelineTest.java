@@ -0,0 +1,149 @@
+package valerii.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import valerii.Error;
+import valerii.db.DbProvider;
+import valerii.db.IDbProvider;
+import valerii.exception.ConcurrentUpdateException;
+import valerii.exception.TransferException;
+import valerii.resources.ResourceExecutor.Worker;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class GroupCommitPipelineTest {
+
+    private Connection connection;
+    private GroupCommitPipeline pipeline;
+
+    @BeforeEach
+    void setUp() throws SQLException {
+        IDbProvider provider = mock(IDbProvider.class);
+        connection = mock(Connection.class);
+        when(provider.newDBConnection()).thenReturn(connection);
+        DbProvider.setProvider(provider);
+    }
+
+    @AfterEach
+    void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    void batchIsCommittedOnceAndFailedOperationIsRolledBackAlone() throws SQLException {
+        Savepoint savepoint1 = mock(Savepoint.class);
+        Savepoint savepoint2 = mock(Savepoint.class);
+        Savepoint savepoint3 = mock(Savepoint.class);
+        when(connection.setSavepoint()).thenReturn(savepoint1, savepoint2, savepoint3);
+        // batch is closed by its size long before the delay is over
+        pipeline = new GroupCommitPipeline(8, 3, TimeUnit.SECONDS.toMicros(10));
+
+        AsyncResponse ok1 = mock(AsyncResponse.class);
+        AsyncResponse failed = mock(AsyncResponse.class);
+        AsyncResponse ok2 = mock(AsyncResponse.class);
+        assertTrue(pipeline.offer(new Worker(ok1, () -> Response.ok().build())));
+        assertTrue(pipeline.offer(new Worker(failed, () -> {
+            throw new TransferException(Error.ERR_014);
+        })));
+        assertTrue(pipeline.offer(new Worker(ok2, () -> Response.ok().build())));
+
+        assertEquals(200, resumedStatus(ok1));
+        assertEquals(422, resumedStatus(failed));
+        assertEquals(200, resumedStatus(ok2));
+
+        verify(connection).rollback(savepoint2);
+        verify(connection, never()).rollback(savepoint1);
+        verify(connection, never()).rollback(savepoint3);
+        verify(connection, times(1)).commit();
+    }
+
+    @Test
+    void operationFailedOnConcurrentUpdateIsRetriedInsideBatch() throws SQLException {
+        Savepoint savepoint = mock(Savepoint.class);
+        when(connection.setSavepoint()).thenReturn(savepoint);
+        pipeline = new GroupCommitPipeline(8, 1, 0);
+
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+        int[] calls = new int[1];
+        assertTrue(pipeline.offer(new Worker(asyncResponse, () -> {
+            if (calls[0]++ == 0) {
+                throw new ConcurrentUpdateException();
+            }
+            return Response.ok().build();
+        })));
+
+        assertEquals(200, resumedStatus(asyncResponse));
+        assertEquals(2, calls[0]);
+        verify(connection).rollback(savepoint);
+        verify(connection, times(1)).commit();
+    }
+
+    @Test
+    void batchIsClosedAfterDelay() throws SQLException {
+        pipeline = new GroupCommitPipeline(8, 100, 1000);
+
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+        assertTrue(pipeline.offer(new Worker(asyncResponse, () -> Response.ok().build())));
+
+        assertEquals(200, resumedStatus(asyncResponse));
+        verify(connection, times(1)).commit();
+    }
+
+    @Test
+    void failedCommitFailsSuccessfulOperations() throws SQLException {
+        doThrow(new SQLException("Commit failed")).when(connection).commit();
+        pipeline = new GroupCommitPipeline(8, 2, TimeUnit.SECONDS.toMicros(10));
+
+        AsyncResponse ok = mock(AsyncResponse.class);
+        AsyncResponse failed = mock(AsyncResponse.class);
+        assertTrue(pipeline.offer(new Worker(ok, () -> Response.ok().build())));
+        assertTrue(pipeline.offer(new Worker(failed, () -> {
+            throw new TransferException(Error.ERR_014);
+        })));
+
+        assertEquals(500, resumedStatus(ok));
+        assertEquals(422, resumedStatus(failed));
+        verify(connection).rollback();
+    }
+
+    @Test
+    void fullBufferRejects() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        pipeline = new GroupCommitPipeline(2, 1, 0);
+
+        AsyncResponse running = mock(AsyncResponse.class);
+        assertTrue(pipeline.offer(new Worker(running, () -> {
+            started.countDown();
+            release.await();
+            return Response.ok().build();
+        })));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        assertTrue(pipeline.offer(new Worker(mock(AsyncResponse.class), () -> Response.ok().build())));
+        assertFalse(pipeline.offer(new Worker(mock(AsyncResponse.class), () -> Response.ok().build())));
+
+        release.countDown();
+        assertEquals(200, resumedStatus(running));
+    }
+
+    private static int resumedStatus(AsyncResponse asyncResponse) {
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResponse, timeout(5000)).resume(responseCaptor.capture());
+        return responseCaptor.getValue().getStatus();
+    }
+}
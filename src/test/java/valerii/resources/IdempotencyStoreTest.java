@@ -0,0 +1,128 @@
+package valerii.resources;
+
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import valerii.Error;
+import valerii.resources.transport.TError;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class IdempotencyStoreTest {
+
+    @Test
+    void duplicateGetsResponseOfFirstRequest() {
+        IdempotencyStore store = new IdempotencyStore(10, 60_000);
+        AsyncResponse first = mock(AsyncResponse.class);
+
+        AsyncResponse recording = store.begin("key", "transfer:1:2:10", first);
+        assertNotNull(recording, "First request must run");
+        recording.resume(Response.ok().entity("done").build());
+        verify(first).resume(any(Response.class));
+
+        AsyncResponse retry = mock(AsyncResponse.class);
+        assertNull(store.begin("key", "transfer:1:2:10", retry), "Retry must not run");
+
+        Response replayed = resumed(retry);
+        assertEquals(200, replayed.getStatus());
+        assertEquals("done", replayed.getEntity());
+        assertEquals(true, replayed.getHeaders().getFirst(IdempotencyStore.REPLAYED_HEADER));
+    }
+
+    @Test
+    void concurrentDuplicateWaitsForFirstRequest() {
+        IdempotencyStore store = new IdempotencyStore(10, 60_000);
+        AsyncResponse recording = store.begin("key", "transfer:1:2:10", mock(AsyncResponse.class));
+
+        AsyncResponse duplicate = mock(AsyncResponse.class);
+        assertNull(store.begin("key", "transfer:1:2:10", duplicate));
+        verify(duplicate, never()).resume(any(Response.class));
+
+        recording.resume(Response.status(422).entity(new TError(Error.ERR_014)).build());
+
+        Response replayed = resumed(duplicate);
+        assertEquals(422, replayed.getStatus());
+        assertEquals(Error.ERR_014.getCode(), ((TError) replayed.getEntity()).getCode());
+    }
+
+    @Test
+    void keyOfOtherRequestIsRejected() {
+        IdempotencyStore store = new IdempotencyStore(10, 60_000);
+        store.begin("key", "transfer:1:2:10", mock(AsyncResponse.class)).resume(Response.ok().build());
+
+        AsyncResponse other = mock(AsyncResponse.class);
+        assertNull(store.begin("key", "transfer:1:2:20", other));
+
+        Response response = resumed(other);
+        assertEquals(422, response.getStatus());
+        assertEquals(Error.ERR_033.getCode(), ((TError) response.getEntity()).getCode());
+    }
+
+    @Test
+    void retryableResponseIsNotKept() {
+        IdempotencyStore store = new IdempotencyStore(10, 60_000);
+        AsyncResponse recording = store.begin("key", "transfer:1:2:10", mock(AsyncResponse.class));
+        AsyncResponse duplicate = mock(AsyncResponse.class);
+        store.begin("key", "transfer:1:2:10", duplicate);
+
+        recording.resume(ResourceExecutor.busyResponse());
+
+        // request waiting for the first one gets its response, next retry runs again
+        assertEquals(503, resumed(duplicate).getStatus());
+        assertEquals(0, store.size());
+        assertNotNull(store.begin("key", "transfer:1:2:10", mock(AsyncResponse.class)));
+    }
+
+    @Test
+    void joinedRequestIsNotReplayedWhenFirstRunIsBusy() {
+        IdempotencyStore store = new IdempotencyStore(10, 60_000);
+        AsyncResponse recording = store.begin("key", "transfer:1:2:10", mock(AsyncResponse.class));
+        AsyncResponse duplicate = mock(AsyncResponse.class);
+        assertNull(store.begin("key", "transfer:1:2:10", duplicate));
+
+        recording.resume(ResourceExecutor.busyResponse());
+
+        // duplicate did not run, so it must look like a failure the client retries, not like a kept answer
+        Response response = resumed(duplicate);
+        assertEquals(503, response.getStatus());
+        assertNull(response.getHeaders().getFirst(IdempotencyStore.REPLAYED_HEADER));
+        assertNotNull(response.getHeaders().getFirst("Retry-After"));
+    }
+
+    @Test
+    void oldestKeyIsDroppedWhenStoreIsFull() {
+        IdempotencyStore store = new IdempotencyStore(2, 60_000);
+        for (String key : new String[]{"a", "b", "c"}) {
+            store.begin(key, "transfer", mock(AsyncResponse.class)).resume(Response.ok().build());
+        }
+
+        assertEquals(2, store.size());
+        assertTrue(store.estimatedBytes() > 0);
+        assertNotNull(store.begin("a", "transfer", mock(AsyncResponse.class)), "Dropped key must run again");
+        assertNull(store.begin("c", "transfer", mock(AsyncResponse.class)));
+    }
+
+    @Test
+    void expiredKeyIsDropped() throws InterruptedException {
+        IdempotencyStore store = new IdempotencyStore(10, 1);
+        store.begin("key", "transfer", mock(AsyncResponse.class)).resume(Response.ok().build());
+
+        Thread.sleep(5);
+
+        assertNotNull(store.begin("key", "transfer", mock(AsyncResponse.class)), "Expired key must run again");
+        assertEquals(1, store.size());
+    }
+
+    private static Response resumed(AsyncResponse asyncResponse) {
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResponse).resume(responseCaptor.capture());
+        return responseCaptor.getValue();
+    }
+}
@@ -0,0 +1,162 @@
+package valerii.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import valerii.metrics.Metrics;
+
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class PartitionedExecutorTest {
+
+    private PartitionedExecutor executor;
+
+    @BeforeEach
+    void setUp() {
+        executor = new PartitionedExecutor(4, 2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void tasksOfSameAccountRunOnSameThread() throws InterruptedException {
+        Set<Thread> threads = ConcurrentHashMap.newKeySet();
+        CountDownLatch done = new CountDownLatch(2);
+
+        executor.execute(7, () -> {
+            threads.add(Thread.currentThread());
+            done.countDown();
+        }, PartitionedExecutorTest::notRejected);
+        executor.execute(7, () -> {
+            threads.add(Thread.currentThread());
+            done.countDown();
+        }, PartitionedExecutorTest::notRejected);
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, threads.size());
+    }
+
+    @Test
+    void transferBetweenPartitionsHoldsBothPartitions() throws InterruptedException {
+        int accountId1 = 1;
+        int accountId2 = accountOfOtherPartition(accountId1);
+
+        CountDownLatch transferStarted = new CountDownLatch(1);
+        CountDownLatch transferRelease = new CountDownLatch(1);
+        AtomicBoolean transferRunning = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        CountDownLatch otherDone = new CountDownLatch(2);
+
+        executor.execute(accountId1, accountId2, () -> {
+            transferRunning.set(true);
+            transferStarted.countDown();
+            await(transferRelease);
+            transferRunning.set(false);
+        }, PartitionedExecutorTest::notRejected);
+        assertTrue(transferStarted.await(5, TimeUnit.SECONDS));
+
+        // tasks of both accounts must wait for the transfer
+        for (int accountId : new int[]{accountId1, accountId2}) {
+            executor.execute(accountId, () -> {
+                overlapped.compareAndSet(false, transferRunning.get());
+                otherDone.countDown();
+            }, PartitionedExecutorTest::notRejected);
+        }
+        assertFalse(otherDone.await(200, TimeUnit.MILLISECONDS), "Account task must not run during transfer");
+
+        transferRelease.countDown();
+        assertTrue(otherDone.await(5, TimeUnit.SECONDS));
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    void fullPartitionRejects() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicBoolean rejected = new AtomicBoolean();
+
+        executor.execute(1, () -> {
+            started.countDown();
+            await(release);
+        }, PartitionedExecutorTest::notRejected);
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // queue capacity is 2
+        executor.execute(1, () -> { }, PartitionedExecutorTest::notRejected);
+        executor.execute(1, () -> { }, PartitionedExecutorTest::notRejected);
+        executor.execute(1, () -> { }, () -> rejected.set(true));
+
+        assertTrue(rejected.get());
+        release.countDown();
+    }
+
+    @Test
+    void readingUtilizationDoesNotResetIt() throws InterruptedException {
+        executor.shutdown();
+        // sampler does not run during the test, samples are taken by the test only
+        executor = new PartitionedExecutor(1, 2, TimeUnit.HOURS.toMillis(1));
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute(1, () -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, PartitionedExecutorTest::notRejected);
+        // busy time of the first task is added before the next task starts
+        executor.execute(1, done::countDown, PartitionedExecutorTest::notRejected);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+
+        executor.sampleUtilization();
+
+        Number utilization = Metrics.snapshot().get("executor.partition.0.utilization");
+        assertTrue(utilization.intValue() > 0);
+        assertEquals(utilization, Metrics.snapshot().get("executor.partition.0.utilization"));
+    }
+
+    @Test
+    void gaugesOfRemovedPartitionsAreDropped() {
+        PartitionedExecutor oldExecutor = executor;
+        executor = new PartitionedExecutor(2, 2);
+        oldExecutor.shutdown();
+
+        SortedMap<String, Number> snapshot = Metrics.snapshot();
+        assertTrue(snapshot.containsKey("executor.partition.1.queueSize"));
+        assertTrue(snapshot.containsKey("executor.partition.1.utilization"));
+        assertFalse(snapshot.containsKey("executor.partition.2.queueSize"));
+        assertFalse(snapshot.containsKey("executor.partition.3.utilization"));
+    }
+
+    private int accountOfOtherPartition(int accountId) {
+        int otherId = accountId + 1;
+        while (executor.partitionOf(otherId) == executor.partitionOf(accountId)) {
+            otherId++;
+        }
+        return otherId;
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void notRejected() {
+        fail("Task must not be rejected");
+    }
+}
@@ -0,0 +1,127 @@
+package valerii.resources;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import valerii.exception.ConcurrentUpdateException;
+import valerii.metrics.Metrics;
+import valerii.resources.ResourceExecutor.Worker;
+import valerii.resources.transport.TError;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ *
+ * @author vliutyi
+ */
+class ResourceExecutorTest {
+
+    @AfterEach
+    void tearDown() {
+        ResourceExecutor.init(ResourceExecutor.DEFAULT_THREADS, ResourceExecutor.DEFAULT_QUEUE_CAPACITY,
+                ResourceExecutor.DEFAULT_RETRY_AFTER_SECONDS);
+        ResourceExecutor.initRetries(ResourceExecutor.DEFAULT_MAX_RETRIES, ResourceExecutor.DEFAULT_RETRY_BACKOFF_MICROS);
+        ResourceExecutor.initIdempotency(ResourceExecutor.DEFAULT_IDEMPOTENCY_MAX_KEYS, ResourceExecutor.DEFAULT_IDEMPOTENCY_TTL_SECONDS);
+    }
+
+    @Test
+    void idempotencyGaugesFollowCurrentStore() {
+        ResourceExecutor.initIdempotency(0, 60);
+        assertFalse(Metrics.snapshot().containsKey("idempotency.keys"), "Ignored keys must not be reported");
+
+        ResourceExecutor.initIdempotency(10, 60);
+        assertEquals(0, Metrics.snapshot().get("idempotency.keys").intValue());
+
+        assertNotNull(ResourceExecutor.startIdempotent(mock(AsyncResponse.class), "key", "transfer"));
+        assertEquals(1, Metrics.snapshot().get("idempotency.keys").intValue());
+        assertTrue(Metrics.snapshot().get("idempotency.estimatedBytes").longValue() > 0);
+    }
+
+    @Test
+    void concurrentUpdateIsRetried() {
+        ResourceExecutor.initRetries(3, 100);
+        AtomicInteger calls = new AtomicInteger();
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
+            if (calls.incrementAndGet() < 3) {
+                throw new ConcurrentUpdateException();
+            }
+            return Response.ok().build();
+        }));
+
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResponse, timeout(5000)).resume(responseCaptor.capture());
+        assertEquals(Response.Status.OK.getStatusCode(), responseCaptor.getValue().getStatus());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void exhaustedRetriesAnswerConflict() {
+        ResourceExecutor.initRetries(2, 100);
+        AtomicInteger calls = new AtomicInteger();
+        AsyncResponse asyncResponse = mock(AsyncResponse.class);
+
+        ResourceExecutor.submit(new Worker(asyncResponse, () -> {
+            calls.incrementAndGet();
+            throw new ConcurrentUpdateException();
+        }));
+
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(asyncResponse, timeout(5000)).resume(responseCaptor.capture());
+        assertEquals(Response.Status.CONFLICT.getStatusCode(), responseCaptor.getValue().getStatus());
+        assertEquals(27, ((TError) responseCaptor.getValue().getEntity()).getCode());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void fullExecutorRejectsWithRetryAfter() throws InterruptedException {
+        ResourceExecutor.init(1, 1, 5);
+        assertRejectsThirdRequest();
+    }
+
+    @Test
+    void fullVirtualExecutorRejectsWithRetryAfter() throws InterruptedException {
+        ResourceExecutor.initVirtual(2, 5);
+        assertRejectsThirdRequest();
+    }
+
+    /**
+     * Submits long running request, then two more requests. Executor must have room for two requests only
+     */
+    private void assertRejectsThirdRequest() throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AsyncResponse running = mock(AsyncResponse.class);
+        AsyncResponse queued = mock(AsyncResponse.class);
+        AsyncResponse rejected = mock(AsyncResponse.class);
+
+        ResourceExecutor.submit(Worker.readOnly(running, () -> {
+            started.countDown();
+            release.await();
+            return Response.ok().build();
+        }));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        ResourceExecutor.submit(Worker.readOnly(queued, () -> Response.ok().build()));
+        ResourceExecutor.submit(Worker.readOnly(rejected, () -> Response.ok().build()));
+
+        ArgumentCaptor<Response> responseCaptor = ArgumentCaptor.forClass(Response.class);
+        verify(rejected).resume(responseCaptor.capture());
+        Response response = responseCaptor.getValue();
+        assertEquals(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), response.getStatus());
+        assertEquals("5", response.getHeaderString(HttpHeaders.RETRY_AFTER));
+        assertEquals(26, ((TError) response.getEntity()).getCode());
+
+        release.countDown();
+        verify(running, timeout(5000)).resume(any(Response.class));
+        verify(queued, timeout(5000)).resume(any(Response.class));
+    }
+}